@@ -0,0 +1,176 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reference benchmark of the original per-input kernel, to compare with
+ * KernelBenchmark.apply: enforceRadius (a square root per cell) followed by
+ * operate (a new array per operation), reading the block from the output
+ * raster and writing it back
+ *
+ * The original only had integer outputs and the four arithmetic operations, so
+ * those are all that is benchmarked here. The input and parameters are the same
+ * as in KernelBenchmark, including the whole input being 1s for DIVIDE (which
+ * would otherwise divide by 0).
+ *
+ * @author jonathan.huck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BaselineBenchmark {
+
+    /*
+     * parameters
+     */
+    @Param({"500", "1000"})
+    public int size;            //width and height of the input (cells)
+
+    @Param({"250"})
+    public int radius;          //radius of the mask (cells)
+
+    @Param({"ADD", "SUBTRACT", "MULTIPLY", "DIVIDE"})
+    public String operation;
+
+    /*
+     * state
+     */
+    private int op;
+    private double cellRadius;
+    private int[] ints;
+    private WritableRaster raster;
+
+    /**
+     * Builds the input and an output raster twice its size
+     *
+     * @throws Exception
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.op = RasterCalculator.class.getField(this.operation).getInt(null);
+        this.ints = new SyntheticCoverages(1, this.size, this.size, 1, DataBuffer.TYPE_INT, null)
+                .getInts();
+        this.cellRadius = this.radius;
+        if (this.op == RasterCalculator.DIVIDE) {
+            Arrays.fill(this.ints, 1);
+            this.cellRadius = this.size;
+        }
+        this.raster = Raster.createBandedRaster(DataBuffer.TYPE_INT, this.size * 2,
+                this.size * 2, 1, null);
+    }
+
+    /**
+     * Sets every cell of the output to 1, so that each iteration starts from
+     * the same values
+     */
+    @Setup(Level.Iteration)
+    public void reset() {
+        final int[] ones = new int[this.size * 2];
+        Arrays.fill(ones, 1);
+        for (int y = 0; y < this.size * 2; y++) {
+            this.raster.setSamples(0, y, this.size * 2, 1, 0, ones);
+        }
+    }
+
+    /**
+     * Applies the input to the output as the original did
+     */
+    @Benchmark
+    public void apply() {
+        final int x = this.size / 2;
+        final int y = this.size / 2;
+
+        //enforce radius
+        final int[] values = enforceRadius(this.ints, this.size, this.cellRadius, 0);
+
+        //get values from raster
+        final int[] rasterValues = new int[this.size * this.size];
+        this.raster.getSamples(x, y, this.size, this.size, 0, rasterValues);
+
+        //calculate output values and apply to the raster
+        this.raster.setSamples(x, y, this.size, this.size, 0,
+                operate(this.op, values, rasterValues));
+    }
+
+    /**
+     * The original enforceRadius: replaces the values outside a radius from
+     * the centre
+     *
+     * @param data
+     * @param width
+     * @param radius
+     * @param replacementValue
+     * @return
+     */
+    private static int[] enforceRadius(int[] data, int width, double radius,
+            int replacementValue) {
+        final int[] out = new int[data.length];
+        final int centreX = (data.length / 2) % width;
+        final int centreY = (data.length / 2) / width;
+        int x, y;
+        for (int i = 0; i < data.length; i++) {
+            x = (i % width) - centreX;
+            y = (i / width) - centreY;
+            out[i] = (Math.sqrt(Math.pow(x, 2d) + Math.pow(y, 2d)) < radius)
+                    ? data[i] : replacementValue;
+        }
+        return out;
+    }
+
+    /**
+     * The original operate: a new array of one (op) two
+     *
+     * @param operation
+     * @param one
+     * @param two
+     * @return
+     */
+    private static int[] operate(int operation, int[] one, int[] two) {
+        final int[] out = new int[one.length];
+        switch (operation) {
+            case RasterCalculator.ADD:
+                for (int i = 0; i < one.length; i++) {
+                    out[i] = one[i] + two[i];
+                }
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < one.length; i++) {
+                    out[i] = one[i] - two[i];
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < one.length; i++) {
+                    out[i] = one[i] * two[i];
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < one.length; i++) {
+                    out[i] = one[i] / two[i];
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+        return out;
+    }
+}
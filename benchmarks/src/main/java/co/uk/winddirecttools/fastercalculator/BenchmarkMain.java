@@ -0,0 +1,80 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.util.Arrays;
+
+/**
+ * Runs the JMH benchmarks (the main class of the benchmarks jar), adding the
+ * jdk.incubator.vector module to each fork where the JVM has it
+ *
+ * The module only exists on JDK 16 and later, and the vector kernels are only
+ * built with JDK 17 or later, so it is added when the benchmarks are run on
+ * JDK 17 or later and not otherwise (an older JVM would refuse to start the
+ * forks). Setting the system property fastercalculator.vector to false leaves
+ * it out, and is passed on to the forks so that they use the scalar kernels.
+ * Any -jvmArgsAppend given on the command line is kept, after these arguments.
+ *
+ * Usage: java [-Dfastercalculator.vector=false] -jar benchmarks.jar [JMH options]
+ *
+ * @author jonathan.huck
+ */
+public class BenchmarkMain {
+
+    /*
+     * first version of Java that the vector kernels are built for
+     */
+    private static final int VECTOR_VERSION = 17;
+
+    /**
+     * @param args JMH command line options
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(getArguments(args));
+    }
+
+    /**
+     * Adds the JVM arguments for the forks to the JMH command line options
+     *
+     * @param args
+     * @return
+     */
+    static String[] getArguments(String[] args) {
+        final String jvmArgs;
+        if (!Boolean.parseBoolean(System.getProperty("fastercalculator.vector", "true"))) {
+            jvmArgs = "-Dfastercalculator.vector=false";
+        } else if (getJavaVersion() >= VECTOR_VERSION) {
+            jvmArgs = "--add-modules=jdk.incubator.vector";
+        } else {
+            return args;
+        }
+
+        //add to the user's -jvmArgsAppend, or add one
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-jvmArgsAppend")) {
+                final String[] merged = args.clone();
+                merged[i + 1] = jvmArgs + " " + args[i + 1];
+                return merged;
+            }
+        }
+        final String[] added = Arrays.copyOf(args, args.length + 2);
+        added[args.length] = "-jvmArgsAppend";
+        added[args.length + 1] = jvmArgs;
+        return added;
+    }
+
+    /**
+     * Returns the major version of the running JVM (8 for 1.8)
+     *
+     * @return
+     */
+    private static int getJavaVersion() {
+        final String[] version = System.getProperty("java.specification.version", "1.8")
+                .split("\\.");
+        try {
+            return Integer.parseInt(version[0].equals("1") && version.length > 1 ? version[1]
+                    : version[0]);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Command line arguments for the benchmark tools, split (as in App) into
+ * positional arguments and --key value options
+ *
+ * @author jonathan.huck
+ */
+class BenchmarkOptions {
+
+    /*
+     * object variables
+     */
+    private final List<String> arguments = new ArrayList<String>();
+    private final HashMap<String, String> options = new HashMap<String, String>();
+
+    /**
+     * Constructor
+     *
+     * @param args
+     */
+    BenchmarkOptions(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                this.options.put(args[i].substring(2), args[++i]);
+            } else if (args[i].startsWith("--")) {
+                this.options.put(args[i].substring(2), "true");
+            } else {
+                this.arguments.add(args[i]);
+            }
+        }
+    }
+
+    /**
+     * Return the positional arguments
+     *
+     * @return
+     */
+    List<String> getArguments() {
+        return this.arguments;
+    }
+
+    /**
+     * Return an option, or a default value if it has not been given
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    String get(String key, String defaultValue) {
+        return this.options.containsKey(key) ? this.options.get(key) : defaultValue;
+    }
+
+    /**
+     * Return an integer option, or a default value if it has not been given
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    int getInt(String key, int defaultValue) {
+        return Integer.parseInt(this.get(key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Return true if a flag has been given
+     *
+     * @param key
+     * @return
+     */
+    boolean has(String key) {
+        return this.options.containsKey(key);
+    }
+
+    /**
+     * Return the coordinate system of the corpus (British National Grid, the
+     * same default as App)
+     *
+     * @return
+     * @throws FactoryException
+     */
+    CoordinateReferenceSystem getCrs() throws FactoryException {
+        return CRS.decode("EPSG:27700", true);
+    }
+
+    /**
+     * Applies the corpus options to a generator
+     *
+     * @param generator
+     * @return
+     */
+    CorpusGenerator configure(CorpusGenerator generator) {
+        if (this.has("count")) {
+            generator.setCount(this.getInt("count", 0));
+        }
+        if (this.has("size")) {
+            generator.setSize(this.getInt("size", 0));
+        }
+        if (this.has("resolution")) {
+            generator.setResolution(this.getInt("resolution", 0));
+        }
+        if (this.has("density")) {
+            generator.setDensity(Double.parseDouble(this.get("density", null)));
+        }
+        if (this.has("radius")) {
+            generator.setRadius(this.getInt("radius", 0));
+        }
+        if (this.has("format")) {
+            generator.setFormat(this.get("format", null));
+        }
+        if (this.has("tile")) {
+            generator.setTileSize(this.getInt("tile", 0));
+        }
+        if (this.has("seed")) {
+            generator.setSeed(Long.parseLong(this.get("seed", null)));
+        }
+        return generator;
+    }
+}
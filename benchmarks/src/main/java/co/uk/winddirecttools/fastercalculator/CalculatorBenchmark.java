@@ -0,0 +1,130 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.referencing.CRS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Benchmarks for RasterCalculator on synthetic coverages held in memory:
+ * reading the values of a coverage, planning the combined envelope, and full
+ * runs of process()
+ *
+ * The coverages are size x size cells, laid out on a grid spacing cells apart
+ * (so a spacing of less than the size makes them overlap). In-memory coverages
+ * are always applied on one thread (see CoverageSource for parallel reads).
+ *
+ * @author jonathan.huck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalculatorBenchmark {
+
+    /*
+     * parameters
+     */
+    @Param({"500"})
+    public int size;            //width and height of each coverage (cells)
+
+    @Param({"16", "100"})
+    public int count;           //number of coverages
+
+    @Param({"250"})
+    public int spacing;         //distance between coverages (cells)
+
+    @Param({"500"})
+    public int radius;          //radius passed to process (map units)
+
+    @Param({"10"})
+    public int resolution;      //cell size (map units)
+
+    @Param({"INT", "FLOAT"})
+    public String type;         //type of the coverages and accumulator
+
+    /*
+     * state
+     */
+    private SyntheticCoverages coverages;
+    private List<CoverageHeader> headers;
+    private CoordinateReferenceSystem crs;
+    private RasterCalculator calculator;
+    private int[] ints;
+    private float[] floats;
+
+    /**
+     * Builds the coverages and their headers
+     *
+     * @throws Exception
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.crs = CRS.decode("EPSG:27700", true);
+        this.coverages = new SyntheticCoverages(this.count, this.size, this.spacing,
+                this.resolution, SyntheticCoverages.dataType(this.type), this.crs);
+        this.headers = new ArrayList<CoverageHeader>();
+        for (GridCoverage2D coverage : this.coverages) {
+            this.headers.add(CoverageHeader.fromCoverage(coverage));
+        }
+        this.calculator = new RasterCalculator(1);
+    }
+
+    /**
+     * Reads the values of one coverage into a re-used buffer
+     *
+     * @param blackhole
+     */
+    @Benchmark
+    public void readValues(Blackhole blackhole) {
+        final GridCoverage2D coverage = this.coverages.get(0);
+        if (this.type.equals("FLOAT")) {
+            this.floats = this.calculator.readValues(coverage, this.floats);
+            blackhole.consume(this.floats);
+        } else {
+            this.ints = this.calculator.readValues(coverage, this.ints);
+            blackhole.consume(this.ints);
+        }
+    }
+
+    /**
+     * Plans the output envelope from the headers
+     *
+     * @param blackhole
+     * @throws Exception
+     */
+    @Benchmark
+    public void combinedEnvelope(Blackhole blackhole) throws Exception {
+        blackhole.consume(this.calculator.getCombinedEnvelope(this.headers, this.resolution,
+                this.crs));
+    }
+
+    /**
+     * Adds all of the coverages together
+     *
+     * @return
+     * @throws Exception
+     */
+    @Benchmark
+    public GridCoverage2D process() throws Exception {
+        return this.calculator.process(this.coverages, this.radius, RasterCalculator.ADD,
+                AccumulatorType.valueOf(this.type));
+    }
+}
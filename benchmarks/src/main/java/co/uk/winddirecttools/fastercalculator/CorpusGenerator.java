@@ -0,0 +1,296 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageWriteParam;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Writes a corpus of synthetic viewsheds to a directory as GeoTIFF and/or
+ * ASCII grid files
+ *
+ * Each viewshed is a square of size x size cells, in which the cells within
+ * the radius of the centre are randomly visible (1) or not (0) and all other
+ * cells are 0. The viewsheds are scattered at random over an area that is
+ * scaled so that, on average, each cell is covered by density viewsheds. All
+ * viewsheds share the same resolution and are aligned to the same grid, as
+ * they would be when produced from the same elevation model.
+ *
+ * Usage: CorpusGenerator [directory] [--count n] [--size cells]
+ * [--resolution m] [--density n] [--radius m] [--format tif|asc|mixed]
+ * [--tile cells] [--seed n]
+ *
+ * @author jonathan.huck
+ */
+public class CorpusGenerator {
+
+    /*
+     * object variables
+     */
+    private int count = 1000;          //number of files
+    private int size = 200;            //width and height of each file (cells)
+    private int resolution = 10;       //cell size (m)
+    private double density = 4;        //average number of files covering a cell
+    private int radius = 1000;         //radius of the visible area (m)
+    private String format = "tif";     //tif, asc or mixed
+    private int tileSize = 0;          //GeoTIFF tile size (cells), 0 for stripped
+    private long seed = 42;            //random seed
+    private final CoordinateReferenceSystem crs;   //coordinate system (GeoTIFF only)
+
+    /**
+     * Constructor
+     *
+     * @param crs
+     */
+    public CorpusGenerator(CoordinateReferenceSystem crs) {
+        this.crs = crs;
+    }
+
+    /**
+     * Main method, writes a corpus
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        final BenchmarkOptions options = new BenchmarkOptions(args);
+        if (options.getArguments().size() != 1) {
+            System.out.println("CorpusGenerator [directory] [--count n] [--size cells] [--resolution m]");
+            System.out.println("    [--density n] [--radius m] [--format tif|asc|mixed] [--tile cells] [--seed n]");
+            System.exit(0);
+        }
+        final CorpusGenerator generator = options.configure(new CorpusGenerator(options.getCrs()));
+        final long start = System.nanoTime();
+        final List<File> files = generator.generate(new File(options.getArguments().get(0)));
+        System.out.printf("Wrote %d files in %.1f s%n", files.size(), (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Writes the corpus to a directory (which is created if necessary),
+     * returning the files
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public List<File> generate(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        //size of the area in cells, so that the files cover it density times
+        final int area = (int) Math.max(1, Math.round(Math.sqrt(this.count / this.density) * this.size));
+        final int positions = Math.max(1, area - this.size + 1);
+        final Random random = new Random(this.seed);
+        final WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_INT,
+                this.size, this.size, 1, null);
+        final List<File> files = new ArrayList<File>(this.count);
+        for (int i = 0; i < this.count; i++) {
+
+            //position and values of the viewshed
+            final int x = random.nextInt(positions) * this.resolution;
+            final int y = random.nextInt(positions) * this.resolution;
+            this.fill(raster, random);
+
+            //write as either format
+            final boolean asc = this.format.equals("asc") || (this.format.equals("mixed") && i % 2 == 1);
+            final File file = new File(directory, String.format("viewshed%06d.%s", i, asc ? "asc" : "tif"));
+            if (asc) {
+                this.writeAsciiGrid(file, raster, x, y);
+            } else {
+                this.writeGeoTiff(file, raster, x, y);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Fills a raster with a random viewshed
+     *
+     * @param raster
+     * @param random
+     */
+    private void fill(WritableRaster raster, Random random) {
+        final double cells = (double) this.radius / this.resolution;
+        final int centre = this.size / 2;
+        for (int row = 0; row < this.size; row++) {
+            for (int col = 0; col < this.size; col++) {
+                final double distance = Math.hypot(col - centre, row - centre);
+                raster.setSample(col, row, 0, distance < cells && random.nextBoolean() ? 1 : 0);
+            }
+        }
+    }
+
+    /**
+     * Writes a raster as an ASCII grid
+     *
+     * @param file
+     * @param raster
+     * @param x
+     * @param y
+     * @throws IOException
+     */
+    private void writeAsciiGrid(File file, Raster raster, int x, int y) throws IOException {
+        final BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write("ncols " + this.size + "\n");
+            writer.write("nrows " + this.size + "\n");
+            writer.write("xllcorner " + x + "\n");
+            writer.write("yllcorner " + y + "\n");
+            writer.write("cellsize " + this.resolution + "\n");
+            writer.write("NODATA_value -9999\n");
+            final StringBuilder line = new StringBuilder(this.size * 2);
+            for (int row = 0; row < this.size; row++) {
+                line.setLength(0);
+                for (int col = 0; col < this.size; col++) {
+                    if (col > 0) {
+                        line.append(' ');
+                    }
+                    line.append(raster.getSample(col, row, 0));
+                }
+                writer.write(line.append('\n').toString());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes a raster as a GeoTIFF, tiled if a tile size has been set
+     *
+     * @param file
+     * @param raster
+     * @param x
+     * @param y
+     * @throws IOException
+     */
+    private void writeGeoTiff(File file, WritableRaster raster, int x, int y) throws IOException {
+        final double extent = this.size * this.resolution;
+        final GridCoverage2D coverage = new GridCoverageFactory().create(file.getName(), raster,
+                new Envelope2D(this.crs, x, y, extent, extent));
+        GeneralParameterValue[] params = null;
+        if (this.tileSize > 0) {
+            final GeoTiffWriteParams wp = new GeoTiffWriteParams();
+            wp.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            wp.setTiling(this.tileSize, this.tileSize);
+            final ParameterValueGroup paramWrite = new GeoTiffFormat().getWriteParameters();
+            paramWrite.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString()).setValue(wp);
+            params = paramWrite.values().toArray(new GeneralParameterValue[1]);
+        }
+        final GeoTiffWriter writer = new GeoTiffWriter(file);
+        try {
+            writer.write(coverage, params);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /*
+     * mutator methods
+     */
+    /**
+     * Set the number of files
+     *
+     * @param count
+     * @return
+     */
+    public CorpusGenerator setCount(int count) {
+        this.count = count;
+        return this;
+    }
+
+    /**
+     * Set the width and height of each file (cells)
+     *
+     * @param size
+     * @return
+     */
+    public CorpusGenerator setSize(int size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * Set the cell size (m)
+     *
+     * @param resolution
+     * @return
+     */
+    public CorpusGenerator setResolution(int resolution) {
+        this.resolution = resolution;
+        return this;
+    }
+
+    /**
+     * Set the average number of files covering each cell
+     *
+     * @param density
+     * @return
+     */
+    public CorpusGenerator setDensity(double density) {
+        this.density = density;
+        return this;
+    }
+
+    /**
+     * Set the radius of the visible area of each viewshed (m)
+     *
+     * @param radius
+     * @return
+     */
+    public CorpusGenerator setRadius(int radius) {
+        this.radius = radius;
+        return this;
+    }
+
+    /**
+     * Set the format of the files (tif, asc or mixed)
+     *
+     * @param format
+     * @return
+     */
+    public CorpusGenerator setFormat(String format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Set the GeoTIFF tile size (cells), or 0 for stripped GeoTIFFs
+     *
+     * @param tileSize
+     * @return
+     */
+    public CorpusGenerator setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+        return this;
+    }
+
+    /**
+     * Set the random seed
+     *
+     * @param seed
+     * @return
+     */
+    public CorpusGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+}
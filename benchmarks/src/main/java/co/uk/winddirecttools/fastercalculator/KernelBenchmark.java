@@ -0,0 +1,156 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the per-input kernels: building the radius mask, and
+ * applying one masked input to an accumulator (which replaced enforceRadius
+ * followed by operate) for each operation and accumulator type, plus the
+ * vector and scalar span loops on their own (see BaselineBenchmark for the
+ * original kernel)
+ *
+ * The vector kernels are used where they have been built (JDK 17 or later) and
+ * BenchmarkMain has added the jdk.incubator.vector module to the forks. The
+ * output is set back to 1s before each iteration, so that every iteration
+ * applies the input to the same values.
+ *
+ * @author jonathan.huck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+
+    /*
+     * parameters
+     */
+    @Param({"500", "1000"})
+    public int size;            //width and height of the input (cells)
+
+    @Param({"250"})
+    public int radius;          //radius of the mask (cells)
+
+    @Param({"ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "COUNT", "MAX"})
+    public String operation;
+
+    @Param({"INT", "FLOAT", "USHORT"})
+    public String type;
+
+    /*
+     * state
+     */
+    private int op;
+    private RasterAccumulator accumulator;
+    private RadiusMask mask;
+    private int[] ints;
+    private float[] floats;
+    private int[] intCells;
+    private float[] floatCells;
+
+    /**
+     * Builds the input and an accumulator twice its size. Integer DIVIDE
+     * would divide by 0 once an output cell became 0, so for this the input
+     * is all 1s and the mask covers the whole input.
+     *
+     * @throws Exception
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.op = RasterCalculator.class.getField(this.operation).getInt(null);
+        final SyntheticCoverages coverages = new SyntheticCoverages(1, this.size, this.size, 1,
+                SyntheticCoverages.dataType(this.type), null);
+        this.ints = coverages.getInts();
+        this.floats = coverages.getFloats();
+        this.mask = RadiusMask.get(this.size, this.size, this.radius);
+        if (this.op == RasterCalculator.DIVIDE && !this.type.equals("FLOAT")) {
+            Arrays.fill(this.ints, 1);
+            this.mask = RadiusMask.get(this.size, this.size, this.size);
+        }
+        this.accumulator = new RasterAccumulator(AccumulatorType.valueOf(this.type),
+                this.size * 2, this.size * 2);
+        this.intCells = new int[this.size];
+        this.floatCells = new float[this.size];
+    }
+
+    /**
+     * Sets every cell of the accumulator and of the rows used by the span
+     * benchmarks to 1
+     */
+    @Setup(Level.Iteration)
+    public void reset() {
+        final double[] ones = new double[this.size * 2];
+        Arrays.fill(ones, 1);
+        for (int y = 0; y < this.size * 2; y++) {
+            this.accumulator.writeRow(y, ones);
+        }
+        Arrays.fill(this.intCells, 1);
+        Arrays.fill(this.floatCells, 1);
+    }
+
+    /**
+     * Builds a new mask (bypassing the cache)
+     *
+     * @param blackhole
+     */
+    @Benchmark
+    public void mask(Blackhole blackhole) {
+        blackhole.consume(new RadiusMask(this.size, this.size, this.radius));
+    }
+
+    /**
+     * Applies the input to the accumulator, enforcing the radius
+     */
+    @Benchmark
+    public void apply() {
+        if (this.accumulator.getType().isFloatingPoint()) {
+            this.accumulator.apply(this.op, this.floats, this.mask, this.size / 2, this.size / 2,
+                    0, this.size);
+        } else {
+            this.accumulator.apply(this.op, this.ints, this.mask, this.size / 2, this.size / 2,
+                    0, this.size);
+        }
+    }
+
+    /**
+     * Applies one row of the input using the vector kernels if available
+     * (only meaningful for INT and FLOAT)
+     */
+    @Benchmark
+    public void span() {
+        if (this.type.equals("FLOAT")) {
+            Kernels.applySpan(this.op, this.floats, 0, this.floatCells, 0, this.size);
+        } else {
+            Kernels.applySpan(this.op, this.ints, 0, this.intCells, 0, this.size);
+        }
+    }
+
+    /**
+     * Applies one row of the input using the scalar kernels (only meaningful
+     * for INT and FLOAT)
+     */
+    @Benchmark
+    public void spanScalar() {
+        if (this.type.equals("FLOAT")) {
+            Kernels.applySpanScalar(this.op, this.floats, 0, this.floatCells, 0, this.size);
+        } else {
+            Kernels.applySpanScalar(this.op, this.ints, 0, this.intCells, 0, this.size);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.List;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.factory.Hints;
+
+/**
+ * End-to-end benchmark of the whole App pipeline (read, process and write)
+ * over a corpus of viewsheds on disk
+ *
+ * The corpus is either an existing directory (--corpus) or is generated in a
+ * temporary directory with CorpusGenerator (using the same options), and is
+ * deleted afterwards unless --keep is given. Each run reads the corpus through
+ * a CoverageSource, adds it together with RasterCalculator.process() and writes
+ * the result as a GeoTIFF. The output is written raw by default (use --styled
+ * to style it with the bundled style, as App does) and is compressed with
+ * DEFLATE and a predictor unless another --compression is given. Overviews are
+ * only written if --overviews is given.
+ *
+ * For each run the wall time, files per second, GC time and output size are
+ * reported, followed by the peak resident set size of the process (Linux
+ * only). The Metrics of the last run can be written to a JSON file with --report.
+ *
+ * Usage: MacroBenchmark [--corpus directory | corpus options] [--runs n]
+ * [--threads n] [--memory MB] [--type auto|byte|ushort|int|long|float]
+ * [--compression none|lzw|deflate] [--predictor true|false]
+ * [--overviews none|average|max|nearest] [--styled] [--keep] [--report file.json]
+ *
+ * @author jonathan.huck
+ */
+public class MacroBenchmark {
+
+    /**
+     * Main method, runs the benchmark
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        final BenchmarkOptions options = new BenchmarkOptions(args);
+        final int runs = options.getInt("runs", 3);
+        final int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        final long memoryBudget = options.has("memory")
+                ? Long.parseLong(options.get("memory", null)) * 1024 * 1024
+                : Runtime.getRuntime().maxMemory() / 2;
+        final AccumulatorType type = options.get("type", "int").equalsIgnoreCase("auto") ? null
+                : AccumulatorType.valueOf(options.get("type", "int").toUpperCase());
+        final int radius = options.getInt("radius", 1000);
+        final TiledGeoTiffWriter.Compression compression = TiledGeoTiffWriter.Compression.valueOf(
+                options.get("compression", "deflate").toUpperCase());
+        final boolean predictor = Boolean.parseBoolean(options.get("predictor", "true"));
+        final String resampling = options.get("overviews", "none").toUpperCase();
+        final TiledGeoTiffWriter.Resampling overviews = resampling.equals("NONE") ? null
+                : TiledGeoTiffWriter.Resampling.valueOf(resampling);
+
+        //get the corpus
+        final Hints hints = new Hints();
+        hints.put(Hints.DEFAULT_COORDINATE_REFERENCE_SYSTEM, options.getCrs());
+        final File directory;
+        final boolean generated = !options.has("corpus");
+        if (generated) {
+            directory = Files.createTempDirectory("fastercalculator-corpus").toFile();
+            final long start = System.nanoTime();
+            options.configure(new CorpusGenerator(options.getCrs())).generate(directory);
+            System.out.printf("Generated corpus in %s (%.1f s)%n", directory,
+                    (System.nanoTime() - start) / 1e9);
+        } else {
+            directory = new File(options.get("corpus", null));
+        }
+        final List<File> files = App.listInputFiles(directory);
+        final File output = File.createTempFile("fastercalculator-output", ".tif");
+
+        try {
+            System.out.printf("%d files, %d threads, %d MB memory budget%n", files.size(), threads,
+                    memoryBudget / 1024 / 1024);
+            System.out.println("run\twall (s)\tprocess (s)\twrite (s)\tfiles/s\tGC (ms)\tGC count"
+                    + "\toutput (MB)");
+            for (int run = 1; run <= runs; run++) {
+                final long gcTime = getGcTime();
+                final long gcCount = getGcCount();
+                Metrics.getInstance().reset();
+                final long start = System.nanoTime();
+
+                //read and process
+                final CoverageSource source = new CoverageSource(files, hints);
+                final RasterCalculator calculator = new RasterCalculator(threads, memoryBudget);
+                final GridCoverage2D gc = calculator.process(source, radius, RasterCalculator.ADD,
+                        type);
+                final long processed = System.nanoTime();
+
+                //write
+                final TiledGeoTiffWriter writer = new TiledGeoTiffWriter(output).setThreads(threads)
+                        .setCompression(compression).setPredictor(predictor)
+                        .setOverviews(overviews);
+                if (options.has("styled")) {
+                    App.writeGeoTiffFile(gc, App.getDefaultColorTable(), writer);
+                } else {
+                    App.writeRawGeoTiffFile(gc, writer);
+                }
+                gc.dispose(true);
+                calculator.close();
+                final long end = System.nanoTime();
+
+                System.out.printf("%d\t%.2f\t%.2f\t%.2f\t%.1f\t%d\t%d\t%.1f%n", run,
+                        (end - start) / 1e9, (processed - start) / 1e9, (end - processed) / 1e9,
+                        files.size() / ((end - start) / 1e9),
+                        getGcTime() - gcTime, getGcCount() - gcCount, output.length() / 1048576.0);
+            }
+            System.out.println("Peak RSS: " + getPeakRss());
+            System.out.print(Metrics.getInstance().getSummary());
+            if (options.has("report")) {
+                Metrics.getInstance().writeJson(new File(options.get("report", null)));
+            }
+        } finally {
+            output.delete();
+            if (generated && !options.has("keep")) {
+                for (File file : directory.listFiles()) {
+                    file.delete();
+                }
+                directory.delete();
+            } else if (generated) {
+                System.out.println("Corpus kept in " + directory);
+            }
+        }
+    }
+
+    /**
+     * Return the total time spent in garbage collection (ms)
+     *
+     * @return
+     */
+    private static long getGcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Return the total number of garbage collections
+     *
+     * @return
+     */
+    private static long getGcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * Return the peak resident set size of the process (VmHWM), or "n/a" where
+     * /proc is not available
+     *
+     * @return
+     */
+    private static String getPeakRss() {
+        final File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return "n/a";
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(new FileReader(status));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmHWM:")) {
+                        return line.substring(6).trim();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return "n/a";
+        }
+        return "n/a";
+    }
+}
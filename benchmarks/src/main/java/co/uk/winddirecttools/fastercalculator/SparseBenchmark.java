@@ -0,0 +1,117 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks applying a mostly empty input to an accumulator as a dense
+ * masked block, against finding its non-zero runs and applying only those
+ * (see SparseRows)
+ *
+ * The input is made up of horizontal runs of 1s covering roughly density of
+ * the cells, which is closer to a real viewshed than independent random cells.
+ *
+ * @author jonathan.huck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparseBenchmark {
+
+    /*
+     * parameters
+     */
+    @Param({"1000"})
+    public int size;            //width and height of the input (cells)
+
+    @Param({"0.02", "0.1", "0.3"})
+    public double density;      //fraction of the cells that are non-zero
+
+    @Param({"INT", "FLOAT"})
+    public String type;
+
+    /*
+     * state
+     */
+    private RasterAccumulator accumulator;
+    private RadiusMask mask;
+    private SparseRows rows;
+    private int[] ints;
+    private float[] floats;
+
+    /**
+     * Builds the input and an accumulator twice its size
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(42);
+        this.ints = new int[this.size * this.size];
+        this.floats = new float[this.size * this.size];
+        for (int i = 0; i < this.ints.length; i++) {
+
+            //start a run of 1 to 32 cells often enough to cover density of the cells
+            if (random.nextDouble() < this.density / 16.5) {
+                for (int end = Math.min(this.ints.length, i + 1 + random.nextInt(32)); i < end; i++) {
+                    this.ints[i] = 1;
+                    this.floats[i] = 1;
+                }
+            }
+        }
+        this.mask = RadiusMask.get(this.size, this.size, this.size / 2);
+        this.rows = new SparseRows();
+        this.accumulator = new RasterAccumulator(AccumulatorType.valueOf(this.type),
+                this.size * 2, this.size * 2);
+    }
+
+    /**
+     * Applies every cell of the input inside the mask
+     */
+    @Benchmark
+    public void dense() {
+        if (this.accumulator.getType().isFloatingPoint()) {
+            this.accumulator.apply(RasterCalculator.ADD, this.floats, this.mask,
+                    this.size / 2, this.size / 2, 0, this.size);
+        } else {
+            this.accumulator.apply(RasterCalculator.ADD, this.ints, this.mask,
+                    this.size / 2, this.size / 2, 0, this.size);
+        }
+    }
+
+    /**
+     * Finds the non-zero runs of the input, then applies only those (or the
+     * whole input if it is too dense)
+     */
+    @Benchmark
+    public void sparse() {
+        if (this.accumulator.getType().isFloatingPoint()) {
+            if (this.rows.build(this.floats, this.mask)) {
+                this.accumulator.apply(RasterCalculator.ADD, this.floats, this.rows,
+                        this.size / 2, this.size / 2, 0, this.size);
+            } else {
+                this.dense();
+            }
+        } else {
+            if (this.rows.build(this.ints, this.mask)) {
+                this.accumulator.apply(RasterCalculator.ADD, this.ints, this.rows,
+                        this.size / 2, this.size / 2, 0, this.size);
+            } else {
+                this.dense();
+            }
+        }
+    }
+}
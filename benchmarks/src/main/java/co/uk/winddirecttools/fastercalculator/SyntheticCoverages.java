@@ -0,0 +1,139 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * A set of synthetic viewshed-like coverages for benchmarking
+ *
+ * The coverages are laid out on a square grid, each one spacing cells from the
+ * last, so a spacing smaller than the size of a coverage makes them overlap.
+ * Every coverage shares the same raster of random 0 and 1 values, which is
+ * wrapped in a new coverage each time the set is iterated, so iterating is
+ * cheap and the coverages can safely be disposed of by the calculator.
+ *
+ * @author jonathan.huck
+ */
+class SyntheticCoverages implements Iterable<GridCoverage2D> {
+
+    /*
+     * object variables
+     */
+    private final int count;                      //number of coverages
+    private final int size;                       //width and height of each coverage (cells)
+    private final int spacing;                    //distance between coverages (cells)
+    private final int resolution;                 //cell size
+    private final CoordinateReferenceSystem crs;  //coordinate system
+    private final WritableRaster raster;          //shared values
+    private final GridCoverageFactory factory = new GridCoverageFactory();
+
+    /**
+     * Constructor
+     *
+     * @param count
+     * @param size
+     * @param spacing
+     * @param resolution
+     * @param dataType DataBuffer.TYPE_INT or DataBuffer.TYPE_FLOAT
+     * @param crs
+     */
+    SyntheticCoverages(int count, int size, int spacing, int resolution, int dataType,
+            CoordinateReferenceSystem crs) {
+        this.count = count;
+        this.size = size;
+        this.spacing = spacing;
+        this.resolution = resolution;
+        this.crs = crs;
+
+        //random visible (1) and not visible (0) cells
+        this.raster = Raster.createBandedRaster(dataType, size, size, 1, null);
+        final Random random = new Random(42);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                this.raster.setSample(x, y, 0, random.nextInt(2));
+            }
+        }
+    }
+
+    /**
+     * Return the number of coverages
+     *
+     * @return
+     */
+    int size() {
+        return this.count;
+    }
+
+    /**
+     * Return the shared values of the coverages as ints
+     *
+     * @return
+     */
+    int[] getInts() {
+        return this.raster.getSamples(0, 0, this.size, this.size, 0, (int[]) null);
+    }
+
+    /**
+     * Return the shared values of the coverages as floats
+     *
+     * @return
+     */
+    float[] getFloats() {
+        return this.raster.getSamples(0, 0, this.size, this.size, 0, (float[]) null);
+    }
+
+    /**
+     * Returns a coverage
+     *
+     * @param index
+     * @return
+     */
+    GridCoverage2D get(int index) {
+        final int columns = (int) Math.ceil(Math.sqrt(this.count));
+        final double x = (index % columns) * this.spacing * this.resolution;
+        final double y = (index / columns) * this.spacing * this.resolution;
+        final double extent = this.size * this.resolution;
+        return this.factory.create("synthetic" + index, this.raster,
+                new Envelope2D(this.crs, x, y, extent, extent));
+    }
+
+    public Iterator<GridCoverage2D> iterator() {
+        return new Iterator<GridCoverage2D>() {
+
+            private int next = 0;
+
+            public boolean hasNext() {
+                return this.next < count;
+            }
+
+            public GridCoverage2D next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(this.next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the DataBuffer type for a name (int or float)
+     *
+     * @param name
+     * @return
+     */
+    static int dataType(String name) {
+        return name.equalsIgnoreCase("float") ? DataBuffer.TYPE_FLOAT : DataBuffer.TYPE_INT;
+    }
+}
@@ -0,0 +1,17 @@
+package co.uk.winddirecttools.fastercalculator;
+
+/**
+ * Publishes each stage as a JFR event (see StageEvent)
+ *
+ * This class is only compiled by the "jfr" build profile and is loaded by
+ * Metrics by reflection, so that the rest of the calculator still builds and
+ * runs on Java 8.
+ *
+ * @author jonathan.huck
+ */
+final class JfrStageRecorder implements StageRecorder {
+
+    public void record(String stage, String file, long elapsed, long cells) {
+        StageEvent.commit(stage, file, elapsed, cells);
+    }
+}
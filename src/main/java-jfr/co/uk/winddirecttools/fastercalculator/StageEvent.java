@@ -0,0 +1,58 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JFR event published by Metrics for each stage that is recorded
+ *
+ * This class is only compiled by the "jfr" build profile (it needs JDK 11 or
+ * later) and is only loaded, through JfrStageRecorder, on JVMs that have
+ * Flight Recorder (see Metrics).
+ *
+ * @author jonathan.huck
+ */
+@Name("co.uk.winddirecttools.fastercalculator.Stage")
+@Label("Stage")
+@Category("FasterCalculator")
+@Description("Time spent in one stage of a FasterCalculator run")
+@StackTrace(false)
+class StageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("File")
+    String file;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+
+    @Label("Cells")
+    long cells;
+
+    /**
+     * Publishes an event, if the event is enabled in the current recording
+     *
+     * @param stage
+     * @param file
+     * @param elapsed
+     * @param cells
+     */
+    static void commit(String stage, String file, long elapsed, long cells) {
+        final StageEvent event = new StageEvent();
+        if (event.isEnabled()) {
+            event.stage = stage;
+            event.file = file;
+            event.elapsed = elapsed;
+            event.cells = cells;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementations of the int and float span kernels using the JDK
+ * Vector API
+ *
+ * This class is only compiled by the "vector" build profile (it needs JDK 17
+ * or later) and is only loaded by Kernels if the JVM has been started with
+ * --add-modules jdk.incubator.vector. Each span is applied a whole vector at a
+ * time using the widest vectors that the processor supports, followed by a
+ * scalar loop for any remaining cells. Integer division has no SIMD
+ * instruction, so DIVIDE is left to the scalar kernels for int outputs.
+ *
+ * @author jonathan.huck
+ */
+final class VectorKernels implements SpanKernels {
+
+    /*
+     * preferred vector shapes for this processor
+     */
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    public boolean apply(int operation, int[] src, int s, int[] dst, int d, int length) {
+
+        //whole vectors
+        final int bound = INTS.loopBound(length);
+        final IntVector one = IntVector.broadcast(INTS, 1);
+        IntVector x, y;
+        int i = 0;
+        switch (operation) {
+            case RasterCalculator.ADD:
+                for (; i < bound; i += INTS.length()) {
+                    x = IntVector.fromArray(INTS, src, s + i);
+                    y = IntVector.fromArray(INTS, dst, d + i);
+                    x.add(y).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (; i < bound; i += INTS.length()) {
+                    x = IntVector.fromArray(INTS, src, s + i);
+                    y = IntVector.fromArray(INTS, dst, d + i);
+                    x.sub(y).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (; i < bound; i += INTS.length()) {
+                    x = IntVector.fromArray(INTS, src, s + i);
+                    y = IntVector.fromArray(INTS, dst, d + i);
+                    x.mul(y).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.COUNT:
+                for (; i < bound; i += INTS.length()) {
+                    x = IntVector.fromArray(INTS, src, s + i);
+                    y = IntVector.fromArray(INTS, dst, d + i);
+                    y.add(one, x.compare(VectorOperators.NE, 0)).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.MAX:
+                for (; i < bound; i += INTS.length()) {
+                    x = IntVector.fromArray(INTS, src, s + i);
+                    y = IntVector.fromArray(INTS, dst, d + i);
+                    x.max(y).intoArray(dst, d + i);
+                }
+                break;
+            default:
+                return false;
+        }
+
+        //remaining cells
+        Kernels.applySpanScalar(operation, src, s + i, dst, d + i, length - i);
+        return true;
+    }
+
+    public boolean apply(int operation, float[] src, int s, float[] dst, int d, int length) {
+
+        //whole vectors
+        final int bound = FLOATS.loopBound(length);
+        final FloatVector one = FloatVector.broadcast(FLOATS, 1f);
+        FloatVector x, y;
+        int i = 0;
+        switch (operation) {
+            case RasterCalculator.ADD:
+                for (; i < bound; i += FLOATS.length()) {
+                    x = FloatVector.fromArray(FLOATS, src, s + i);
+                    y = FloatVector.fromArray(FLOATS, dst, d + i);
+                    x.add(y).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (; i < bound; i += FLOATS.length()) {
+                    x = FloatVector.fromArray(FLOATS, src, s + i);
+                    y = FloatVector.fromArray(FLOATS, dst, d + i);
+                    x.sub(y).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (; i < bound; i += FLOATS.length()) {
+                    x = FloatVector.fromArray(FLOATS, src, s + i);
+                    y = FloatVector.fromArray(FLOATS, dst, d + i);
+                    x.mul(y).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (; i < bound; i += FLOATS.length()) {
+                    x = FloatVector.fromArray(FLOATS, src, s + i);
+                    y = FloatVector.fromArray(FLOATS, dst, d + i);
+                    x.div(y).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.COUNT:
+                for (; i < bound; i += FLOATS.length()) {
+                    x = FloatVector.fromArray(FLOATS, src, s + i);
+                    y = FloatVector.fromArray(FLOATS, dst, d + i);
+                    y.add(one, x.compare(VectorOperators.NE, 0f)).intoArray(dst, d + i);
+                }
+                break;
+            case RasterCalculator.MAX:
+                for (; i < bound; i += FLOATS.length()) {
+                    x = FloatVector.fromArray(FLOATS, src, s + i);
+                    y = FloatVector.fromArray(FLOATS, dst, d + i);
+                    x.max(y).intoArray(dst, d + i);
+                }
+                break;
+            default:
+                return false;
+        }
+
+        //remaining cells
+        Kernels.applySpanScalar(operation, src, s + i, dst, d + i, length - i);
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.IOException;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * The output grid that the inputs of a RasterCalculator are applied to
+ *
+ * Implementations must allow different threads to apply inputs to different
+ * rows at the same time (the caller is responsible for making sure that no two
+ * threads write to the same row at once).
+ *
+ * @author jonathan.huck
+ */
+interface Accumulator {
+
+    /**
+     * Return the number of columns in the grid
+     *
+     * @return
+     */
+    int getWidth();
+
+    /**
+     * Return the number of rows in the grid
+     *
+     * @return
+     */
+    int getHeight();
+
+    /**
+     * Return the type of the values in the grid
+     *
+     * @return
+     */
+    AccumulatorType getType();
+
+    /**
+     * Applies rows firstRow (inclusive) to lastRow (exclusive) of a block of
+     * input values to the grid, the top left corner of the block is at (x, y)
+     * on the grid and its dimensions are those of the mask (not supported by
+     * FLOAT grids)
+     *
+     * @param operation
+     * @param values
+     * @param mask
+     * @param x
+     * @param y
+     * @param firstRow
+     * @param lastRow
+     * @throws IOException
+     */
+    void apply(int operation, int[] values, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) throws IOException;
+
+    /**
+     * Applies rows firstRow (inclusive) to lastRow (exclusive) of a block of
+     * floating point input values to the grid (only supported by FLOAT grids)
+     *
+     * @param operation
+     * @param values
+     * @param mask
+     * @param x
+     * @param y
+     * @param firstRow
+     * @param lastRow
+     * @throws IOException
+     */
+    void apply(int operation, float[] values, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) throws IOException;
+
+    /**
+     * Applies rows firstRow (inclusive) to lastRow (exclusive) of the non-zero
+     * runs of a sparse block of input values to the grid, the top left corner
+     * of the block is at (x, y) on the grid (ADD and COUNT only, not supported
+     * by FLOAT grids)
+     *
+     * @param operation
+     * @param values
+     * @param rows
+     * @param x
+     * @param y
+     * @param firstRow
+     * @param lastRow
+     * @throws IOException
+     */
+    void apply(int operation, int[] values, SparseRows rows, int x, int y,
+            int firstRow, int lastRow) throws IOException;
+
+    /**
+     * Applies rows firstRow (inclusive) to lastRow (exclusive) of the non-zero
+     * runs of a sparse block of floating point input values to the grid (ADD
+     * and COUNT only, only supported by FLOAT grids)
+     *
+     * @param operation
+     * @param values
+     * @param rows
+     * @param x
+     * @param y
+     * @param firstRow
+     * @param lastRow
+     * @throws IOException
+     */
+    void apply(int operation, float[] values, SparseRows rows, int x, int y,
+            int firstRow, int lastRow) throws IOException;
+
+    /**
+     * Copies one row of the grid into an array of doubles
+     *
+     * @param y
+     * @param values
+     * @throws IOException
+     */
+    void readRow(int y, double[] values) throws IOException;
+
+    /**
+     * Replaces one row of the grid with values from an array of doubles
+     *
+     * @param y
+     * @param values
+     * @throws IOException
+     */
+    void writeRow(int y, double[] values) throws IOException;
+
+    /**
+     * Copies part of one row of the grid, starting at column x, into the
+     * start of an array of doubles
+     *
+     * @param y
+     * @param x
+     * @param length
+     * @param values
+     * @throws IOException
+     */
+    void readRow(int y, int x, int length, double[] values) throws IOException;
+
+    /**
+     * Replaces part of one row of the grid, starting at column x, with values
+     * from the start of an array of doubles
+     *
+     * @param y
+     * @param x
+     * @param length
+     * @param values
+     * @throws IOException
+     */
+    void writeRow(int y, int x, int length, double[] values) throws IOException;
+
+    /**
+     * Returns a histogram of the non-zero values in the grid
+     *
+     * @return
+     * @throws IOException
+     */
+    Histogram getHistogram() throws IOException;
+
+    /**
+     * Wraps the grid in a grid coverage
+     *
+     * @param factory
+     * @param name
+     * @param envelope
+     * @return
+     */
+    GridCoverage2D toCoverage(GridCoverageFactory factory, CharSequence name, Envelope2D envelope);
+
+    /**
+     * Releases the grid, along with anything held on disk for it. Neither the
+     * grid nor its coverage can be used afterwards.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
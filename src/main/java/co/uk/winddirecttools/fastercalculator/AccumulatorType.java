@@ -0,0 +1,121 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.image.DataBuffer;
+
+/**
+ * The data types that the output of a RasterCalculator can be accumulated in
+ *
+ * Smaller types reduce the memory and bandwidth needed for the output, but
+ * values that do not fit in them wrap around (BYTE and USHORT are unsigned).
+ * LONG outputs are written as TYPE_DOUBLE rasters, as there is no 64 bit
+ * integer raster type.
+ *
+ * @author jonathan.huck
+ */
+public enum AccumulatorType {
+
+    BYTE(DataBuffer.TYPE_BYTE, 1, 0xFFL),
+    USHORT(DataBuffer.TYPE_USHORT, 2, 0xFFFFL),
+    INT(DataBuffer.TYPE_INT, 4, Integer.MAX_VALUE),
+    LONG(DataBuffer.TYPE_DOUBLE, 8, Long.MAX_VALUE),
+    FLOAT(DataBuffer.TYPE_FLOAT, 4, Long.MAX_VALUE);
+
+    /*
+     * object variables
+     */
+    private final int dataBufferType;    //type of the raster the output is written as
+    private final int bytes;             //bytes per cell
+    private final long maxValue;         //largest integer value that can be held
+
+    /**
+     * Constructor
+     *
+     * @param dataBufferType
+     * @param bytes
+     * @param maxValue
+     */
+    private AccumulatorType(int dataBufferType, int bytes, long maxValue) {
+        this.dataBufferType = dataBufferType;
+        this.bytes = bytes;
+        this.maxValue = maxValue;
+    }
+
+    /**
+     * Chooses the smallest type that can hold the result of applying a number
+     * of inputs of a given DataBuffer type. Floating point inputs give a FLOAT
+     * output, and only ADD is narrowed (the other operations can produce
+     * values that cannot be bounded from the input type alone, so use INT as
+     * they always have).
+     *
+     * @param inputDataType
+     * @param inputs
+     * @param operation
+     * @return
+     */
+    public static AccumulatorType choose(int inputDataType, int inputs, int operation) {
+
+        //floating point inputs
+        if (inputDataType == DataBuffer.TYPE_FLOAT || inputDataType == DataBuffer.TYPE_DOUBLE) {
+            return FLOAT;
+        }
+        if (operation != RasterCalculator.ADD) {
+            return INT;
+        }
+
+        //largest possible sum of the inputs
+        final long inputMax;
+        switch (inputDataType) {
+            case DataBuffer.TYPE_BYTE:
+                inputMax = 0xFFL;
+                break;
+            case DataBuffer.TYPE_USHORT:
+                inputMax = 0xFFFFL;
+                break;
+            case DataBuffer.TYPE_SHORT:
+                inputMax = Short.MAX_VALUE;
+                break;
+            default:
+                inputMax = Integer.MAX_VALUE;
+        }
+        final long max = inputMax * Math.max(1, inputs);
+
+        //signed inputs may be negative, so cannot use the unsigned types
+        final boolean signed = inputDataType != DataBuffer.TYPE_BYTE
+                && inputDataType != DataBuffer.TYPE_USHORT;
+        if (!signed && max <= BYTE.maxValue) {
+            return BYTE;
+        } else if (!signed && max <= USHORT.maxValue) {
+            return USHORT;
+        } else if (max <= INT.maxValue) {
+            return INT;
+        }
+        return LONG;
+    }
+
+    /**
+     * Return the DataBuffer type of the raster that the output is written as
+     *
+     * @return
+     */
+    public int getDataBufferType() {
+        return this.dataBufferType;
+    }
+
+    /**
+     * Return the number of bytes used to hold each cell
+     *
+     * @return
+     */
+    public int getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Returns true if inputs are applied as floating point values
+     *
+     * @return
+     */
+    public boolean isFloatingPoint() {
+        return this == FLOAT;
+    }
+}
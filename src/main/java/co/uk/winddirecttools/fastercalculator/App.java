@@ -2,32 +2,17 @@ package co.uk.winddirecttools.fastercalculator;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.InvalidGridGeometryException;
-import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
-import org.geotools.coverage.grid.io.AbstractGridFormat;
-import org.geotools.coverage.grid.io.GridFormatFinder;
-import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.Hints;
-//import org.geotools.gce.geotiff.GeoTiffFormat;
-//import org.geotools.gce.geotiff.GeoTiffWriteParams;
-import org.geotools.gce.geotiff.GeoTiffWriter;
 //import org.geotools.gce.image.WorldImageWriter;
 import org.geotools.referencing.CRS;
-import org.geotools.renderer.lite.gridcoverage2d.RasterSymbolizerHelper;
-import org.geotools.renderer.lite.gridcoverage2d.SubchainStyleVisitorCoverageProcessingAdapter;
-import org.geotools.styling.FeatureTypeStyle;
-import org.geotools.styling.NamedLayer;
-import org.geotools.styling.RasterSymbolizer;
-import org.geotools.styling.Rule;
-import org.geotools.styling.SLDParser;
-import org.geotools.styling.Style;
-import org.geotools.styling.StyleFactory;
-import org.geotools.styling.StyledLayerDescriptor;
-import org.opengis.parameter.GeneralParameterValue;
-import org.opengis.parameter.ParameterValueGroup;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -46,40 +31,41 @@ public class App {
     public static void main(String[] args) {
         try {
 
-            if (args.length == 3) {
+            //split the arguments into the 3 required arguments and any --options
+            //(--input can be given more than once)
+            ArrayList<String> arguments = new ArrayList<String>();
+            HashMap<String, String> options = new HashMap<String, String>();
+            ArrayList<String> inputs = new ArrayList<String>();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--input") && i + 1 < args.length) {
+                    inputs.add(args[++i]);
+                } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                    options.put(args[i].substring(2), args[++i]);
+                } else {
+                    arguments.add(args[i]);
+                }
+            }
+
+            if (arguments.size() == 3) {
 
                 //get radius (verify number)
                 int radius = 0;
                 try {
-                    radius = Integer.parseInt(args[0]);
+                    radius = Integer.parseInt(arguments.get(0));
                 } catch (NumberFormatException e) {
                     System.err.println("Argument 1 for radius" + " must be an integer");
                     System.exit(1);
                 }
 
                 //get in directory and verify
-                File inDirectory = new File(args[1]);
+                File inDirectory = new File(arguments.get(1));
                 if (!inDirectory.isDirectory()) {
                     System.err.println("Argument 2 must be a valid directory");
                     System.exit(1);
                 }
 
-                //get list of files
-                String fileName;
-                File[] listOfFiles = inDirectory.listFiles();
-                ArrayList<File> filesToProcess = new ArrayList<File>();
-                for (int i = 0; i < listOfFiles.length; i++) {
-                    fileName = listOfFiles[i].getName();
-                    if (listOfFiles[i].isFile()) {
-                        if (fileName.endsWith(".asc") || fileName.endsWith(".ASC")
-                                || fileName.endsWith(".tif") || fileName.endsWith(".TIF")) {
-                            filesToProcess.add(listOfFiles[i]);
-                        }
-                    }
-                }
-
                 //get out file and verify
-                File outFile = new File(args[2]);
+                File outFile = new File(arguments.get(2));
                 if (Files.notExists(outFile.getParentFile().toPath())) {
                     String filePath = outFile.getPath();
                     if (filePath.endsWith(".tif") || filePath.endsWith(".TIF")) {
@@ -88,37 +74,167 @@ public class App {
                     }
                 }
 
+                //get the options
+                AccumulatorType type = AccumulatorType.INT;
+                int threads = Runtime.getRuntime().availableProcessors();
+                int readers = 0;
+                long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+                try {
+                    if (options.containsKey("type")) {
+                        type = options.get("type").equalsIgnoreCase("auto") ? null
+                                : AccumulatorType.valueOf(options.get("type").toUpperCase());
+                    }
+                    if (options.containsKey("threads")) {
+                        threads = Integer.parseInt(options.get("threads"));
+                    }
+                    if (options.containsKey("readers")) {
+                        readers = Integer.parseInt(options.get("readers"));
+                    }
+                    if (options.containsKey("memory")) {
+                        memoryBudget = Long.parseLong(options.get("memory")) * 1024 * 1024;
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.err.println("--type must be auto, byte, ushort, int, long or float,"
+                            + " and --threads, --readers and --memory must be integers");
+                    System.exit(1);
+                }
+
+                //get the output options (DEFLATE with a predictor and averaged overviews
+                //unless told otherwise, the writer always takes the nearest cell for the
+                //overviews of a styled output)
+                final TiledGeoTiffWriter writer = new TiledGeoTiffWriter(outFile).setThreads(threads);
+                try {
+                    writer.setCompression(TiledGeoTiffWriter.Compression.valueOf(
+                            options.containsKey("compression")
+                            ? options.get("compression").toUpperCase() : "DEFLATE"));
+                    writer.setPredictor(!options.containsKey("predictor")
+                            || Boolean.parseBoolean(options.get("predictor")));
+                    final String overviews = options.containsKey("overviews")
+                            ? options.get("overviews").toUpperCase() : "AVERAGE";
+                    writer.setOverviews(overviews.equals("NONE") ? null
+                            : TiledGeoTiffWriter.Resampling.valueOf(overviews));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("--compression must be none, lzw or deflate, and"
+                            + " --overviews none, average, max or nearest");
+                    System.exit(1);
+                }
+
+                //limit the output to a region of interest, given as a bounding box or
+                //as a WKT polygon (or a file holding one)
+                Region region = null;
+                if (options.containsKey("region")) {
+                    final File regionFile = new File(options.get("region"));
+                    try {
+                        region = Region.parse(regionFile.isFile()
+                                ? new String(Files.readAllBytes(regionFile.toPath()), "UTF-8")
+                                : options.get("region"));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("--region must be minx,miny,maxx,maxy, a WKT polygon"
+                                + " or a file holding one");
+                        System.exit(1);
+                    }
+                }
+
                 //set default crs
                 CoordinateReferenceSystem crs = CRS.decode("EPSG:27700", true);
                 final Hints hint = new Hints();
                 hint.put(Hints.DEFAULT_COORDINATE_REFERENCE_SYSTEM, crs);
 
-                //read all input layers into an ArrayList of GridCoverage2D's
-                //ToDo: This has GOT to be inefficient - we should be doing this on the fly populating a single variable rather than storing an array 
-                ArrayList<GridCoverage2D> coverages = new ArrayList<GridCoverage2D>();
-                AbstractGridCoverage2DReader reader;
-                AbstractGridFormat format;
-                for (File file : filesToProcess) {
-                    format = GridFormatFinder.findFormat(file);
-//                    System.out.println(file.getName());
-                    reader = format.getReader(file, hint);
-                    coverages.add((GridCoverage2D) reader.read(null));
-                }
+                //build a lazy source, each input is only read when it is needed (and
+                //its header is taken from the index of the directory if --index is set)
+                final boolean index = Boolean.parseBoolean(options.get("index"));
+                CoverageSource coverages = getSource(inDirectory, region, index, hint);
 
                 //build raster calculator
-                RasterCalculator rc = new RasterCalculator();
-                GridCoverage2D gc = rc.process(coverages, radius, RasterCalculator.ADD);
+                RasterCalculator rc = new RasterCalculator(threads, memoryBudget).setReaders(readers)
+                        .setRegion(region);
+                GridCoverage2D gc;
+                if (options.containsKey("expression")) {
 
-                //write result
+                    //the input directory is source "a", the rest are named with --input
+                    Map<String, CoverageSource> sources = new LinkedHashMap<String, CoverageSource>();
+                    sources.put("a", coverages);
+                    for (String input : inputs) {
+                        int split = input.indexOf('=');
+                        File directory = new File(input.substring(split + 1));
+                        if (split < 1 || !directory.isDirectory()) {
+                            System.err.println("--input must be name=directory");
+                            System.exit(1);
+                        }
+                        sources.put(input.substring(0, split),
+                                getSource(directory, region, index, hint));
+                    }
+                    gc = new MapAlgebra(rc).evaluate(options.get("expression"), sources, radius);
+                } else if (options.containsKey("statistics")) {
+                    Statistic[] statistics = null;
+                    try {
+                        statistics = Statistic.parse(options.get("statistics"));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("--statistics must be a list of count, sum, min, max,"
+                                + " mean and stddev");
+                        System.exit(1);
+                    }
+                    gc = rc.statistics(coverages, radius, statistics);
+                } else {
+                    gc = rc.process(coverages, radius, RasterCalculator.ADD, type);
+                }
+
+                //write result, styled with the SLD or ColorBrewer scheme given, or
+                //the bundled style (statistics are always written raw). Class
+                //breaks and ramps use the histogram kept while building the output
                 System.out.println(outFile.getAbsolutePath());
-                writeGeoTiffFile(gc, outFile.getAbsolutePath());
+                final String colours = options.containsKey("colours") ? options.get("colours")
+                        : "YlOrRd";
+                if (options.containsKey("statistics")
+                        || Boolean.parseBoolean(options.get("raw"))) {
+                    writeRawGeoTiffFile(gc, writer);
+                } else if (options.containsKey("breaks")) {
+                    Histogram.Breaks method = null;
+                    int classes = 5;
+                    try {
+                        method = Histogram.Breaks.valueOf(options.get("breaks").toUpperCase());
+                        if (options.containsKey("classes")) {
+                            classes = Integer.parseInt(options.get("classes"));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("--breaks must be equal, quantile or jenks,"
+                                + " and --classes must be an integer");
+                        System.exit(1);
+                    }
+                    writeGeoTiffFile(gc, ColorTable.getColorBrewer(colours,
+                            rc.getHistogram().getBreaks(method, classes)), writer);
+                } else if (options.containsKey("colours")) {
+                    final Histogram histogram = rc.getHistogram();
+                    writeGeoTiffFile(gc, ColorTable.getColorBrewer(colours, histogram.getMin(),
+                            histogram.getMax()), writer);
+                } else if (options.containsKey("sld")) {
+                    writeGeoTiffFile(gc, ColorTable.fromSld(new File(options.get("sld"))), writer);
+                } else {
+                    writeGeoTiffFile(gc, getDefaultColorTable(), writer);
+                }
+                rc.close();
                 System.out.println("Done!");
 
+                //report the time spent in each stage
+                System.out.print(Metrics.getInstance().getSummary());
+                if (options.containsKey("report")) {
+                    Metrics.getInstance().writeJson(new File(options.get("report")));
+                }
+
             } else {
                 System.out.println("Sorry, I'm a 3 arguments kind of girl");
                 System.out.println("Maybe you need to put some speech-marks around your file-paths...?");
                 System.out.println("");
                 System.out.println("java -jar fastercalculator [radius] [input directory] [output file *.tif]");
+                System.out.println("    [--type auto|byte|ushort|int|long|float] [--threads n] [--readers n]");
+                System.out.println("    [--memory MB] [--expression \"sum(a) * 2 - b\" [--input b=directory]...]");
+                System.out.println("    [--statistics count,sum,min,max,mean,stddev] [--report metrics.json]");
+                System.out.println("    [--region minx,miny,maxx,maxy|\"POLYGON((...))\"|region.wkt] [--index true]");
+                System.out.println("    [--compression none|lzw|deflate] [--predictor true|false]");
+                System.out.println("    [--overviews none|average|max|nearest]");
+                System.out.println("    [--raw true|--sld style.sld|--colours "
+                        + String.join("|", ColorTable.getColorBrewerNames()) + "]");
+                System.out.println("    [--breaks equal|quantile|jenks [--classes n]]");
                 System.exit(0);
             }
 
@@ -157,7 +273,54 @@ public class App {
     }
 
     /**
-     * Writes a coverage to a GeoTiff file
+     * Return the *.asc and *.tif files in a directory
+     *
+     * @param directory
+     * @return
+     */
+    public static ArrayList<File> listInputFiles(File directory) {
+        final long start = Metrics.getInstance().start();
+        String fileName;
+        File[] listOfFiles = directory.listFiles();
+        ArrayList<File> filesToProcess = new ArrayList<File>();
+        for (int i = 0; i < listOfFiles.length; i++) {
+            fileName = listOfFiles[i].getName();
+            if (listOfFiles[i].isFile()) {
+                if (fileName.endsWith(".asc") || fileName.endsWith(".ASC")
+                        || fileName.endsWith(".tif") || fileName.endsWith(".TIF")) {
+                    filesToProcess.add(listOfFiles[i]);
+                }
+            }
+        }
+        Metrics.getInstance().end(Metrics.Stage.SCAN, start);
+        return filesToProcess;
+    }
+
+    /**
+     * Return a source of the *.asc and *.tif files in a directory. If index is
+     * true, their headers are taken from the index of the directory (which is
+     * updated with any files that are new or have changed), and only the files
+     * that intersect the region (if there is one) are included.
+     *
+     * @param directory
+     * @param region
+     * @param index
+     * @param hints
+     * @return
+     * @throws IOException
+     */
+    public static CoverageSource getSource(File directory, Region region, boolean index,
+            Hints hints) throws IOException {
+        final ArrayList<File> files = listInputFiles(directory);
+        if (!index) {
+            return new CoverageSource(files, hints);
+        }
+        final InputIndex inputIndex = InputIndex.open(directory, files, hints);
+        return region != null ? inputIndex.select(region) : inputIndex.getSource();
+    }
+
+    /**
+     * Writes a coverage to a GeoTiff file, styled with the bundled style
      *
      * @param gc
      * @param path
@@ -165,43 +328,73 @@ public class App {
      */
     public static void writeGeoTiffFile(GridCoverage2D gc, String path)
             throws IOException {
+        writeGeoTiffFile(gc, getDefaultColorTable(), new TiledGeoTiffWriter(new File(path)));
+    }
 
-        //create a geotiff writer
-        final File file = new File(path);
-        GeoTiffWriter gw = new GeoTiffWriter(file);
+    /**
+     * Writes a coverage to a GeoTiff file with a writer, styled with a colour
+     * table. The coverage is styled one tile at a time as the writer requests
+     * it, so the styled output is never held in full.
+     *
+     * @param gc
+     * @param table
+     * @param gw
+     * @throws IOException
+     */
+    public static void writeGeoTiffFile(GridCoverage2D gc, ColorTable table,
+            TiledGeoTiffWriter gw) throws IOException {
         //WorldImageWriter gw = new WorldImageWriter(file);
-        try {
 
-            //apply style to the GridCoverage2D and write to file
-            StyleFactory styleFactory = CommonFactoryFinder.getStyleFactory(null);
-            File sldFile = new File("/Users/jonnyhuck/Dropbox/PhD/Viewshed/Python/fc.sld");
-            SLDParser stylereader = new SLDParser(styleFactory, sldFile.toURI().toURL());
-            StyledLayerDescriptor sld = stylereader.parseSLD();
-            SubchainStyleVisitorCoverageProcessingAdapter rsh = new RasterSymbolizerHelper(gc, null);
-            final NamedLayer ul = (NamedLayer) sld.getStyledLayers()[0];
-            final Style style = ul.getStyles()[0]; //ul.getUserStyles()[0];
-            final FeatureTypeStyle fts = (FeatureTypeStyle) style.featureTypeStyles().toArray()[0];
-            final Rule rule = (Rule) fts.rules().toArray()[0];
-            RasterSymbolizer rs = (RasterSymbolizer) rule.getSymbolizers()[0];
-            rsh.visit(rs);
-            GridCoverage2D gc2 = (GridCoverage2D) rsh.getOutput();
-            gw.write(gc2, null);            
-            
-            //write out the raw data instead
-//            GeoTiffWriteParams wp = new GeoTiffWriteParams();
-//            GeoTiffFormat format = new GeoTiffFormat();
-//            ParameterValueGroup paramWrite = format.getWriteParameters();
-//            paramWrite.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString()).setValue(wp);          
-//            gw.write(gc, (GeneralParameterValue[]) paramWrite.values().toArray(new GeneralParameterValue[1]));
-
-        } catch (IOException e) {
-            throw new IOException();
+        //apply style to the GridCoverage2D and write to file (each tile is timed
+        //as it is styled)
+        final StyledImage styled = new StyledImage(gc.getRenderedImage(), table);
+        gw.write(styled, gc.getEnvelope2D(), gc.getCoordinateReferenceSystem());
+    }
+
+    /**
+     * Return the colour table of the bundled style (fc.sld)
+     *
+     * @return
+     * @throws IOException
+     */
+    public static ColorTable getDefaultColorTable() throws IOException {
+        final InputStream in = App.class.getResourceAsStream("fc.sld");
+        if (in == null) {
+            throw new IOException("The bundled style fc.sld is missing");
+        }
+        try {
+            return ColorTable.fromSld(in);
         } finally {
-            //destroy the writer
-            gw.dispose();
+            in.close();
         }
     }
 
+    /**
+     * Writes the values of a coverage to a GeoTiff file without styling them
+     * (e.g. for multi-band statistics)
+     *
+     * @param gc
+     * @param path
+     * @throws IOException
+     */
+    public static void writeRawGeoTiffFile(GridCoverage2D gc, String path)
+            throws IOException {
+        writeRawGeoTiffFile(gc, new TiledGeoTiffWriter(new File(path)));
+    }
+
+    /**
+     * Writes the values of a coverage to a GeoTiff file with a writer,
+     * without styling them
+     *
+     * @param gc
+     * @param gw
+     * @throws IOException
+     */
+    public static void writeRawGeoTiffFile(GridCoverage2D gc, TiledGeoTiffWriter gw)
+            throws IOException {
+        gw.write(gc);
+    }
+
     /**
      * Return the file extension from a file path (very simple and only for the
      * purposes of above, not a robust transferable method).
@@ -0,0 +1,396 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Reads an ESRI ASCII grid (.asc) straight into an input buffer, without
+ * building a GeoTools coverage or copying it out of a RenderedImage
+ *
+ * The file is loaded once, when the grid is opened: read into memory through
+ * its FileChannel, or memory mapped if it is large (MAP_SIZE or more). The
+ * header is parsed straight away and the values are only scanned when they are
+ * read, by a hand written number scanner working on the bytes of the file.
+ * Small files are read rather than mapped as each mapping is only released
+ * once its buffer is garbage collected, so mapping every one of a large number
+ * of inputs could run out of mappings before then. Whole numbers (as
+ * viewsheds usually are) are accumulated digit by digit, short decimals are
+ * scaled by a power of ten, and anything else (exponents, very long values)
+ * falls back to Double.parseDouble(). Cells of NODATA_value are read as 0, as
+ * no input covers them. Where only a window of the grid is read, the values
+ * outside of it are skipped over without being parsed.
+ *
+ * This is used by CoverageSource for every .asc file smaller than 2 GB, unless
+ * -Dfastercalculator.asc=false is set.
+ *
+ * @author jonathan.huck
+ */
+final class AsciiGrid {
+
+    /*
+     * false to read ASCII grids with GeoTools instead
+     */
+    private static final boolean ENABLED = Boolean.parseBoolean(
+            System.getProperty("fastercalculator.asc", "true"));
+
+    /*
+     * size of the files that are memory mapped rather than read into memory
+     */
+    static final int MAP_SIZE = 16 * 1024 * 1024;
+
+    /*
+     * powers of ten that can be divided by exactly
+     */
+    private static final double[] POWERS = new double[23];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    /*
+     * object variables
+     */
+    private final File file;               //grid file
+    private final ByteBuffer data;         //contents of the file
+    private final int width, height;       //number of columns and rows
+    private final double minX, minY;       //lower left corner of the grid
+    private final double cellSize;         //width and height of each cell
+    private final double noData;           //value of cells without data (NaN if none)
+    private final int dataStart;           //position of the first value in the file
+
+    /**
+     * Constructor, loads the file and reads its header
+     *
+     * @param file
+     * @throws IOException
+     */
+    AsciiGrid(File file) throws IOException {
+        this.file = file;
+        this.data = load(file);
+        final ByteBuffer data = this.data;
+
+        //read each keyword and value until the first line that starts with a number
+        Integer ncols = null, nrows = null;
+        Double x = null, y = null, cellSize = null;
+        boolean centre = false;
+        double noData = Double.NaN;
+        final Scanner scanner = new Scanner(data, 0);
+        String key;
+        int start;
+        while (true) {
+            start = scanner.skipSpace();
+            if (start >= data.limit() || !Character.isLetter((char) data.get(start))) {
+                break;
+            }
+            key = scanner.nextToken().toLowerCase();
+            if (key.equals("ncols")) {
+                ncols = (int) scanner.nextValue();
+            } else if (key.equals("nrows")) {
+                nrows = (int) scanner.nextValue();
+            } else if (key.equals("xllcorner") || key.equals("xllcenter")) {
+                x = scanner.nextValue();
+                centre = key.equals("xllcenter");
+            } else if (key.equals("yllcorner") || key.equals("yllcenter")) {
+                y = scanner.nextValue();
+            } else if (key.equals("cellsize")) {
+                cellSize = scanner.nextValue();
+            } else if (key.equals("nodata_value")) {
+                noData = scanner.nextValue();
+            } else {
+                throw new IOException("Unsupported keyword " + key + " in " + file);
+            }
+        }
+        if (ncols == null || nrows == null || x == null || y == null || cellSize == null) {
+            throw new IOException(file + " is not a valid ASCII grid");
+        }
+        this.width = ncols;
+        this.height = nrows;
+        this.cellSize = cellSize;
+        this.minX = centre ? x - cellSize / 2 : x;
+        this.minY = centre ? y - cellSize / 2 : y;
+        this.noData = noData;
+        this.dataStart = start;
+    }
+
+    /**
+     * Returns true if a file can be read as an ASCII grid by this class
+     *
+     * @param file
+     * @return
+     */
+    static boolean isAsciiGrid(File file) {
+        return ENABLED && file.getName().toLowerCase().endsWith(".asc")
+                && file.length() <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Return the world extent of the grid in a given coordinate system
+     *
+     * @param crs
+     * @return
+     */
+    Envelope2D getEnvelope(CoordinateReferenceSystem crs) {
+        return new Envelope2D(crs, this.minX, this.minY, this.width * this.cellSize,
+                this.height * this.cellSize);
+    }
+
+    /**
+     * Return TYPE_INT if every value in the grid is a whole number, or
+     * TYPE_FLOAT otherwise (the values are scanned, but not parsed)
+     *
+     * @return
+     * @throws IOException
+     */
+    int getDataType() throws IOException {
+        final ByteBuffer data = this.data;
+        byte b;
+        for (int p = this.dataStart; p < data.limit(); p++) {
+            b = data.get(p);
+            if (b == '.' || b == 'e' || b == 'E') {
+                return DataBuffer.TYPE_FLOAT;
+            }
+        }
+        return DataBuffer.TYPE_INT;
+    }
+
+    /**
+     * Reads the values of a window of the grid (which must be within it) into
+     * a buffer (rows from the top), the buffer is only replaced if it is too
+     * small to hold the values. Fractions are truncated.
+     *
+     * @param buffer
+     * @param window
+     * @return the buffer holding the values
+     * @throws IOException
+     */
+    int[] read(int[] buffer, Rectangle window) throws IOException {
+        final int n = window.width * window.height;
+        if (buffer == null || buffer.length < n) {
+            buffer = new int[n];
+        }
+        final Scanner scanner = new Scanner(this.data, this.dataStart);
+        scanner.skipValues(window.y * this.width);
+        double value;
+        for (int row = 0; row < window.height; row++) {
+            scanner.skipValues(window.x);
+            for (int i = row * window.width; i < (row + 1) * window.width; i++) {
+                value = scanner.nextValue();
+                buffer[i] = value == this.noData ? 0 : (int) value;
+            }
+            scanner.skipValues(this.width - window.x - window.width);
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads the values of a window of the grid (which must be within it) into
+     * a floating point buffer (rows from the top), the buffer is only replaced
+     * if it is too small to hold the values
+     *
+     * @param buffer
+     * @param window
+     * @return the buffer holding the values
+     * @throws IOException
+     */
+    float[] read(float[] buffer, Rectangle window) throws IOException {
+        final int n = window.width * window.height;
+        if (buffer == null || buffer.length < n) {
+            buffer = new float[n];
+        }
+        final Scanner scanner = new Scanner(this.data, this.dataStart);
+        scanner.skipValues(window.y * this.width);
+        double value;
+        for (int row = 0; row < window.height; row++) {
+            scanner.skipValues(window.x);
+            for (int i = row * window.width; i < (row + 1) * window.width; i++) {
+                value = scanner.nextValue();
+                buffer[i] = value == this.noData ? 0 : (float) value;
+            }
+            scanner.skipValues(this.width - window.x - window.width);
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads a whole file into memory, or maps it (read only) if it is at
+     * least MAP_SIZE bytes
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static ByteBuffer load(File file) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = input.getChannel();
+            final long length = channel.size();
+            if (length >= MAP_SIZE) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            final ByteBuffer data = ByteBuffer.allocate((int) length);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    throw new IOException(file + " ended while it was being read");
+                }
+            }
+            data.flip();
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+
+    /*
+     * accessor methods
+     */
+    /**
+     * Return the source file of the grid
+     *
+     * @return
+     */
+    File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Return the number of columns in the grid
+     *
+     * @return
+     */
+    int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Return the number of rows in the grid
+     *
+     * @return
+     */
+    int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Reads whitespace separated tokens and numbers from the bytes of a file
+     */
+    private final class Scanner {
+
+        private final ByteBuffer data;         //file
+        private final int limit;               //end of the file
+        private int position;                  //next byte to read
+
+        Scanner(ByteBuffer data, int position) {
+            this.data = data;
+            this.limit = data.limit();
+            this.position = position;
+        }
+
+        /**
+         * Moves past any whitespace
+         *
+         * @return the position of the next token
+         */
+        int skipSpace() {
+            while (this.position < this.limit && this.data.get(this.position) <= ' ') {
+                this.position++;
+            }
+            return this.position;
+        }
+
+        /**
+         * Moves past a number of tokens without parsing them
+         *
+         * @param count
+         * @throws IOException
+         */
+        void skipValues(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                if (this.skipSpace() >= this.limit) {
+                    throw new IOException(AsciiGrid.this.file + " ends before all of its values");
+                }
+                while (this.position < this.limit && this.data.get(this.position) > ' ') {
+                    this.position++;
+                }
+            }
+        }
+
+        /**
+         * Return the next token as a string
+         *
+         * @return
+         * @throws IOException
+         */
+        String nextToken() throws IOException {
+            final int start = this.skipSpace();
+            if (start >= this.limit) {
+                throw new IOException(AsciiGrid.this.file + " ends before all of its values");
+            }
+            final StringBuilder token = new StringBuilder();
+            while (this.position < this.limit && this.data.get(this.position) > ' ') {
+                token.append((char) this.data.get(this.position++));
+            }
+            return token.toString();
+        }
+
+        /**
+         * Return the next token as a number
+         *
+         * @return
+         * @throws IOException
+         */
+        double nextValue() throws IOException {
+            final int start = this.skipSpace();
+            if (start >= this.limit) {
+                throw new IOException(AsciiGrid.this.file + " ends before all of its values");
+            }
+
+            //sign, then whole digits, then any fraction
+            byte b = this.data.get(this.position);
+            final boolean negative = b == '-';
+            if (b == '-' || b == '+') {
+                this.position++;
+            }
+            long digits = 0;
+            int count = 0;
+            int scale = 0;
+            boolean point = false;
+            while (this.position < this.limit) {
+                b = this.data.get(this.position);
+                if (b >= '0' && b <= '9') {
+                    digits = digits * 10 + (b - '0');
+                    count++;
+                    scale += point ? 1 : 0;
+                } else if (b == '.' && !point) {
+                    point = true;
+                } else {
+                    break;
+                }
+                this.position++;
+            }
+
+            //anything else (an exponent, too many digits, not a number) is parsed in full
+            if (count == 0 || count > 18 || scale >= POWERS.length
+                    || (this.position < this.limit && this.data.get(this.position) > ' ')) {
+                this.position = start;
+                final String token = this.nextToken();
+                try {
+                    return Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid value " + token + " in " + AsciiGrid.this.file, e);
+                }
+            }
+            final double value = scale == 0 ? digits : digits / POWERS[scale];
+            return negative ? -value : value;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.nio.ByteBuffer;
+
+/**
+ * A primitive array of output cells of one of the AccumulatorTypes
+ *
+ * Each subclass wraps an array of its own primitive type and applies spans of
+ * input to it using the matching Kernels, so the type is only dispatched once
+ * per span of input rather than once per cell. The blocks of input are split
+ * into spans by the same loops (Kernels.apply) for every type.
+ *
+ * @author jonathan.huck
+ */
+abstract class CellArray {
+
+    /**
+     * Returns a new array of cells of a given type, all set to 0
+     *
+     * @param type
+     * @param length
+     * @return
+     */
+    static CellArray create(AccumulatorType type, int length) {
+        switch (type) {
+            case BYTE:
+                return new ByteCells(new byte[length]);
+            case USHORT:
+                return new ShortCells(new short[length]);
+            case INT:
+                return new IntCells(new int[length]);
+            case LONG:
+                return new LongCells(new long[length]);
+            case FLOAT:
+                return new FloatCells(new float[length]);
+            default:
+                throw new IllegalArgumentException("Unknown accumulator type " + type);
+        }
+    }
+
+    /**
+     * Applies a block of integer input values to the cells (see Kernels)
+     *
+     * @param operation
+     * @param src
+     * @param mask
+     * @param firstRow
+     * @param lastRow
+     * @param firstCol
+     * @param lastCol
+     * @param offset index of the top left cell of the block
+     * @param stride number of cells between rows
+     */
+    void apply(int operation, int[] src, RadiusMask mask, int firstRow, int lastRow,
+            int firstCol, int lastCol, int offset, int stride) {
+        Kernels.apply(operation, src, mask, firstRow, lastRow, firstCol, lastCol, this, offset,
+                stride);
+    }
+
+    /**
+     * Applies the non-zero runs of a sparse block of integer input values to
+     * the cells (see Kernels)
+     *
+     * @param operation
+     * @param src
+     * @param rows
+     * @param firstRow
+     * @param lastRow
+     * @param firstCol
+     * @param lastCol
+     * @param offset index of the top left cell of the block
+     * @param stride number of cells between rows
+     */
+    void apply(int operation, int[] src, SparseRows rows, int firstRow, int lastRow,
+            int firstCol, int lastCol, int offset, int stride) {
+        Kernels.apply(operation, src, rows, firstRow, lastRow, firstCol, lastCol, this, offset,
+                stride);
+    }
+
+    /**
+     * Applies a block of floating point input values to the cells (see Kernels)
+     *
+     * @param operation
+     * @param src
+     * @param mask
+     * @param firstRow
+     * @param lastRow
+     * @param firstCol
+     * @param lastCol
+     * @param offset index of the top left cell of the block
+     * @param stride number of cells between rows
+     */
+    void apply(int operation, float[] src, RadiusMask mask, int firstRow, int lastRow,
+            int firstCol, int lastCol, int offset, int stride) {
+        Kernels.apply(operation, src, mask, firstRow, lastRow, firstCol, lastCol, this, offset,
+                stride);
+    }
+
+    /**
+     * Applies the non-zero runs of a sparse block of floating point input values to
+     * the cells (see Kernels)
+     *
+     * @param operation
+     * @param src
+     * @param rows
+     * @param firstRow
+     * @param lastRow
+     * @param firstCol
+     * @param lastCol
+     * @param offset index of the top left cell of the block
+     * @param stride number of cells between rows
+     */
+    void apply(int operation, float[] src, SparseRows rows, int firstRow, int lastRow,
+            int firstCol, int lastCol, int offset, int stride) {
+        Kernels.apply(operation, src, rows, firstRow, lastRow, firstCol, lastCol, this, offset,
+                stride);
+    }
+
+    /**
+     * Applies a run of integer input values to a run of the cells
+     *
+     * @param operation
+     * @param src
+     * @param s index in src of the first value
+     * @param d index of the first cell
+     * @param length
+     */
+    void applySpan(int operation, int[] src, int s, int d, int length) {
+        throw new UnsupportedOperationException(
+                "Integer inputs cannot be applied to " + this.getType() + " cells");
+    }
+
+    /**
+     * Applies a run of floating point input values to a run of the cells
+     *
+     * @param operation
+     * @param src
+     * @param s index in src of the first value
+     * @param d index of the first cell
+     * @param length
+     */
+    void applySpan(int operation, float[] src, int s, int d, int length) {
+        throw new UnsupportedOperationException(
+                "Floating point inputs cannot be applied to " + this.getType() + " cells");
+    }
+
+    /**
+     * Applies an input value of 0 to a run of the cells
+     *
+     * @param operation
+     * @param d index of the first cell
+     * @param length
+     */
+    abstract void applyZero(int operation, int d, int length);
+
+    /**
+     * Return the type of the cells
+     *
+     * @return
+     */
+    abstract AccumulatorType getType();
+
+    /**
+     * Return a data buffer holding the cells, this wraps the cells without
+     * copying them for every type except LONG, which is copied into doubles
+     *
+     * @return
+     */
+    abstract DataBuffer toDataBuffer();
+
+    /**
+     * Replaces the cells with values read from a buffer
+     *
+     * @param buffer
+     */
+    abstract void read(ByteBuffer buffer);
+
+    /**
+     * Writes the cells to a buffer
+     *
+     * @param buffer
+     */
+    abstract void write(ByteBuffer buffer);
+
+    /**
+     * Return a copy of the cells
+     *
+     * @return
+     */
+    abstract CellArray copy();
+
+    /**
+     * Copies a run of cells into an array of doubles
+     *
+     * @param offset index of the first cell
+     * @param dst
+     * @param dstOffset
+     * @param length
+     */
+    abstract void get(int offset, double[] dst, int dstOffset, int length);
+
+    /**
+     * Replaces a run of cells with values from an array of doubles (these are
+     * cast to the type of the cells)
+     *
+     * @param offset index of the first cell
+     * @param src
+     * @param srcOffset
+     * @param length
+     */
+    abstract void set(int offset, double[] src, int srcOffset, int length);
+
+    /**
+     * Unsigned byte cells
+     */
+    static final class ByteCells extends CellArray {
+
+        private final byte[] data;
+
+        ByteCells(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        void applySpan(int operation, int[] src, int s, int d, int length) {
+            Kernels.applySpan(operation, src, s, this.data, d, length);
+        }
+
+        void applyZero(int operation, int d, int length) {
+            Kernels.applyZero(operation, this.data, d, length);
+        }
+
+        AccumulatorType getType() {
+            return AccumulatorType.BYTE;
+        }
+
+        DataBuffer toDataBuffer() {
+            return new DataBufferByte(this.data, this.data.length);
+        }
+
+        void read(ByteBuffer buffer) {
+            buffer.duplicate().get(this.data);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.duplicate().put(this.data);
+        }
+
+        CellArray copy() {
+            return new ByteCells(this.data.clone());
+        }
+
+        void get(int offset, double[] dst, int dstOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = this.data[offset + i] & 0xff;
+            }
+        }
+
+        void set(int offset, double[] src, int srcOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                this.data[offset + i] = (byte) src[srcOffset + i];
+            }
+        }
+    }
+
+    /**
+     * Unsigned short cells
+     */
+    static final class ShortCells extends CellArray {
+
+        private final short[] data;
+
+        ShortCells(short[] data) {
+            this.data = data;
+        }
+
+        @Override
+        void applySpan(int operation, int[] src, int s, int d, int length) {
+            Kernels.applySpan(operation, src, s, this.data, d, length);
+        }
+
+        void applyZero(int operation, int d, int length) {
+            Kernels.applyZero(operation, this.data, d, length);
+        }
+
+        AccumulatorType getType() {
+            return AccumulatorType.USHORT;
+        }
+
+        DataBuffer toDataBuffer() {
+            return new DataBufferUShort(this.data, this.data.length);
+        }
+
+        void read(ByteBuffer buffer) {
+            buffer.asShortBuffer().get(this.data);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.asShortBuffer().put(this.data);
+        }
+
+        CellArray copy() {
+            return new ShortCells(this.data.clone());
+        }
+
+        void get(int offset, double[] dst, int dstOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = this.data[offset + i] & 0xffff;
+            }
+        }
+
+        void set(int offset, double[] src, int srcOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                this.data[offset + i] = (short) src[srcOffset + i];
+            }
+        }
+    }
+
+    /**
+     * Int cells
+     */
+    static final class IntCells extends CellArray {
+
+        private final int[] data;
+
+        IntCells(int[] data) {
+            this.data = data;
+        }
+
+        @Override
+        void applySpan(int operation, int[] src, int s, int d, int length) {
+            Kernels.applySpan(operation, src, s, this.data, d, length);
+        }
+
+        void applyZero(int operation, int d, int length) {
+            Kernels.applyZero(operation, this.data, d, length);
+        }
+
+        AccumulatorType getType() {
+            return AccumulatorType.INT;
+        }
+
+        DataBuffer toDataBuffer() {
+            return new DataBufferInt(this.data, this.data.length);
+        }
+
+        void read(ByteBuffer buffer) {
+            buffer.asIntBuffer().get(this.data);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.asIntBuffer().put(this.data);
+        }
+
+        CellArray copy() {
+            return new IntCells(this.data.clone());
+        }
+
+        void get(int offset, double[] dst, int dstOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = this.data[offset + i];
+            }
+        }
+
+        void set(int offset, double[] src, int srcOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                this.data[offset + i] = (int) src[srcOffset + i];
+            }
+        }
+    }
+
+    /**
+     * Long cells
+     */
+    static final class LongCells extends CellArray {
+
+        private final long[] data;
+
+        LongCells(long[] data) {
+            this.data = data;
+        }
+
+        @Override
+        void applySpan(int operation, int[] src, int s, int d, int length) {
+            Kernels.applySpan(operation, src, s, this.data, d, length);
+        }
+
+        void applyZero(int operation, int d, int length) {
+            Kernels.applyZero(operation, this.data, d, length);
+        }
+
+        AccumulatorType getType() {
+            return AccumulatorType.LONG;
+        }
+
+        DataBuffer toDataBuffer() {
+            final double[] values = new double[this.data.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = this.data[i];
+            }
+            return new DataBufferDouble(values, values.length);
+        }
+
+        void read(ByteBuffer buffer) {
+            buffer.asLongBuffer().get(this.data);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.asLongBuffer().put(this.data);
+        }
+
+        CellArray copy() {
+            return new LongCells(this.data.clone());
+        }
+
+        void get(int offset, double[] dst, int dstOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = this.data[offset + i];
+            }
+        }
+
+        void set(int offset, double[] src, int srcOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                this.data[offset + i] = (long) src[srcOffset + i];
+            }
+        }
+    }
+
+    /**
+     * Float cells
+     */
+    static final class FloatCells extends CellArray {
+
+        private final float[] data;
+
+        FloatCells(float[] data) {
+            this.data = data;
+        }
+
+        @Override
+        void applySpan(int operation, float[] src, int s, int d, int length) {
+            Kernels.applySpan(operation, src, s, this.data, d, length);
+        }
+
+        void applyZero(int operation, int d, int length) {
+            Kernels.applyZero(operation, this.data, d, length);
+        }
+
+        AccumulatorType getType() {
+            return AccumulatorType.FLOAT;
+        }
+
+        DataBuffer toDataBuffer() {
+            return new DataBufferFloat(this.data, this.data.length);
+        }
+
+        void read(ByteBuffer buffer) {
+            buffer.asFloatBuffer().get(this.data);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.asFloatBuffer().put(this.data);
+        }
+
+        CellArray copy() {
+            return new FloatCells(this.data.clone());
+        }
+
+        void get(int offset, double[] dst, int dstOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = this.data[offset + i];
+            }
+        }
+
+        void set(int offset, double[] src, int srcOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                this.data[offset + i] = (float) src[srcOffset + i];
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * A colour map for styling an output, read from the ColorMap of an SLD file
+ * or built from one of the bundled ColorBrewer ramps
+ *
+ * As in an SLD ColorMap, each entry has a quantity and a colour (with an
+ * opacity), and the entries are used in one of three ways: RAMP interpolates
+ * between the colours of the entries either side of a value (values beyond
+ * the first or last entry take its colour), INTERVALS gives a value the colour
+ * of the first entry whose quantity is above it, and VALUES only colours
+ * values that are exactly equal to the quantity of an entry. Values that are
+ * not coloured (and NaN) are transparent.
+ *
+ * Colours are returned as non-premultiplied ARGB ints. For integer outputs
+ * getLookup() precomputes the colour of every integer between two values, so
+ * styling is a single array lookup for each cell (see StyledImage).
+ *
+ * @author jonathan.huck
+ */
+public final class ColorTable {
+
+    /**
+     * How the entries of a table are used
+     */
+    public enum Type {
+
+        RAMP,         //interpolate between entries
+        INTERVALS,    //the first entry above the value
+        VALUES        //only values equal to an entry
+    }
+
+    /*
+     * largest number of values that getLookup() will precompute
+     */
+    static final int MAX_LOOKUP = 1 << 20;
+
+    /*
+     * the 9 class ColorBrewer schemes (www.colorbrewer2.org, Cynthia Brewer,
+     * Mark Harrower and The Pennsylvania State University)
+     */
+    private static final Map<String, int[]> COLOR_BREWER = new LinkedHashMap<String, int[]>();
+
+    static {
+        COLOR_BREWER.put("YlOrRd", new int[]{0xffffcc, 0xffeda0, 0xfed976, 0xfeb24c, 0xfd8d3c,
+            0xfc4e2a, 0xe31a1c, 0xbd0026, 0x800026});
+        COLOR_BREWER.put("YlGnBu", new int[]{0xffffd9, 0xedf8b1, 0xc7e9b4, 0x7fcdbb, 0x41b6c4,
+            0x1d91c0, 0x225ea8, 0x253494, 0x081d58});
+        COLOR_BREWER.put("Blues", new int[]{0xf7fbff, 0xdeebf7, 0xc6dbef, 0x9ecae1, 0x6baed6,
+            0x4292c6, 0x2171b5, 0x08519c, 0x08306b});
+        COLOR_BREWER.put("Greens", new int[]{0xf7fcf5, 0xe5f5e0, 0xc7e9c0, 0xa1d99b, 0x74c476,
+            0x41ab5d, 0x238b45, 0x006d2c, 0x00441b});
+        COLOR_BREWER.put("Reds", new int[]{0xfff5f0, 0xfee0d2, 0xfcbba1, 0xfc9272, 0xfb6a4a,
+            0xef3b2c, 0xcb181d, 0xa50f15, 0x67000d});
+        COLOR_BREWER.put("Greys", new int[]{0xffffff, 0xf0f0f0, 0xd9d9d9, 0xbdbdbd, 0x969696,
+            0x737373, 0x525252, 0x252525, 0x000000});
+        COLOR_BREWER.put("RdYlGn", new int[]{0xd73027, 0xf46d43, 0xfdae61, 0xfee08b, 0xffffbf,
+            0xd9ef8b, 0xa6d96a, 0x66bd63, 0x1a9850});
+        COLOR_BREWER.put("Spectral", new int[]{0xd53e4f, 0xf46d43, 0xfdae61, 0xfee08b, 0xffffbf,
+            0xe6f598, 0xabdda4, 0x66c2a5, 0x3288bd});
+    }
+
+    /*
+     * object variables
+     */
+    private final Type type;              //how the entries are used
+    private final double[] quantities;    //quantity of each entry (ascending)
+    private final int[] colors;           //ARGB colour of each entry
+
+    /**
+     * Constructor
+     *
+     * @param type
+     * @param quantities in ascending order
+     * @param colors ARGB colour for each quantity
+     */
+    public ColorTable(Type type, double[] quantities, int[] colors) {
+        if (quantities.length == 0 || quantities.length != colors.length) {
+            throw new IllegalArgumentException("A colour table needs a colour for each quantity");
+        }
+        for (int i = 1; i < quantities.length; i++) {
+            if (quantities[i] < quantities[i - 1]) {
+                throw new IllegalArgumentException("Colour table quantities must be ascending");
+            }
+        }
+        this.type = type;
+        this.quantities = quantities.clone();
+        this.colors = colors.clone();
+    }
+
+    /**
+     * Reads the ColorMap of the first RasterSymbolizer in an SLD file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static ColorTable fromSld(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return fromSld(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the ColorMap of the first RasterSymbolizer in an SLD document
+     * (SLD 1.0 or SE 1.1)
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static ColorTable fromSld(InputStream in) throws IOException {
+        final Document document;
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            document = factory.newDocumentBuilder().parse(in);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to read SLD", e);
+        } catch (SAXException e) {
+            throw new IOException("Unable to read SLD", e);
+        }
+
+        //find the colour map
+        final NodeList maps = document.getElementsByTagNameNS("*", "ColorMap");
+        if (maps.getLength() == 0) {
+            throw new IOException("SLD does not have a ColorMap");
+        }
+        final Element map = (Element) maps.item(0);
+        final Type type = map.hasAttribute("type")
+                ? Type.valueOf(map.getAttribute("type").toUpperCase()) : Type.RAMP;
+
+        //read each entry (quantity 0 and opacity 1 if not given)
+        final NodeList entries = map.getElementsByTagNameNS("*", "ColorMapEntry");
+        final List<double[]> parsed = new ArrayList<double[]>();
+        Element entry;
+        for (int i = 0; i < entries.getLength(); i++) {
+            entry = (Element) entries.item(i);
+            try {
+                parsed.add(new double[]{
+                    entry.hasAttribute("quantity")
+                    ? Double.parseDouble(entry.getAttribute("quantity")) : 0,
+                    Integer.parseInt(entry.getAttribute("color").trim().substring(1), 16),
+                    entry.hasAttribute("opacity")
+                    ? Double.parseDouble(entry.getAttribute("opacity")) : 1});
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid ColorMapEntry " + (i + 1) + " in SLD", e);
+            }
+        }
+        final double[] quantities = new double[parsed.size()];
+        final int[] colors = new int[parsed.size()];
+        for (int i = 0; i < quantities.length; i++) {
+            quantities[i] = parsed.get(i)[0];
+            colors[i] = (int) Math.round(Math.max(0, Math.min(1, parsed.get(i)[2])) * 255) << 24
+                    | (int) parsed.get(i)[1];
+        }
+        return new ColorTable(type, quantities, colors);
+    }
+
+    /**
+     * Builds a ramp from one of the bundled ColorBrewer schemes, stretched
+     * between two values. If min is above 0, 0 is added as a transparent entry
+     * so that cells no input covers are left transparent (as in fc.sld).
+     *
+     * @param name scheme (see getColorBrewerNames(), case is ignored)
+     * @param min
+     * @param max
+     * @return
+     */
+    public static ColorTable getColorBrewer(String name, double min, double max) {
+        final int[] scheme = getScheme(name);
+
+        //spread the colours evenly between min and max
+        final int offset = min > 0 ? 1 : 0;
+        final double[] quantities = new double[scheme.length + offset];
+        final int[] colors = new int[scheme.length + offset];
+        for (int i = 0; i < scheme.length; i++) {
+            quantities[offset + i] = min + (max - min) * i / (scheme.length - 1);
+            colors[offset + i] = 0xFF000000 | scheme[i];
+        }
+        return new ColorTable(Type.RAMP, quantities, colors);
+    }
+
+    /**
+     * Builds classes from one of the bundled ColorBrewer schemes, one class
+     * between each pair of breaks (see Histogram.getBreaks()), the last class
+     * including the last break. The colours of the classes are spread evenly
+     * along the scheme. If the first break is above 0, values below it
+     * (including 0) are transparent.
+     *
+     * @param name scheme (see getColorBrewerNames(), case is ignored)
+     * @param breaks
+     * @return
+     */
+    public static ColorTable getColorBrewer(String name, double[] breaks) {
+        if (breaks.length < 2) {
+            throw new IllegalArgumentException("At least two breaks are needed");
+        }
+
+        //the scheme as a ramp from 0 to 1, to pick the colour of each class from
+        final int[] scheme = getScheme(name);
+        final double[] positions = new double[scheme.length];
+        final int[] opaque = new int[scheme.length];
+        for (int i = 0; i < scheme.length; i++) {
+            positions[i] = (double) i / (scheme.length - 1);
+            opaque[i] = 0xFF000000 | scheme[i];
+        }
+        final ColorTable ramp = new ColorTable(Type.RAMP, positions, opaque);
+
+        //each class covers the values below its upper break
+        final int classes = breaks.length - 1;
+        final int offset = breaks[0] > 0 ? 1 : 0;
+        final double[] quantities = new double[classes + offset];
+        final int[] colors = new int[classes + offset];
+        if (offset > 0) {
+            quantities[0] = breaks[0];
+        }
+        for (int i = 0; i < classes; i++) {
+            quantities[offset + i] = i == classes - 1 ? Math.nextUp(breaks[i + 1]) : breaks[i + 1];
+            colors[offset + i] = ramp.getColor(classes > 1 ? (double) i / (classes - 1) : 1);
+        }
+        return new ColorTable(Type.INTERVALS, quantities, colors);
+    }
+
+    /**
+     * Return the colours of a bundled ColorBrewer scheme
+     *
+     * @param name
+     * @return
+     */
+    private static int[] getScheme(String name) {
+        for (Map.Entry<String, int[]> entry : COLOR_BREWER.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        throw new IllegalArgumentException("Unknown ColorBrewer scheme " + name);
+    }
+
+    /**
+     * Return the names of the bundled ColorBrewer schemes
+     *
+     * @return
+     */
+    public static String[] getColorBrewerNames() {
+        return COLOR_BREWER.keySet().toArray(new String[COLOR_BREWER.size()]);
+    }
+
+    /**
+     * Returns the ARGB colour of a value (0 if it is transparent)
+     *
+     * @param value
+     * @return
+     */
+    public int getColor(double value) {
+        if (Double.isNaN(value)) {
+            return 0;
+        }
+
+        //index of the entry, or of the first entry above the value
+        int i = Arrays.binarySearch(this.quantities, value);
+        final boolean exact = i >= 0;
+        i = exact ? i : -i - 1;
+        switch (this.type) {
+            case VALUES:
+                return exact ? this.colors[i] : 0;
+            case INTERVALS:
+
+                //an entry covers the values below its quantity
+                while (exact && i < this.quantities.length && this.quantities[i] == value) {
+                    i++;
+                }
+                return i < this.colors.length ? this.colors[i] : 0;
+            default:
+                if (exact || i == 0) {
+                    return this.colors[i];
+                } else if (i == this.quantities.length) {
+                    return this.colors[i - 1];
+                }
+                return interpolate(this.colors[i - 1], this.colors[i],
+                        (value - this.quantities[i - 1])
+                        / (this.quantities[i] - this.quantities[i - 1]));
+        }
+    }
+
+    /**
+     * Returns the colour of every integer from min to max (inclusive)
+     *
+     * @param min
+     * @param max
+     * @return
+     */
+    int[] getLookup(long min, long max) {
+        if (max < min || max - min >= MAX_LOOKUP) {
+            throw new IllegalArgumentException("Lookup tables are limited to "
+                    + MAX_LOOKUP + " values");
+        }
+        final int[] lookup = new int[(int) (max - min + 1)];
+        for (int i = 0; i < lookup.length; i++) {
+            lookup[i] = this.getColor(min + i);
+        }
+        return lookup;
+    }
+
+    /**
+     * Return the smallest quantity
+     *
+     * @return
+     */
+    double getMin() {
+        return this.quantities[0];
+    }
+
+    /**
+     * Return the largest quantity
+     *
+     * @return
+     */
+    double getMax() {
+        return this.quantities[this.quantities.length - 1];
+    }
+
+    /**
+     * Return how the entries are used
+     *
+     * @return
+     */
+    public Type getType() {
+        return this.type;
+    }
+
+    /**
+     * Interpolates between two ARGB colours
+     *
+     * @param from
+     * @param to
+     * @param fraction
+     * @return
+     */
+    private static int interpolate(int from, int to, double fraction) {
+        int color = 0;
+        int a, b;
+        for (int shift = 0; shift < 32; shift += 8) {
+            a = from >>> shift & 0xFF;
+            b = to >>> shift & 0xFF;
+            color |= (int) Math.round(a + (b - a) * fraction) << shift;
+        }
+        return color;
+    }
+}
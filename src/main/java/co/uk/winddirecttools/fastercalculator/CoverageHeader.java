@@ -0,0 +1,131 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.File;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * The metadata describing an input coverage, without any of its pixel data
+ *
+ * This is everything that is needed to plan the output grid (extent,
+ * dimensions, resolution and coordinate system), and can be obtained from a
+ * reader without decoding the image itself.
+ *
+ * @author jonathan.huck
+ */
+public class CoverageHeader {
+
+    /*
+     * object variables
+     */
+    private final File file;                      //source file (may be null)
+    private final Envelope2D envelope;            //world extent
+    private final int width, height;              //grid dimensions
+    private final CoordinateReferenceSystem crs;  //coordinate system
+
+    /**
+     * Constructor for a header built from known values
+     *
+     * @param file
+     * @param envelope
+     * @param width
+     * @param height
+     * @param crs
+     */
+    public CoverageHeader(File file, Envelope2D envelope, int width, int height,
+            CoordinateReferenceSystem crs) {
+        this.file = file;
+        this.envelope = envelope;
+        this.width = width;
+        this.height = height;
+        this.crs = crs;
+    }
+
+    /**
+     * Build a header from the original envelope and grid range of a reader,
+     * this does not read any pixel data
+     *
+     * @param file
+     * @param reader
+     * @return
+     */
+    public static CoverageHeader fromReader(File file, AbstractGridCoverage2DReader reader) {
+        final GridEnvelope range = reader.getOriginalGridRange();
+        final CoordinateReferenceSystem crs = reader.getCrs();
+        return new CoverageHeader(file, new Envelope2D(reader.getOriginalEnvelope()),
+                range.getSpan(0), range.getSpan(1), crs);
+    }
+
+    /**
+     * Build a header from a coverage that has already been read
+     *
+     * @param gc
+     * @return
+     */
+    public static CoverageHeader fromCoverage(GridCoverage2D gc) {
+        final GridEnvelope2D range = gc.getGridGeometry().getGridRange2D();
+        return new CoverageHeader(null, gc.getEnvelope2D(), range.width, range.height,
+                gc.getCoordinateReferenceSystem());
+    }
+
+    /**
+     * Return the resolution of the coverage (the cell size in the x direction)
+     *
+     * @return
+     */
+    public int getResolution() {
+        return (int) Math.round(this.envelope.getWidth() / this.width);
+    }
+
+    /*
+     * accessor methods
+     */
+    /**
+     * Return the source file of the coverage
+     *
+     * @return
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Return the world extent of the coverage
+     *
+     * @return
+     */
+    public Envelope2D getEnvelope() {
+        return this.envelope;
+    }
+
+    /**
+     * Return the number of columns in the coverage
+     *
+     * @return
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Return the number of rows in the coverage
+     *
+     * @return
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Return the coordinate system of the coverage
+     *
+     * @return
+     */
+    public CoordinateReferenceSystem getCoordinateReferenceSystem() {
+        return this.crs;
+    }
+}
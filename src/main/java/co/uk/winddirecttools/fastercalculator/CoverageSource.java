@@ -0,0 +1,285 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.factory.Hints;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * A lazily read set of input coverages
+ *
+ * Rather than reading every input file into memory up front, each coverage is
+ * only read from disk when it is requested by the iterator, meaning that the
+ * RasterCalculator only ever has to hold a single input in memory at a time.
+ *
+ * ESRI ASCII grids are read by AsciiGrid rather than GeoTools wherever the
+ * calculator reads inputs by index (see getAsciiGrid()), taking their
+ * coordinate system from a .prj file alongside them or else from the default
+ * coordinate system in the hints.
+ *
+ * @author jonathan.huck
+ */
+public class CoverageSource implements Iterable<GridCoverage2D> {
+
+    /*
+     * object variables
+     */
+    private final List<File> files;    //files to be read
+    private final Hints hints;         //hints passed to each reader
+    private List<CoverageHeader> headers = null;   //cached metadata
+
+    /**
+     * Constructor for a source reading from a list of files
+     *
+     * @param files
+     * @param hints
+     */
+    public CoverageSource(List<File> files, Hints hints) {
+        this.files = files;
+        this.hints = hints;
+    }
+
+    /**
+     * Constructor for a source whose headers are already known
+     *
+     * @param files
+     * @param hints
+     * @param headers
+     */
+    CoverageSource(List<File> files, Hints hints, List<CoverageHeader> headers) {
+        this(files, hints);
+        this.headers = headers;
+    }
+
+    /**
+     * Returns a source of only the coverages that intersect a region, which is
+     * found from the headers of the coverages without reading any pixels
+     *
+     * @param region
+     * @return
+     * @throws IOException
+     */
+    public CoverageSource select(Region region) throws IOException {
+        final List<File> selected = new ArrayList<File>();
+        final List<CoverageHeader> headers = new ArrayList<CoverageHeader>();
+        final List<CoverageHeader> all = this.getHeaders();
+        for (int i = 0; i < all.size(); i++) {
+            if (region.intersects(all.get(i).getEnvelope())) {
+                selected.add(this.files.get(i));
+                headers.add(all.get(i));
+            }
+        }
+        return new CoverageSource(selected, this.hints, headers);
+    }
+
+    /**
+     * Return the number of coverages in the source
+     *
+     * @return
+     */
+    public int size() {
+        return this.files.size();
+    }
+
+    /**
+     * Return the file at a given position in the source
+     *
+     * @param index
+     * @return
+     */
+    public File getFile(int index) {
+        return this.files.get(index);
+    }
+
+    /**
+     * Open a reader for the file at a given position in the source, the caller
+     * is responsible for disposing of the reader once the coverage has been used
+     *
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    public AbstractGridCoverage2DReader open(int index) throws IOException {
+
+        //find a reader for the file
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.start();
+        final File file = this.files.get(index);
+        final AbstractGridFormat format = GridFormatFinder.findFormat(file);
+        final AbstractGridCoverage2DReader reader = format.getReader(file, this.hints);
+        metrics.end(Metrics.Stage.DETECT, start, file, 0);
+        if (reader == null) {
+            throw new IOException("Unable to find a reader for " + file.getAbsolutePath());
+        }
+        return reader;
+    }
+
+    /**
+     * Open the file at a given position in the source as an AsciiGrid, or
+     * return null if it is not an ASCII grid (or cannot be read as one)
+     *
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    AsciiGrid getAsciiGrid(int index) throws IOException {
+        final File file = this.files.get(index);
+        if (!AsciiGrid.isAsciiGrid(file)) {
+            return null;
+        }
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.start();
+        final AsciiGrid grid = new AsciiGrid(file);
+        metrics.end(Metrics.Stage.DETECT, start, file, 0);
+        return grid;
+    }
+
+    /**
+     * Return the coordinate system of an ASCII grid, from its .prj file if it
+     * has one or otherwise the default in the hints
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    CoordinateReferenceSystem getCoordinateReferenceSystem(File file) throws IOException {
+        final String name = file.getName();
+        final File prj = new File(file.getParentFile(),
+                name.substring(0, name.lastIndexOf('.')) + ".prj");
+        if (prj.isFile()) {
+            try {
+                return CRS.parseWKT(new String(Files.readAllBytes(prj.toPath()),
+                        Charset.forName("UTF-8")).trim());
+            } catch (FactoryException e) {
+                throw new IOException("Unable to read the coordinate system in " + prj, e);
+            }
+        }
+        return this.hints != null
+                ? (CoordinateReferenceSystem) this.hints.get(Hints.DEFAULT_COORDINATE_REFERENCE_SYSTEM)
+                : null;
+    }
+
+    /**
+     * Return the metadata for every coverage in the source. Only the header of
+     * each file is read (no pixel data is decoded), and the result is cached so
+     * that the files are only opened once.
+     *
+     * @return
+     * @throws IOException
+     */
+    public List<CoverageHeader> getHeaders() throws IOException {
+        if (this.headers == null) {
+            final List<CoverageHeader> list = new ArrayList<CoverageHeader>(this.size());
+            AbstractGridCoverage2DReader reader;
+            AsciiGrid grid;
+            for (int i = 0; i < this.size(); i++) {
+                grid = this.getAsciiGrid(i);
+                if (grid != null) {
+                    final CoordinateReferenceSystem crs = this.getCoordinateReferenceSystem(
+                            grid.getFile());
+                    list.add(new CoverageHeader(grid.getFile(), grid.getEnvelope(crs),
+                            grid.getWidth(), grid.getHeight(), crs));
+                    continue;
+                }
+                reader = this.open(i);
+                try {
+                    list.add(CoverageHeader.fromReader(this.getFile(i), reader));
+                } finally {
+                    reader.dispose();
+                }
+            }
+            this.headers = list;
+        }
+        return this.headers;
+    }
+
+    /**
+     * Return the DataBuffer type of the values in the first coverage of the
+     * source (the image itself is opened, but its pixels are not read)
+     *
+     * @return
+     * @throws IOException
+     */
+    public int getDataType() throws IOException {
+        final AsciiGrid grid = this.getAsciiGrid(0);
+        if (grid != null) {
+            return grid.getDataType();
+        }
+        final AbstractGridCoverage2DReader reader = this.open(0);
+        try {
+            final GridCoverage2D coverage = (GridCoverage2D) reader.read(null);
+            try {
+                return coverage.getRenderedImage().getSampleModel().getDataType();
+            } finally {
+                coverage.dispose(true);
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Returns an iterator that reads each coverage as it is requested. The
+     * reader for each coverage is held open until the iterator moves on to the
+     * next one, so the pixel data can still be loaded lazily by the caller.
+     *
+     * @return
+     */
+    public Iterator<GridCoverage2D> iterator() {
+        return new Iterator<GridCoverage2D>() {
+
+            private int index = 0;
+            private AbstractGridCoverage2DReader reader = null;
+
+            public boolean hasNext() {
+                if (this.index < CoverageSource.this.size()) {
+                    return true;
+                }
+
+                //all done, release the last reader
+                this.release();
+                return false;
+            }
+
+            public GridCoverage2D next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                //release the previous reader and read the next coverage
+                this.release();
+                final File file = CoverageSource.this.getFile(this.index++);
+                try {
+                    this.reader = CoverageSource.this.open(this.index - 1);
+                    Metrics.getInstance().addBytesRead(file.length());
+                    return (GridCoverage2D) this.reader.read(null);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Unable to read " + file.getAbsolutePath(), e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void release() {
+                if (this.reader != null) {
+                    this.reader.dispose();
+                    this.reader = null;
+                }
+            }
+        };
+    }
+}
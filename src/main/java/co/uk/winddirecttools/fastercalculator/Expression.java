@@ -0,0 +1,694 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A map algebra expression, parsed once into a tree of nodes that each
+ * evaluate a whole row of cells at a time
+ *
+ * The language has numbers, the operators + - * /, the comparisons
+ * < <= > >= == != (1 if true, otherwise 0), && || and !, the conditional
+ * (condition ? x : y) and the functions:
+ *
+ *   sum(a), count(a), max(a)   reductions over all of the inputs of the named
+ *                              source (the sum of their values, the number of
+ *                              non-zero values and the largest value)
+ *   a                          shorthand for sum(a)
+ *   min(x, y), max(x, y), abs(x), if(condition, x, y)
+ *
+ * e.g. "sum(a) * 2 - b" or "count(a) >= 3 ? sum(a) / count(a) : 0".
+ *
+ * Each reduction is only listed once however many times it appears, and
+ * constant parts of the expression are worked out when it is parsed. The
+ * operator of each node is dispatched once per row rather than once per cell,
+ * so every node is a single tight loop over the row.
+ *
+ * @author jonathan.huck
+ */
+final class Expression {
+
+    /*
+     * operators
+     */
+    private static final int PLUS = 0, MINUS = 1, TIMES = 2, OVER = 3;
+    private static final int LT = 4, LE = 5, GT = 6, GE = 7, EQ = 8, NE = 9;
+    private static final int AND = 10, OR = 11, MIN = 12, MAX = 13;
+    private static final int NEGATE = 14, NOT = 15, ABS = 16;
+
+    /*
+     * object variables
+     */
+    private final String text;                                        //source of the expression
+    private final List<Reduction> reductions = new ArrayList<Reduction>();    //inputs of the expression
+    private final Node root;                                          //compiled expression
+    private final int slots;                                          //number of row buffers required
+    private int position = 0;                                         //parser position
+
+    /**
+     * Constructor, parses the expression
+     *
+     * @param text
+     */
+    private Expression(String text) {
+        this.text = text;
+        final Node node = this.parseConditional();
+        this.skipSpace();
+        if (this.position < this.text.length()) {
+            throw this.error("Unexpected '" + this.text.charAt(this.position) + "'");
+        }
+        this.root = node;
+        this.slots = number(node, 0);
+    }
+
+    /**
+     * Parses an expression
+     *
+     * @param text
+     * @return
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    static Expression parse(String text) {
+        return new Expression(text);
+    }
+
+    /**
+     * Return the reductions that the expression is built from, the values of
+     * each are passed to evaluate() in this order
+     *
+     * @return
+     */
+    List<Reduction> getReductions() {
+        return this.reductions;
+    }
+
+    /**
+     * Return a set of row buffers for evaluating the expression, one set is
+     * needed for each thread evaluating the expression
+     *
+     * @param width
+     * @return
+     */
+    double[][] createBuffers(int width) {
+        return new double[this.slots][width];
+    }
+
+    /**
+     * Evaluates a row of cells
+     *
+     * @param inputs the values of each reduction
+     * @param buffers from createBuffers()
+     * @param n number of cells in the row
+     * @return the result (this may be one of the inputs or buffers)
+     */
+    double[] evaluate(double[][] inputs, double[][] buffers, int n) {
+        return this.root.evaluate(inputs, buffers, n);
+    }
+
+    @Override
+    public String toString() {
+        return this.text;
+    }
+
+    /**
+     * Gives each node that writes its own values a buffer, returning the
+     * number of buffers used
+     *
+     * @param node
+     * @param next
+     * @return
+     */
+    private static int number(Node node, int next) {
+        for (Node child : node.children) {
+            next = number(child, next);
+        }
+        if (!(node instanceof ReductionNode)) {
+            node.slot = next++;
+        }
+        return next;
+    }
+
+    /**
+     * Parses a conditional (condition ? x : y), the lowest precedence
+     *
+     * @return
+     */
+    private Node parseConditional() {
+        final Node condition = this.parseOr();
+        if (this.accept("?")) {
+            final Node x = this.parseConditional();
+            this.expect(":");
+            return fold(new ConditionalNode(condition, x, this.parseConditional()));
+        }
+        return condition;
+    }
+
+    /**
+     * Parses a sequence of ||
+     *
+     * @return
+     */
+    private Node parseOr() {
+        Node node = this.parseAnd();
+        while (this.accept("||")) {
+            node = fold(new BinaryNode(OR, node, this.parseAnd()));
+        }
+        return node;
+    }
+
+    /**
+     * Parses a sequence of &&
+     *
+     * @return
+     */
+    private Node parseAnd() {
+        Node node = this.parseComparison();
+        while (this.accept("&&")) {
+            node = fold(new BinaryNode(AND, node, this.parseComparison()));
+        }
+        return node;
+    }
+
+    /**
+     * Parses a comparison
+     *
+     * @return
+     */
+    private Node parseComparison() {
+        final Node node = this.parseSum();
+        if (this.accept("<=")) {
+            return fold(new BinaryNode(LE, node, this.parseSum()));
+        } else if (this.accept(">=")) {
+            return fold(new BinaryNode(GE, node, this.parseSum()));
+        } else if (this.accept("==")) {
+            return fold(new BinaryNode(EQ, node, this.parseSum()));
+        } else if (this.accept("!=")) {
+            return fold(new BinaryNode(NE, node, this.parseSum()));
+        } else if (this.accept("<")) {
+            return fold(new BinaryNode(LT, node, this.parseSum()));
+        } else if (this.accept(">")) {
+            return fold(new BinaryNode(GT, node, this.parseSum()));
+        }
+        return node;
+    }
+
+    /**
+     * Parses a sequence of + and -
+     *
+     * @return
+     */
+    private Node parseSum() {
+        Node node = this.parseProduct();
+        while (true) {
+            if (this.accept("+")) {
+                node = fold(new BinaryNode(PLUS, node, this.parseProduct()));
+            } else if (this.accept("-")) {
+                node = fold(new BinaryNode(MINUS, node, this.parseProduct()));
+            } else {
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Parses a sequence of * and /
+     *
+     * @return
+     */
+    private Node parseProduct() {
+        Node node = this.parseUnary();
+        while (true) {
+            if (this.accept("*")) {
+                node = fold(new BinaryNode(TIMES, node, this.parseUnary()));
+            } else if (this.accept("/")) {
+                node = fold(new BinaryNode(OVER, node, this.parseUnary()));
+            } else {
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Parses a unary - or !
+     *
+     * @return
+     */
+    private Node parseUnary() {
+        if (this.accept("-")) {
+            return fold(new UnaryNode(NEGATE, this.parseUnary()));
+        } else if (this.accept("!")) {
+            return fold(new UnaryNode(NOT, this.parseUnary()));
+        } else if (this.accept("+")) {
+            return this.parseUnary();
+        }
+        return this.parsePrimary();
+    }
+
+    /**
+     * Parses a number, name, function call or bracketed expression
+     *
+     * @return
+     */
+    private Node parsePrimary() {
+        this.skipSpace();
+        if (this.accept("(")) {
+            final Node node = this.parseConditional();
+            this.expect(")");
+            return node;
+        }
+        if (this.position < this.text.length()
+                && (Character.isDigit(this.text.charAt(this.position))
+                || this.text.charAt(this.position) == '.')) {
+            return new ConstantNode(this.parseNumber());
+        }
+        final String name = this.parseName();
+        if (!this.accept("(")) {
+
+            //a bare name is the sum of the source
+            return this.reduction(name, RasterCalculator.ADD);
+        }
+
+        //functions
+        final Node node;
+        if (name.equals("sum")) {
+            node = this.reduction(this.parseName(), RasterCalculator.ADD);
+        } else if (name.equals("count")) {
+            node = this.reduction(this.parseName(), RasterCalculator.COUNT);
+        } else if (name.equals("max") || name.equals("min")) {
+
+            //max of a single source is a reduction
+            final int start = this.position;
+            if (name.equals("max") && this.peekName() != null) {
+                final String source = this.parseName();
+                if (this.accept(")")) {
+                    return this.reduction(source, RasterCalculator.MAX);
+                }
+                this.position = start;
+            }
+            final Node x = this.parseConditional();
+            this.expect(",");
+            node = fold(new BinaryNode(name.equals("max") ? MAX : MIN, x, this.parseConditional()));
+        } else if (name.equals("abs")) {
+            node = fold(new UnaryNode(ABS, this.parseConditional()));
+        } else if (name.equals("if")) {
+            final Node condition = this.parseConditional();
+            this.expect(",");
+            final Node x = this.parseConditional();
+            this.expect(",");
+            node = fold(new ConditionalNode(condition, x, this.parseConditional()));
+        } else {
+            throw this.error("Unknown function '" + name + "'");
+        }
+        this.expect(")");
+        return node;
+    }
+
+    /**
+     * Returns the node for a reduction, adding it to the list of reductions if
+     * it has not been seen before
+     *
+     * @param source
+     * @param operation
+     * @return
+     */
+    private Node reduction(String source, int operation) {
+        final Reduction reduction = new Reduction(source, operation);
+        int index = this.reductions.indexOf(reduction);
+        if (index < 0) {
+            index = this.reductions.size();
+            this.reductions.add(reduction);
+        }
+        return new ReductionNode(index);
+    }
+
+    /**
+     * Parses a number
+     *
+     * @return
+     */
+    private double parseNumber() {
+        final int start = this.position;
+        while (this.position < this.text.length()
+                && (Character.isDigit(this.text.charAt(this.position))
+                || this.text.charAt(this.position) == '.')) {
+            this.position++;
+        }
+        if (this.position < this.text.length()
+                && (this.text.charAt(this.position) == 'e' || this.text.charAt(this.position) == 'E')) {
+            this.position++;
+            if (this.position < this.text.length()
+                    && (this.text.charAt(this.position) == '+' || this.text.charAt(this.position) == '-')) {
+                this.position++;
+            }
+            while (this.position < this.text.length() && Character.isDigit(this.text.charAt(this.position))) {
+                this.position++;
+            }
+        }
+        try {
+            return Double.parseDouble(this.text.substring(start, this.position));
+        } catch (NumberFormatException e) {
+            this.position = start;
+            throw this.error("Invalid number");
+        }
+    }
+
+    /**
+     * Parses a name
+     *
+     * @return
+     */
+    private String parseName() {
+        final String name = this.peekName();
+        if (name == null) {
+            throw this.error(this.position < this.text.length()
+                    ? "Unexpected '" + this.text.charAt(this.position) + "'"
+                    : "Unexpected end of expression");
+        }
+        this.position += name.length();
+        return name;
+    }
+
+    /**
+     * Return the name at the current position without moving past it, or null
+     * if there is not one
+     *
+     * @return
+     */
+    private String peekName() {
+        this.skipSpace();
+        int end = this.position;
+        while (end < this.text.length()
+                && (Character.isLetterOrDigit(this.text.charAt(end)) || this.text.charAt(end) == '_')) {
+            end++;
+        }
+        if (end == this.position || Character.isDigit(this.text.charAt(this.position))) {
+            return null;
+        }
+        return this.text.substring(this.position, end);
+    }
+
+    /**
+     * Moves past a token if it is at the current position
+     *
+     * @param token
+     * @return
+     */
+    private boolean accept(String token) {
+        this.skipSpace();
+        if (this.text.startsWith(token, this.position)) {
+            this.position += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves past a token that must be at the current position
+     *
+     * @param token
+     */
+    private void expect(String token) {
+        if (!this.accept(token)) {
+            throw this.error("Expected '" + token + "'");
+        }
+    }
+
+    /**
+     * Moves past any white space
+     */
+    private void skipSpace() {
+        while (this.position < this.text.length() && Character.isWhitespace(this.text.charAt(this.position))) {
+            this.position++;
+        }
+    }
+
+    /**
+     * Return an exception describing a problem at the current position
+     *
+     * @param message
+     * @return
+     */
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + (this.position + 1)
+                + " of expression \"" + this.text + "\"");
+    }
+
+    /**
+     * Replaces a node with a constant if all of its children are constants
+     *
+     * @param node
+     * @return
+     */
+    private static Node fold(Node node) {
+        for (Node child : node.children) {
+            if (!(child instanceof ConstantNode)) {
+                return node;
+            }
+        }
+        number(node, 0);
+        final double[][] buffers = new double[node.children.length + 1][1];
+        return new ConstantNode(node.evaluate(null, buffers, 1)[0]);
+    }
+
+    /**
+     * An input of the expression: the reduction of all of the inputs of a
+     * source using one of the RasterCalculator operations (ADD, COUNT or MAX)
+     */
+    static final class Reduction {
+
+        private final String source;
+        private final int operation;
+
+        Reduction(String source, int operation) {
+            this.source = source;
+            this.operation = operation;
+        }
+
+        String getSource() {
+            return this.source;
+        }
+
+        int getOperation() {
+            return this.operation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Reduction)) {
+                return false;
+            }
+            final Reduction r = (Reduction) o;
+            return r.source.equals(this.source) && r.operation == this.operation;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.source.hashCode() + this.operation;
+        }
+    }
+
+    /**
+     * A node of the compiled expression
+     */
+    private abstract static class Node {
+
+        final Node[] children;    //operands
+        int slot;                 //index of the buffer the node writes to
+
+        Node(Node... children) {
+            this.children = children;
+        }
+
+        /**
+         * Evaluates the first n cells of the row
+         *
+         * @param inputs
+         * @param buffers
+         * @param n
+         * @return
+         */
+        abstract double[] evaluate(double[][] inputs, double[][] buffers, int n);
+    }
+
+    /**
+     * A constant value
+     */
+    private static final class ConstantNode extends Node {
+
+        private final double value;
+
+        ConstantNode(double value) {
+            this.value = value;
+        }
+
+        double[] evaluate(double[][] inputs, double[][] buffers, int n) {
+            final double[] out = buffers[this.slot];
+            Arrays.fill(out, 0, n, this.value);
+            return out;
+        }
+    }
+
+    /**
+     * The values of a reduction (read straight from the inputs)
+     */
+    private static final class ReductionNode extends Node {
+
+        private final int index;
+
+        ReductionNode(int index) {
+            this.index = index;
+        }
+
+        double[] evaluate(double[][] inputs, double[][] buffers, int n) {
+            return inputs[this.index];
+        }
+    }
+
+    /**
+     * An operator with one operand
+     */
+    private static final class UnaryNode extends Node {
+
+        private final int operator;
+
+        UnaryNode(int operator, Node x) {
+            super(x);
+            this.operator = operator;
+        }
+
+        double[] evaluate(double[][] inputs, double[][] buffers, int n) {
+            final double[] x = this.children[0].evaluate(inputs, buffers, n);
+            final double[] out = buffers[this.slot];
+            switch (this.operator) {
+                case NEGATE:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = -x[i];
+                    }
+                    break;
+                case NOT:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] == 0 ? 1 : 0;
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = Math.abs(x[i]);
+                    }
+            }
+            return out;
+        }
+    }
+
+    /**
+     * An operator with two operands
+     */
+    private static final class BinaryNode extends Node {
+
+        private final int operator;
+
+        BinaryNode(int operator, Node x, Node y) {
+            super(x, y);
+            this.operator = operator;
+        }
+
+        double[] evaluate(double[][] inputs, double[][] buffers, int n) {
+            final double[] x = this.children[0].evaluate(inputs, buffers, n);
+            final double[] y = this.children[1].evaluate(inputs, buffers, n);
+            final double[] out = buffers[this.slot];
+            switch (this.operator) {
+                case PLUS:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] + y[i];
+                    }
+                    break;
+                case MINUS:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] - y[i];
+                    }
+                    break;
+                case TIMES:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] * y[i];
+                    }
+                    break;
+                case OVER:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] / y[i];
+                    }
+                    break;
+                case LT:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] < y[i] ? 1 : 0;
+                    }
+                    break;
+                case LE:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] <= y[i] ? 1 : 0;
+                    }
+                    break;
+                case GT:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] > y[i] ? 1 : 0;
+                    }
+                    break;
+                case GE:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] >= y[i] ? 1 : 0;
+                    }
+                    break;
+                case EQ:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] == y[i] ? 1 : 0;
+                    }
+                    break;
+                case NE:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] != y[i] ? 1 : 0;
+                    }
+                    break;
+                case AND:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] != 0 && y[i] != 0 ? 1 : 0;
+                    }
+                    break;
+                case OR:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = x[i] != 0 || y[i] != 0 ? 1 : 0;
+                    }
+                    break;
+                case MIN:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = Math.min(x[i], y[i]);
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        out[i] = Math.max(x[i], y[i]);
+                    }
+            }
+            return out;
+        }
+    }
+
+    /**
+     * A choice between two values for each cell
+     */
+    private static final class ConditionalNode extends Node {
+
+        ConditionalNode(Node condition, Node x, Node y) {
+            super(condition, x, y);
+        }
+
+        double[] evaluate(double[][] inputs, double[][] buffers, int n) {
+            final double[] condition = this.children[0].evaluate(inputs, buffers, n);
+            final double[] x = this.children[1].evaluate(inputs, buffers, n);
+            final double[] y = this.children[2].evaluate(inputs, buffers, n);
+            final double[] out = buffers[this.slot];
+            for (int i = 0; i < n; i++) {
+                out[i] = condition[i] != 0 ? x[i] : y[i];
+            }
+            return out;
+        }
+    }
+}
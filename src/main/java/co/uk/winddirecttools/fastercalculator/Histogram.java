@@ -0,0 +1,397 @@
+package co.uk.winddirecttools.fastercalculator;
+
+/**
+ * A histogram of the non-zero values of an output, from which class breaks
+ * for styling it can be computed (equal interval, quantile or Jenks natural
+ * breaks) without reading the output again
+ *
+ * The bins are of equal width, and both the width and the position of the
+ * first bin are multiples of a power of two. When a value falls outside of
+ * the bins, the width is doubled (merging neighbouring bins) until every value
+ * fits. As the bins of every histogram line up with those of any other that
+ * is as coarse, histograms can be added together, and the values of a
+ * histogram can be taken away from one that they were added to, exactly. This
+ * lets a TiledAccumulator take the old values of a tile out of its histogram
+ * and put the new ones in each time it writes the tile. Quantiles and breaks
+ * are accurate to within one bin (at most 1/2048 of the range of the values,
+ * as the width is a power of two), and are exact for integer outputs whose
+ * values span fewer than 4096 integers.
+ *
+ * Cells that are 0 (that no input covers) and NaN are not counted.
+ *
+ * @author jonathan.huck
+ */
+public final class Histogram {
+
+    /**
+     * The ways of choosing class breaks
+     */
+    public enum Breaks {
+
+        EQUAL,       //classes of equal width
+        QUANTILE,    //classes with equal numbers of cells
+        JENKS        //classes that minimise the variance within each class
+    }
+
+    /*
+     * number of bins
+     */
+    static final int BINS = 4096;
+
+    /*
+     * width of the bins of a new histogram
+     */
+    private static final double FIRST_WIDTH = 1.0 / (1 << 20);
+
+    /*
+     * object variables
+     */
+    private long[] counts = new long[BINS];    //number of values in each bin
+    private double origin = 0;                 //lower edge of the first bin
+    private double width = 0;                  //width of each bin (0 until a value is added)
+    private long count = 0;                    //number of values
+    private double min = Double.POSITIVE_INFINITY;     //smallest value added
+    private double max = Double.NEGATIVE_INFINITY;     //largest value added
+
+    /**
+     * Adds a value
+     *
+     * @param value
+     */
+    void add(double value) {
+        if (value == 0 || Double.isNaN(value)) {
+            return;
+        }
+        this.fit(value, value, 0);
+        this.counts[this.getBin(value)]++;
+        this.count++;
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+    }
+
+    /**
+     * Adds the first length cells of a cell array
+     *
+     * @param cells
+     * @param length
+     */
+    void add(CellArray cells, int length) {
+        this.add(cells, 0, length);
+    }
+
+    /**
+     * Adds length cells of a cell array, from an offset
+     *
+     * @param cells
+     * @param offset
+     * @param length
+     */
+    void add(CellArray cells, int offset, int length) {
+        final double[] values = new double[Math.max(1, Math.min(length, 4096))];
+        int n;
+        for (int i = 0; i < length; i += n) {
+            n = Math.min(values.length, length - i);
+            cells.get(offset + i, values, 0, n);
+            for (int j = 0; j < n; j++) {
+                if (values[j] != 0) {
+                    this.add(values[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the values of another histogram
+     *
+     * @param other
+     */
+    void add(Histogram other) {
+        this.combine(other, 1);
+    }
+
+    /**
+     * Takes away the values of another histogram, which must all have been
+     * added to this one (the smallest and largest values are not changed)
+     *
+     * @param other
+     */
+    void subtract(Histogram other) {
+        this.combine(other, -1);
+    }
+
+    /**
+     * Return the number of values
+     *
+     * @return
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Return the smallest value (to within one bin if values have been taken
+     * away)
+     *
+     * @return
+     */
+    public double getMin() {
+        for (int i = 0; i < BINS; i++) {
+            if (this.counts[i] > 0) {
+                return Math.max(this.min, this.origin + i * this.width);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the largest value (to within one bin if values have been taken
+     * away)
+     *
+     * @return
+     */
+    public double getMax() {
+        for (int i = BINS - 1; i >= 0; i--) {
+            if (this.counts[i] > 0) {
+                return Math.min(this.max, this.origin + (i + 1) * this.width);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the value that a fraction of the values are below, interpolating
+     * within the bin that it falls in
+     *
+     * @param fraction from 0 to 1
+     * @return
+     */
+    public double getQuantile(double fraction) {
+        final double target = Math.max(0, Math.min(1, fraction)) * this.count;
+        long below = 0;
+        for (int i = 0; i < BINS; i++) {
+            if (this.counts[i] > 0 && below + this.counts[i] >= target) {
+                final double value = this.origin
+                        + (i + (target - below) / this.counts[i]) * this.width;
+                return Math.max(this.getMin(), Math.min(this.getMax(), value));
+            }
+            below += this.counts[i];
+        }
+        return this.getMax();
+    }
+
+    /**
+     * Returns the breaks between a number of classes of the values, from the
+     * smallest value to the largest (so there is one more break than there
+     * are classes). Fewer classes are returned if the values do not fill as
+     * many bins as classes are asked for.
+     *
+     * @param method
+     * @param classes
+     * @return
+     */
+    public double[] getBreaks(Breaks method, int classes) {
+        if (classes < 1) {
+            throw new IllegalArgumentException("At least one class is needed");
+        }
+        final double lo = this.getMin();
+        final double hi = this.getMax();
+        double[] breaks = new double[classes + 1];
+        switch (method) {
+            case EQUAL:
+                for (int i = 0; i <= classes; i++) {
+                    breaks[i] = lo + (hi - lo) * i / classes;
+                }
+                break;
+            case QUANTILE:
+                for (int i = 1; i < classes; i++) {
+                    breaks[i] = this.getQuantile((double) i / classes);
+                }
+                break;
+            default:
+                breaks = this.getJenksBreaks(classes);
+        }
+        breaks[0] = lo;
+        breaks[breaks.length - 1] = hi;
+        return breaks;
+    }
+
+    /**
+     * Returns Jenks natural breaks, found with Fisher's exact method over the
+     * centres of the non-empty bins (weighted by their counts)
+     *
+     * @param classes
+     * @return
+     */
+    private double[] getJenksBreaks(int classes) {
+
+        //the non-empty bins, with running sums of their weights, values and squares
+        int m = 0;
+        final int[] bins = new int[BINS];
+        for (int i = 0; i < BINS; i++) {
+            if (this.counts[i] > 0) {
+                bins[m++] = i;
+            }
+        }
+        classes = Math.max(1, Math.min(classes, m));
+        final double[] w = new double[m + 1];
+        final double[] s = new double[m + 1];
+        final double[] s2 = new double[m + 1];
+        double x;
+        for (int i = 0; i < m; i++) {
+            x = this.origin + (bins[i] + 0.5) * this.width;
+            w[i + 1] = w[i] + this.counts[bins[i]];
+            s[i + 1] = s[i] + this.counts[bins[i]] * x;
+            s2[i + 1] = s2[i] + this.counts[bins[i]] * x * x;
+        }
+
+        //cost[c][j] is the least sum of squared deviations of the first j bins in c + 1 classes
+        final double[][] cost = new double[classes][m + 1];
+        final int[][] first = new int[classes][m + 1];
+        for (int j = 1; j <= m; j++) {
+            cost[0][j] = ssd(w, s, s2, 0, j);
+        }
+        double c;
+        for (int k = 1; k < classes; k++) {
+            for (int j = k + 1; j <= m; j++) {
+                cost[k][j] = Double.POSITIVE_INFINITY;
+                for (int i = k; i < j; i++) {
+                    c = cost[k - 1][i] + ssd(w, s, s2, i, j);
+                    if (c < cost[k][j]) {
+                        cost[k][j] = c;
+                        first[k][j] = i;
+                    }
+                }
+            }
+        }
+
+        //each break is the lower edge of the first bin of a class
+        final double[] breaks = new double[classes + 1];
+        int end = m;
+        for (int k = classes - 1; k > 0; k--) {
+            end = first[k][end];
+            breaks[k] = this.origin + bins[end] * this.width;
+        }
+        return breaks;
+    }
+
+    /**
+     * Return the sum of squared deviations from their mean of bins i
+     * (inclusive) to j (exclusive)
+     *
+     * @param w
+     * @param s
+     * @param s2
+     * @param i
+     * @param j
+     * @return
+     */
+    private static double ssd(double[] w, double[] s, double[] s2, int i, int j) {
+        final double weight = w[j] - w[i];
+        final double sum = s[j] - s[i];
+        return weight > 0 ? Math.max(0, s2[j] - s2[i] - sum * sum / weight) : 0;
+    }
+
+    /**
+     * Adds or takes away the values of another histogram
+     *
+     * @param other
+     * @param sign 1 to add, -1 to take away
+     */
+    private void combine(Histogram other, int sign) {
+        if (other.count == 0) {
+            return;
+        }
+
+        //make the bins cover the other histogram's, and be at least as coarse
+        int lo = 0;
+        int hi = BINS - 1;
+        while (other.counts[lo] == 0) {
+            lo++;
+        }
+        while (other.counts[hi] == 0) {
+            hi--;
+        }
+        this.fit(other.origin + lo * other.width, other.origin + hi * other.width, other.width);
+
+        //each bin of the other histogram falls within one of these bins
+        for (int i = lo; i <= hi; i++) {
+            if (other.counts[i] != 0) {
+                this.counts[this.getBin(other.origin + i * other.width)] += sign * other.counts[i];
+            }
+        }
+        this.count += sign * other.count;
+        if (sign > 0) {
+            this.min = Math.min(this.min, other.min);
+            this.max = Math.max(this.max, other.max);
+        }
+    }
+
+    /**
+     * Widens the bins until they cover a range of values as well as every
+     * non-empty bin, and are at least a given width
+     *
+     * @param lo
+     * @param hi
+     * @param minWidth
+     */
+    private void fit(double lo, double hi, double minWidth) {
+        if (this.width == 0) {
+            this.width = Math.max(FIRST_WIDTH, minWidth);
+            this.origin = Math.floor(lo / this.width) * this.width;
+        } else if (lo >= this.origin && hi < this.origin + BINS * this.width
+                && this.width >= minWidth) {
+            return;
+        }
+
+        //the range that must be covered
+        for (int i = 0; i < BINS; i++) {
+            if (this.counts[i] > 0) {
+                lo = Math.min(lo, this.origin + i * this.width);
+                break;
+            }
+        }
+        for (int i = BINS - 1; i >= 0; i--) {
+            if (this.counts[i] > 0) {
+                hi = Math.max(hi, this.origin + (i + 1) * this.width);
+                break;
+            }
+        }
+
+        //double the width until it fits, then move the values into the new bins
+        double width = Math.max(this.width, minWidth);
+        while (hi - Math.floor(lo / width) * width >= BINS * width) {
+            width *= 2;
+        }
+        this.rebin(Math.floor(lo / width) * width, width);
+    }
+
+    /**
+     * Moves the values into bins with a new origin and width (which must be a
+     * power of two multiple of the current width)
+     *
+     * @param origin
+     * @param width
+     */
+    private void rebin(double origin, double width) {
+        final long[] rebinned = new long[BINS];
+        for (int i = 0; i < BINS; i++) {
+            if (this.counts[i] != 0) {
+                rebinned[(int) Math.floor((this.origin + i * this.width - origin) / width)]
+                        += this.counts[i];
+            }
+        }
+        this.counts = rebinned;
+        this.origin = origin;
+        this.width = width;
+    }
+
+    /**
+     * Return the bin that a value falls in
+     *
+     * @param value
+     * @return
+     */
+    private int getBin(double value) {
+        return Math.max(0, Math.min(BINS - 1, (int) Math.floor((value - this.origin) / this.width)));
+    }
+}
@@ -0,0 +1,403 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotools.factory.Hints;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * A persistent index of the inputs in a directory, kept in a sidecar file
+ * (.fastercalculator.idx) alongside them
+ *
+ * The index holds the header of each input (its envelope, dimensions and
+ * coordinate system) along with the length and modification time of its file.
+ * When the index is opened, only the files that are new or have changed since
+ * it was written are opened to read their headers, and the index is written
+ * again if anything has changed, so repeated runs over the same directory do
+ * not open every input to plan the output. Coordinate systems are stored as
+ * WKT, once for each distinct system. An index that cannot be read is built
+ * again from the inputs, and one that cannot be written (such as in a read
+ * only directory) is only kept in memory for this run.
+ *
+ * The inputs are bucketed in a grid of cells the size of the largest input,
+ * so the inputs that intersect a region are found without testing every
+ * entry in the index.
+ *
+ * @author jonathan.huck
+ */
+public final class InputIndex {
+
+    /*
+     * name of the index file in the directory
+     */
+    public static final String FILE_NAME = ".fastercalculator.idx";
+
+    /*
+     * start of the index file ("FCIX") and its version
+     */
+    private static final int MAGIC = 0x46434958;
+    private static final int VERSION = 1;
+
+    /*
+     * object variables
+     */
+    private final File file;                                  //index file
+    private final Hints hints;                                //hints passed to each reader
+    private final List<File> files = new ArrayList<File>();   //indexed inputs
+    private final List<CoverageHeader> headers = new ArrayList<CoverageHeader>();    //header of each input
+    private final Map<Long, List<Integer>> buckets = new HashMap<Long, List<Integer>>();    //inputs in each cell
+    private double cellSize = 0;                              //width and height of each cell
+    private int changed = 0;                                  //inputs read when the index was opened
+
+    /**
+     * Constructor
+     *
+     * @param file
+     * @param hints
+     */
+    private InputIndex(File file, Hints hints) {
+        this.file = file;
+        this.hints = hints;
+    }
+
+    /**
+     * Opens the index of a directory, reading the headers of any of its input
+     * files that are not already in the index (or have changed since they
+     * were indexed) and writing the index if anything has changed
+     *
+     * @param directory
+     * @param files the input files in the directory
+     * @param hints
+     * @return
+     * @throws IOException
+     */
+    public static InputIndex open(File directory, List<File> files, Hints hints)
+            throws IOException {
+        final InputIndex index = new InputIndex(new File(directory, FILE_NAME), hints);
+
+        //find the inputs that are still in the index
+        final Metrics metrics = Metrics.getInstance();
+        long start = metrics.start();
+        final Map<String, Entry> entries = index.read();
+        final List<File> stale = new ArrayList<File>();
+        final CoverageHeader[] headers = new CoverageHeader[files.size()];
+        Entry entry;
+        for (int i = 0; i < files.size(); i++) {
+            entry = entries.get(files.get(i).getName());
+            if (entry != null && entry.length == files.get(i).length()
+                    && entry.modified == files.get(i).lastModified()) {
+                headers[i] = new CoverageHeader(files.get(i), entry.envelope, entry.width,
+                        entry.height, entry.crs);
+            } else {
+                stale.add(files.get(i));
+            }
+        }
+        metrics.end(Metrics.Stage.SCAN, start);
+
+        //read the headers of the rest
+        final List<CoverageHeader> read = new CoverageSource(stale, hints).getHeaders();
+        for (int i = 0, j = 0; i < files.size(); i++) {
+            index.files.add(files.get(i));
+            index.headers.add(headers[i] != null ? headers[i] : read.get(j++));
+        }
+        index.changed = stale.size();
+
+        //write the index if any inputs have been added, changed or removed
+        start = metrics.start();
+        if (!stale.isEmpty() || entries.size() != files.size()) {
+            try {
+                index.write();
+            } catch (IOException e) {
+                System.err.println("Unable to write the input index " + index.file + ": " + e);
+            }
+        }
+        index.buildBuckets();
+        metrics.end(Metrics.Stage.SCAN, start);
+        return index;
+    }
+
+    /**
+     * Reads the entries of the index file, keyed by file name. A missing index,
+     * or one that cannot be read, is treated as empty.
+     *
+     * @return
+     */
+    private Map<String, Entry> read() {
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (!this.file.isFile()) {
+            return entries;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(this.file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return entries;
+                }
+
+                //coordinate systems, then the inputs
+                final CoordinateReferenceSystem[] systems = new CoordinateReferenceSystem[in.readInt()];
+                for (int i = 0; i < systems.length; i++) {
+                    systems[i] = CRS.parseWKT(in.readUTF());
+                }
+                final int count = in.readInt();
+                Entry entry;
+                String name;
+                int crs;
+                for (int i = 0; i < count; i++) {
+                    entry = new Entry();
+                    name = in.readUTF();
+                    entry.length = in.readLong();
+                    entry.modified = in.readLong();
+                    crs = in.readInt();
+                    entry.crs = crs >= 0 ? systems[crs] : null;
+                    entry.envelope = new Envelope2D(entry.crs, in.readDouble(), in.readDouble(),
+                            in.readDouble(), in.readDouble());
+                    entry.width = in.readInt();
+                    entry.height = in.readInt();
+                    entries.put(name, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            entries.clear();
+        } catch (FactoryException e) {
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the index file, to a temporary file in the same directory that
+     * then replaces it (so that runs writing the index at the same time each
+     * write their own, and a run that fails leaves the old index in place)
+     *
+     * @throws IOException
+     */
+    private void write() throws IOException {
+
+        //number each distinct coordinate system (inputs whose system has no WKT
+        //are written without one, so are read again next time)
+        final Map<String, Integer> systems = new HashMap<String, Integer>();
+        final List<String> wkts = new ArrayList<String>();
+        final int[] crs = new int[this.headers.size()];
+        CoordinateReferenceSystem system;
+        String wkt;
+        for (int i = 0; i < this.headers.size(); i++) {
+            system = this.headers.get(i).getCoordinateReferenceSystem();
+            try {
+                wkt = system != null ? system.toWKT() : null;
+            } catch (UnsupportedOperationException e) {
+                wkt = null;
+            }
+            if (wkt == null) {
+                crs[i] = -1;
+                continue;
+            }
+            if (!systems.containsKey(wkt)) {
+                systems.put(wkt, wkts.size());
+                wkts.add(wkt);
+            }
+            crs[i] = systems.get(wkt);
+        }
+
+        final File temp = File.createTempFile(FILE_NAME, ".tmp", this.file.getParentFile());
+        boolean written = false;
+        try {
+            this.write(temp, wkts, crs);
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            written = true;
+        } finally {
+            if (!written) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the index to a file
+     *
+     * @param file
+     * @param wkts each distinct coordinate system
+     * @param crs position of the coordinate system of each input in wkts (-1
+     * if it has none)
+     * @throws IOException
+     */
+    private void write(File file, List<String> wkts, int[] crs) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(wkts.size());
+            for (String text : wkts) {
+                out.writeUTF(text);
+            }
+            out.writeInt(this.headers.size());
+            Envelope2D envelope;
+            for (int i = 0; i < this.headers.size(); i++) {
+                envelope = this.headers.get(i).getEnvelope();
+                out.writeUTF(this.files.get(i).getName());
+                out.writeLong(crs[i] >= 0 ? this.files.get(i).length() : -1);
+                out.writeLong(this.files.get(i).lastModified());
+                out.writeInt(crs[i]);
+                out.writeDouble(envelope.getMinX());
+                out.writeDouble(envelope.getMinY());
+                out.writeDouble(envelope.getWidth());
+                out.writeDouble(envelope.getHeight());
+                out.writeInt(this.headers.get(i).getWidth());
+                out.writeInt(this.headers.get(i).getHeight());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Puts each input into every cell of the grid that it overlaps
+     */
+    private void buildBuckets() {
+        for (CoverageHeader header : this.headers) {
+            this.cellSize = Math.max(this.cellSize, Math.max(header.getEnvelope().getWidth(),
+                    header.getEnvelope().getHeight()));
+        }
+        Envelope2D envelope;
+        Long key;
+        for (int i = 0; i < this.headers.size(); i++) {
+            envelope = this.headers.get(i).getEnvelope();
+            for (long y = this.getCell(envelope.getMinY()); y <= this.getCell(envelope.getMaxY()); y++) {
+                for (long x = this.getCell(envelope.getMinX()); x <= this.getCell(envelope.getMaxX());
+                        x++) {
+                    key = getKey(x, y);
+                    if (!this.buckets.containsKey(key)) {
+                        this.buckets.put(key, new ArrayList<Integer>());
+                    }
+                    this.buckets.get(key).add(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the column (or row) of the grid cell containing a coordinate
+     *
+     * @param coordinate
+     * @return
+     */
+    private long getCell(double coordinate) {
+        return this.cellSize > 0 ? (long) Math.floor(coordinate / this.cellSize) : 0;
+    }
+
+    /**
+     * Returns the key of a cell of the grid
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    private static Long getKey(long x, long y) {
+        return (x << 32) ^ (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns a source of every input in the index
+     *
+     * @return
+     */
+    public CoverageSource getSource() {
+        return new CoverageSource(new ArrayList<File>(this.files), this.hints,
+                new ArrayList<CoverageHeader>(this.headers));
+    }
+
+    /**
+     * Returns a source of the inputs that intersect a region, in the same
+     * order as the inputs of the index
+     *
+     * @param region
+     * @return
+     */
+    public CoverageSource select(Region region) {
+
+        //find the inputs in the cells under the region (or test every input if
+        //the region covers more cells than there are inputs)
+        final BitSet found = new BitSet(this.files.size());
+        final long minX = this.getCell(region.getMinX()), maxX = this.getCell(region.getMaxX());
+        final long minY = this.getCell(region.getMinY()), maxY = this.getCell(region.getMaxY());
+        if ((double) (maxX - minX + 1) * (maxY - minY + 1) > this.files.size()) {
+            found.set(0, this.files.size());
+        } else {
+            List<Integer> bucket;
+            for (long y = minY; y <= maxY; y++) {
+                for (long x = minX; x <= maxX; x++) {
+                    bucket = this.buckets.get(getKey(x, y));
+                    if (bucket != null) {
+                        for (int i : bucket) {
+                            found.set(i);
+                        }
+                    }
+                }
+            }
+        }
+
+        //keep those that actually intersect it
+        final List<File> files = new ArrayList<File>();
+        final List<CoverageHeader> headers = new ArrayList<CoverageHeader>();
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+            if (region.intersects(this.headers.get(i).getEnvelope())) {
+                files.add(this.files.get(i));
+                headers.add(this.headers.get(i));
+            }
+        }
+        return new CoverageSource(files, this.hints, headers);
+    }
+
+    /*
+     * accessor methods
+     */
+    /**
+     * Return the number of inputs in the index
+     *
+     * @return
+     */
+    public int size() {
+        return this.files.size();
+    }
+
+    /**
+     * Return the number of inputs whose headers were read when the index was
+     * opened, as they were new or had changed
+     *
+     * @return
+     */
+    public int getChanged() {
+        return this.changed;
+    }
+
+    /**
+     * An input as it was when it was indexed
+     */
+    private static final class Entry {
+
+        long length, modified;                //size and modification time of the file
+        Envelope2D envelope;                  //world extent
+        int width, height;                    //grid dimensions
+        CoordinateReferenceSystem crs;        //coordinate system
+    }
+}
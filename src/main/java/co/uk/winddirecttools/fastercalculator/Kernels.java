@@ -0,0 +1,765 @@
+package co.uk.winddirecttools.fastercalculator;
+
+/**
+ * Fused in-place kernels for the RasterCalculator operations
+ *
+ * Each kernel enforces the radius and applies the operation in a single pass,
+ * writing the results straight into the data array of the output so that no
+ * arrays are allocated per input. As before, cells outside of the radius are
+ * treated as having a value of 0, and each input value is combined with the
+ * existing output value as (input OPERATION output). COUNT adds 1 for each
+ * non-zero input value and MAX keeps the largest value.
+ *
+ * The radius is described by a RadiusMask, so only the span of each row that
+ * is inside the circle is read from the input. For ADD the masked corners are
+ * skipped entirely (0 + output = output), as they are for COUNT and MAX (which
+ * only consider the cells inside the circle); for the other operations they
+ * are combined with 0 without reading the input.
+ *
+ * Each block of input is traversed row by row by the same loops for every type
+ * of output, which hand each span to the CellArray of the output to apply with
+ * the kernels for its own type of array, so that values are never boxed or
+ * converted through double. Integer inputs are applied to byte, short
+ * (unsigned), int and long outputs; float inputs to float outputs. Values that
+ * do not fit in a byte or unsigned short output wrap around.
+ *
+ * Sparse inputs (see SparseRows) are applied one run of non-zero cells at a
+ * time, which is only valid for the operations where an input value of 0 has
+ * no effect (ADD and COUNT), so nothing is applied between the runs.
+ *
+ * Where the JDK Vector API is available (the VectorKernels class is compiled
+ * by the "vector" build profile, and the JVM is started with
+ * --add-modules jdk.incubator.vector) the int and float spans are applied
+ * using SIMD instructions instead, otherwise the scalar loops below are used.
+ * Setting the system property fastercalculator.vector to false forces the
+ * scalar loops.
+ *
+ * @author jonathan.huck
+ */
+final class Kernels {
+
+    /**
+     * Not to be instantiated
+     */
+    private Kernels() {
+    }
+
+    /*
+     * vector implementations of the spans (null if not available)
+     */
+    private static final SpanKernels VECTOR = loadVectorKernels();
+
+    /**
+     * Returns the vector kernels if they have been compiled and the JVM
+     * supports them, otherwise null
+     *
+     * @return
+     */
+    private static SpanKernels loadVectorKernels() {
+        if (!Boolean.parseBoolean(System.getProperty("fastercalculator.vector", "true"))) {
+            return null;
+        }
+        try {
+            return (SpanKernels) Class.forName(
+                    "co.uk.winddirecttools.fastercalculator.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the int and float spans are applied using the vector
+     * kernels
+     *
+     * @return
+     */
+    static boolean isVectorised() {
+        return VECTOR != null;
+    }
+
+    /**
+     * Returns true if the cells outside of the mask do not change the output
+     * for an operation, so can be skipped
+     *
+     * @param operation
+     * @return
+     */
+    static boolean skipsMasked(int operation) {
+        return operation == RasterCalculator.ADD || operation == RasterCalculator.COUNT
+                || operation == RasterCalculator.MAX || operation == RasterCalculator.STATISTICS;
+    }
+
+    /**
+     * Returns true if the cells outside of the mask can be skipped for every
+     * one of a number of operations
+     *
+     * @param operations
+     * @return
+     */
+    static boolean skipsMasked(int[] operations) {
+        for (int operation : operations) {
+            if (!skipsMasked(operation)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies rows firstRow (inclusive) to lastRow (exclusive) and columns
+     * firstCol (inclusive) to lastCol (exclusive) of a block of integer input
+     * values to the cells of an output, masking out any cells that are outside
+     * of the mask
+     *
+     * @param operation
+     * @param src
+     * @param mask
+     * @param firstRow
+     * @param lastRow
+     * @param firstCol
+     * @param lastCol
+     * @param dst
+     * @param dstOffset index in dst of the top left cell of the block (this
+     * may be outside of dst if the first rows or columns are not applied)
+     * @param dstStride number of cells between rows in dst
+     * @throws UnsupportedOperationException
+     */
+    static void apply(int operation, int[] src, RadiusMask mask, int firstRow, int lastRow,
+            int firstCol, int lastCol, CellArray dst, int dstOffset, int dstStride)
+            throws UnsupportedOperationException {
+
+        //apply row by row
+        final boolean outside = !skipsMasked(operation);
+        final int w = mask.getWidth();
+        int start, end, s, d;
+        for (int row = firstRow; row < lastRow; row++) {
+            start = Math.max(mask.getStart(row), firstCol);
+            end = Math.min(mask.getEnd(row), lastCol);
+            s = row * w;
+            d = dstOffset + row * dstStride;
+
+            if (start < end) {
+
+                //cells inside the circle
+                dst.applySpan(operation, src, s + start, d + start, end - start);
+
+                //cells outside the circle (skipped where they have no effect)
+                if (outside) {
+                    dst.applyZero(operation, d + firstCol, start - firstCol);
+                    dst.applyZero(operation, d + end, lastCol - end);
+                }
+            } else if (outside) {
+
+                //no cells inside the circle
+                dst.applyZero(operation, d + firstCol, lastCol - firstCol);
+            }
+        }
+    }
+
+    /**
+     * Applies rows firstRow (inclusive) to lastRow (exclusive) and columns
+     * firstCol (inclusive) to lastCol (exclusive) of the non-zero runs of a
+     * sparse block of integer input values to the cells of an output (ADD and
+     * COUNT only, see SparseRows)
+     *
+     * @param operation
+     * @param src
+     * @param rows
+     * @param firstRow
+     * @param lastRow
+     * @param firstCol
+     * @param lastCol
+     * @param dst
+     * @param dstOffset index in dst of the top left cell of the block
+     * @param dstStride number of cells between rows in dst
+     * @throws UnsupportedOperationException
+     */
+    static void apply(int operation, int[] src, SparseRows rows, int firstRow, int lastRow,
+            int firstCol, int lastCol, CellArray dst, int dstOffset, int dstStride)
+            throws UnsupportedOperationException {
+
+        //apply the runs of each row within the bounding box
+        final int w = rows.getWidth();
+        final int top = Math.max(firstRow, rows.getTop());
+        final int bottom = Math.min(lastRow, rows.getBottom());
+        int start, end, s, d;
+        for (int row = top; row < bottom; row++) {
+            s = row * w;
+            d = dstOffset + row * dstStride;
+            for (int run = rows.getFirstRun(row); run < rows.getFirstRun(row + 1); run++) {
+                start = Math.max(rows.getRunStart(run), firstCol);
+                end = Math.min(rows.getRunEnd(run), lastCol);
+                if (start < end) {
+                    dst.applySpan(operation, src, s + start, d + start, end - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies rows firstRow (inclusive) to lastRow (exclusive) and columns
+     * firstCol (inclusive) to lastCol (exclusive) of a block of floating point input
+     * values to the cells of an output, masking out any cells that are outside
+     * of the mask
+     *
+     * @param operation
+     * @param src
+     * @param mask
+     * @param firstRow
+     * @param lastRow
+     * @param firstCol
+     * @param lastCol
+     * @param dst
+     * @param dstOffset index in dst of the top left cell of the block (this
+     * may be outside of dst if the first rows or columns are not applied)
+     * @param dstStride number of cells between rows in dst
+     * @throws UnsupportedOperationException
+     */
+    static void apply(int operation, float[] src, RadiusMask mask, int firstRow, int lastRow,
+            int firstCol, int lastCol, CellArray dst, int dstOffset, int dstStride)
+            throws UnsupportedOperationException {
+
+        //apply row by row
+        final boolean outside = !skipsMasked(operation);
+        final int w = mask.getWidth();
+        int start, end, s, d;
+        for (int row = firstRow; row < lastRow; row++) {
+            start = Math.max(mask.getStart(row), firstCol);
+            end = Math.min(mask.getEnd(row), lastCol);
+            s = row * w;
+            d = dstOffset + row * dstStride;
+
+            if (start < end) {
+
+                //cells inside the circle
+                dst.applySpan(operation, src, s + start, d + start, end - start);
+
+                //cells outside the circle (skipped where they have no effect)
+                if (outside) {
+                    dst.applyZero(operation, d + firstCol, start - firstCol);
+                    dst.applyZero(operation, d + end, lastCol - end);
+                }
+            } else if (outside) {
+
+                //no cells inside the circle
+                dst.applyZero(operation, d + firstCol, lastCol - firstCol);
+            }
+        }
+    }
+
+    /**
+     * Applies rows firstRow (inclusive) to lastRow (exclusive) and columns
+     * firstCol (inclusive) to lastCol (exclusive) of the non-zero runs of a
+     * sparse block of floating point input values to the cells of an output (ADD and
+     * COUNT only, see SparseRows)
+     *
+     * @param operation
+     * @param src
+     * @param rows
+     * @param firstRow
+     * @param lastRow
+     * @param firstCol
+     * @param lastCol
+     * @param dst
+     * @param dstOffset index in dst of the top left cell of the block
+     * @param dstStride number of cells between rows in dst
+     * @throws UnsupportedOperationException
+     */
+    static void apply(int operation, float[] src, SparseRows rows, int firstRow, int lastRow,
+            int firstCol, int lastCol, CellArray dst, int dstOffset, int dstStride)
+            throws UnsupportedOperationException {
+
+        //apply the runs of each row within the bounding box
+        final int w = rows.getWidth();
+        final int top = Math.max(firstRow, rows.getTop());
+        final int bottom = Math.min(lastRow, rows.getBottom());
+        int start, end, s, d;
+        for (int row = top; row < bottom; row++) {
+            s = row * w;
+            d = dstOffset + row * dstStride;
+            for (int run = rows.getFirstRun(row); run < rows.getFirstRun(row + 1); run++) {
+                start = Math.max(rows.getRunStart(run), firstCol);
+                end = Math.min(rows.getRunEnd(run), lastCol);
+                if (start < end) {
+                    dst.applySpan(operation, src, s + start, d + start, end - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a run of input values to a run of unsigned byte output values
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applySpan(int operation, int[] src, int s, byte[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (byte) (src[s + i] + (dst[d + i] & 0xff));
+                }
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (byte) (src[s + i] - (dst[d + i] & 0xff));
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (byte) (src[s + i] * (dst[d + i] & 0xff));
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (byte) (src[s + i] / (dst[d + i] & 0xff));
+                }
+                break;
+            case RasterCalculator.COUNT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (byte) ((dst[d + i] & 0xff) + (src[s + i] != 0 ? 1 : 0));
+                }
+                break;
+            case RasterCalculator.MAX:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (byte) (Math.max(src[s + i], (dst[d + i] & 0xff)));
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies an input value of 0 to a run of unsigned byte output values
+     *
+     * @param operation
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applyZero(int operation, byte[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+            case RasterCalculator.COUNT:
+            case RasterCalculator.MAX:
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (byte) (-(dst[d + i] & 0xff));
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = 0;
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (byte) (0 / (dst[d + i] & 0xff));
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies a run of input values to a run of unsigned short output values
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applySpan(int operation, int[] src, int s, short[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (short) (src[s + i] + (dst[d + i] & 0xffff));
+                }
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (short) (src[s + i] - (dst[d + i] & 0xffff));
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (short) (src[s + i] * (dst[d + i] & 0xffff));
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (short) (src[s + i] / (dst[d + i] & 0xffff));
+                }
+                break;
+            case RasterCalculator.COUNT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (short) ((dst[d + i] & 0xffff) + (src[s + i] != 0 ? 1 : 0));
+                }
+                break;
+            case RasterCalculator.MAX:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (short) (Math.max(src[s + i], (dst[d + i] & 0xffff)));
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies an input value of 0 to a run of unsigned short output values
+     *
+     * @param operation
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applyZero(int operation, short[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+            case RasterCalculator.COUNT:
+            case RasterCalculator.MAX:
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (short) (-(dst[d + i] & 0xffff));
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = 0;
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = (short) (0 / (dst[d + i] & 0xffff));
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies a run of input values to a run of int output values
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applySpan(int operation, int[] src, int s, int[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        if (VECTOR == null || !VECTOR.apply(operation, src, s, dst, d, length)) {
+            applySpanScalar(operation, src, s, dst, d, length);
+        }
+    }
+
+    /**
+     * Applies a run of input values to a run of int output values using
+     * scalar loops
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applySpanScalar(int operation, int[] src, int s, int[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] + dst[d + i];
+                }
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] - dst[d + i];
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] * dst[d + i];
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] / dst[d + i];
+                }
+                break;
+            case RasterCalculator.COUNT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = dst[d + i] + (src[s + i] != 0 ? 1 : 0);
+                }
+                break;
+            case RasterCalculator.MAX:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = Math.max(src[s + i], dst[d + i]);
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies an input value of 0 to a run of int output values
+     *
+     * @param operation
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applyZero(int operation, int[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+            case RasterCalculator.COUNT:
+            case RasterCalculator.MAX:
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = -dst[d + i];
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = 0;
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = 0 / dst[d + i];
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies a run of input values to a run of long output values
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applySpan(int operation, int[] src, int s, long[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] + dst[d + i];
+                }
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] - dst[d + i];
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] * dst[d + i];
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] / dst[d + i];
+                }
+                break;
+            case RasterCalculator.COUNT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = dst[d + i] + (src[s + i] != 0 ? 1 : 0);
+                }
+                break;
+            case RasterCalculator.MAX:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = Math.max(src[s + i], dst[d + i]);
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies an input value of 0 to a run of long output values
+     *
+     * @param operation
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applyZero(int operation, long[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+            case RasterCalculator.COUNT:
+            case RasterCalculator.MAX:
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = -dst[d + i];
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = 0L;
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = 0L / dst[d + i];
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies a run of input values to a run of float output values
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applySpan(int operation, float[] src, int s, float[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        if (VECTOR == null || !VECTOR.apply(operation, src, s, dst, d, length)) {
+            applySpanScalar(operation, src, s, dst, d, length);
+        }
+    }
+
+    /**
+     * Applies a run of input values to a run of float output values using
+     * scalar loops
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applySpanScalar(int operation, float[] src, int s, float[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] + dst[d + i];
+                }
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] - dst[d + i];
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] * dst[d + i];
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = src[s + i] / dst[d + i];
+                }
+                break;
+            case RasterCalculator.COUNT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = dst[d + i] + (src[s + i] != 0 ? 1f : 0);
+                }
+                break;
+            case RasterCalculator.MAX:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = Math.max(src[s + i], dst[d + i]);
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+
+    /**
+     * Applies an input value of 0 to a run of float output values
+     *
+     * @param operation
+     * @param dst
+     * @param d
+     * @param length
+     * @throws UnsupportedOperationException
+     */
+    static void applyZero(int operation, float[] dst, int d, int length)
+            throws UnsupportedOperationException {
+        switch (operation) {
+            case RasterCalculator.ADD:
+            case RasterCalculator.COUNT:
+            case RasterCalculator.MAX:
+                break;
+            case RasterCalculator.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = -dst[d + i];
+                }
+                break;
+            case RasterCalculator.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = 0f;
+                }
+                break;
+            case RasterCalculator.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    dst[d + i] = 0f / dst[d + i];
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        "RasterCalculator does not currently support that operation");
+        }
+    }
+}
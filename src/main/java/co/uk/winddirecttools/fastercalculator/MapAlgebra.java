@@ -0,0 +1,168 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.InvalidGridGeometryException;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.NoSuchAuthorityCodeException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Evaluates map algebra expressions over one or more named sets of inputs
+ *
+ * The expression (see Expression for the language) is parsed once, then each
+ * source is read in a single pass that builds every reduction of that source
+ * at the same time (e.g. sum(a) and count(a) from one decode of each input of
+ * a). The expression is then evaluated one row at a time straight into the
+ * output, so the steps of the expression do not need full size intermediate
+ * grids of their own, as they would when chaining several calls to
+ * RasterCalculator.process().
+ *
+ * The output is accumulated as FLOAT. The output and the grid of each
+ * reduction are all held at once, so they share the memory budget of the
+ * calculator equally (each is tiled on disk if its share is too small).
+ *
+ * @author jonathan.huck
+ */
+public class MapAlgebra {
+
+    /*
+     * object variables
+     */
+    private final RasterCalculator calculator;    //calculator used to read the inputs
+
+    /**
+     * Constructor for map algebra using a default RasterCalculator
+     */
+    public MapAlgebra() {
+        this(new RasterCalculator());
+    }
+
+    /**
+     * Constructor for map algebra using the threads and memory budget of a
+     * RasterCalculator
+     *
+     * @param calculator
+     */
+    public MapAlgebra(RasterCalculator calculator) {
+        this.calculator = calculator;
+    }
+
+    /**
+     * Returns the result of an expression over the named sources, without
+     * clipping them to the overlap region
+     *
+     * @param expression e.g. "sum(a) * 2 - b"
+     * @param sources
+     * @param radius
+     * @return
+     * @throws IOException
+     * @throws NoSuchAuthorityCodeException
+     * @throws FactoryException
+     * @throws InvalidGridGeometryException
+     * @throws TransformException
+     * @throws IllegalArgumentException if the expression is not valid or
+     * refers to a source that does not exist
+     */
+    public GridCoverage2D evaluate(String expression, Map<String, CoverageSource> sources, int radius)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException,
+            InvalidGridGeometryException, TransformException {
+
+        //parse the expression, then group its reductions by source
+        final Expression compiled = Expression.parse(expression);
+        final List<Expression.Reduction> reductions = compiled.getReductions();
+        final Map<String, List<Integer>> bySource = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < reductions.size(); i++) {
+            final String name = reductions.get(i).getSource();
+            if (!sources.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown source '" + name
+                        + "' in expression \"" + expression + "\"");
+            }
+            if (!bySource.containsKey(name)) {
+                bySource.put(name, new ArrayList<Integer>());
+            }
+            bySource.get(name).add(i);
+        }
+        if (bySource.isEmpty()) {
+            throw new IllegalArgumentException("Expression \"" + expression
+                    + "\" does not refer to any sources");
+        }
+
+        //only use the inputs of each source that intersect the region of interest
+        final Region region = this.calculator.getRegion();
+        final Map<String, CoverageSource> selected = new LinkedHashMap<String, CoverageSource>();
+        for (String name : bySource.keySet()) {
+            selected.put(name, region != null ? sources.get(name).select(region)
+                    : sources.get(name));
+        }
+
+        //plan the output grid from the headers of every source that is used
+        final List<CoverageHeader> headers = new ArrayList<CoverageHeader>();
+        for (CoverageSource source : selected.values()) {
+            headers.addAll(source.getHeaders());
+        }
+        if (headers.isEmpty()) {
+            throw new IllegalArgumentException("No inputs intersect the region " + region);
+        }
+        final CoordinateReferenceSystem crs = headers.get(0).getCoordinateReferenceSystem();
+        final int resolution = headers.get(0).getResolution();
+        final Envelope2D envelope = this.calculator.getOutputEnvelope(headers, resolution, crs);
+        final long budget = this.calculator.getMemoryBudget() / (reductions.size() + 1);
+        final Accumulator output = this.calculator.getAccumulator(envelope, resolution,
+                AccumulatorType.FLOAT, budget);
+        final GridGeometry2D rasterGrid = new GridGeometry2D(new GridEnvelope2D(0, 0,
+                output.getWidth(), output.getHeight()), envelope);
+
+        //build every reduction of each source in one pass over its inputs
+        double cellRadius = radius / resolution;
+        final Accumulator[] values = new Accumulator[reductions.size()];
+        for (Map.Entry<String, List<Integer>> entry : bySource.entrySet()) {
+            final CoverageSource source = selected.get(entry.getKey());
+            final List<Integer> indices = entry.getValue();
+            final Accumulator[] accumulators = new Accumulator[indices.size()];
+            final int[] operations = new int[indices.size()];
+            final int dataType = source.size() > 0 ? source.getDataType() : DataBuffer.TYPE_BYTE;
+            for (int i = 0; i < indices.size(); i++) {
+                operations[i] = reductions.get(indices.get(i)).getOperation();
+                accumulators[i] = this.calculator.getAccumulator(envelope, resolution,
+                        AccumulatorType.choose(dataType, source.size(), operations[i]), budget);
+                values[indices.get(i)] = accumulators[i];
+            }
+            this.calculator.applyRasterValues(source, accumulators, rasterGrid, cellRadius,
+                    operations);
+        }
+
+        //evaluate the expression one row at a time
+        final long start = Metrics.getInstance().start();
+        final int width = output.getWidth();
+        final double[][] inputs = new double[values.length][width];
+        final double[][] buffers = compiled.createBuffers(width);
+        for (int y = 0; y < output.getHeight(); y++) {
+            for (int i = 0; i < values.length; i++) {
+                values[i].readRow(y, inputs[i]);
+            }
+            output.writeRow(y, compiled.evaluate(inputs, buffers, width));
+        }
+        Metrics.getInstance().end(Metrics.Stage.EVALUATE, start);
+        this.calculator.clip(output, envelope, resolution);
+
+        //the reductions are no longer needed
+        for (Accumulator value : values) {
+            value.close();
+        }
+
+        //convert to grid coverage and return
+        this.calculator.setOutput(output);
+        return output.toCoverage(new GridCoverageFactory(), "output", envelope);
+    }
+}
@@ -0,0 +1,370 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters for each stage of a run, shared by every part of the
+ * calculator (and every thread)
+ *
+ * Each stage records the total time spent in it and the number of times it
+ * was entered. Decoding and accumulating also record the latency of each input
+ * file in a histogram, along with the number of bytes read and cells
+ * processed. Stage times are summed over all threads, so with more than one
+ * thread they can add up to more than the wall time.
+ *
+ * The results can be written to a JSON report, and each stage is also
+ * published as a JFR event (co.uk.winddirecttools.fastercalculator.Stage) when
+ * running on a JVM with Flight Recorder. The event (StageEvent) is compiled by
+ * the "jfr" build profile, as it needs JDK 11 or later, so is loaded by
+ * reflection.
+ *
+ * @author jonathan.huck
+ */
+public class Metrics {
+
+    /**
+     * The stages of a run
+     */
+    public enum Stage {
+
+        SCAN,          //listing (and indexing) the input directory
+        DETECT,        //finding the format of a file and opening a reader
+        DECODE,        //reading and decoding the values of a file
+        MASK,          //building radius masks
+        ACCUMULATE,    //applying the values of a file to the output
+        CLIP,          //clearing the output outside of a region
+        EVALUATE,      //evaluating map algebra expressions
+        STYLE,         //styling the output
+        WRITE          //writing the output
+    }
+
+    /*
+     * the metrics for this process
+     */
+    private static final Metrics INSTANCE = new Metrics();
+
+    /*
+     * publishes JFR events (null if not available)
+     */
+    private static final StageRecorder JFR = loadJfrRecorder();
+
+    /*
+     * object variables
+     */
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray stageCounts = new AtomicLongArray(Stage.values().length);
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LatencyHistogram accumulateLatency = new LatencyHistogram();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong cellsProcessed = new AtomicLong();
+    private volatile long started = System.nanoTime();
+
+    /**
+     * Return the metrics for this process
+     *
+     * @return
+     */
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Clears all of the metrics, including the peak heap usage
+     */
+    public void reset() {
+        for (int i = 0; i < this.stageNanos.length(); i++) {
+            this.stageNanos.set(i, 0);
+            this.stageCounts.set(i, 0);
+        }
+        this.decodeLatency.reset();
+        this.accumulateLatency.reset();
+        this.bytesRead.set(0);
+        this.cellsProcessed.set(0);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        this.started = System.nanoTime();
+    }
+
+    /**
+     * Return the time at which a stage starts, to be passed to end()
+     *
+     * @return
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time spent in a stage since start
+     *
+     * @param stage
+     * @param start
+     */
+    public void end(Stage stage, long start) {
+        this.end(stage, start, null, 0);
+    }
+
+    /**
+     * Records the time spent in a stage since start for one input file, the
+     * latency of DECODE and ACCUMULATE is also added to their histograms
+     *
+     * @param stage
+     * @param start
+     * @param file may be null
+     * @param cells number of cells decoded or accumulated
+     */
+    public void end(Stage stage, long start, File file, long cells) {
+        final long elapsed = System.nanoTime() - start;
+        this.stageNanos.addAndGet(stage.ordinal(), elapsed);
+        this.stageCounts.incrementAndGet(stage.ordinal());
+        if (stage == Stage.DECODE) {
+            this.decodeLatency.add(elapsed);
+        } else if (stage == Stage.ACCUMULATE) {
+            this.accumulateLatency.add(elapsed);
+            this.cellsProcessed.addAndGet(cells);
+        }
+        if (JFR != null) {
+            JFR.record(stage.name(), file == null ? null : file.getPath(), elapsed, cells);
+        }
+    }
+
+    /**
+     * Records the number of bytes read from an input file
+     *
+     * @param bytes
+     */
+    public void addBytesRead(long bytes) {
+        this.bytesRead.addAndGet(bytes);
+    }
+
+    /**
+     * Return the total time spent in a stage (in nanoseconds)
+     *
+     * @param stage
+     * @return
+     */
+    public long getNanos(Stage stage) {
+        return this.stageNanos.get(stage.ordinal());
+    }
+
+    /**
+     * Return the number of times a stage has been entered
+     *
+     * @param stage
+     * @return
+     */
+    public long getCount(Stage stage) {
+        return this.stageCounts.get(stage.ordinal());
+    }
+
+    /**
+     * Return the number of bytes read from input files
+     *
+     * @return
+     */
+    public long getBytesRead() {
+        return this.bytesRead.get();
+    }
+
+    /**
+     * Return the number of input cells applied to the output
+     *
+     * @return
+     */
+    public long getCellsProcessed() {
+        return this.cellsProcessed.get();
+    }
+
+    /**
+     * Return the peak heap usage since the last reset (the sum of the peaks
+     * of each heap memory pool)
+     *
+     * @return
+     */
+    public long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Returns a short summary of the time spent in each stage
+     *
+     * @return
+     */
+    public String getSummary() {
+        final StringBuilder summary = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            if (this.getCount(stage) > 0) {
+                summary.append(String.format(Locale.ROOT, "%-12s%10.2f s%10d%n",
+                        stage.name().toLowerCase(Locale.ROOT), this.getNanos(stage) / 1e9,
+                        this.getCount(stage)));
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Writes all of the metrics to a JSON file
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException {
+        final Writer writer = new FileWriter(file);
+        try {
+            writer.write(this.toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns all of the metrics as JSON
+     *
+     * @return
+     */
+    public String toJson() {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append(String.format(Locale.ROOT, "  \"wallSeconds\": %.3f,%n",
+                (System.nanoTime() - this.started) / 1e9));
+        json.append("  \"filesDecoded\": ").append(this.getCount(Stage.DECODE)).append(",\n");
+        json.append("  \"bytesRead\": ").append(this.getBytesRead()).append(",\n");
+        json.append("  \"cellsProcessed\": ").append(this.getCellsProcessed()).append(",\n");
+        json.append("  \"peakHeapBytes\": ").append(this.getPeakHeap()).append(",\n");
+        json.append("  \"stages\": {\n");
+        final Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            json.append(String.format(Locale.ROOT, "    \"%s\": {\"seconds\": %.3f, \"count\": %d}%s%n",
+                    stages[i].name().toLowerCase(Locale.ROOT), this.getNanos(stages[i]) / 1e9,
+                    this.getCount(stages[i]), i < stages.length - 1 ? "," : ""));
+        }
+        json.append("  },\n");
+        json.append("  \"latency\": {\n");
+        json.append("    \"decode\": ").append(this.decodeLatency.toJson()).append(",\n");
+        json.append("    \"accumulate\": ").append(this.accumulateLatency.toJson()).append("\n");
+        json.append("  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Returns the JFR event publisher if it has been compiled and this JVM has
+     * Flight Recorder events, otherwise null
+     *
+     * @return
+     */
+    private static StageRecorder loadJfrRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (StageRecorder) Class.forName(
+                    "co.uk.winddirecttools.fastercalculator.JfrStageRecorder")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * A histogram of latencies, with one bucket for each power of 2
+     * nanoseconds
+     */
+    private static final class LatencyHistogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Adds a latency to the histogram
+         *
+         * @param nanos
+         */
+        void add(long nanos) {
+            nanos = Math.max(1, nanos);
+            this.buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+            this.count.incrementAndGet();
+            this.total.addAndGet(nanos);
+            long current = this.max.get();
+            while (nanos > current && !this.max.compareAndSet(current, nanos)) {
+                current = this.max.get();
+            }
+        }
+
+        /**
+         * Clears the histogram
+         */
+        void reset() {
+            for (int i = 0; i < this.buckets.length(); i++) {
+                this.buckets.set(i, 0);
+            }
+            this.count.set(0);
+            this.total.set(0);
+            this.max.set(0);
+        }
+
+        /**
+         * Return the upper bound of the bucket holding a percentile (in
+         * nanoseconds)
+         *
+         * @param percentile
+         * @return
+         */
+        long getPercentile(double percentile) {
+            final long target = (long) Math.ceil(this.count.get() * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < this.buckets.length(); i++) {
+                seen += this.buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(this.max.get(), (2L << i) - 1);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the histogram as JSON (in milliseconds, apart from the
+         * bucket bounds)
+         *
+         * @return
+         */
+        String toJson() {
+            final long n = this.count.get();
+            final StringBuilder json = new StringBuilder();
+            json.append(String.format(Locale.ROOT,
+                    "{\"count\": %d, \"meanMillis\": %.3f, \"p50Millis\": %.3f, \"p90Millis\": %.3f,"
+                    + " \"p99Millis\": %.3f, \"maxMillis\": %.3f, \"bucketsNanos\": [",
+                    n, n == 0 ? 0 : this.total.get() / 1e6 / n, this.getPercentile(50) / 1e6,
+                    this.getPercentile(90) / 1e6, this.getPercentile(99) / 1e6, this.max.get() / 1e6));
+
+            //non-empty buckets as [upper bound (ns), count]
+            boolean first = true;
+            for (int i = 0; i < this.buckets.length(); i++) {
+                if (this.buckets.get(i) > 0) {
+                    json.append(String.format(Locale.ROOT, "%s[%d, %d]", first ? "" : ", ",
+                            (2L << i) - 1, this.buckets.get(i)));
+                    first = false;
+                }
+            }
+            return json.append("]}").toString();
+        }
+    }
+}
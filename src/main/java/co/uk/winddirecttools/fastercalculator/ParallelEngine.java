@@ -0,0 +1,735 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Applies the inputs of a CoverageSource to accumulators using a pipeline of
+ * reader and worker threads
+ *
+ * Reading an input is mostly spent waiting on the disk, so the inputs are read
+ * and decoded by a separate (and larger) pool of reader threads, each decoding
+ * one input at a time into a re-usable buffer. Where the JVM has virtual
+ * threads (Java 21 and later) these are used for the readers, unless
+ * -Dfastercalculator.virtual=false is set.
+ *
+ * For commutative operations (ADD, MULTIPLY, COUNT, MAX) the readers pass each
+ * decoded input through a bounded queue to the worker threads, which apply
+ * them straight to the output in any order, locking one horizontal stripe of
+ * the output at a time so that workers only wait for each other where their
+ * inputs overlap. Readers wait whenever the queue is full, so at most one
+ * input per reader, per worker and per queue slot is held in memory at once.
+ * For other operations (SUBTRACT, DIVIDE) the inputs are still decoded in
+ * parallel, but are applied one at a time in their original order so that the
+ * result is the same as for a single thread. Inputs that finish decoding early
+ * are held until every input before them has been applied, so up to one input
+ * per reader and per queue slot is held in memory at once.
+ *
+ * The queue holds two inputs per worker thread and, by default, there is one
+ * reader per queue slot, so with the default number of readers at most five
+ * decoded inputs per worker thread are held in memory for commutative
+ * operations, and four for the others.
+ *
+ * Where every operation ignores input values of 0 (ADD, COUNT) the readers
+ * also convert each input to its non-zero runs (see SparseRows), so that the
+ * workers only touch the output cells and stripes that an input changes.
+ *
+ * ESRI ASCII grids are decoded by AsciiGrid straight into the input buffers,
+ * other inputs are read with GeoTools and copied out of their images. Only
+ * the bounding box of the radius mask of each input is read (GeoTools readers
+ * are passed it as READ_GRIDGEOMETRY2D), as no other values are used. For
+ * operations where the cells outside of the radius still change the output
+ * (SUBTRACT, MULTIPLY, DIVIDE), the rest of each input on the output is then
+ * applied as 0, in the same stripes and order as its values.
+ *
+ * Each input can be applied to several accumulators (each with its own
+ * operation) as it is decoded, so that a number of results can be built from
+ * one pass over the inputs. The accumulators must all have the same dimensions
+ * and be either all integer or all floating point.
+ *
+ * @author jonathan.huck
+ */
+class ParallelEngine {
+
+    /*
+     * number of raster rows covered by each lock
+     */
+    private static final int STRIPE_HEIGHT = 64;
+
+    /*
+     * creates virtual threads for the readers, or null if not available
+     */
+    private static final ThreadFactory VIRTUAL_THREADS = loadVirtualThreadFactory();
+
+    /*
+     * marks the end of the inputs in the queue
+     */
+    private static final DecodedInput END = new DecodedInput(null, 0, 0, 0, 0, null, null, null,
+            null, null);
+
+    /*
+     * object variables
+     */
+    private final RasterCalculator calculator;    //calculator doing the work
+    private final int threads;                    //number of worker threads
+    private final int readers;                    //number of reader threads
+    private final int queueDepth;                 //decoded inputs waiting for a worker
+    private final Queue<int[]> ints = new ConcurrentLinkedQueue<int[]>();        //re-usable input buffers
+    private final Queue<float[]> floats = new ConcurrentLinkedQueue<float[]>();  //(floating point inputs)
+    private final Queue<SparseRows> sparseRows = new ConcurrentLinkedQueue<SparseRows>();  //(and their runs)
+
+    /**
+     * Constructor
+     *
+     * @param calculator
+     * @param threads
+     * @param readers number of reader threads, or 0 for one per queue slot (two
+     * per worker thread)
+     */
+    ParallelEngine(RasterCalculator calculator, int threads, int readers) {
+        this.calculator = calculator;
+        this.threads = Math.max(1, threads);
+        this.queueDepth = this.threads * 2;
+        this.readers = readers > 0 ? readers : this.queueDepth;
+    }
+
+    /**
+     * Returns true if the readers run on virtual threads
+     *
+     * @return
+     */
+    static boolean isVirtual() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * Applies each input in the source to the accumulators, using the
+     * operation of the same index for each accumulator
+     *
+     * @param source
+     * @param accumulators
+     * @param rasterGrid
+     * @param cellRadius
+     * @param operations
+     * @throws IOException
+     * @throws TransformException
+     */
+    void applyRasterValues(CoverageSource source, Accumulator[] accumulators,
+            GridGeometry2D rasterGrid, double cellRadius, int[] operations)
+            throws IOException, TransformException {
+
+        //inputs can only be applied out of order if every operation allows it
+        boolean commutative = true;
+        for (int operation : operations) {
+            commutative &= RasterCalculator.isCommutative(operation);
+        }
+
+        final ExecutorService readerPool = VIRTUAL_THREADS != null
+                ? Executors.newFixedThreadPool(this.readers, VIRTUAL_THREADS)
+                : Executors.newFixedThreadPool(this.readers);
+        final ExecutorService workerPool = Executors.newFixedThreadPool(this.threads);
+        try {
+            if (commutative) {
+                this.applyUnordered(readerPool, workerPool, source, accumulators, rasterGrid,
+                        cellRadius, operations);
+            } else {
+                this.applyOrdered(readerPool, source, accumulators, rasterGrid, cellRadius,
+                        operations);
+            }
+        } finally {
+            readerPool.shutdownNow();
+            workerPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Decodes and applies each input in the source in order on this thread,
+     * for a calculator with a single thread and reader
+     *
+     * @param source
+     * @param accumulators
+     * @param rasterGrid
+     * @param cellRadius
+     * @param operations
+     * @throws IOException
+     * @throws TransformException
+     */
+    void applyInOrder(CoverageSource source, Accumulator[] accumulators,
+            GridGeometry2D rasterGrid, double cellRadius, int[] operations)
+            throws IOException, TransformException {
+        final boolean sparse = SparseRows.supports(operations);
+        final boolean outside = !Kernels.skipsMasked(operations);
+        DecodedInput input;
+        for (int index = 0; index < source.size(); index++) {
+            input = this.decode(source, index, rasterGrid,
+                    accumulators[0].getType().isFloatingPoint(), cellRadius, sparse, outside);
+            if (input == null) {
+                continue;
+            }
+            try {
+                final long start = Metrics.getInstance().start();
+                input.apply(accumulators, operations, 0, accumulators[0].getHeight());
+                Metrics.getInstance().end(Metrics.Stage.ACCUMULATE, start, input.file,
+                        (long) input.w * input.h);
+            } finally {
+                this.recycle(input);
+            }
+        }
+    }
+
+    /**
+     * Decodes every input on the reader threads and passes them through a
+     * bounded queue to the worker threads, which apply them in any order
+     *
+     * @param readerPool
+     * @param workerPool
+     * @param source
+     * @param accumulators
+     * @param rasterGrid
+     * @param cellRadius
+     * @param operations
+     * @throws IOException
+     * @throws TransformException
+     */
+    private void applyUnordered(ExecutorService readerPool, ExecutorService workerPool,
+            final CoverageSource source, final Accumulator[] accumulators,
+            final GridGeometry2D rasterGrid, final double cellRadius, final int[] operations)
+            throws IOException, TransformException {
+
+        //one lock per stripe of the output
+        final ReentrantLock[] stripes = new ReentrantLock[
+                (accumulators[0].getHeight() + STRIPE_HEIGHT - 1) / STRIPE_HEIGHT];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+
+        //readers take the next input from the source until there are none left
+        final BlockingQueue<DecodedInput> queue = new ArrayBlockingQueue<DecodedInput>(this.queueDepth);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger(this.readers);
+        final boolean sparse = SparseRows.supports(operations);
+        final boolean outside = !Kernels.skipsMasked(operations);
+        final BlockingQueue<Future<Boolean>> completed = new LinkedBlockingQueue<Future<Boolean>>();
+        final CompletionService<Boolean> readerTasks =
+                new ExecutorCompletionService<Boolean>(readerPool, completed);
+        final CompletionService<Boolean> workerTasks =
+                new ExecutorCompletionService<Boolean>(workerPool, completed);
+        for (int i = 0; i < this.readers; i++) {
+            readerTasks.submit(new Callable<Boolean>() {
+
+                public Boolean call() throws IOException, TransformException, InterruptedException {
+                    int index;
+                    DecodedInput input;
+                    while ((index = next.getAndIncrement()) < source.size()) {
+                        input = decode(source, index, rasterGrid,
+                                accumulators[0].getType().isFloatingPoint(), cellRadius, sparse,
+                                outside);
+                        if (input != null) {
+                            queue.put(input);
+                        }
+                    }
+
+                    //the last reader to finish tells each worker that the inputs have
+                    //ended (a reader that fails is not counted, as its failure stops the
+                    //workers instead, and once interrupted it could wait on a full queue
+                    //forever)
+                    if (running.decrementAndGet() == 0) {
+                        for (int j = 0; j < threads; j++) {
+                            queue.put(END);
+                        }
+                    }
+                    return Boolean.FALSE;
+                }
+            });
+        }
+
+        //workers apply inputs from the queue until they reach the end
+        for (int i = 0; i < this.threads; i++) {
+            workerTasks.submit(new Callable<Boolean>() {
+
+                public Boolean call() throws IOException, InterruptedException {
+                    DecodedInput input;
+                    while ((input = queue.take()) != END) {
+                        try {
+                            applyStriped(stripes, accumulators, input, operations);
+                        } finally {
+                            recycle(input);
+                        }
+                    }
+                    return Boolean.TRUE;
+                }
+            });
+        }
+
+        //wait for the workers (true) to finish, stopping at the first failure of
+        //any reader or worker
+        int finished = 0;
+        while (finished < this.threads) {
+            if (await(take(completed))) {
+                finished++;
+            }
+        }
+    }
+
+    /**
+     * Decodes the inputs on the reader threads, but applies them on this
+     * thread in the order in which they appear in the source
+     *
+     * @param readerPool
+     * @param source
+     * @param accumulators
+     * @param rasterGrid
+     * @param cellRadius
+     * @param operations
+     * @throws IOException
+     * @throws TransformException
+     */
+    private void applyOrdered(ExecutorService readerPool, final CoverageSource source,
+            final Accumulator[] accumulators, final GridGeometry2D rasterGrid,
+            final double cellRadius, int[] operations)
+            throws IOException, TransformException {
+
+        //keep a limited number of inputs in flight to cap memory use (one per reader
+        //and per queue slot)
+        final int window = this.readers + this.queueDepth;
+        final boolean sparse = SparseRows.supports(operations);
+        final boolean outside = !Kernels.skipsMasked(operations);
+        final LinkedList<Future<DecodedInput>> pending = new LinkedList<Future<DecodedInput>>();
+        int next = 0;
+        DecodedInput input;
+        while (next < source.size() || !pending.isEmpty()) {
+
+            //top up the window
+            while (next < source.size() && pending.size() < window) {
+                final int index = next++;
+                pending.add(readerPool.submit(new Callable<DecodedInput>() {
+
+                    public DecodedInput call() throws IOException, TransformException {
+                        return decode(source, index, rasterGrid,
+                                accumulators[0].getType().isFloatingPoint(), cellRadius, sparse,
+                                outside);
+                    }
+                }));
+            }
+
+            //apply the oldest input
+            input = await(pending.removeFirst());
+            if (input == null) {
+                continue;
+            }
+            try {
+                final long start = Metrics.getInstance().start();
+                input.apply(accumulators, operations, 0, accumulators[0].getHeight());
+                Metrics.getInstance().end(Metrics.Stage.ACCUMULATE, start, input.file,
+                        (long) input.w * input.h);
+            } finally {
+                this.recycle(input);
+            }
+        }
+    }
+
+    /**
+     * Reads an input from the source into a re-usable buffer, returning its
+     * values and position on the output raster, along with its non-zero runs
+     * if the input is sparse. Only the part of the input inside both the
+     * bounding box of its radius mask and the output is read. The buffers
+     * should be returned to the pool once the input has been applied.
+     *
+     * @param source
+     * @param index
+     * @param rasterGrid
+     * @param floatingPoint true to read the values as floats rather than ints
+     * @param cellRadius
+     * @param sparse true to find the non-zero runs of the input
+     * @param outside true to apply 0 to the rest of the input on the output
+     * @return null if none of the input is used
+     * @throws IOException
+     * @throws TransformException
+     */
+    DecodedInput decode(CoverageSource source, int index, GridGeometry2D rasterGrid,
+            boolean floatingPoint, double cellRadius, boolean sparse, boolean outside)
+            throws IOException, TransformException {
+
+        //ASCII grids are scanned straight into the buffer
+        final Metrics metrics = Metrics.getInstance();
+        final AsciiGrid grid = source.getAsciiGrid(index);
+        if (grid != null) {
+            final long start = metrics.start();
+            metrics.addBytesRead(grid.getFile().length());
+            final GridCoordinates2D gridTLCoord = this.calculator.getGridPosition(rasterGrid,
+                    grid.getEnvelope(rasterGrid.getCoordinateReferenceSystem()));
+            final Rectangle area = this.getArea(grid.getWidth(), grid.getHeight(), gridTLCoord,
+                    rasterGrid, outside);
+            final Rectangle window = this.calculator.getWindow(grid.getWidth(), grid.getHeight(),
+                    gridTLCoord, rasterGrid, cellRadius);
+            if (window.isEmpty()) {
+                return area != null ? toZero(grid.getFile(), area) : null;
+            }
+            final int[] ints = floatingPoint ? null : grid.read(this.ints.poll(), window);
+            final float[] floats = floatingPoint ? grid.read(this.floats.poll(), window) : null;
+            final DecodedInput input = this.toInput(grid.getFile(),
+                    (int) gridTLCoord.getX() + window.x, (int) gridTLCoord.getY() + window.y,
+                    RadiusMask.get(grid.getWidth(), grid.getHeight(), cellRadius, window),
+                    ints, floats, sparse, area);
+            metrics.end(Metrics.Stage.DECODE, start, input.file, (long) input.w * input.h);
+            return input;
+        }
+
+        final AbstractGridCoverage2DReader reader = source.open(index);
+        try {
+            final long start = metrics.start();
+            metrics.addBytesRead(source.getFile(index).length());
+
+            //only read the part of the input that the mask and the output cover
+            final CoverageHeader header = CoverageHeader.fromReader(source.getFile(index), reader);
+            GridCoordinates2D inputTLCoord = this.calculator.getGridPosition(rasterGrid,
+                    header.getEnvelope());
+            final Rectangle window = this.calculator.getWindow(header.getWidth(),
+                    header.getHeight(), inputTLCoord, rasterGrid, cellRadius);
+            if (window.isEmpty()) {
+                final Rectangle area = this.getArea(header.getWidth(), header.getHeight(),
+                        inputTLCoord, rasterGrid, outside);
+                return area != null ? toZero(source.getFile(index), area) : null;
+            }
+            final boolean whole = window.width == header.getWidth()
+                    && window.height == header.getHeight();
+            final GridCoverage2D coverage = (GridCoverage2D) reader.read(
+                    whole ? null : getReadParameters(header, window));
+            try {
+
+                //the reader may not return exactly the window, so only take the
+                //part of what it did return that is inside the window
+                final GridEnvelope2D gridEnvelope = coverage.getGridGeometry().getGridRange2D();
+                final GridCoordinates2D gridTLCoord = this.calculator.getGridPosition(
+                        rasterGrid, coverage.getEnvelope2D());
+                inputTLCoord = whole ? gridTLCoord : inputTLCoord;
+                final Rectangle area = this.getArea(header.getWidth(), header.getHeight(),
+                        inputTLCoord, rasterGrid, outside);
+                final Rectangle returned = new Rectangle(
+                        (int) (gridTLCoord.getX() - inputTLCoord.getX()),
+                        (int) (gridTLCoord.getY() - inputTLCoord.getY()),
+                        gridEnvelope.width, gridEnvelope.height);
+                final Rectangle read = returned.intersection(window);
+                if (read.isEmpty()) {
+                    return area != null ? toZero(source.getFile(index), area) : null;
+                }
+                final Rectangle inCoverage = new Rectangle(read.x - returned.x,
+                        read.y - returned.y, read.width, read.height);
+                final RadiusMask mask = RadiusMask.get(header.getWidth(), header.getHeight(),
+                        cellRadius, read);
+                final int[] ints = floatingPoint ? null
+                        : this.calculator.readValues(coverage, this.ints.poll(), inCoverage);
+                final float[] floats = floatingPoint
+                        ? this.calculator.readValues(coverage, this.floats.poll(), inCoverage)
+                        : null;
+                final DecodedInput input = this.toInput(source.getFile(index),
+                        (int) inputTLCoord.getX() + read.x, (int) inputTLCoord.getY() + read.y,
+                        mask, ints, floats, sparse, area);
+                metrics.end(Metrics.Stage.DECODE, start, input.file, (long) input.w * input.h);
+                return input;
+            } finally {
+                coverage.dispose(true);
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Returns the part of an input that is on the output, on the grid of the
+     * output, or null if it is not needed (or none of the input is on the
+     * output)
+     *
+     * @param width
+     * @param height
+     * @param inputTLCoord position of the input on the output grid
+     * @param rasterGrid
+     * @param outside true if the cells outside of the radius are applied
+     * @return
+     */
+    private Rectangle getArea(int width, int height, GridCoordinates2D inputTLCoord,
+            GridGeometry2D rasterGrid, boolean outside) {
+        if (!outside) {
+            return null;
+        }
+        final Rectangle area = this.calculator.getArea(width, height, inputTLCoord, rasterGrid);
+        area.translate((int) inputTLCoord.getX(), (int) inputTLCoord.getY());
+        return area.isEmpty() ? null : area;
+    }
+
+    /**
+     * Returns a decoded input with no values, where none of the cells inside
+     * the radius are on the output but the rest of the input is applied as 0
+     *
+     * @param file
+     * @param area
+     * @return
+     */
+    static DecodedInput toZero(File file, Rectangle area) {
+        return new DecodedInput(file, area.x, area.y, 0, 0, null, null, null, null, area);
+    }
+
+    /**
+     * Returns the parameters for a GeoTools reader to read a window of an
+     * input at its own resolution
+     *
+     * @param header
+     * @param window
+     * @return
+     */
+    private static GeneralParameterValue[] getReadParameters(CoverageHeader header,
+            Rectangle window) {
+        final Envelope2D envelope = header.getEnvelope();
+        final double cellWidth = envelope.getWidth() / header.getWidth();
+        final double cellHeight = envelope.getHeight() / header.getHeight();
+        final ParameterValue<GridGeometry2D> gridGeometry =
+                AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+        gridGeometry.setValue(new GridGeometry2D(
+                new GridEnvelope2D(0, 0, window.width, window.height),
+                new Envelope2D(header.getCoordinateReferenceSystem(),
+                        envelope.getMinX() + window.x * cellWidth,
+                        envelope.getMaxY() - (window.y + window.height) * cellHeight,
+                        window.width * cellWidth, window.height * cellHeight)));
+        return new GeneralParameterValue[]{gridGeometry};
+    }
+
+    /**
+     * Returns a decoded input for the values of an input, along with its
+     * non-zero runs if sparse is true and the input is sparse enough
+     *
+     * @param file
+     * @param x
+     * @param y
+     * @param mask mask of the cells that were read
+     * @param ints
+     * @param floats
+     * @param sparse
+     * @param area part of the input on the output to apply as 0 outside of the
+     * values (or null)
+     * @return
+     */
+    DecodedInput toInput(File file, int x, int y, RadiusMask mask, int[] ints,
+            float[] floats, boolean sparse, Rectangle area) {
+        SparseRows rows = null;
+        if (sparse) {
+            rows = this.sparseRows.poll();
+            rows = rows != null ? rows : new SparseRows();
+            if (!(floats != null ? rows.build(floats, mask) : rows.build(ints, mask))) {
+                this.sparseRows.add(rows);
+                rows = null;
+            }
+        }
+        return new DecodedInput(file, x, y, mask.getWidth(), mask.getHeight(), ints, floats,
+                rows, mask, area);
+    }
+
+    /**
+     * Applies an input to the accumulators one stripe at a time, holding the
+     * lock for each stripe whilst it is written
+     *
+     * @param stripes
+     * @param accumulators
+     * @param input
+     * @param operations
+     * @throws IOException
+     */
+    private void applyStriped(ReentrantLock[] stripes, Accumulator[] accumulators,
+            DecodedInput input, int[] operations) throws IOException {
+
+        final Metrics metrics = Metrics.getInstance();
+        final long start = metrics.start();
+
+        //only lock the stripes that a sparse input has runs in (or the whole
+        //input if the rest of it is applied as 0)
+        int top = input.y + (input.rows != null ? input.rows.getTop() : 0);
+        int bottom = input.y + (input.rows != null ? input.rows.getBottom() : input.h);
+        if (input.area != null) {
+            top = Math.min(top, input.area.y);
+            bottom = Math.max(bottom, input.area.y + input.area.height);
+        }
+        final int lastStripe = (bottom - 1) / STRIPE_HEIGHT;
+        for (int stripe = top / STRIPE_HEIGHT; stripe <= lastStripe && top < bottom; stripe++) {
+            stripes[stripe].lock();
+            try {
+                input.apply(accumulators, operations, Math.max(top, stripe * STRIPE_HEIGHT),
+                        Math.min(bottom, (stripe + 1) * STRIPE_HEIGHT));
+            } finally {
+                stripes[stripe].unlock();
+            }
+        }
+        metrics.end(Metrics.Stage.ACCUMULATE, start, input.file, (long) input.w * input.h);
+    }
+
+    /**
+     * Returns the buffers of a decoded input to the pool once it has been
+     * applied
+     *
+     * @param input
+     */
+    private void recycle(DecodedInput input) {
+        if (input.ints != null) {
+            this.ints.add(input.ints);
+        } else if (input.floats != null) {
+            this.floats.add(input.floats);
+        }
+        if (input.rows != null) {
+            this.sparseRows.add(input.rows);
+        }
+    }
+
+    /**
+     * Waits for the next task to finish
+     *
+     * @param completed
+     * @return
+     * @throws IOException
+     */
+    private static <T> Future<T> take(BlockingQueue<Future<T>> completed) throws IOException {
+        try {
+            return completed.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst waiting for an input", e);
+        }
+    }
+
+    /**
+     * Returns a factory for virtual threads if this JVM has them (found by
+     * reflection, as they need Java 21), or null if not
+     *
+     * @return
+     */
+    private static ThreadFactory loadVirtualThreadFactory() {
+        if (!Boolean.parseBoolean(System.getProperty("fastercalculator.virtual", "true"))) {
+            return null;
+        }
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a task to finish, re-throwing anything that it threw
+     *
+     * @param future
+     * @return
+     * @throws IOException
+     * @throws TransformException
+     */
+    private static <T> T await(Future<T> future) throws IOException, TransformException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst waiting for an input", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof TransformException) {
+                throw (TransformException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * A decoded input, ready to be applied to the accumulators
+     */
+    static class DecodedInput {
+
+        final File file;         //source file
+        final int x, y, w, h;    //position and dimensions on the raster
+        final int[] ints;        //integer values (may be longer than w * h)
+        final float[] floats;    //or floating point values
+        final SparseRows rows;   //non-zero runs (null to apply every cell in the mask)
+        final RadiusMask mask;   //cells inside the radius
+        final Rectangle area;    //part of the input on the raster to apply as 0 around the values (or null)
+
+        DecodedInput(File file, int x, int y, int w, int h, int[] ints, float[] floats,
+                SparseRows rows, RadiusMask mask, Rectangle area) {
+            this.file = file;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.ints = ints;
+            this.floats = floats;
+            this.rows = rows;
+            this.mask = mask;
+            this.area = area;
+        }
+
+        /**
+         * Applies raster rows top (inclusive) to bottom (exclusive) of the
+         * input, followed by 0 for the rest of its area
+         *
+         * @param accumulators
+         * @param operations
+         * @param top
+         * @param bottom
+         * @throws IOException
+         */
+        void apply(Accumulator[] accumulators, int[] operations, int top, int bottom)
+                throws IOException {
+            final int firstRow = Math.max(top, this.y) - this.y;
+            final int lastRow = Math.min(bottom, this.y + this.h) - this.y;
+            for (int i = 0; i < accumulators.length && firstRow < lastRow; i++) {
+                if (this.rows != null && this.ints != null) {
+                    accumulators[i].apply(operations[i], this.ints, this.rows, this.x, this.y,
+                            firstRow, lastRow);
+                } else if (this.rows != null) {
+                    accumulators[i].apply(operations[i], this.floats, this.rows, this.x, this.y,
+                            firstRow, lastRow);
+                } else if (this.ints != null) {
+                    accumulators[i].apply(operations[i], this.ints, this.mask, this.x, this.y,
+                            firstRow, lastRow);
+                } else {
+                    accumulators[i].apply(operations[i], this.floats, this.mask, this.x, this.y,
+                            firstRow, lastRow);
+                }
+            }
+            if (this.area != null) {
+                RasterCalculator.applyZero(accumulators, operations, this.area,
+                        new Rectangle(this.x, this.y, this.w, this.h), top, bottom);
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A circular mask for a block of cells, stored as one span of columns per row
+ *
+ * A cell is inside the mask if its distance from the centre of the block is
+ * less than the radius. Rather than testing every cell, each row of the mask is
+ * held as the [start, end) range of columns that are inside the circle, which
+ * is worked out once using integer squared distances. As most inputs share the
+ * same dimensions and radius, masks are cached and shared between inputs (and
+ * threads - a mask is never modified once it has been built).
+ *
+ * Where only a window of an input has been read (such as the bounding box of
+ * its mask), the mask of the whole input can be cut down to that window, so
+ * that it stays centred on the centre of the whole input. Only the masks of
+ * whole inputs are cached: the windows depend on where each input falls on the
+ * output, so would fill the cache without bound, and are quick to cut down.
+ *
+ * @author jonathan.huck
+ */
+final class RadiusMask {
+
+    /*
+     * masks that have already been built, keyed by dimensions and radius
+     */
+    private static final ConcurrentHashMap<Key, RadiusMask> CACHE =
+            new ConcurrentHashMap<Key, RadiusMask>();
+
+    /*
+     * object variables
+     */
+    private final int width, height;      //block dimensions
+    private final int[] starts, ends;     //span of each row
+
+    /**
+     * Returns the mask for a block of the given dimensions and radius
+     *
+     * @param width
+     * @param height
+     * @param radius
+     * @return
+     */
+    static RadiusMask get(int width, int height, double radius) {
+        final Key key = new Key(width, height, radius);
+        RadiusMask mask = CACHE.get(key);
+        if (mask == null) {
+            final long start = Metrics.getInstance().start();
+            mask = new RadiusMask(width, height, radius);
+            Metrics.getInstance().end(Metrics.Stage.MASK, start);
+            final RadiusMask existing = CACHE.putIfAbsent(key, mask);
+            if (existing != null) {
+                mask = existing;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the mask for a window of a block of the given dimensions and
+     * radius (the window may extend past the block, where it is outside the
+     * mask)
+     *
+     * @param width
+     * @param height
+     * @param radius
+     * @param window
+     * @return
+     */
+    static RadiusMask get(int width, int height, double radius, Rectangle window) {
+        final RadiusMask whole = get(width, height, radius);
+        if (window.x == 0 && window.y == 0 && window.width == width
+                && window.height == height) {
+            return whole;
+        }
+        final long start = Metrics.getInstance().start();
+        final RadiusMask mask = new RadiusMask(whole, window);
+        Metrics.getInstance().end(Metrics.Stage.MASK, start);
+        return mask;
+    }
+
+    /**
+     * Constructor, builds the spans for each row (use get() to share masks)
+     *
+     * @param width
+     * @param height
+     * @param radius
+     */
+    RadiusMask(int width, int height, double radius) {
+        this.width = width;
+        this.height = height;
+        this.starts = new int[height];
+        this.ends = new int[height];
+
+        //get centroid grid coordinates
+        final int centreX = (width * height / 2) % width;
+        final int centreY = (width * height / 2) / width;
+
+        //largest squared distance that is still less than the radius squared
+        final long limit = radius > 0 ? (long) Math.ceil(radius * radius) - 1 : -1;
+
+        //work out the span of each row
+        long dy, remainder;
+        int half;
+        for (int row = 0; row < height; row++) {
+            dy = row - centreY;
+            remainder = limit - dy * dy;
+            if (remainder < 0) {
+
+                //the whole row is outside the circle
+                this.starts[row] = 0;
+                this.ends[row] = 0;
+            } else {
+
+                //largest dx where dx * dx <= remainder
+                half = (int) Math.sqrt((double) remainder);
+                while ((long) half * half > remainder) {
+                    half--;
+                }
+                while ((long) (half + 1) * (half + 1) <= remainder) {
+                    half++;
+                }
+                this.starts[row] = Math.max(0, centreX - half);
+                this.ends[row] = Math.max(this.starts[row], Math.min(width, centreX + half + 1));
+            }
+        }
+    }
+
+    /**
+     * Constructor, cuts a window out of another mask
+     *
+     * @param mask
+     * @param window
+     */
+    private RadiusMask(RadiusMask mask, Rectangle window) {
+        this.width = window.width;
+        this.height = window.height;
+        this.starts = new int[this.height];
+        this.ends = new int[this.height];
+        int row;
+        for (int i = 0; i < this.height; i++) {
+            row = window.y + i;
+            if (row >= 0 && row < mask.height) {
+                this.starts[i] = Math.max(0, Math.min(this.width, mask.starts[row] - window.x));
+                this.ends[i] = Math.max(this.starts[i],
+                        Math.min(this.width, mask.ends[row] - window.x));
+            }
+        }
+    }
+
+    /**
+     * Returns the smallest rectangle of cells that contains every cell inside
+     * the mask (which is empty if no cells are)
+     *
+     * @return
+     */
+    Rectangle getBounds() {
+        int top = this.height, bottom = 0, left = this.width, right = 0;
+        for (int row = 0; row < this.height; row++) {
+            if (this.starts[row] < this.ends[row]) {
+                top = Math.min(top, row);
+                bottom = row + 1;
+                left = Math.min(left, this.starts[row]);
+                right = Math.max(right, this.ends[row]);
+            }
+        }
+        return top < bottom ? new Rectangle(left, top, right - left, bottom - top)
+                : new Rectangle();
+    }
+
+    /**
+     * Return the first column of a row that is inside the mask
+     *
+     * @param row
+     * @return
+     */
+    int getStart(int row) {
+        return this.starts[row];
+    }
+
+    /**
+     * Return the column after the last column of a row that is inside the mask
+     *
+     * @param row
+     * @return
+     */
+    int getEnd(int row) {
+        return this.ends[row];
+    }
+
+    /**
+     * Return the width of the masked block
+     *
+     * @return
+     */
+    int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Return the height of the masked block
+     *
+     * @return
+     */
+    int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Cache key
+     */
+    private static final class Key {
+
+        private final int width, height;
+        private final long radius;
+
+        Key(int width, int height, double radius) {
+            this.width = width;
+            this.height = height;
+            this.radius = Double.doubleToLongBits(radius);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key k = (Key) o;
+            return k.width == this.width && k.height == this.height && k.radius == this.radius;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * this.width + this.height)
+                    + (int) (this.radius ^ (this.radius >>> 32));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * An accumulator held in memory as a single array of cells
+ *
+ * Inputs are applied directly to the array, which becomes the data buffer of a
+ * banded raster when the output is wrapped in a grid coverage.
+ *
+ * A histogram is kept for each band of HISTOGRAM_ROWS rows of the grid. Each
+ * input (or row written) marks the bands that it covers as changed, and only
+ * the bands that have changed since the last histogram was taken are read
+ * again when the next one is, which is then the sum of the histograms of the
+ * bands (as in TiledAccumulator, the sum is exact).
+ *
+ * @author jonathan.huck
+ */
+class RasterAccumulator implements Accumulator {
+
+    /*
+     * number of rows in each band of the grid that a histogram is kept for
+     */
+    static final int HISTOGRAM_ROWS = 256;
+
+    /*
+     * object variables
+     */
+    private final int width, height;    //grid dimensions
+    private final CellArray cells;      //values (row major)
+    private final Histogram[] histograms;    //histogram of each band of rows
+    private final boolean[] changed;    //true for each band changed since its histogram was taken
+
+    /**
+     * Constructor
+     *
+     * @param type
+     * @param width
+     * @param height
+     */
+    RasterAccumulator(AccumulatorType type, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.cells = CellArray.create(type, width * height);
+        final int bands = (height + HISTOGRAM_ROWS - 1) / HISTOGRAM_ROWS;
+        this.histograms = new Histogram[bands];
+        this.changed = new boolean[bands];
+        for (int i = 0; i < bands; i++) {
+            this.histograms[i] = new Histogram();
+        }
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public AccumulatorType getType() {
+        return this.cells.getType();
+    }
+
+    public void apply(int operation, int[] values, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) {
+        this.cells.apply(operation, values, mask, firstRow, lastRow, 0, mask.getWidth(),
+                y * this.width + x, this.width);
+        this.setChanged(y + firstRow, y + lastRow);
+    }
+
+    public void apply(int operation, float[] values, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) {
+        this.cells.apply(operation, values, mask, firstRow, lastRow, 0, mask.getWidth(),
+                y * this.width + x, this.width);
+        this.setChanged(y + firstRow, y + lastRow);
+    }
+
+    public void apply(int operation, int[] values, SparseRows rows, int x, int y,
+            int firstRow, int lastRow) {
+        this.cells.apply(operation, values, rows, firstRow, lastRow, 0, rows.getWidth(),
+                y * this.width + x, this.width);
+        this.setChanged(y + firstRow, y + lastRow);
+    }
+
+    public void apply(int operation, float[] values, SparseRows rows, int x, int y,
+            int firstRow, int lastRow) {
+        this.cells.apply(operation, values, rows, firstRow, lastRow, 0, rows.getWidth(),
+                y * this.width + x, this.width);
+        this.setChanged(y + firstRow, y + lastRow);
+    }
+
+    public void readRow(int y, double[] values) {
+        this.cells.get(y * this.width, values, 0, this.width);
+    }
+
+    public void writeRow(int y, double[] values) {
+        this.cells.set(y * this.width, values, 0, this.width);
+        this.setChanged(y, y + 1);
+    }
+
+    public void readRow(int y, int x, int length, double[] values) {
+        this.cells.get(y * this.width + x, values, 0, length);
+    }
+
+    public void writeRow(int y, int x, int length, double[] values) {
+        this.cells.set(y * this.width + x, values, 0, length);
+        this.setChanged(y, y + 1);
+    }
+
+    /**
+     * Returns a histogram of the non-zero values in the grid, made up of the
+     * histogram of each band of rows (reading only the bands that have
+     * changed since the last histogram)
+     *
+     * @return
+     */
+    public Histogram getHistogram() {
+        final Histogram histogram = new Histogram();
+        int first;
+        for (int i = 0; i < this.histograms.length; i++) {
+            if (this.changed[i]) {
+                this.changed[i] = false;
+                first = i * HISTOGRAM_ROWS;
+                this.histograms[i] = new Histogram();
+                this.histograms[i].add(this.cells, first * this.width,
+                        Math.min(HISTOGRAM_ROWS, this.height - first) * this.width);
+            }
+            histogram.add(this.histograms[i]);
+        }
+        return histogram;
+    }
+
+    /**
+     * Marks the bands of rows that a range of rows falls in as changed
+     *
+     * @param firstRow
+     * @param lastRow the row after the last row
+     */
+    private void setChanged(int firstRow, int lastRow) {
+        if (lastRow > firstRow) {
+            Arrays.fill(this.changed, firstRow / HISTOGRAM_ROWS,
+                    (lastRow - 1) / HISTOGRAM_ROWS + 1, true);
+        }
+    }
+
+    public GridCoverage2D toCoverage(GridCoverageFactory factory, CharSequence name,
+            Envelope2D envelope) {
+        final WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel(this.getType().getDataBufferType(), this.width, this.height, 1),
+                this.cells.toDataBuffer(), null);
+        return factory.create(name, raster, envelope);
+    }
+
+    public void close() {
+    }
+}
@@ -1,11 +1,19 @@
 package co.uk.winddirecttools.fastercalculator;
 
-import java.awt.geom.AffineTransform;
+import java.awt.Rectangle;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
 import java.util.ArrayList;
-import javax.media.jai.RasterFactory;
+import java.util.List;
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridCoverageFactory;
@@ -33,85 +41,392 @@ public class RasterCalculator {
     public static final int SUBTRACT = 1;
     public static final int MULTIPLY = 2;
     public static final int DIVIDE = 3;
+    public static final int COUNT = 4;
+    public static final int MAX = 5;
+    public static final int STATISTICS = 6;
+
+    /*
+     * object variables
+     */
+    private final int threads;          //number of worker threads used to apply inputs
+    private final long memoryBudget;    //largest output (in bytes) to hold in memory
+    private int readers = 0;            //number of threads reading inputs (0 for automatic)
+    private Region region = null;       //region the output is limited to (null for all inputs)
+    private Accumulator output = null;  //grid of the last output
+
+    /**
+     * Constructor for a calculator using one thread per available processor,
+     * and allowing the output to use up to half of the maximum heap size
+     */
+    public RasterCalculator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor for a calculator using a given number of threads, and
+     * allowing the output to use up to half of the maximum heap size
+     *
+     * @param threads
+     */
+    public RasterCalculator(int threads) {
+        this(threads, Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    /**
+     * Constructor for a calculator using a given number of threads and memory
+     * budget. Outputs larger than the budget are split into tiles that are
+     * paged to and from a scratch file, only keeping as many tiles in memory
+     * as fit within the budget.
+     *
+     * @param threads
+     * @param memoryBudget in bytes
+     */
+    public RasterCalculator(int threads, long memoryBudget) {
+        this.threads = Math.max(1, threads);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the number of threads that read and decode inputs for the worker
+     * threads, or 0 (the default) for two per worker thread. Setting more
+     * than one reader pipelines reading with processing even for a single
+     * worker thread.
+     *
+     * @param readers
+     * @return
+     */
+    public RasterCalculator setReaders(int readers) {
+        this.readers = Math.max(0, readers);
+        return this;
+    }
+
+    /**
+     * Limit the output to a region of interest, or null (the default) for an
+     * output covering all of the inputs. Inputs that do not intersect the
+     * region are skipped without reading their pixels, and the rest are only
+     * read where they overlap it.
+     *
+     * @param region
+     * @return
+     */
+    public RasterCalculator setRegion(Region region) {
+        this.region = region;
+        return this;
+    }
+
+    /**
+     * Return the region of interest that the output is limited to (null if
+     * there is none)
+     *
+     * @return
+     */
+    public Region getRegion() {
+        return this.region;
+    }
+
+    /**
+     * Returns true if the order in which inputs are applied using the
+     * specified operation does not affect the result
+     *
+     * @param operation
+     * @return
+     */
+    public static boolean isCommutative(int operation) {
+        return operation == ADD || operation == MULTIPLY || operation == COUNT || operation == MAX
+                || operation == STATISTICS;
+    }
 
     /**
-     * Returns the combination of the two grid coverages, performing the
-     * specified operation upon them and without clipping them to the overlap
-     * region
+     * Returns the combination of the grid coverages, performing the specified
+     * operation upon them and without clipping them to the overlap region.
+     *
+     * The output grid is planned from the header of each input (read directly
+     * from the reader, without decoding any pixels) before the pixel pass
+     * streams through the inputs one at a time.
+     *
+     * @param source
+     * @param radius
+     * @param operation
+     * @return
+     * @throws IOException
+     * @throws NoSuchAuthorityCodeException
+     * @throws FactoryException
+     * @throws InvalidGridGeometryException
+     * @throws TransformException
+     */
+    public GridCoverage2D process(CoverageSource source, int radius, int operation)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException,
+            InvalidGridGeometryException, TransformException {
+        return this.process(source, radius, operation, AccumulatorType.INT);
+    }
+
+    /**
+     * Returns the combination of the grid coverages as above, accumulating the
+     * output in the given type. If the type is null, the smallest type that can
+     * hold the result is chosen from the data type of the first input and the
+     * number of inputs.
+     *
+     * @param source
+     * @param radius
+     * @param operation
+     * @param type
+     * @return
+     * @throws IOException
+     * @throws NoSuchAuthorityCodeException
+     * @throws FactoryException
+     * @throws InvalidGridGeometryException
+     * @throws TransformException
+     */
+    public GridCoverage2D process(CoverageSource source, int radius, int operation,
+            AccumulatorType type)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException,
+            InvalidGridGeometryException, TransformException {
+        source = this.select(source);
+        if (type == null) {
+            type = AccumulatorType.choose(source.getDataType(), source.size(), operation);
+        }
+        return this.process(source.getHeaders(), source, radius, operation, type);
+    }
+
+    /**
+     * Returns the combination of the grid coverages, performing the specified
+     * operation upon them and without clipping them to the overlap region.
+     *
+     * The coverages are iterated twice - once to get the dimensions of the
+     * output and once to apply the values - and each coverage is disposed of as
+     * soon as it has been applied.
      *
      * @param coverages
      * @param radius
      * @param operation
      * @return
+     * @throws IOException
      * @throws NoSuchAuthorityCodeException
      * @throws FactoryException
      * @throws InvalidGridGeometryException
      * @throws TransformException
      */
-    public GridCoverage2D process(ArrayList<GridCoverage2D> coverages, int radius, int operation)
-            throws NoSuchAuthorityCodeException, FactoryException, InvalidGridGeometryException, TransformException {
+    public GridCoverage2D process(Iterable<GridCoverage2D> coverages, int radius, int operation)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException,
+            InvalidGridGeometryException, TransformException {
+        return this.process(coverages, radius, operation, AccumulatorType.INT);
+    }
 
-        //define coord system and 
-        final CoordinateReferenceSystem crs = coverages.get(0).getCoordinateReferenceSystem();
-        final int resolution = this.getResolution(coverages.get(0))[0];
+    /**
+     * Returns the combination of the grid coverages as above, accumulating the
+     * output in the given type. If the type is null, the smallest type that can
+     * hold the result is chosen from the data type of the first input and the
+     * number of inputs.
+     *
+     * @param coverages
+     * @param radius
+     * @param operation
+     * @param type
+     * @return
+     * @throws IOException
+     * @throws NoSuchAuthorityCodeException
+     * @throws FactoryException
+     * @throws InvalidGridGeometryException
+     * @throws TransformException
+     */
+    public GridCoverage2D process(Iterable<GridCoverage2D> coverages, int radius, int operation,
+            AccumulatorType type)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException,
+            InvalidGridGeometryException, TransformException {
+
+        //get the header of each coverage (this does not touch the pixel data)
+        final List<CoverageHeader> headers = new ArrayList<CoverageHeader>();
+        int dataType = DataBuffer.TYPE_UNDEFINED;
+        for (GridCoverage2D coverage : coverages) {
+            headers.add(CoverageHeader.fromCoverage(coverage));
+            if (dataType == DataBuffer.TYPE_UNDEFINED) {
+                dataType = coverage.getRenderedImage().getSampleModel().getDataType();
+            }
+        }
+        if (type == null) {
+            type = AccumulatorType.choose(dataType, headers.size(), operation);
+        }
+        return this.process(headers, coverages, radius, operation, type);
+    }
+
+    /**
+     * Plans the output grid from the headers, then applies each coverage to it
+     *
+     * @param headers
+     * @param coverages
+     * @param radius
+     * @param operation
+     * @param type
+     * @return
+     * @throws IOException
+     * @throws NoSuchAuthorityCodeException
+     * @throws FactoryException
+     * @throws InvalidGridGeometryException
+     * @throws TransformException
+     */
+    private GridCoverage2D process(List<CoverageHeader> headers, Iterable<GridCoverage2D> coverages,
+            int radius, int operation, AccumulatorType type)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException,
+            InvalidGridGeometryException, TransformException {
+
+        //define coord system and resolution from the first coverage
+        final CoordinateReferenceSystem crs = headers.get(0).getCoordinateReferenceSystem();
+        final int resolution = headers.get(0).getResolution();
 
         //get the dimensions of the output
-        final Envelope2D envelope = getCombinedEnvelope(coverages, resolution, crs);
+        final Envelope2D envelope = this.getOutputEnvelope(headers, resolution, crs);
 
-        //get an empty grid coverage at the correct size
-        WritableRaster raster = getWritableRaster(envelope, resolution, 0);
+        //get an empty accumulator at the correct size
+        final Accumulator accumulator = getAccumulator(envelope, resolution, type);
 
-        //build a grid coverage for calculations
-        final GridCoverageFactory factory = new GridCoverageFactory();
-        final GridCoverage2D tmpGc = factory.create("tmp", raster, envelope);
+        //details required for converting coordinates to grid positions on the output
+        final GridGeometry2D rasterGrid = new GridGeometry2D(new GridEnvelope2D(0, 0,
+                accumulator.getWidth(), accumulator.getHeight()), envelope);
 
-        //apply each input coverage to the writable raster
+        //apply each input coverage to the accumulator
         double cellRadius = radius / resolution;
-        raster = applyRasterValues(coverages, raster, tmpGc, cellRadius, operation);
+        this.applyRasterValues(coverages, new Accumulator[]{accumulator}, rasterGrid,
+                cellRadius, new int[]{operation});
+        this.clip(accumulator, envelope, resolution);
 
         //convert to grid coverage and return
-        return factory.create("output", raster, envelope);
+        this.output = accumulator;
+        return accumulator.toCoverage(new GridCoverageFactory(), "output", envelope);
     }
 
     /**
-     * Returns the resolution of a Grid Coverage
+     * Returns a set of statistics of the grid coverages (see Statistic) as the
+     * bands of one coverage, in the order given, without clipping them to the
+     * overlap region. All of the statistics are computed in a single pass over
+     * the inputs.
      *
-     * @param gc
+     * @param source
+     * @param radius
+     * @param statistics
+     * @return
+     * @throws IOException
+     * @throws NoSuchAuthorityCodeException
+     * @throws FactoryException
+     * @throws InvalidGridGeometryException
+     * @throws TransformException
+     */
+    public GridCoverage2D statistics(CoverageSource source, int radius, Statistic... statistics)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException,
+            InvalidGridGeometryException, TransformException {
+
+        //define coord system and resolution from the first coverage
+        source = this.select(source);
+        final List<CoverageHeader> headers = source.getHeaders();
+        final CoordinateReferenceSystem crs = headers.get(0).getCoordinateReferenceSystem();
+        final int resolution = headers.get(0).getResolution();
+
+        //get the dimensions of the output, and the state for each statistic
+        final Envelope2D envelope = this.getOutputEnvelope(headers, resolution, crs);
+        final StatisticsAccumulator accumulator = new StatisticsAccumulator(statistics, this,
+                envelope, resolution);
+
+        //details required for converting coordinates to grid positions on the output
+        final GridGeometry2D rasterGrid = new GridGeometry2D(new GridEnvelope2D(0, 0,
+                accumulator.getWidth(), accumulator.getHeight()), envelope);
+
+        //apply each input coverage to the statistics
+        double cellRadius = radius / resolution;
+        this.applyRasterValues(source, new Accumulator[]{accumulator}, rasterGrid,
+                cellRadius, new int[]{STATISTICS});
+        this.clip(accumulator, envelope, resolution);
+
+        //convert to grid coverage and return
+        this.output = accumulator;
+        return accumulator.toCoverage(new GridCoverageFactory(), "statistics", envelope);
+    }
+
+    /**
+     * Returns the coverages of a source that intersect the region of interest
+     * (or the whole source if there is no region)
+     *
+     * @param source
      * @return
+     * @throws IOException
+     * @throws IllegalArgumentException if no coverages intersect the region
      */
-    private int[] getResolution(GridCoverage2D gc) {
-        //get the resolution
-        AffineTransform gridToCRS = (AffineTransform) gc.getGridGeometry().getGridToCRS2D();
-        final int[] scale = {(int) Math.round(gridToCRS.getScaleX()), (int) Math.round(gridToCRS.getScaleY())};
-        return scale;
+    CoverageSource select(CoverageSource source) throws IOException {
+        if (this.region == null) {
+            return source;
+        }
+        final CoverageSource selected = source.select(this.region);
+        if (selected.size() == 0) {
+            throw new IllegalArgumentException("No inputs intersect the region " + this.region);
+        }
+        return selected;
     }
 
     /**
-     * Combine two envelopes into one
+     * Returns the extent of the output, the bounding box of the region of
+     * interest if there is one or otherwise the combined envelope of the
+     * coverages (aligned to the grid either way)
      *
-     * @param coverages
+     * @param headers
      * @param resolution
      * @param crs
      * @return
+     * @throws ResolutionException
      */
-    private Envelope2D getCombinedEnvelope(ArrayList<GridCoverage2D> coverages,
-            int resolution, CoordinateReferenceSystem crs) {
+    Envelope2D getOutputEnvelope(List<CoverageHeader> headers, int resolution,
+            CoordinateReferenceSystem crs) throws ResolutionException {
+        final Envelope2D envelope = this.getCombinedEnvelope(headers, resolution, crs);
+        return this.region != null ? this.region.getEnvelope(resolution, crs) : envelope;
+    }
 
-        //get first coverage and set initial dimensions
-        GridCoverage2D gc = coverages.get(0);
+    /**
+     * Clears the cells of an output that are outside of the region of interest
+     * (only needed for a polygon, as the output is already limited to its
+     * bounding box)
+     *
+     * @param accumulator
+     * @param envelope
+     * @param resolution
+     * @throws IOException
+     */
+    void clip(Accumulator accumulator, Envelope2D envelope, double resolution)
+            throws IOException {
+        if (this.region != null) {
+            this.region.clip(accumulator, envelope, resolution);
+        }
+    }
+
+    /**
+     * Combine the envelopes of all of the coverages into one
+     *
+     * @param headers
+     * @param resolution
+     * @param crs
+     * @return
+     * @throws ResolutionException
+     */
+    Envelope2D getCombinedEnvelope(List<CoverageHeader> headers,
+            int resolution, CoordinateReferenceSystem crs) throws ResolutionException {
 
-        //get corners
-        double maxX = gc.getEnvelope2D().getMaxX();
-        double maxY = gc.getEnvelope2D().getMaxY();
-        double minX = gc.getEnvelope2D().getMinX();
-        double minY = gc.getEnvelope2D().getMinY();
+        //set initial dimensions (these are replaced by the first coverage)
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
 
         //loop through all coverages and grow envelope as required
-        for (GridCoverage2D coverage : coverages) {
-            maxX = Math.max(maxX, coverage.getEnvelope2D().getMaxX());
-            maxY = Math.max(maxY, coverage.getEnvelope2D().getMaxY());
-            minX = Math.min(minX, coverage.getEnvelope2D().getMinX());
-            minY = Math.min(minY, coverage.getEnvelope2D().getMinY());
+        Envelope2D envelope;
+        for (CoverageHeader header : headers) {
+
+            //inputs are combined cell for cell, so must share a resolution
+            if (header.getResolution() != resolution) {
+                throw new ResolutionException("All inputs must have a resolution of "
+                        + resolution + " (" + header.getFile() + " is " + header.getResolution() + ")");
+            }
+
+            envelope = header.getEnvelope();
+            maxX = Math.max(maxX, envelope.getMaxX());
+            maxY = Math.max(maxY, envelope.getMaxY());
+            minX = Math.min(minX, envelope.getMinX());
+            minY = Math.min(minY, envelope.getMinY());
         }
 
         //get anchor points (aligns to grid by buffering outwards)
@@ -127,246 +442,513 @@ public class RasterCalculator {
     }
 
     /**
-     * Returns an empty grid coverage upon which to build results
+     * Returns a histogram of the non-zero values of the last output of
+     * process() (or MapAlgebra), for choosing class breaks to style it. This
+     * is kept as the output is built, so the output is not read again.
+     *
+     * @return
+     * @throws IOException
+     * @throws IllegalStateException if there has not been an output
+     */
+    public Histogram getHistogram() throws IOException {
+        if (this.output == null) {
+            throw new IllegalStateException("There is no output to take a histogram of");
+        }
+        return this.output.getHistogram();
+    }
+
+    /**
+     * Releases the grid of the last output (such as its scratch file), once
+     * its coverage has been written, as the coverage reads from it
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (this.output != null) {
+            final Accumulator output = this.output;
+            this.output = null;
+            output.close();
+        }
+    }
+
+    /**
+     * Set the grid of the last output
+     *
+     * @param output
+     */
+    void setOutput(Accumulator output) {
+        this.output = output;
+    }
+
+    /**
+     * Returns an empty accumulator upon which to build results, this is held
+     * in memory if it fits within the memory budget or otherwise tiled on disk
      *
      * @param envelope
      * @param resolution
-     * @param initialValue
+     * @param type
      * @return
-     * @throws NoSuchAuthorityCodeException
-     * @throws FactoryException
-     * @throws ResolutionException
+     * @throws IOException
      */
-    private WritableRaster getWritableRaster(Envelope2D envelope, double resolution, double initialValue)
-            throws NoSuchAuthorityCodeException, FactoryException, ResolutionException {
-
-        //build a raster to base the size upon
-        WritableRaster raster = RasterFactory.createBandedRaster(
-                DataBuffer.TYPE_INT, (int) Math.ceil(envelope.getWidth() / resolution),
-                (int) Math.ceil(envelope.getHeight() / resolution), 1, null);
+    Accumulator getAccumulator(Envelope2D envelope, double resolution,
+            AccumulatorType type) throws IOException {
+        return this.getAccumulator(envelope, resolution, type, this.memoryBudget);
+    }
 
-        //populate initial values
-        for (int y = 0; y < raster.getHeight(); y++) {
-            for (int x = 0; x < raster.getWidth(); x++) {
-                raster.setSample(x, y, 0, initialValue);
-            }
+    /**
+     * Returns an empty accumulator as above, within a given memory budget
+     *
+     * @param envelope
+     * @param resolution
+     * @param type
+     * @param memoryBudget in bytes
+     * @return
+     * @throws IOException
+     */
+    Accumulator getAccumulator(Envelope2D envelope, double resolution,
+            AccumulatorType type, long memoryBudget) throws IOException {
+        final long w = (long) Math.ceil(envelope.getWidth() / resolution);
+        final long h = (long) Math.ceil(envelope.getHeight() / resolution);
+        if (w * h * type.getBytes() <= memoryBudget && w * h <= Integer.MAX_VALUE) {
+            return new RasterAccumulator(type, (int) w, (int) h);
         }
-        return raster;
+        return new TiledAccumulator(type, (int) w, (int) h, TiledAccumulator.DEFAULT_TILE_SIZE,
+                memoryBudget);
+    }
+
+    /**
+     * Return the largest output (in bytes) to hold in memory
+     *
+     * @return
+     */
+    long getMemoryBudget() {
+        return this.memoryBudget;
     }
 
     /**
-     * Adds a set of values from a grid coverage to a writable raster
+     * Applies the values from each grid coverage to one or more accumulators,
+     * using the operation of the same index for each accumulator. A
+     * CoverageSource can be read in any order, so its inputs are decoded in
+     * parallel if there is more than one thread or reader (and are read by
+     * index either way, so that ASCII grids take the AsciiGrid fast path).
      *
      * @param coverages
-     * @param raster
-     * @param tmpGc
+     * @param accumulators
+     * @param rasterGrid
      * @param cellRadius
-     * @param operation
-     * @return
+     * @param operations
+     * @throws IOException
      * @throws TransformException
      */
-    private WritableRaster applyRasterValues(ArrayList<GridCoverage2D> coverages,
-            WritableRaster raster, GridCoverage2D tmpGc, double cellRadius, int operation)
-            throws TransformException {
-
-        //details required for converting coordinates to grid positions on the output raster
-        final GridGeometry2D rasterGrid = tmpGc.getGridGeometry();
+    void applyRasterValues(Iterable<GridCoverage2D> coverages, Accumulator[] accumulators,
+            GridGeometry2D rasterGrid, double cellRadius, int[] operations)
+            throws IOException, TransformException {
+        if (coverages instanceof CoverageSource) {
+            final ParallelEngine engine = new ParallelEngine(this, this.threads, this.readers);
+            if (this.threads > 1 || this.readers > 1) {
+                engine.applyRasterValues((CoverageSource) coverages, accumulators,
+                        rasterGrid, cellRadius, operations);
+            } else {
+                engine.applyInOrder((CoverageSource) coverages, accumulators, rasterGrid,
+                        cellRadius, operations);
+            }
+            return;
+        }
 
         //loop through each coverage and add to raster
-        Envelope2D coverageEnvelope;
+        final Metrics metrics = Metrics.getInstance();
+        final boolean floatingPoint = accumulators[0].getType().isFloatingPoint();
+        final SparseRows rows = SparseRows.supports(operations) ? new SparseRows() : null;
         GridEnvelope2D gridEnvelope;
         GridCoordinates2D gridTLCoord;
+        Rectangle area, window;
+        RadiusMask mask;
+        boolean sparse;
+        long start;
+        int x, y, w, h;
+        int[] ints = null;
+        float[] floats = null;
         for (GridCoverage2D coverage : coverages) {
 
-            //get the grid values for the coverage
-            coverageEnvelope = coverage.getEnvelope2D();
+            //skip coverages outside of the output (or the region)
             gridEnvelope = coverage.getGridGeometry().getGridRange2D();
+            gridTLCoord = this.getGridPosition(rasterGrid, coverage.getEnvelope2D());
+            area = this.getArea(gridEnvelope.width, gridEnvelope.height, gridTLCoord, rasterGrid);
+            if (area.isEmpty()
+                    || (this.region != null && !this.region.intersects(coverage.getEnvelope2D()))) {
+                coverage.dispose(true);
+                continue;
+            }
+            window = this.getWindow(gridEnvelope.width, gridEnvelope.height, gridTLCoord,
+                    rasterGrid, cellRadius);
+            x = (int) gridTLCoord.getX();
+            y = (int) gridTLCoord.getY();
+            w = window.width;
+            h = window.height;
+
+            //get values from coverage (re-using the same buffer each time), only
+            //reading the bounding box of the mask
+            if (!window.isEmpty()) {
+                start = metrics.start();
+                if (floatingPoint) {
+                    floats = this.readValues(coverage, floats, window);
+                } else {
+                    ints = this.readValues(coverage, ints, window);
+                }
+                metrics.end(Metrics.Stage.DECODE, start, null, (long) w * h);
+            }
 
-            gridTLCoord = rasterGrid.worldToGrid(
-                    new DirectPosition2D(rasterGrid.getCoordinateReferenceSystem(),
-                            coverageEnvelope.getMinX(), coverageEnvelope.getMaxY()));
-            int w = gridEnvelope.width;
-            int h = gridEnvelope.height;
-
-            //get values from coverage
-            int gcValues[] = this.getValuesFromGridCoverage(coverage);
-
-            //enforce radius if needed
-            gcValues = this.enforceRadius(gcValues, gridEnvelope, cellRadius, 0);
-
-            //get values from raster
-            int rasterValues[] = new int[w * h];
-            raster.getSamples((int) gridTLCoord.getX(), (int) gridTLCoord.getY(),
-                    w, h, 0, rasterValues);
-
-            //calculate output values
-            int outputValues[] = this.operate(operation, gcValues, rasterValues);
+            //enforce radius and apply to the accumulators, only applying the
+            //non-zero runs of sparse inputs where the operations allow it
+            start = metrics.start();
+            if (!window.isEmpty()) {
+                mask = RadiusMask.get(gridEnvelope.width, gridEnvelope.height, cellRadius, window);
+                sparse = rows != null
+                        && (floatingPoint ? rows.build(floats, mask) : rows.build(ints, mask));
+                for (int i = 0; i < accumulators.length; i++) {
+                    if (sparse && floatingPoint) {
+                        accumulators[i].apply(operations[i], floats, rows, x + window.x,
+                                y + window.y, 0, h);
+                    } else if (sparse) {
+                        accumulators[i].apply(operations[i], ints, rows, x + window.x,
+                                y + window.y, 0, h);
+                    } else if (floatingPoint) {
+                        accumulators[i].apply(operations[i], floats, mask, x + window.x,
+                                y + window.y, 0, h);
+                    } else {
+                        accumulators[i].apply(operations[i], ints, mask, x + window.x,
+                                y + window.y, 0, h);
+                    }
+                }
+            }
 
-            //apply to the raster
-            raster.setSamples((int) gridTLCoord.getX(), (int) gridTLCoord.getY(),
-                    w, h, 0, outputValues);
+            //the rest of the input is outside of the mask
+            area.translate(x, y);
+            window.translate(x, y);
+            applyZero(accumulators, operations, area, window, 0, accumulators[0].getHeight());
+            metrics.end(Metrics.Stage.ACCUMULATE, start, null, (long) w * h);
 
             //destroy coverage
             coverage.dispose(true);
         }
-
-        //destroy tmp coverage
-        tmpGc.dispose(true);
-
-        //return the finished raster
-        return raster;
     }
 
     /**
-     * Returns a value from a grid coverage
+     * Returns the position of the top left corner of an envelope on the grid
+     * of the output raster
      *
-     * @param gc
+     * @param rasterGrid
+     * @param envelope
      * @return
+     * @throws TransformException
      */
-    private int[] getValuesFromGridCoverage(GridCoverage2D gc) {
-
-        //get dimensions and data holder
-        final int w = gc.getGridGeometry().getGridRange2D().width;
-        final int h = gc.getGridGeometry().getGridRange2D().height;
-        int[] list = new int[w * h];
+    GridCoordinates2D getGridPosition(GridGeometry2D rasterGrid, Envelope2D envelope)
+            throws TransformException {
+        return rasterGrid.worldToGrid(
+                new DirectPosition2D(rasterGrid.getCoordinateReferenceSystem(),
+                        envelope.getMinX(), envelope.getMaxY()));
+    }
 
-        //get image, raster, then raw data
-        final Raster raster = gc.getRenderedImage().getData();
-        raster.getSamples(0, 0, w, h, 0, list);
-        return list;
+    /**
+     * Returns the part of an input that is on the output, in the grid of the
+     * input. This is empty if none of the input is on the output.
+     *
+     * @param width
+     * @param height
+     * @param gridTLCoord position of the input on the output grid
+     * @param rasterGrid
+     * @return
+     */
+    Rectangle getArea(int width, int height, GridCoordinates2D gridTLCoord,
+            GridGeometry2D rasterGrid) {
+        final GridEnvelope2D output = rasterGrid.getGridRange2D();
+        final Rectangle area = new Rectangle(width, height)
+                .intersection(new Rectangle(output.x - (int) gridTLCoord.getX(),
+                        output.y - (int) gridTLCoord.getY(), output.width, output.height));
+        return area.isEmpty() ? new Rectangle() : area;
     }
 
     /**
-     * Replace values in a 1D data array outside a certain radius from the
-     * centre
+     * Returns the part of an input that is read: the bounding box of its
+     * radius mask, clipped to the output, in the grid of the input. This is
+     * empty if none of the cells inside the radius are on the output.
      *
-     * @param data
-     * @param gridEnvelope
-     * @param radius
-     * @param replacementValue
+     * @param width
+     * @param height
+     * @param gridTLCoord position of the input on the output grid
+     * @param rasterGrid
+     * @param cellRadius
      * @return
      */
-    private int[] enforceRadius(int[] data, GridEnvelope2D gridEnvelope,
-            double radius, int replacementValue) {
+    Rectangle getWindow(int width, int height, GridCoordinates2D gridTLCoord,
+            GridGeometry2D rasterGrid, double cellRadius) {
+        final Rectangle window = RadiusMask.get(width, height, cellRadius).getBounds()
+                .intersection(this.getArea(width, height, gridTLCoord, rasterGrid));
+        return window.isEmpty() ? new Rectangle() : window;
+    }
 
-        //to hold output
-        int[] out = new int[data.length];
+    /**
+     * Applies input values of 0 to the part of an input that is on the output
+     * but outside of the window that was read from it (both on the grid of the
+     * output), for each operation that does not skip the cells outside of the
+     * radius (as the baseline enforceRadius did, giving 0 * value, 0 - value
+     * and 0 / value). Only rows top (inclusive) to bottom (exclusive) of the
+     * output are applied.
+     *
+     * @param accumulators
+     * @param operations
+     * @param area
+     * @param window empty if no values were read
+     * @param top
+     * @param bottom
+     * @throws IOException
+     */
+    static void applyZero(Accumulator[] accumulators, int[] operations, Rectangle area,
+            Rectangle window, int top, int bottom) throws IOException {
+        if (Kernels.skipsMasked(operations)) {
+            return;
+        }
 
-        //get centroid grid coordinates
-        int centreX = (data.length / 2) % gridEnvelope.width;
-        int centreY = (int) (data.length / 2) / gridEnvelope.width;
+        //the strips above, left of, right of and below the window
+        window = window.intersection(area);
+        final Rectangle[] strips = window.isEmpty() ? new Rectangle[]{area} : new Rectangle[]{
+            new Rectangle(area.x, area.y, area.width, window.y - area.y),
+            new Rectangle(area.x, window.y, window.x - area.x, window.height),
+            new Rectangle(window.x + window.width, window.y,
+            area.x + area.width - window.x - window.width, window.height),
+            new Rectangle(area.x, window.y + window.height, area.width,
+            area.y + area.height - window.y - window.height)};
+        final Rectangle rows = new Rectangle(area.x, top, area.width, bottom - top);
+        final int[] ints = new int[0];
+        final float[] floats = new float[0];
+        Rectangle strip;
+        RadiusMask empty;
+        for (Rectangle part : strips) {
+            strip = part.intersection(rows);
+            if (strip.isEmpty()) {
+                continue;
+            }
 
-        //loop through and determine distance
-        int x, y;
-        for (int i = 0; i < data.length; i++) {
-            x = (i % gridEnvelope.width) - centreX;
-            y = ((int) i / gridEnvelope.width) - centreY;
-            out[i] = (Math.sqrt(Math.pow(x, 2d) + Math.pow(y, 2d)) < radius)
-                    ? data[i] : replacementValue;
+            //a mask with a radius of 0 has no cells, so every cell of the strip
+            //is applied as 0 without reading any values
+            empty = new RadiusMask(strip.width, strip.height, 0);
+            for (int i = 0; i < accumulators.length; i++) {
+                if (Kernels.skipsMasked(operations[i])) {
+                    continue;
+                }
+                if (accumulators[i].getType().isFloatingPoint()) {
+                    accumulators[i].apply(operations[i], floats, empty, strip.x, strip.y, 0,
+                            strip.height);
+                } else {
+                    accumulators[i].apply(operations[i], ints, empty, strip.x, strip.y, 0,
+                            strip.height);
+                }
+            }
         }
-        return out;
     }
 
     /**
-     * Execute the selected operation upon two int arrays
+     * Reads the values from a grid coverage into a buffer, the buffer is only
+     * replaced if it is too small to hold the values
      *
-     * @param operation
-     * @param one
-     * @param two
-     * @return
-     * @throws UnsupportedOperationException
-     */
-    private int[] operate(int operation, int[] one, int[] two)
-            throws UnsupportedOperationException {
-
-        //verify lengths
-        if (one.length == two.length) {
-
-            //for output
-            int[] out = new int[one.length];
-
-            //apply the required operation
-            switch (operation) {
-                case 0:
-                    out = opAdd(one, two);
-                    break;
-                case 1:
-                    out = opSubtract(one, two);
-                    break;
-                case 2:
-                    out = opMultiply(one, two);
-                    break;
-                case 3:
-                    out = opDivide(one, two);
-                    break;
-                default:
-                    throw new UnsupportedOperationException(
-                            "RasterCalculator does not currently support that operation");
-            }
-            return out;
-        } else {
-            throw new ArrayIndexOutOfBoundsException(
-                    "Arrays used in a RasterCalculator operation must be the same size!");
-        }
+     * @param gc
+     * @param buffer
+     * @return the buffer holding the values
+     */
+    int[] readValues(GridCoverage2D gc, int[] buffer) {
+        final GridEnvelope2D range = gc.getGridGeometry().getGridRange2D();
+        return this.readValues(gc, buffer, new Rectangle(range.width, range.height));
     }
 
     /**
-     * Operation for Addition
+     * Reads the values of a window of a grid coverage (in the grid of the
+     * coverage, starting from 0, 0) into a buffer as above
      *
-     * @param one
-     * @param two
-     * @return
+     * @param gc
+     * @param buffer
+     * @param window
+     * @return the buffer holding the values
      */
-    private int[] opAdd(int[] one, int[] two) {
-        int[] out = new int[one.length];
-        for (int i = 0; i < one.length; i++) {
-            out[i] = one[i] + two[i];
+    int[] readValues(GridCoverage2D gc, int[] buffer, Rectangle window) {
+
+        //get dimensions and data holder
+        if (buffer == null || buffer.length < window.width * window.height) {
+            buffer = new int[window.width * window.height];
         }
-        return out;
+
+        //copy the values straight out of each tile of the image
+        readTiles(gc.getRenderedImage(), window, buffer, null);
+        return buffer;
     }
 
     /**
-     * Operation for Subtraction
+     * Reads the values from a grid coverage into a floating point buffer, the
+     * buffer is only replaced if it is too small to hold the values
      *
-     * @param one
-     * @param two
-     * @return
+     * @param gc
+     * @param buffer
+     * @return the buffer holding the values
      */
-    private int[] opSubtract(int[] one, int[] two) {
-        int[] out = new int[one.length];
-        for (int i = 0; i < one.length; i++) {
-            out[i] = one[i] - two[i];
+    float[] readValues(GridCoverage2D gc, float[] buffer) {
+        final GridEnvelope2D range = gc.getGridGeometry().getGridRange2D();
+        return this.readValues(gc, buffer, new Rectangle(range.width, range.height));
+    }
+
+    /**
+     * Reads the values of a window of a grid coverage (in the grid of the
+     * coverage, starting from 0, 0) into a floating point buffer as above
+     *
+     * @param gc
+     * @param buffer
+     * @param window
+     * @return the buffer holding the values
+     */
+    float[] readValues(GridCoverage2D gc, float[] buffer, Rectangle window) {
+
+        //get dimensions and data holder
+        if (buffer == null || buffer.length < window.width * window.height) {
+            buffer = new float[window.width * window.height];
         }
-        return out;
+
+        //copy the values straight out of each tile of the image
+        readTiles(gc.getRenderedImage(), window, null, buffer);
+        return buffer;
     }
 
     /**
-     * Operation for Multiplication
+     * Copies a window of the first band of an image into either an integer or
+     * a floating point buffer (rows from the top), one tile at a time.
      *
-     * @param one
-     * @param two
-     * @return
+     * Only one tile of the image is computed at a time (and only the tiles
+     * that overlap the window), and the values are
+     * read straight from the data buffer of each tile where its layout is
+     * known (any component sample model with an integer buffer for integer
+     * values or a floating point buffer for floating point values), so each
+     * value is only copied once. Other tiles are copied a row at a time with
+     * getSamples().
+     *
+     * @param image
+     * @param window in the grid of the image, starting from 0, 0
+     * @param ints
+     * @param floats
      */
-    private int[] opMultiply(int[] one, int[] two) {
-        int[] out = new int[one.length];
-        for (int i = 0; i < one.length; i++) {
-            out[i] = one[i] * two[i];
+    private static void readTiles(RenderedImage image, Rectangle window, int[] ints,
+            float[] floats) {
+        final Rectangle bounds = new Rectangle(image.getMinX() + window.x,
+                image.getMinY() + window.y, window.width, window.height);
+        final int minTileX = Math.max(image.getMinTileX(), Math.floorDiv(
+                bounds.x - image.getTileGridXOffset(), image.getTileWidth()));
+        final int maxTileX = Math.min(image.getMinTileX() + image.getNumXTiles() - 1,
+                Math.floorDiv(bounds.x + bounds.width - 1 - image.getTileGridXOffset(),
+                        image.getTileWidth()));
+        final int minTileY = Math.max(image.getMinTileY(), Math.floorDiv(
+                bounds.y - image.getTileGridYOffset(), image.getTileHeight()));
+        final int maxTileY = Math.min(image.getMinTileY() + image.getNumYTiles() - 1,
+                Math.floorDiv(bounds.y + bounds.height - 1 - image.getTileGridYOffset(),
+                        image.getTileHeight()));
+        int[] intRow = null;
+        float[] floatRow = null;
+        Raster tile;
+        Rectangle rect;
+        int to;
+        for (int ty = minTileY; ty <= maxTileY; ty++) {
+            for (int tx = minTileX; tx <= maxTileX; tx++) {
+                tile = image.getTile(tx, ty);
+                rect = tile.getBounds().intersection(bounds);
+                if (rect.isEmpty()) {
+                    continue;
+                }
+                for (int y = rect.y; y < rect.y + rect.height; y++) {
+                    to = (y - bounds.y) * bounds.width + rect.x - bounds.x;
+                    if (copyRow(tile, rect.x, y, rect.width, ints, floats, to)) {
+                        continue;
+                    }
+
+                    //otherwise let the raster convert the values
+                    if (ints != null) {
+                        intRow = intRow != null && intRow.length >= rect.width ? intRow
+                                : new int[rect.width];
+                        tile.getSamples(rect.x, y, rect.width, 1, 0, intRow);
+                        System.arraycopy(intRow, 0, ints, to, rect.width);
+                    } else {
+                        floatRow = floatRow != null && floatRow.length >= rect.width ? floatRow
+                                : new float[rect.width];
+                        tile.getSamples(rect.x, y, rect.width, 1, 0, floatRow);
+                        System.arraycopy(floatRow, 0, floats, to, rect.width);
+                    }
+                }
+            }
         }
-        return out;
     }
 
     /**
-     * Operation for Division
+     * Copies part of a row of the first band of a tile straight from its data
+     * buffer into a buffer, if the layout of the tile allows it
      *
-     * @param one
-     * @param two
-     * @return
+     * @param tile
+     * @param x
+     * @param y
+     * @param width
+     * @param ints
+     * @param floats
+     * @param to position in the buffer of the first value
+     * @return false if the row has not been copied
      */
-    private int[] opDivide(int[] one, int[] two) {
-        int[] out = new int[one.length];
-        for (int i = 0; i < one.length; i++) {
-            out[i] = one[i] / two[i];
+    private static boolean copyRow(Raster tile, int x, int y, int width, int[] ints,
+            float[] floats, int to) {
+        if (!(tile.getSampleModel() instanceof ComponentSampleModel)) {
+            return false;
+        }
+
+        //position of the first value in its bank, and the distance between values
+        final ComponentSampleModel sampleModel = (ComponentSampleModel) tile.getSampleModel();
+        final DataBuffer data = tile.getDataBuffer();
+        final int bank = sampleModel.getBankIndices()[0];
+        final int stride = sampleModel.getPixelStride();
+        final int from = data.getOffsets()[bank] + sampleModel.getOffset(
+                x - tile.getSampleModelTranslateX(), y - tile.getSampleModelTranslateY(), 0);
+
+        if (ints != null && data instanceof DataBufferInt) {
+            final int[] values = ((DataBufferInt) data).getData(bank);
+            if (stride == 1) {
+                System.arraycopy(values, from, ints, to, width);
+            } else {
+                for (int i = 0; i < width; i++) {
+                    ints[to + i] = values[from + i * stride];
+                }
+            }
+        } else if (ints != null && data instanceof DataBufferByte) {
+            final byte[] values = ((DataBufferByte) data).getData(bank);
+            for (int i = 0; i < width; i++) {
+                ints[to + i] = values[from + i * stride] & 0xFF;
+            }
+        } else if (ints != null && data instanceof DataBufferUShort) {
+            final short[] values = ((DataBufferUShort) data).getData(bank);
+            for (int i = 0; i < width; i++) {
+                ints[to + i] = values[from + i * stride] & 0xFFFF;
+            }
+        } else if (ints != null && data instanceof DataBufferShort) {
+            final short[] values = ((DataBufferShort) data).getData(bank);
+            for (int i = 0; i < width; i++) {
+                ints[to + i] = values[from + i * stride];
+            }
+        } else if (floats != null && data instanceof DataBufferFloat) {
+            final float[] values = ((DataBufferFloat) data).getData(bank);
+            if (stride == 1) {
+                System.arraycopy(values, from, floats, to, width);
+            } else {
+                for (int i = 0; i < width; i++) {
+                    floats[to + i] = values[from + i * stride];
+                }
+            }
+        } else if (floats != null && data instanceof DataBufferDouble) {
+            final double[] values = ((DataBufferDouble) data).getData(bank);
+            for (int i = 0; i < width; i++) {
+                floats[to + i] = (float) values[from + i * stride];
+            }
+        } else {
+            return false;
         }
-        return out;
+        return true;
     }
-}
\ No newline at end of file
+}
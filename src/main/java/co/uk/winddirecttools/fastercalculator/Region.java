@@ -0,0 +1,399 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * A region of interest that the output of a RasterCalculator is limited to,
+ * either a bounding box or a polygon (in the coordinate system of the inputs)
+ *
+ * The output is sized to the bounding box of the region (buffered outwards to
+ * the grid of the inputs), inputs that do not intersect the region are
+ * skipped before any of their pixels are read and the rest are only read
+ * where they overlap the output. For a polygon, the cells of the output whose
+ * centres fall outside of it are cleared once the inputs have been applied.
+ * Polygon rings are combined with the even-odd rule, so holes and the parts
+ * of a multipolygon are all handled the same way.
+ *
+ * @author jonathan.huck
+ */
+public final class Region {
+
+    /*
+     * innermost parentheses of a WKT polygon, each holding one ring
+     */
+    private static final Pattern RING = Pattern.compile("\\(([^()]*)\\)");
+
+    /*
+     * object variables
+     */
+    private final double minX, minY, maxX, maxY;    //bounding box
+    private final List<double[]> rings;             //x, y of each vertex of each ring (empty for a box)
+
+    /**
+     * Constructor for a bounding box
+     *
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @throws IllegalArgumentException if the box is empty
+     */
+    public Region(double minX, double minY, double maxX, double maxY) {
+        if (!(minX < maxX && minY < maxY)) {
+            throw new IllegalArgumentException("Region " + minX + "," + minY + "," + maxX + ","
+                    + maxY + " is empty");
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.rings = new ArrayList<double[]>();
+    }
+
+    /**
+     * Constructor for a polygon, from the vertices of each of its rings
+     *
+     * @param rings
+     */
+    private Region(List<double[]> rings) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (double[] ring : rings) {
+            for (int i = 0; i < ring.length; i += 2) {
+                minX = Math.min(minX, ring[i]);
+                maxX = Math.max(maxX, ring[i]);
+                minY = Math.min(minY, ring[i + 1]);
+                maxY = Math.max(maxY, ring[i + 1]);
+            }
+        }
+        if (!(minX < maxX && minY < maxY)) {
+            throw new IllegalArgumentException("Region polygon is empty");
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.rings = rings;
+    }
+
+    /**
+     * Returns a region from either a bounding box (minx,miny,maxx,maxy) or the
+     * WKT of a POLYGON or MULTIPOLYGON
+     *
+     * @param text
+     * @return
+     * @throws IllegalArgumentException if the text is not a valid region
+     */
+    public static Region parse(String text) {
+        text = text.trim();
+        if (!text.isEmpty() && Character.isLetter(text.charAt(0))) {
+            return parseWkt(text);
+        }
+        final String[] values = text.split(",");
+        if (values.length != 4) {
+            throw new IllegalArgumentException("Region must be minx,miny,maxx,maxy or WKT, not "
+                    + text);
+        }
+        try {
+            return new Region(Double.parseDouble(values[0].trim()),
+                    Double.parseDouble(values[1].trim()), Double.parseDouble(values[2].trim()),
+                    Double.parseDouble(values[3].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid region " + text, e);
+        }
+    }
+
+    /**
+     * Returns a region from the WKT of a POLYGON or MULTIPOLYGON
+     *
+     * @param wkt
+     * @return
+     */
+    private static Region parseWkt(String wkt) {
+        final String type = wkt.toUpperCase();
+        if (!type.startsWith("POLYGON") && !type.startsWith("MULTIPOLYGON")) {
+            throw new IllegalArgumentException("Region must be a POLYGON or MULTIPOLYGON, not "
+                    + wkt);
+        }
+
+        //read the vertices of each ring
+        final List<double[]> rings = new ArrayList<double[]>();
+        final Matcher matcher = RING.matcher(wkt);
+        String[] points, xy;
+        double[] ring;
+        while (matcher.find()) {
+            points = matcher.group(1).trim().split("\\s*,\\s*");
+            if (points.length < 3) {
+                throw new IllegalArgumentException("Region rings need at least 3 points: " + wkt);
+            }
+            ring = new double[points.length * 2];
+            for (int i = 0; i < points.length; i++) {
+                xy = points[i].trim().split("\\s+");
+                if (xy.length < 2) {
+                    throw new IllegalArgumentException("Invalid point " + points[i] + " in " + wkt);
+                }
+                try {
+                    ring[2 * i] = Double.parseDouble(xy[0]);
+                    ring[2 * i + 1] = Double.parseDouble(xy[1]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid point " + points[i] + " in " + wkt, e);
+                }
+            }
+            rings.add(ring);
+        }
+        if (rings.isEmpty()) {
+            throw new IllegalArgumentException("Region polygon has no rings: " + wkt);
+        }
+        return new Region(rings);
+    }
+
+    /**
+     * Returns true if the region is a polygon rather than a bounding box
+     *
+     * @return
+     */
+    public boolean isPolygon() {
+        return !this.rings.isEmpty();
+    }
+
+    /**
+     * Returns true if the region overlaps an envelope
+     *
+     * @param envelope
+     * @return
+     */
+    public boolean intersects(Envelope2D envelope) {
+        return this.intersects(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(),
+                envelope.getMaxY());
+    }
+
+    /**
+     * Returns true if the region overlaps a box
+     *
+     * @param x0
+     * @param y0
+     * @param x1
+     * @param y1
+     * @return
+     */
+    boolean intersects(double x0, double y0, double x1, double y1) {
+        if (!(x0 < this.maxX && x1 > this.minX && y0 < this.maxY && y1 > this.minY)) {
+            return false;
+        }
+        if (this.rings.isEmpty()) {
+            return true;
+        }
+
+        //an edge of the polygon crosses the envelope, or else the envelope is
+        //either wholly inside or wholly outside of the polygon
+        for (double[] ring : this.rings) {
+            for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+                if (crosses(ring[j], ring[j + 1], ring[i], ring[i + 1], x0, y0, x1, y1)) {
+                    return true;
+                }
+            }
+        }
+        return this.contains((x0 + x1) / 2, (y0 + y1) / 2);
+    }
+
+    /**
+     * Returns true if part of a line segment is inside a box (Liang-Barsky)
+     *
+     * @param ax
+     * @param ay
+     * @param bx
+     * @param by
+     * @param x0
+     * @param y0
+     * @param x1
+     * @param y1
+     * @return
+     */
+    private static boolean crosses(double ax, double ay, double bx, double by,
+            double x0, double y0, double x1, double y1) {
+        final double dx = bx - ax, dy = by - ay;
+        final double[] p = {-dx, dx, -dy, dy};
+        final double[] q = {ax - x0, x1 - ax, ay - y0, y1 - ay};
+        double enter = 0, exit = 1, t;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return false;
+                }
+            } else {
+                t = q[i] / p[i];
+                if (p[i] < 0) {
+                    enter = Math.max(enter, t);
+                } else {
+                    exit = Math.min(exit, t);
+                }
+            }
+        }
+        return enter <= exit;
+    }
+
+    /**
+     * Returns true if a point is inside the region
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    public boolean contains(double x, double y) {
+        if (x < this.minX || x >= this.maxX || y < this.minY || y >= this.maxY) {
+            return false;
+        }
+        boolean inside = this.rings.isEmpty();
+        for (double[] ring : this.rings) {
+            for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+                if ((ring[i + 1] > y) != (ring[j + 1] > y) && x < ring[j]
+                        + (y - ring[j + 1]) * (ring[i] - ring[j]) / (ring[i + 1] - ring[j + 1])) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Returns the bounding box of the region, buffered outwards to a grid of
+     * the given resolution
+     *
+     * @param resolution
+     * @param crs
+     * @return
+     */
+    Envelope2D getEnvelope(int resolution, CoordinateReferenceSystem crs) {
+        final DirectPosition2D bl = new DirectPosition2D(crs,
+                Math.floor(this.minX / resolution) * resolution,
+                Math.floor(this.minY / resolution) * resolution);
+        final DirectPosition2D tr = new DirectPosition2D(crs,
+                Math.ceil(this.maxX / resolution) * resolution,
+                Math.ceil(this.maxY / resolution) * resolution);
+        return new Envelope2D(bl, tr);
+    }
+
+    /**
+     * Clears the cells of an output whose centres are outside of the region,
+     * one row at a time (nothing is cleared for a bounding box, as the output
+     * is already limited to it)
+     *
+     * @param accumulator
+     * @param envelope extent of the output
+     * @param resolution
+     * @throws IOException
+     */
+    void clip(Accumulator accumulator, Envelope2D envelope, double resolution)
+            throws IOException {
+        if (this.rings.isEmpty()) {
+            return;
+        }
+        final long start = Metrics.getInstance().start();
+        final int width = accumulator.getWidth();
+        final double[] zeros = new double[width];
+        double[] crossings = new double[16];
+        int n, from, to;
+        double y, x;
+        for (int row = 0; row < accumulator.getHeight(); row++) {
+
+            //where the centre line of the row crosses each edge
+            y = envelope.getMaxY() - (row + 0.5) * resolution;
+            n = 0;
+            for (double[] ring : this.rings) {
+                for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+                    if ((ring[i + 1] > y) != (ring[j + 1] > y)) {
+                        if (n == crossings.length) {
+                            crossings = Arrays.copyOf(crossings, n * 2);
+                        }
+                        x = ring[j] + (y - ring[j + 1]) * (ring[i] - ring[j])
+                                / (ring[i + 1] - ring[j + 1]);
+                        crossings[n++] = (x - envelope.getMinX()) / resolution - 0.5;
+                    }
+                }
+            }
+            Arrays.sort(crossings, 0, n);
+
+            //clear the columns between each span inside the polygon
+            from = 0;
+            for (int i = 0; i <= n; i += 2) {
+                to = i < n ? (int) Math.max(0, Math.min(width, Math.ceil(crossings[i]))) : width;
+                if (to > from) {
+                    accumulator.writeRow(row, from, to - from, zeros);
+                }
+                from = i < n ? (int) Math.max(0, Math.min(width, Math.ceil(crossings[i + 1])))
+                        : width;
+                from = Math.max(from, to);
+            }
+        }
+        Metrics.getInstance().end(Metrics.Stage.CLIP, start);
+    }
+
+    /*
+     * accessor methods
+     */
+    /**
+     * Return the smallest x coordinate of the region
+     *
+     * @return
+     */
+    double getMinX() {
+        return this.minX;
+    }
+
+    /**
+     * Return the smallest y coordinate of the region
+     *
+     * @return
+     */
+    double getMinY() {
+        return this.minY;
+    }
+
+    /**
+     * Return the largest x coordinate of the region
+     *
+     * @return
+     */
+    double getMaxX() {
+        return this.maxX;
+    }
+
+    /**
+     * Return the largest y coordinate of the region
+     *
+     * @return
+     */
+    double getMaxY() {
+        return this.maxY;
+    }
+
+    /**
+     * Returns the region as text, in the form that parse() reads
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        if (this.rings.isEmpty()) {
+            return this.minX + "," + this.minY + "," + this.maxX + "," + this.maxY;
+        }
+        final StringBuilder wkt = new StringBuilder("MULTIPOLYGON(");
+        for (int r = 0; r < this.rings.size(); r++) {
+            wkt.append(r > 0 ? ",((" : "((");
+            final double[] ring = this.rings.get(r);
+            for (int i = 0; i < ring.length; i += 2) {
+                wkt.append(i > 0 ? "," : "").append(ring[i]).append(' ').append(ring[i + 1]);
+            }
+            wkt.append("))");
+        }
+        return wkt.append(')').toString();
+    }
+}
@@ -0,0 +1,38 @@
+package co.uk.winddirecttools.fastercalculator;
+
+/**
+ * An alternative implementation of the int and float span kernels (see
+ * Kernels.applySpan), used where it is faster than the scalar loops
+ *
+ * @author jonathan.huck
+ */
+interface SpanKernels {
+
+    /**
+     * Applies a run of input values to a run of int output values
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @return false if the operation is not supported, in which case nothing
+     * has been applied
+     */
+    boolean apply(int operation, int[] src, int s, int[] dst, int d, int length);
+
+    /**
+     * Applies a run of input values to a run of float output values
+     *
+     * @param operation
+     * @param src
+     * @param s
+     * @param dst
+     * @param d
+     * @param length
+     * @return false if the operation is not supported, in which case nothing
+     * has been applied
+     */
+    boolean apply(int operation, float[] src, int s, float[] dst, int d, int length);
+}
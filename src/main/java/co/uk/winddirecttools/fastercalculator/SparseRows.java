@@ -0,0 +1,345 @@
+package co.uk.winddirecttools.fastercalculator;
+
+/**
+ * A sparse form of a masked input, holding the bounding box of its non-zero
+ * cells and the runs of non-zero cells in each row
+ *
+ * Most of a viewshed is 0, and everything outside of the radius is treated as
+ * 0, so for operations where an input value of 0 leaves the output unchanged
+ * (ADD and COUNT) only the non-zero runs need to be applied. The runs are found
+ * in a single read-only pass over the part of each row that is inside the
+ * mask, and are held as [start, end) pairs of columns with an index of the
+ * first run of each row. An input is only worth applying in this form if it
+ * is sparse enough, so build() gives up once the cost of the runs (the cells
+ * they cover plus an overhead for each run) passes an eighth of the cells
+ * inside the mask, beyond which finding and applying the runs is no quicker
+ * than applying the whole span of each row.
+ *
+ * The arrays are re-used each time the rows are built, so the same object can
+ * be used for one input after another.
+ *
+ * @author jonathan.huck
+ */
+final class SparseRows {
+
+    /*
+     * false to always apply every cell (-Dfastercalculator.sparse=false)
+     */
+    private static final boolean ENABLED = Boolean.parseBoolean(
+            System.getProperty("fastercalculator.sparse", "true"));
+
+    /*
+     * cost of applying each run, in cells
+     */
+    private static final int RUN_COST = 16;
+
+    /*
+     * object variables
+     */
+    private RadiusMask mask;                //mask the runs were built within
+    private int width, height;              //block dimensions
+    private int top, bottom, left, right;   //bounding box of the non-zero cells
+    private int[] firstRuns = new int[1];   //index of the first run of each row (and one past the last)
+    private int[] runs = new int[64];       //start and end column of each run
+    private int count;                      //number of runs
+    private long cells;                     //number of non-zero cells
+
+    /**
+     * Returns true if applying only the non-zero cells of an input gives the
+     * same result as applying every cell
+     *
+     * @param operation
+     * @return
+     */
+    static boolean supports(int operation) {
+        return ENABLED && (operation == RasterCalculator.ADD || operation == RasterCalculator.COUNT);
+    }
+
+    /**
+     * Returns true if every operation supports sparse inputs
+     *
+     * @param operations
+     * @return
+     */
+    static boolean supports(int[] operations) {
+        for (int operation : operations) {
+            if (!supports(operation)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the non-zero runs of a block of integer values within a mask,
+     * returning false if the block is too dense to be worth applying as runs
+     *
+     * @param values
+     * @param mask
+     * @return
+     */
+    boolean build(int[] values, RadiusMask mask) {
+        this.reset(mask);
+        final long limit = this.getLimit(mask);
+        final int w = mask.getWidth();
+        int col, end, s;
+        for (int row = 0; row < this.height; row++) {
+            s = row * w;
+            col = mask.getStart(row);
+            end = mask.getEnd(row);
+            while (col < end) {
+
+                //skip the zeros (8 at a time where possible), then find the end of the run
+                while (col + 8 <= end && (values[s + col] | values[s + col + 1]
+                        | values[s + col + 2] | values[s + col + 3] | values[s + col + 4]
+                        | values[s + col + 5] | values[s + col + 6] | values[s + col + 7]) == 0) {
+                    col += 8;
+                }
+                while (col < end && values[s + col] == 0) {
+                    col++;
+                }
+                if (col < end) {
+                    final int start = col;
+                    while (col < end && values[s + col] != 0) {
+                        col++;
+                    }
+                    this.addRun(row, start, col);
+                }
+            }
+            this.firstRuns[row + 1] = this.count;
+            if (this.cells + RUN_COST * this.count > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the non-zero runs of a block of floating point values within a
+     * mask, returning false if the block is too dense to be worth applying as
+     * runs
+     *
+     * @param values
+     * @param mask
+     * @return
+     */
+    boolean build(float[] values, RadiusMask mask) {
+        this.reset(mask);
+        final long limit = this.getLimit(mask);
+        final int w = mask.getWidth();
+        int col, end, s;
+        for (int row = 0; row < this.height; row++) {
+            s = row * w;
+            col = mask.getStart(row);
+            end = mask.getEnd(row);
+            while (col < end) {
+
+                //skip the zeros (8 at a time where possible, comparing the bits so
+                //that -0 counts as non-zero, which is harmless), then find the end
+                //of the run
+                while (col + 8 <= end && (bits(values[s + col]) | bits(values[s + col + 1])
+                        | bits(values[s + col + 2]) | bits(values[s + col + 3])
+                        | bits(values[s + col + 4]) | bits(values[s + col + 5])
+                        | bits(values[s + col + 6]) | bits(values[s + col + 7])) == 0) {
+                    col += 8;
+                }
+                while (col < end && values[s + col] == 0) {
+                    col++;
+                }
+                if (col < end) {
+                    final int start = col;
+                    while (col < end && values[s + col] != 0) {
+                        col++;
+                    }
+                    this.addRun(row, start, col);
+                }
+            }
+            this.firstRuns[row + 1] = this.count;
+            if (this.cells + RUN_COST * this.count > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the mask that the runs were built within
+     *
+     * @return
+     */
+    RadiusMask getMask() {
+        return this.mask;
+    }
+
+    /**
+     * Return the width of the block
+     *
+     * @return
+     */
+    int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Return the height of the block
+     *
+     * @return
+     */
+    int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Return the first row with a non-zero cell
+     *
+     * @return
+     */
+    int getTop() {
+        return this.top;
+    }
+
+    /**
+     * Return the row after the last row with a non-zero cell
+     *
+     * @return
+     */
+    int getBottom() {
+        return this.bottom;
+    }
+
+    /**
+     * Return the first column with a non-zero cell
+     *
+     * @return
+     */
+    int getLeft() {
+        return this.left;
+    }
+
+    /**
+     * Return the column after the last column with a non-zero cell
+     *
+     * @return
+     */
+    int getRight() {
+        return this.right;
+    }
+
+    /**
+     * Return the index of the first run of a row, the runs of the row end at
+     * the first run of the next row
+     *
+     * @param row
+     * @return
+     */
+    int getFirstRun(int row) {
+        return this.firstRuns[row];
+    }
+
+    /**
+     * Return the first column of a run
+     *
+     * @param run
+     * @return
+     */
+    int getRunStart(int run) {
+        return this.runs[2 * run];
+    }
+
+    /**
+     * Return the column after the last column of a run
+     *
+     * @param run
+     * @return
+     */
+    int getRunEnd(int run) {
+        return this.runs[2 * run + 1];
+    }
+
+    /**
+     * Return the number of non-zero cells
+     *
+     * @return
+     */
+    long getCells() {
+        return this.cells;
+    }
+
+    /**
+     * Returns true if there are no non-zero cells
+     *
+     * @return
+     */
+    boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * Return the bits of a float value
+     *
+     * @param value
+     * @return
+     */
+    private static int bits(float value) {
+        return Float.floatToRawIntBits(value);
+    }
+
+    /**
+     * Clears the runs ready to be built for a block of the mask's dimensions
+     *
+     * @param mask
+     */
+    private void reset(RadiusMask mask) {
+        this.mask = mask;
+        this.width = mask.getWidth();
+        this.height = mask.getHeight();
+        this.top = this.height;
+        this.bottom = 0;
+        this.left = this.width;
+        this.right = 0;
+        this.count = 0;
+        this.cells = 0;
+        if (this.firstRuns.length < this.height + 1) {
+            this.firstRuns = new int[this.height + 1];
+        }
+        this.firstRuns[0] = 0;
+    }
+
+    /**
+     * Return the largest cost of the runs that is worth applying (an eighth
+     * of the cells inside the mask)
+     *
+     * @param mask
+     * @return
+     */
+    private long getLimit(RadiusMask mask) {
+        long inside = 0;
+        for (int row = 0; row < mask.getHeight(); row++) {
+            inside += mask.getEnd(row) - mask.getStart(row);
+        }
+        return inside / 8;
+    }
+
+    /**
+     * Adds a run to the end of a row, growing the bounding box to fit it
+     *
+     * @param row
+     * @param start
+     * @param end
+     */
+    private void addRun(int row, int start, int end) {
+        if (2 * this.count + 2 > this.runs.length) {
+            final int[] grown = new int[this.runs.length * 2];
+            System.arraycopy(this.runs, 0, grown, 0, 2 * this.count);
+            this.runs = grown;
+        }
+        this.runs[2 * this.count] = start;
+        this.runs[2 * this.count + 1] = end;
+        this.count++;
+        this.cells += end - start;
+        this.top = Math.min(this.top, row);
+        this.bottom = row + 1;
+        this.left = Math.min(this.left, start);
+        this.right = Math.max(this.right, end);
+    }
+}
@@ -0,0 +1,20 @@
+package co.uk.winddirecttools.fastercalculator;
+
+/**
+ * Publishes the time spent in each stage of a run somewhere outside of
+ * Metrics, such as to Flight Recorder (see JfrStageRecorder)
+ *
+ * @author jonathan.huck
+ */
+interface StageRecorder {
+
+    /**
+     * Publishes one stage that has ended
+     *
+     * @param stage
+     * @param file may be null
+     * @param elapsed in nanoseconds
+     * @param cells number of cells decoded or accumulated
+     */
+    void record(String stage, String file, long elapsed, long cells);
+}
@@ -0,0 +1,39 @@
+package co.uk.winddirecttools.fastercalculator;
+
+/**
+ * The statistics that RasterCalculator.statistics() can compute for each cell
+ * of the output in a single pass over the inputs
+ *
+ * Each input covers the cells within its radius, and the statistics of a cell
+ * are taken over the values of the inputs that cover it (cells that no input
+ * covers are 0). MEAN and STDDEV are updated online with Welford's method, and
+ * STDDEV is the population standard deviation.
+ *
+ * @author jonathan.huck
+ */
+public enum Statistic {
+
+    COUNT,     //number of non-zero values (as for the COUNT operation)
+    SUM,       //sum of the values
+    MIN,       //smallest value
+    MAX,       //largest value
+    MEAN,      //mean of the values
+    STDDEV;    //standard deviation of the values
+
+    /**
+     * Returns the statistics named in a comma separated list (e.g.
+     * "count,sum,max"), in the order given
+     *
+     * @param names
+     * @return
+     * @throws IllegalArgumentException if a name is not a statistic
+     */
+    public static Statistic[] parse(String names) {
+        final String[] split = names.split(",");
+        final Statistic[] statistics = new Statistic[split.length];
+        for (int i = 0; i < split.length; i++) {
+            statistics[i] = Statistic.valueOf(split[i].trim().toUpperCase());
+        }
+        return statistics;
+    }
+}
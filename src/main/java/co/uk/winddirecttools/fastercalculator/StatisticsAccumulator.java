@@ -0,0 +1,621 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Vector;
+import javax.media.jai.PlanarImage;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * An output that builds a set of statistics (see Statistic) for each cell in
+ * a single pass over the inputs, and is written as one band per statistic
+ *
+ * Only the running state that the statistics need is kept, each in a grid of
+ * its own (held in memory or tiled on disk within an equal share of the
+ * memory budget): the number of values, the running mean and sum of squared
+ * differences from it (Welford's method), the minimum, maximum, sum and count
+ * of non-zero values. Each input updates every cell inside its radius, and no
+ * intermediate values are kept for the inputs themselves. The state is held as
+ * FLOAT, as are the bands of the output, which are only computed from the
+ * state one tile at a time as each tile of the coverage is requested.
+ *
+ * Inputs are applied with the STATISTICS operation (the operation that is
+ * passed is not used). getType() returns FLOAT so that the calculator passes
+ * floating point values, but integer values are applied in the same way, and
+ * sparse inputs are applied as every cell inside their mask (as values of 0
+ * still count towards the statistics). Writing a value to a cell replaces its
+ * state with that of a single input of the value, so writing 0 gives the same
+ * statistics as no inputs at all.
+ *
+ * @author jonathan.huck
+ */
+final class StatisticsAccumulator implements Accumulator {
+
+    /*
+     * positions of the state grids
+     */
+    private static final int N = 0;
+    private static final int MEAN = 1;
+    private static final int M2 = 2;
+    private static final int MIN = 3;
+    private static final int MAX = 4;
+    private static final int SUM = 5;
+    private static final int COUNT = 6;
+    private static final int INPUT = 7;    //(buffer for the input values)
+
+    /*
+     * object variables
+     */
+    private final Statistic[] statistics;    //statistics in band order
+    private final Accumulator[] state = new Accumulator[7];    //running state (null if not needed)
+    private final int width, height;         //grid dimensions
+    private final ThreadLocal<double[][]> buffers = new ThreadLocal<double[][]>();    //row buffers for each thread
+
+    /**
+     * Constructor, creates the state grids needed for the statistics
+     *
+     * @param statistics
+     * @param calculator calculator whose memory budget is shared by the grids
+     * @param envelope
+     * @param resolution
+     * @throws IOException
+     */
+    StatisticsAccumulator(Statistic[] statistics, RasterCalculator calculator,
+            Envelope2D envelope, double resolution) throws IOException {
+        this(statistics, calculator, envelope, resolution, 0, 0);
+    }
+
+    /**
+     * Constructor, creates the state grids needed for the statistics in memory
+     *
+     * @param statistics
+     * @param width
+     * @param height
+     * @throws IOException
+     */
+    StatisticsAccumulator(Statistic[] statistics, int width, int height) throws IOException {
+        this(statistics, null, null, 0, width, height);
+    }
+
+    /**
+     * Constructor, creates the state grids through the calculator or, if it
+     * is null, in memory at the given dimensions
+     *
+     * @param statistics
+     * @param calculator
+     * @param envelope
+     * @param resolution
+     * @param width
+     * @param height
+     * @throws IOException
+     */
+    private StatisticsAccumulator(Statistic[] statistics, RasterCalculator calculator,
+            Envelope2D envelope, double resolution, int width, int height) throws IOException {
+        this.statistics = statistics.clone();
+
+        //work out which state is needed
+        final boolean[] needed = new boolean[this.state.length];
+        for (Statistic statistic : statistics) {
+            switch (statistic) {
+                case COUNT:
+                    needed[COUNT] = true;
+                    break;
+                case SUM:
+                    needed[SUM] = true;
+                    break;
+                case MIN:
+                    needed[N] = needed[MIN] = true;
+                    break;
+                case MAX:
+                    needed[N] = needed[MAX] = true;
+                    break;
+                case MEAN:
+                    needed[N] = needed[MEAN] = true;
+                    break;
+                case STDDEV:
+                    needed[N] = needed[MEAN] = needed[M2] = true;
+                    break;
+            }
+        }
+
+        //create the grids, sharing the budget between them
+        int grids = 0;
+        for (boolean n : needed) {
+            grids += n ? 1 : 0;
+        }
+        if (grids == 0) {
+            throw new IllegalArgumentException("At least one statistic is needed");
+        }
+        final long budget = calculator != null ? calculator.getMemoryBudget() / grids : 0;
+        Accumulator first = null;
+        AccumulatorType type;
+        for (int i = 0; i < this.state.length; i++) {
+            if (needed[i]) {
+                type = i == N || i == COUNT ? AccumulatorType.INT : AccumulatorType.FLOAT;
+                this.state[i] = calculator != null
+                        ? calculator.getAccumulator(envelope, resolution, type, budget)
+                        : new RasterAccumulator(type, width, height);
+                first = first != null ? first : this.state[i];
+            }
+        }
+        this.width = first.getWidth();
+        this.height = first.getHeight();
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public AccumulatorType getType() {
+        return AccumulatorType.FLOAT;
+    }
+
+    /**
+     * Return the statistics, in band order
+     *
+     * @return
+     */
+    Statistic[] getStatistics() {
+        return this.statistics.clone();
+    }
+
+    public void apply(int operation, int[] values, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        this.apply(values, null, mask, x, y, firstRow, lastRow);
+    }
+
+    public void apply(int operation, float[] values, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        this.apply(null, values, mask, x, y, firstRow, lastRow);
+    }
+
+    /**
+     * Applies every cell of a sparse input that is inside its mask, as values
+     * of 0 still count towards the statistics
+     *
+     * @param operation
+     * @param values
+     * @param rows
+     * @param x
+     * @param y
+     * @param firstRow
+     * @param lastRow
+     * @throws IOException
+     */
+    public void apply(int operation, int[] values, SparseRows rows, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        this.apply(values, null, rows.getMask(), x, y, firstRow, lastRow);
+    }
+
+    /**
+     * Applies every cell of a sparse input that is inside its mask, as values
+     * of 0 still count towards the statistics
+     *
+     * @param operation
+     * @param values
+     * @param rows
+     * @param x
+     * @param y
+     * @param firstRow
+     * @param lastRow
+     * @throws IOException
+     */
+    public void apply(int operation, float[] values, SparseRows rows, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        this.apply(null, values, rows.getMask(), x, y, firstRow, lastRow);
+    }
+
+    /**
+     * Updates the state of the span of each row of a block of integer or
+     * floating point values that is inside the mask
+     *
+     * @param ints
+     * @param floats or null for integer values
+     * @param mask
+     * @param x
+     * @param y
+     * @param firstRow
+     * @param lastRow
+     * @throws IOException
+     */
+    private void apply(int[] ints, float[] floats, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        final double[][] rows = this.getBuffers(mask.getWidth());
+        final double[] input = rows[INPUT];
+        final int w = mask.getWidth();
+        int start, length, s;
+        for (int row = firstRow; row < lastRow; row++) {
+            start = mask.getStart(row);
+            length = mask.getEnd(row) - start;
+            if (length <= 0) {
+                continue;
+            }
+            s = row * w + start;
+            for (int i = 0; i < length; i++) {
+                input[i] = floats != null ? floats[s + i] : ints[s + i];
+            }
+            for (int i = 0; i < this.state.length; i++) {
+                if (this.state[i] != null) {
+                    this.state[i].readRow(y + row, x + start, length, rows[i]);
+                }
+            }
+            this.update(input, rows, length);
+            for (int i = 0; i < this.state.length; i++) {
+                if (this.state[i] != null) {
+                    this.state[i].writeRow(y + row, x + start, length, rows[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a run of input values to the state of a run of cells
+     *
+     * @param values
+     * @param rows state of the cells
+     * @param length
+     */
+    private void update(double[] values, double[][] rows, int length) {
+        double v, delta;
+        if (this.state[COUNT] != null) {
+            for (int i = 0; i < length; i++) {
+                rows[COUNT][i] += values[i] != 0 ? 1 : 0;
+            }
+        }
+        if (this.state[SUM] != null) {
+            for (int i = 0; i < length; i++) {
+                rows[SUM][i] += values[i];
+            }
+        }
+        if (this.state[MIN] != null) {
+            for (int i = 0; i < length; i++) {
+                v = values[i];
+                rows[MIN][i] = rows[N][i] == 0 ? v : Math.min(rows[MIN][i], v);
+            }
+        }
+        if (this.state[MAX] != null) {
+            for (int i = 0; i < length; i++) {
+                v = values[i];
+                rows[MAX][i] = rows[N][i] == 0 ? v : Math.max(rows[MAX][i], v);
+            }
+        }
+        if (this.state[MEAN] != null) {
+
+            //Welford's method (the sum of squares is only kept for STDDEV)
+            for (int i = 0; i < length; i++) {
+                v = values[i];
+                delta = v - rows[MEAN][i];
+                rows[MEAN][i] += delta / (rows[N][i] + 1);
+                if (this.state[M2] != null) {
+                    rows[M2][i] += delta * (v - rows[MEAN][i]);
+                }
+            }
+        }
+        if (this.state[N] != null) {
+            for (int i = 0; i < length; i++) {
+                rows[N][i]++;
+            }
+        }
+    }
+
+    /**
+     * Copies one row of the first statistic into an array of doubles
+     *
+     * @param y
+     * @param values
+     * @throws IOException
+     */
+    public void readRow(int y, double[] values) throws IOException {
+        this.readRow(y, 0, this.width, values);
+    }
+
+    /**
+     * Replaces the state of one row with that of a single input of each value
+     *
+     * @param y
+     * @param values
+     * @throws IOException
+     */
+    public void writeRow(int y, double[] values) throws IOException {
+        this.writeRow(y, 0, this.width, values);
+    }
+
+    /**
+     * Copies part of one row of the first statistic into an array of doubles
+     *
+     * @param y
+     * @param x
+     * @param length
+     * @param values
+     * @throws IOException
+     */
+    public void readRow(int y, int x, int length, double[] values) throws IOException {
+        final double[][] rows = this.getBuffers(length);
+        this.readStatistic(0, y, x, length, rows, values);
+    }
+
+    /**
+     * Replaces the state of part of one row with that of a single input of
+     * each value (writing 0 gives the same statistics as no inputs)
+     *
+     * @param y
+     * @param x
+     * @param length
+     * @param values
+     * @throws IOException
+     */
+    public void writeRow(int y, int x, int length, double[] values) throws IOException {
+        final double[][] rows = this.getBuffers(length);
+        for (int i = 0; i < length; i++) {
+            rows[N][i] = 1;
+            rows[MEAN][i] = rows[MIN][i] = rows[MAX][i] = rows[SUM][i] = values[i];
+            rows[M2][i] = 0;
+            rows[COUNT][i] = values[i] != 0 ? 1 : 0;
+        }
+        for (int i = 0; i < this.state.length; i++) {
+            if (this.state[i] != null) {
+                this.state[i].writeRow(y, x, length, rows[i]);
+            }
+        }
+    }
+
+    /**
+     * Computes part of one row of one statistic from the state
+     *
+     * @param band
+     * @param y
+     * @param x
+     * @param length
+     * @param rows buffers for the state
+     * @param values
+     * @throws IOException
+     */
+    private void readStatistic(int band, int y, int x, int length, double[][] rows,
+            double[] values) throws IOException {
+        final int source;
+        switch (this.statistics[band]) {
+            case COUNT:
+                source = COUNT;
+                break;
+            case SUM:
+                source = SUM;
+                break;
+            case MIN:
+                source = MIN;
+                break;
+            case MAX:
+                source = MAX;
+                break;
+            case MEAN:
+                source = MEAN;
+                break;
+            default:
+                source = M2;
+        }
+        this.state[source].readRow(y, x, length, values);
+
+        //the standard deviation is sqrt(M2 / n), cells without inputs are 0
+        if (this.statistics[band] == Statistic.STDDEV) {
+            this.state[N].readRow(y, x, length, rows[N]);
+            for (int i = 0; i < length; i++) {
+                values[i] = rows[N][i] > 0 ? Math.sqrt(Math.max(0, values[i] / rows[N][i])) : 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the row buffers of this thread, growing them to at least length
+     *
+     * @param length
+     * @return
+     */
+    private double[][] getBuffers(int length) {
+        double[][] rows = this.buffers.get();
+        if (rows == null || rows[0].length < length) {
+            rows = new double[this.state.length + 1][length];
+            this.buffers.set(rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns a histogram of the non-zero values of the first statistic (as
+     * read by readRow()), computed from the state when this is called
+     *
+     * @return
+     * @throws IOException
+     */
+    public Histogram getHistogram() throws IOException {
+        final Histogram histogram = new Histogram();
+        final double[] values = new double[this.width];
+        for (int y = 0; y < this.height; y++) {
+            this.readRow(y, values);
+            for (int x = 0; x < this.width; x++) {
+                histogram.add(values[x]);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Wraps the statistics in a grid coverage with one FLOAT band for each
+     * statistic. The bands of each tile are computed from the state when the
+     * tile is requested, so the coverage is never held in memory as a whole.
+     *
+     * @param factory
+     * @param name
+     * @param envelope
+     * @return
+     */
+    public GridCoverage2D toCoverage(GridCoverageFactory factory, CharSequence name,
+            Envelope2D envelope) {
+        return factory.create(name, this.toImage(), envelope);
+    }
+
+    /**
+     * Returns a read-only view of the statistics as a tiled image, with one
+     * band for each statistic
+     *
+     * @return
+     */
+    RenderedImage toImage() {
+        return new StatisticsImage();
+    }
+
+    /**
+     * Closes the grid of each part of the state
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        for (Accumulator grid : this.state) {
+            if (grid != null) {
+                grid.close();
+            }
+        }
+    }
+
+    /**
+     * A read-only view of the statistics as a tiled image, the bands of each
+     * tile are computed from the state when it is requested
+     */
+    private final class StatisticsImage implements RenderedImage {
+
+        private final int tileSize = TiledAccumulator.DEFAULT_TILE_SIZE;
+        private final SampleModel sampleModel = new BandedSampleModel(DataBuffer.TYPE_FLOAT,
+                this.tileSize, this.tileSize, statistics.length);
+        private final ColorModel colorModel = PlanarImage.createColorModel(this.sampleModel);
+
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        public ColorModel getColorModel() {
+            return this.colorModel;
+        }
+
+        public SampleModel getSampleModel() {
+            return this.sampleModel;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getMinX() {
+            return 0;
+        }
+
+        public int getMinY() {
+            return 0;
+        }
+
+        public int getNumXTiles() {
+            return (width + this.tileSize - 1) / this.tileSize;
+        }
+
+        public int getNumYTiles() {
+            return (height + this.tileSize - 1) / this.tileSize;
+        }
+
+        public int getMinTileX() {
+            return 0;
+        }
+
+        public int getMinTileY() {
+            return 0;
+        }
+
+        public int getTileWidth() {
+            return this.tileSize;
+        }
+
+        public int getTileHeight() {
+            return this.tileSize;
+        }
+
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        public Raster getTile(int tileX, int tileY) {
+            final int x = tileX * this.tileSize;
+            final int top = tileY * this.tileSize;
+            final WritableRaster raster = Raster.createWritableRaster(this.sampleModel,
+                    new Point(x, top));
+
+            //compute each band of the part of each row that is on the image
+            final int length = Math.min(this.tileSize, width - x);
+            final int bottom = Math.min(height, top + this.tileSize);
+            final double[][] rows = getBuffers(length);
+            final double[] values = new double[length];
+            try {
+                for (int y = top; y < bottom; y++) {
+                    for (int band = 0; band < statistics.length; band++) {
+                        readStatistic(band, y, x, length, rows, values);
+                        raster.setSamples(x, y, length, 1, band, values);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read statistics", e);
+            }
+            return raster;
+        }
+
+        public Raster getData() {
+            return this.getData(new Rectangle(0, 0, width, height));
+        }
+
+        public Raster getData(Rectangle rect) {
+            return this.copyData(Raster.createWritableRaster(
+                    this.sampleModel.createCompatibleSampleModel(rect.width, rect.height),
+                    new Point(rect.x, rect.y)));
+        }
+
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = Raster.createWritableRaster(
+                        this.sampleModel.createCompatibleSampleModel(width, height), null);
+            }
+
+            //copy each tile that overlaps the raster
+            final Rectangle bounds = raster.getBounds();
+            for (int ty = bounds.y / this.tileSize; ty <= (bounds.y + bounds.height - 1) / this.tileSize; ty++) {
+                for (int tx = bounds.x / this.tileSize; tx <= (bounds.x + bounds.width - 1) / this.tileSize; tx++) {
+                    raster.setRect(this.getTile(tx, ty));
+                }
+            }
+            return raster;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/**
+ * A read-only RGBA view of the first band of an image styled with a
+ * ColorTable, each tile is styled from the same tile of the source when it is
+ * requested
+ *
+ * Nothing is held between requests, so writing this image with
+ * TiledGeoTiffWriter styles the output one tile at a time. Integer images are
+ * styled through a lookup table of the colour of every integer between the
+ * first and last entries of the table (values beyond them all share the same
+ * colour), floating point images by looking up each cell in the table.
+ *
+ * @author jonathan.huck
+ */
+final class StyledImage implements RenderedImage {
+
+    /*
+     * object variables
+     */
+    private final RenderedImage source;       //image to style
+    private final ColorTable table;           //colour of each value
+    private final boolean floatingPoint;      //true if the source is styled cell by cell
+    private final int[] lookup;               //colour of each integer from lookupMin (integer sources)
+    private final long lookupMin;             //value of the first colour in the lookup
+    private final int below, above;           //colour of values below and above the lookup
+    private final SampleModel sampleModel;    //4 interleaved byte bands, one tile in size
+    private final ColorModel colorModel = new ComponentColorModel(
+            ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false, Transparency.TRANSLUCENT,
+            DataBuffer.TYPE_BYTE);
+
+    /**
+     * Constructor
+     *
+     * @param source
+     * @param table
+     */
+    StyledImage(RenderedImage source, ColorTable table) {
+        this.source = source;
+        this.table = table;
+        final int dataType = source.getSampleModel().getDataType();
+        final long min = (long) Math.floor(Math.max(table.getMin(), Integer.MIN_VALUE));
+        final long max = (long) Math.ceil(Math.min(table.getMax(), Integer.MAX_VALUE));
+        this.floatingPoint = dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE
+                || max - min >= ColorTable.MAX_LOOKUP;
+        this.lookup = this.floatingPoint ? null : table.getLookup(min, max);
+        this.lookupMin = min;
+        this.below = table.getColor(min - 1);
+        this.above = table.getColor(max + 1);
+        this.sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE,
+                source.getTileWidth(), source.getTileHeight(), 4, 4 * source.getTileWidth(),
+                new int[]{0, 1, 2, 3});
+    }
+
+    public Vector<RenderedImage> getSources() {
+        final Vector<RenderedImage> sources = new Vector<RenderedImage>();
+        sources.add(this.source);
+        return sources;
+    }
+
+    public Object getProperty(String name) {
+        return java.awt.Image.UndefinedProperty;
+    }
+
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    public ColorModel getColorModel() {
+        return this.colorModel;
+    }
+
+    public SampleModel getSampleModel() {
+        return this.sampleModel;
+    }
+
+    public int getWidth() {
+        return this.source.getWidth();
+    }
+
+    public int getHeight() {
+        return this.source.getHeight();
+    }
+
+    public int getMinX() {
+        return this.source.getMinX();
+    }
+
+    public int getMinY() {
+        return this.source.getMinY();
+    }
+
+    public int getNumXTiles() {
+        return this.source.getNumXTiles();
+    }
+
+    public int getNumYTiles() {
+        return this.source.getNumYTiles();
+    }
+
+    public int getMinTileX() {
+        return this.source.getMinTileX();
+    }
+
+    public int getMinTileY() {
+        return this.source.getMinTileY();
+    }
+
+    public int getTileWidth() {
+        return this.source.getTileWidth();
+    }
+
+    public int getTileHeight() {
+        return this.source.getTileHeight();
+    }
+
+    public int getTileGridXOffset() {
+        return this.source.getTileGridXOffset();
+    }
+
+    public int getTileGridYOffset() {
+        return this.source.getTileGridYOffset();
+    }
+
+    public Raster getTile(int tileX, int tileY) {
+        final Rectangle tile = new Rectangle(
+                this.getTileGridXOffset() + tileX * this.getTileWidth(),
+                this.getTileGridYOffset() + tileY * this.getTileHeight(),
+                this.getTileWidth(), this.getTileHeight());
+        return this.getData(tile.intersection(new Rectangle(this.getMinX(), this.getMinY(),
+                this.getWidth(), this.getHeight())));
+    }
+
+    public Raster getData() {
+        return this.getData(new Rectangle(this.getMinX(), this.getMinY(), this.getWidth(),
+                this.getHeight()));
+    }
+
+    public Raster getData(Rectangle rect) {
+        return this.copyData(Raster.createWritableRaster(
+                this.sampleModel.createCompatibleSampleModel(rect.width, rect.height),
+                new Point(rect.x, rect.y)));
+    }
+
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            raster = Raster.createWritableRaster(this.sampleModel.createCompatibleSampleModel(
+                    this.getWidth(), this.getHeight()), new Point(this.getMinX(), this.getMinY()));
+        }
+
+        //style the source one row at a time
+        final Rectangle bounds = raster.getBounds();
+        final Raster values = this.source.getData(bounds);
+        final long start = Metrics.getInstance().start();
+        final int w = bounds.width;
+        final int[] rgba = new int[4 * w];
+        final int[] ints = this.floatingPoint ? null : new int[w];
+        final double[] doubles = this.floatingPoint ? new double[w] : null;
+        int color;
+        long v;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            if (this.floatingPoint) {
+                values.getSamples(bounds.x, y, w, 1, 0, doubles);
+            } else {
+                values.getSamples(bounds.x, y, w, 1, 0, ints);
+            }
+            for (int x = 0; x < w; x++) {
+                if (this.floatingPoint) {
+                    color = this.table.getColor(doubles[x]);
+                } else {
+                    v = ints[x] - this.lookupMin;
+                    color = v < 0 ? this.below : v >= this.lookup.length ? this.above
+                            : this.lookup[(int) v];
+                }
+                rgba[4 * x] = color >>> 16 & 0xFF;
+                rgba[4 * x + 1] = color >>> 8 & 0xFF;
+                rgba[4 * x + 2] = color & 0xFF;
+                rgba[4 * x + 3] = color >>> 24;
+            }
+            raster.setPixels(bounds.x, y, w, 1, rgba);
+        }
+        Metrics.getInstance().end(Metrics.Stage.STYLE, start);
+        return raster;
+    }
+}
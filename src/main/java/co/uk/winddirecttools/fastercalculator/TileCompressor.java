@@ -0,0 +1,235 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * The predictors and compression schemes used by TiledGeoTiffWriter to
+ * compress each tile (TIFF 6.0, section 13 and 14, and Adobe Technical Note 3)
+ *
+ * The predictors replace each sample of a row with its difference from the
+ * same band of the previous pixel, which turns smooth surfaces into runs of
+ * small repeated values that compress far better. Integer samples use the
+ * horizontal predictor (2); floating point samples use the floating point
+ * predictor (3), which first splits each row into planes of the most to least
+ * significant bytes of its values and then differences the bytes.
+ *
+ * Every method works on one tile and keeps no state, so tiles can be
+ * compressed on as many threads as are available.
+ *
+ * @author jonathan.huck
+ */
+final class TileCompressor {
+
+    /*
+     * TIFF LZW codes
+     */
+    private static final int CLEAR = 256;
+    private static final int EOI = 257;
+    private static final int FIRST = 258;
+    private static final int MAX_CODE = 4094;
+
+    /*
+     * size of the LZW string table (a prime larger than the number of codes)
+     */
+    private static final int TABLE_SIZE = 5021;
+
+    /**
+     * Private constructor, all methods are static
+     */
+    private TileCompressor() {
+    }
+
+    /**
+     * Applies the horizontal predictor to a tile of big endian integer
+     * samples in place
+     *
+     * @param tile
+     * @param length number of bytes in the tile
+     * @param rowLength number of bytes in each row
+     * @param bands
+     * @param bytes bytes in each sample
+     */
+    static void horizontalPredict(ByteBuffer tile, int length, int rowLength, int bands,
+            int bytes) {
+        final int stride = bands * bytes;
+        for (int row = 0; row < length; row += rowLength) {
+
+            //work backwards so each sample is differenced from the original value
+            for (int i = row + rowLength - bytes; i >= row + stride; i -= bytes) {
+                switch (bytes) {
+                    case 1:
+                        tile.put(i, (byte) (tile.get(i) - tile.get(i - stride)));
+                        break;
+                    case 2:
+                        tile.putShort(i, (short) (tile.getShort(i) - tile.getShort(i - stride)));
+                        break;
+                    default:
+                        tile.putInt(i, tile.getInt(i) - tile.getInt(i - stride));
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the floating point predictor to a tile of big endian floating
+     * point samples in place
+     *
+     * @param tile
+     * @param length number of bytes in the tile
+     * @param rowLength number of bytes in each row
+     * @param bands
+     * @param bytes bytes in each sample
+     */
+    static void floatingPointPredict(ByteBuffer tile, int length, int rowLength, int bands,
+            int bytes) {
+        final byte[] data = tile.array();
+        final byte[] row = new byte[rowLength];
+        final int samples = rowLength / bytes;
+        for (int start = 0; start < length; start += rowLength) {
+
+            //split the row into byte planes (most significant first)
+            for (int s = 0; s < samples; s++) {
+                for (int b = 0; b < bytes; b++) {
+                    row[b * samples + s] = data[start + s * bytes + b];
+                }
+            }
+
+            //then difference the bytes from the same band of the previous pixel
+            for (int i = rowLength - 1; i >= bands; i--) {
+                row[i] -= row[i - bands];
+            }
+            System.arraycopy(row, 0, data, start, rowLength);
+        }
+    }
+
+    /**
+     * Compresses a tile with DEFLATE (zlib format)
+     *
+     * @param tile
+     * @param length number of bytes in the tile
+     * @param level compression level (1 to 9)
+     * @return
+     */
+    static ByteBuffer deflate(ByteBuffer tile, int length, int level) {
+        final Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(tile.array(), 0, length);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, length / 4)];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return ByteBuffer.wrap(out, 0, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses a tile with TIFF LZW (most significant bit first, with the
+     * code width increasing one code early)
+     *
+     * @param tile
+     * @param length number of bytes in the tile
+     * @return
+     */
+    static ByteBuffer lzw(ByteBuffer tile, int length) {
+        final byte[] data = tile.array();
+        final BitWriter out = new BitWriter(length / 2 + 64);
+        final int[] keys = new int[TABLE_SIZE];
+        final short[] codes = new short[TABLE_SIZE];
+        Arrays.fill(keys, -1);
+        int bits = 9;
+        int next = FIRST;
+        out.put(CLEAR, bits);
+        if (length == 0) {
+            out.put(EOI, bits);
+            return out.toBuffer();
+        }
+
+        //extend the current string while it is in the table
+        int prefix = data[0] & 0xFF;
+        int c, key, slot;
+        for (int i = 1; i < length; i++) {
+            c = data[i] & 0xFF;
+            key = prefix << 8 | c;
+            slot = key % TABLE_SIZE;
+            while (keys[slot] != -1 && keys[slot] != key) {
+                slot = slot == 0 ? TABLE_SIZE - 1 : slot - 1;
+            }
+            if (keys[slot] == key) {
+                prefix = codes[slot];
+                continue;
+            }
+
+            //otherwise write the current string and add it plus c to the table
+            out.put(prefix, bits);
+            prefix = c;
+            keys[slot] = key;
+            codes[slot] = (short) next++;
+            if (next == MAX_CODE) {
+                out.put(CLEAR, bits);
+                Arrays.fill(keys, -1);
+                next = FIRST;
+                bits = 9;
+            } else if (next > (1 << bits) - 1) {
+                bits++;
+            }
+        }
+
+        //the last string takes a code too, which can widen the end of information code
+        out.put(prefix, bits);
+        next++;
+        if (next > (1 << bits) - 1 && bits < 12) {
+            bits++;
+        }
+        out.put(EOI, bits);
+        return out.toBuffer();
+    }
+
+    /**
+     * Writes codes of varying width, most significant bit first
+     */
+    private static final class BitWriter {
+
+        private byte[] bytes;      //output
+        private int length;        //number of complete bytes
+        private int buffer;        //bits not yet written
+        private int count;         //number of bits in the buffer
+
+        BitWriter(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void put(int code, int bits) {
+            this.buffer = this.buffer << bits | code;
+            this.count += bits;
+            while (this.count >= 8) {
+                this.count -= 8;
+                this.write(this.buffer >>> this.count);
+            }
+            this.buffer &= (1 << this.count) - 1;
+        }
+
+        ByteBuffer toBuffer() {
+            if (this.count > 0) {
+                this.write(this.buffer << (8 - this.count));
+                this.count = 0;
+            }
+            return ByteBuffer.wrap(this.bytes, 0, this.length);
+        }
+
+        private void write(int b) {
+            if (this.length == this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+            }
+            this.bytes[this.length++] = (byte) b;
+        }
+    }
+}
@@ -0,0 +1,740 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.media.jai.PlanarImage;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * An accumulator split into fixed size tiles that are paged to and from a
+ * scratch file on disk
+ *
+ * Only as many tiles as fit within the memory budget are held in memory at a
+ * time, the least recently used tile being written out to the scratch file to
+ * make room for the next. Tiles that have never been written are not stored
+ * at all, so the scratch file only grows to cover the parts of the grid that
+ * have actually been touched. This allows outputs that are much larger than
+ * the heap, at the cost of disk I/O when the inputs are not spatially ordered.
+ *
+ * A histogram of the values in the scratch file is kept up to date as tiles
+ * are written to it: the histogram of each tile is taken when it is loaded,
+ * and when a modified tile is written back that histogram is taken away and
+ * the histogram of its new values added. The histogram of the whole grid is
+ * then available once the inputs have been applied, without reading the
+ * scratch file again.
+ *
+ * Tiles are read from and written to the scratch file without holding the
+ * lock on the whole grid: a tile that is being loaded or written out is
+ * marked as not ready, and only the threads that need that tile wait for it.
+ *
+ * The scratch file is deleted when the accumulator is closed (or failing
+ * that, when the JVM exits).
+ *
+ * @author jonathan.huck
+ */
+class TiledAccumulator implements Accumulator {
+
+    /*
+     * default tile dimensions (in cells)
+     */
+    static final int DEFAULT_TILE_SIZE = 512;
+
+    /*
+     * object variables
+     */
+    private final AccumulatorType type;      //type of the values
+    private final int width, height;         //grid dimensions
+    private final int tileSize;              //tile dimensions
+    private final int tilesX, tilesY;        //number of tiles in each direction
+    private final int maxTiles;              //number of tiles that fit in the budget
+    private final File file;                 //scratch file
+    private final FileChannel channel;       //channel to the scratch file
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();    //re-usable buffers for paging tiles
+    private final BitSet stored = new BitSet();    //tiles that are in the scratch file
+    private final LinkedHashMap<Integer, Tile> tiles =
+            new LinkedHashMap<Integer, Tile>(16, 0.75f, true);    //tiles in memory (LRU order)
+    private final Histogram histogram = new Histogram();    //values in the scratch file
+    private int writing = 0;                 //tiles being written out
+
+    /**
+     * Constructor
+     *
+     * @param type
+     * @param width
+     * @param height
+     * @param tileSize
+     * @param memoryBudget maximum number of bytes of tiles to hold in memory
+     * @throws IOException
+     */
+    TiledAccumulator(AccumulatorType type, int width, int height, int tileSize,
+            long memoryBudget) throws IOException {
+        this.type = type;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.maxTiles = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                memoryBudget / this.getTileBytes()));
+
+        //open the scratch file
+        this.file = File.createTempFile("fastercalculator", ".tiles");
+        this.file.deleteOnExit();
+        this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public AccumulatorType getType() {
+        return this.type;
+    }
+
+    public void apply(int operation, int[] values, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        this.apply(operation, values, null, mask, null, x, y, firstRow, lastRow);
+    }
+
+    public void apply(int operation, float[] values, RadiusMask mask, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        this.apply(operation, null, values, mask, null, x, y, firstRow, lastRow);
+    }
+
+    public void apply(int operation, int[] values, SparseRows rows, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        this.apply(operation, values, null, null, rows, x, y, firstRow, lastRow);
+    }
+
+    public void apply(int operation, float[] values, SparseRows rows, int x, int y,
+            int firstRow, int lastRow) throws IOException {
+        this.apply(operation, null, values, null, rows, x, y, firstRow, lastRow);
+    }
+
+    /**
+     * Applies a block of either integer or floating point values, masked by
+     * either a mask or the runs of a sparse block, one tile at a time. Sparse
+     * blocks only touch the tiles within the bounding box of their runs.
+     *
+     * @param operation
+     * @param ints
+     * @param floats
+     * @param mask
+     * @param rows
+     * @param x
+     * @param y
+     * @param firstRow
+     * @param lastRow
+     * @throws IOException
+     */
+    private void apply(int operation, int[] ints, float[] floats, RadiusMask mask,
+            SparseRows rows, int x, int y, int firstRow, int lastRow) throws IOException {
+
+        //part of the block to apply
+        int left = 0;
+        int right = mask != null ? mask.getWidth() : rows.getWidth();
+        if (rows != null) {
+            firstRow = Math.max(firstRow, rows.getTop());
+            lastRow = Math.min(lastRow, rows.getBottom());
+            left = rows.getLeft();
+            right = rows.getRight();
+        }
+        if (firstRow >= lastRow || left >= right) {
+            return;
+        }
+
+        //loop through each tile that the rows overlap
+        final int t = this.tileSize;
+        int r0, r1, c0, c1, offset;
+        Tile tile;
+        for (int ty = (y + firstRow) / t; ty <= (y + lastRow - 1) / t; ty++) {
+            r0 = Math.max(firstRow, ty * t - y);
+            r1 = Math.min(lastRow, (ty + 1) * t - y);
+            for (int tx = (x + left) / t; tx <= (x + right - 1) / t; tx++) {
+                c0 = Math.max(left, tx * t - x);
+                c1 = Math.min(right, (tx + 1) * t - x);
+                offset = (y - ty * t) * t + (x - tx * t);
+
+                //apply the part of the block that falls within the tile
+                tile = this.acquire(ty * this.tilesX + tx);
+                try {
+                    if (rows != null && ints != null) {
+                        tile.cells.apply(operation, ints, rows, r0, r1, c0, c1, offset, t);
+                    } else if (rows != null) {
+                        tile.cells.apply(operation, floats, rows, r0, r1, c0, c1, offset, t);
+                    } else if (ints != null) {
+                        tile.cells.apply(operation, ints, mask, r0, r1, c0, c1, offset, t);
+                    } else {
+                        tile.cells.apply(operation, floats, mask, r0, r1, c0, c1, offset, t);
+                    }
+                } finally {
+                    this.release(tile);
+                }
+            }
+        }
+    }
+
+    public void readRow(int y, double[] values) throws IOException {
+        this.copyRow(y, 0, this.width, values, false);
+    }
+
+    public void writeRow(int y, double[] values) throws IOException {
+        this.copyRow(y, 0, this.width, values, true);
+    }
+
+    public void readRow(int y, int x, int length, double[] values) throws IOException {
+        this.copyRow(y, x, length, values, false);
+    }
+
+    public void writeRow(int y, int x, int length, double[] values) throws IOException {
+        this.copyRow(y, x, length, values, true);
+    }
+
+    /**
+     * Copies part of one row of the grid to or from the start of an array of
+     * doubles, one tile at a time
+     *
+     * @param y
+     * @param x
+     * @param length
+     * @param values
+     * @param write true to copy the values into the grid
+     * @throws IOException
+     */
+    private void copyRow(int y, int x, int length, double[] values, boolean write)
+            throws IOException {
+        final int t = this.tileSize;
+        final int ty = y / t;
+        int c0, c1;
+        Tile tile;
+        for (int tx = x / t; tx <= (x + length - 1) / t; tx++) {
+            c0 = Math.max(x, tx * t);
+            c1 = Math.min(x + length, (tx + 1) * t);
+            tile = this.acquire(ty * this.tilesX + tx);
+            try {
+                if (write) {
+                    tile.cells.set((y - ty * t) * t + c0 - tx * t, values, c0 - x, c1 - c0);
+                } else {
+                    tile.cells.get((y - ty * t) * t + c0 - tx * t, values, c0 - x, c1 - c0);
+                }
+            } finally {
+                synchronized (this.tiles) {
+                    tile.pins--;
+                    tile.dirty |= write;
+                }
+            }
+        }
+    }
+
+    public GridCoverage2D toCoverage(GridCoverageFactory factory, CharSequence name,
+            Envelope2D envelope) {
+        return factory.create(name, new TileImage(), envelope);
+    }
+
+    /**
+     * Drops the tiles in memory, then closes and deletes the scratch file
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this.tiles) {
+            this.tiles.clear();
+        }
+        try {
+            this.channel.close();
+        } finally {
+            this.file.delete();
+        }
+    }
+
+    /**
+     * Returns a tile, loading it from the scratch file if necessary. The tile
+     * is pinned in memory until it is released. The lock on the grid is only
+     * held to find (or reserve) the tile and choose the tiles to evict, the
+     * disk I/O is done without it.
+     *
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    private Tile acquire(int index) throws IOException {
+        Tile tile;
+        List<Tile> evicted = null;
+        boolean stored = false;
+        synchronized (this.tiles) {
+            tile = this.tiles.get(index);
+            if (tile == null) {
+
+                //make room, then reserve the tile so that no other thread loads it
+                evicted = this.evict();
+                tile = new Tile(index, CellArray.create(this.type, this.tileSize * this.tileSize));
+                stored = this.stored.get(index);
+                this.tiles.put(index, tile);
+            }
+            tile.pins++;
+        }
+
+        try {
+            if (evicted != null) {
+                this.load(tile, evicted, stored);
+            } else {
+                this.await(tile);
+            }
+        } catch (IOException e) {
+            synchronized (this.tiles) {
+                tile.pins--;
+            }
+            throw e;
+        }
+        return tile;
+    }
+
+    /**
+     * Writes out the tiles evicted to make room for a tile, then reads the
+     * tile from the scratch file if it has been stored, before marking it as
+     * ready. If either fails the tile is dropped, and any other threads
+     * waiting for it are given the failure (the evicted tiles that were not
+     * written stay in memory).
+     *
+     * @param tile
+     * @param evicted
+     * @param stored true if the tile is in the scratch file
+     * @throws IOException
+     */
+    private void load(Tile tile, List<Tile> evicted, boolean stored) throws IOException {
+        int written = 0;
+        try {
+            for (; written < evicted.size(); written++) {
+                this.writeTile(evicted.get(written));
+            }
+            if (stored) {
+                final ByteBuffer buffer = this.getBuffer();
+                try {
+                    this.readFully(buffer, this.getTilePosition(tile.index));
+                    buffer.flip();
+                    tile.cells.read(buffer);
+                } finally {
+                    this.buffers.add(buffer);
+                }
+                tile.stored = new Histogram();
+                tile.stored.add(tile.cells, this.tileSize * this.tileSize);
+            }
+        } catch (IOException e) {
+            for (int i = written + 1; i < evicted.size(); i++) {
+                this.endWrite(evicted.get(i));
+            }
+            synchronized (this.tiles) {
+                this.tiles.remove(tile.index);
+            }
+            tile.failure = e;
+            throw e;
+        } finally {
+            setReady(tile);
+        }
+    }
+
+    /**
+     * Writes a tile that has been evicted out to the scratch file, then
+     * removes it from memory (unless another thread has asked for it whilst it
+     * was being written)
+     *
+     * @param tile
+     * @throws IOException
+     */
+    private void writeTile(Tile tile) throws IOException {
+        try {
+            final Histogram current = new Histogram();
+            current.add(tile.cells, this.tileSize * this.tileSize);
+            final ByteBuffer buffer = this.getBuffer();
+            try {
+                tile.cells.write(buffer);
+                this.writeFully(buffer, this.getTilePosition(tile.index));
+            } finally {
+                this.buffers.add(buffer);
+            }
+            synchronized (this.tiles) {
+                this.stored.set(tile.index);
+                if (tile.stored != null) {
+                    this.histogram.subtract(tile.stored);
+                }
+                this.histogram.add(current);
+                tile.stored = current;
+                tile.dirty = false;
+                if (tile.pins == 0) {
+                    this.tiles.remove(tile.index);
+                }
+            }
+        } finally {
+            this.endWrite(tile);
+        }
+    }
+
+    /**
+     * Marks a tile that was chosen to be written out as ready again, whether
+     * or not it was written (a tile that could not be written stays in
+     * memory, still modified)
+     *
+     * @param tile
+     */
+    private void endWrite(Tile tile) {
+        synchronized (this.tiles) {
+            this.writing--;
+        }
+        setReady(tile);
+    }
+
+    /**
+     * Waits for a tile that another thread is loading or writing out
+     *
+     * @param tile
+     * @throws IOException
+     */
+    private static void await(Tile tile) throws IOException {
+        synchronized (tile) {
+            while (!tile.ready) {
+                try {
+                    tile.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted whilst waiting for a tile", e);
+                }
+            }
+        }
+        if (tile.failure != null) {
+            throw new IOException("Failed to load a tile", tile.failure);
+        }
+    }
+
+    /**
+     * Marks a tile as ready, waking any threads waiting for it
+     *
+     * @param tile
+     */
+    private static void setReady(Tile tile) {
+        synchronized (tile) {
+            tile.ready = true;
+            tile.notifyAll();
+        }
+    }
+
+    /**
+     * Releases a tile that has been acquired, marking it as modified
+     *
+     * @param tile
+     */
+    private void release(Tile tile) {
+        synchronized (this.tiles) {
+            tile.pins--;
+            tile.dirty = true;
+        }
+    }
+
+    /**
+     * Chooses least recently used tiles to evict until there is room for
+     * another tile in memory (tiles that are in use, loading or being written
+     * are skipped). Unmodified tiles are dropped straight away, modified tiles
+     * are marked as not ready and returned to be written out by the caller,
+     * without holding the lock on the grid. Must be called holding that lock.
+     *
+     * @return
+     */
+    private List<Tile> evict() {
+        final List<Tile> evicted = new ArrayList<Tile>();
+        final Iterator<Map.Entry<Integer, Tile>> it = this.tiles.entrySet().iterator();
+        Tile tile;
+        while (this.tiles.size() - this.writing >= this.maxTiles && it.hasNext()) {
+            tile = it.next().getValue();
+            if (tile.pins == 0 && tile.ready) {
+                if (tile.dirty) {
+                    tile.ready = false;
+                    this.writing++;
+                    evicted.add(tile);
+                } else {
+                    it.remove();
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Returns a histogram of the non-zero values in the grid, made up of the
+     * histogram of the scratch file updated with the tiles in memory that
+     * have been modified
+     *
+     * @return
+     */
+    public Histogram getHistogram() {
+        final Histogram histogram = new Histogram();
+        synchronized (this.tiles) {
+            histogram.add(this.histogram);
+            for (Tile tile : this.tiles.values()) {
+                if (tile.dirty) {
+                    this.updateHistogram(histogram, tile);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Replaces the values that a tile had when it was loaded with its current
+     * values in a histogram
+     *
+     * @param histogram
+     * @param tile
+     */
+    private void updateHistogram(Histogram histogram, Tile tile) {
+        if (tile.stored != null) {
+            histogram.subtract(tile.stored);
+        }
+        final Histogram current = new Histogram();
+        current.add(tile.cells, this.tileSize * this.tileSize);
+        histogram.add(current);
+    }
+
+    /**
+     * Return a copy of the values in a tile
+     *
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    private CellArray copyTile(int index) throws IOException {
+        final Tile tile = this.acquire(index);
+        try {
+            return tile.cells.copy();
+        } finally {
+            synchronized (this.tiles) {
+                tile.pins--;
+            }
+        }
+    }
+
+    /**
+     * Returns an empty buffer the size of a tile
+     *
+     * @return
+     */
+    private ByteBuffer getBuffer() {
+        final ByteBuffer buffer = this.buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(this.getTileBytes());
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Read from the scratch file until the buffer is full (any part of the
+     * file that has not been written is read as zeros)
+     *
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        int n;
+        while (buffer.hasRemaining()) {
+            n = this.channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the whole of a buffer to the scratch file
+     *
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Return the position of a tile in the scratch file
+     *
+     * @param index
+     * @return
+     */
+    private long getTilePosition(int index) {
+        return (long) index * this.getTileBytes();
+    }
+
+    /**
+     * Return the number of bytes in a tile
+     *
+     * @return
+     */
+    private int getTileBytes() {
+        return this.tileSize * this.tileSize * this.type.getBytes();
+    }
+
+    /**
+     * A tile of the grid held in memory
+     */
+    private static final class Tile {
+
+        final int index;          //position in the tile grid (row major)
+        final CellArray cells;    //values (row major)
+        int pins = 0;             //number of users of the tile
+        boolean dirty = false;    //modified since it was loaded
+        Histogram stored;         //histogram of the values when it was loaded (null if new)
+        volatile boolean ready = false;    //false whilst being loaded or written out
+        IOException failure;      //why the tile could not be loaded (null if it was)
+
+        Tile(int index, CellArray cells) {
+            this.index = index;
+            this.cells = cells;
+        }
+    }
+
+    /**
+     * A read-only view of the grid as a tiled image, each tile is loaded from
+     * the accumulator when it is requested
+     */
+    private final class TileImage implements RenderedImage {
+
+        private final SampleModel sampleModel = new BandedSampleModel(
+                type.getDataBufferType(), tileSize, tileSize, 1);
+        private final ColorModel colorModel = PlanarImage.createColorModel(this.sampleModel);
+
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        public ColorModel getColorModel() {
+            return this.colorModel;
+        }
+
+        public SampleModel getSampleModel() {
+            return this.sampleModel;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getMinX() {
+            return 0;
+        }
+
+        public int getMinY() {
+            return 0;
+        }
+
+        public int getNumXTiles() {
+            return tilesX;
+        }
+
+        public int getNumYTiles() {
+            return tilesY;
+        }
+
+        public int getMinTileX() {
+            return 0;
+        }
+
+        public int getMinTileY() {
+            return 0;
+        }
+
+        public int getTileWidth() {
+            return tileSize;
+        }
+
+        public int getTileHeight() {
+            return tileSize;
+        }
+
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        public Raster getTile(int tileX, int tileY) {
+            try {
+                final DataBuffer buffer = copyTile(tileY * tilesX + tileX).toDataBuffer();
+                return Raster.createWritableRaster(this.sampleModel, buffer,
+                        new Point(tileX * tileSize, tileY * tileSize));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read tile from " + file, e);
+            }
+        }
+
+        public Raster getData() {
+            return this.getData(new Rectangle(0, 0, width, height));
+        }
+
+        public Raster getData(Rectangle rect) {
+            return this.copyData(Raster.createWritableRaster(
+                    this.sampleModel.createCompatibleSampleModel(rect.width, rect.height),
+                    new Point(rect.x, rect.y)));
+        }
+
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = Raster.createWritableRaster(
+                        this.sampleModel.createCompatibleSampleModel(width, height), null);
+            }
+
+            //copy each tile that overlaps the raster
+            final Rectangle bounds = raster.getBounds();
+            for (int ty = bounds.y / tileSize; ty <= (bounds.y + bounds.height - 1) / tileSize; ty++) {
+                for (int tx = bounds.x / tileSize; tx <= (bounds.x + bounds.width - 1) / tileSize; tx++) {
+                    raster.setRect(this.getTile(tx, ty));
+                }
+            }
+            return raster;
+        }
+    }
+}
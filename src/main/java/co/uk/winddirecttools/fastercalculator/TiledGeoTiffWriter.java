@@ -0,0 +1,1146 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+
+/**
+ * Writes a coverage to an internally tiled GeoTIFF (or BigTIFF) one tile at a
+ * time, without holding the whole image in memory
+ *
+ * Each tile is requested from the rendered image of the coverage with
+ * getData() and written straight to the file, so only one tile is held at a
+ * time. For an output built by a TiledAccumulator the image is itself read
+ * from the scratch file tile by tile, and a styled output is only computed
+ * (by JAI) for each tile as it is requested, so neither is ever materialised
+ * in full. The tiles are followed by the image directory, as its tile offsets
+ * are only known once the tiles have been written.
+ *
+ * Files that could be larger than 4 GB are written as BigTIFF (64 bit
+ * offsets), unless this has been set explicitly. The georeferencing is written
+ * as the GeoTIFF pixel scale, tie point and the EPSG code of the coordinate
+ * system. A coordinate system without an EPSG code is described by the GeoTIFF
+ * keys and parameters that GeoTools writes for it instead (which are copied
+ * from a one cell GeoTIFF written with GeoTools), and the file is not written
+ * if GeoTools cannot describe it either. Single band images with an IndexColorModel are
+ * written as palette images, three or four band byte images as RGB(A) and
+ * everything else as grey scale (one sample per band).
+ *
+ * Tiles can be compressed with LZW or DEFLATE, after a predictor (see
+ * TileCompressor). Compression is the slow part of writing, so tiles are
+ * compressed on a pool of threads while the next tiles are read from the
+ * image, and written in order as each one is ready.
+ *
+ * Overviews (copies of the image at 1/2, 1/4, 1/8... of the resolution, down
+ * to one that fits in a single tile) can be written too, so that GIS and tile
+ * servers can draw the whole image without reading all of it. Each overview
+ * is built from the tiles of the one above it as they are written, by
+ * averaging (or taking the largest of) each 2x2 block of cells, or by taking
+ * the top left cell of palette and RGB(A) images, so the image is still only
+ * read once; each overview only holds one row of its tiles at a time. The overviews follow the full resolution image as further image
+ * directories, as written by gdaladdo.
+ *
+ * @author jonathan.huck
+ */
+public class TiledGeoTiffWriter {
+
+    /*
+     * TIFF field types
+     */
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int DOUBLE = 12;
+    private static final int LONG8 = 16;
+
+    /*
+     * largest classic TIFF that is written before switching to BigTIFF
+     * (leaving room for the image directory)
+     */
+    private static final long CLASSIC_LIMIT = 0xFFFFFFFFL - (64L << 20);
+
+    /*
+     * DEFLATE compression level
+     */
+    private static final int DEFLATE_LEVEL = 6;
+
+    /**
+     * The compression schemes that tiles can be written with
+     */
+    public enum Compression {
+
+        NONE(1),       //uncompressed
+        LZW(5),        //LZW, readable by almost anything
+        DEFLATE(8);    //zlib, smaller than LZW
+
+        private final int code;    //value of the Compression tag
+
+        Compression(int code) {
+            this.code = code;
+        }
+    }
+
+    /**
+     * The ways of reducing each 2x2 block of cells to one cell of an overview
+     * (cells that are 0 or NaN, which no input covers, are left out)
+     */
+    public enum Resampling {
+
+        AVERAGE,    //mean of the cells
+        MAX,        //largest of the cells
+        NEAREST     //top left cell (used for palette and RGB(A) images)
+    }
+
+    /*
+     * object variables
+     */
+    private final File file;            //file to write
+    private int tileSize = 256;         //width and height of the tiles (a multiple of 16)
+    private Boolean bigTiff = null;     //true or false to force BigTIFF on or off, null to choose
+    private Compression compression = Compression.NONE;    //compression of the tiles
+    private boolean predictor = true;   //true to apply a predictor before compressing
+    private int threads = Runtime.getRuntime().availableProcessors();    //threads compressing tiles
+    private Resampling overviews = null;    //resampling of the overviews, null for none
+
+    /**
+     * Constructor
+     *
+     * @param file
+     */
+    public TiledGeoTiffWriter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Writes a coverage to the file
+     *
+     * @param coverage
+     * @throws IOException
+     */
+    public void write(GridCoverage2D coverage) throws IOException {
+        this.write(coverage.getRenderedImage(), coverage.getEnvelope2D(),
+                coverage.getCoordinateReferenceSystem());
+    }
+
+    /**
+     * Writes an image covering an envelope to the file
+     *
+     * @param image
+     * @param envelope
+     * @param crs
+     * @throws IOException
+     */
+    public void write(RenderedImage image, Envelope2D envelope, CoordinateReferenceSystem crs)
+            throws IOException {
+        final long started = Metrics.getInstance().start();
+
+        //layout of the tiles
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int bands = image.getSampleModel().getNumBands();
+        final int dataType = image.getSampleModel().getDataType();
+        final int bytes = DataBuffer.getDataTypeSize(dataType) / 8;
+        final int t = this.tileSize;
+        final int tilesX = (width + t - 1) / t;
+        final int tilesY = (height + t - 1) / t;
+
+        //the georeferencing, worked out first so that a coordinate system that
+        //cannot be written fails before the file is touched
+        final List<Entry> geoKeys = getGeoKeys(crs);
+
+        //halve the image until it fits in one tile (palette indices and colours
+        //cannot be averaged one band at a time, and a black or transparent cell has
+        //samples of 0 that would be left out)
+        final Resampling resampling = (image.getColorModel() instanceof IndexColorModel
+                || isRgb(bands, dataType, image.getColorModel())) && this.overviews != null
+                ? Resampling.NEAREST : this.overviews;
+        final List<int[]> levels = new ArrayList<int[]>();
+        levels.add(new int[]{width, height});
+        int w = width;
+        int h = height;
+        while (resampling != null && Math.max(w, h) > t) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            levels.add(new int[]{w, h});
+        }
+        final long[][] offsets = new long[levels.size()][];
+        final long[][] counts = new long[levels.size()][];
+        long tiles = 0;
+        for (int l = 0; l < levels.size(); l++) {
+            offsets[l] = new long[((levels.get(l)[0] + t - 1) / t) * ((levels.get(l)[1] + t - 1) / t)];
+            counts[l] = new long[offsets[l].length];
+            tiles += offsets[l].length;
+        }
+        final long raw = tiles * t * t * bands * bytes + tiles * 16L;
+        final long size = this.compression == Compression.NONE ? raw : raw / 2 * 3;
+        final boolean big = this.bigTiff != null ? this.bigTiff : size > CLASSIC_LIMIT;
+
+        //each overview is built from the tiles of the level above as they are written
+        Overview first = null;
+        for (int l = levels.size() - 1; l > 0; l--) {
+            first = new Overview(l, levels.get(l)[0], levels.get(l)[1], t, bands, dataType,
+                    resampling, first);
+        }
+
+        final RandomAccessFile output = new RandomAccessFile(this.file, "rw");
+        try {
+            output.setLength(0);
+            final FileChannel channel = output.getChannel();
+
+            //header (the directory offset is filled in at the end)
+            final ByteBuffer header = ByteBuffer.allocate(big ? 16 : 8);
+            header.put((byte) 'M').put((byte) 'M');
+            if (big) {
+                header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(0);
+            } else {
+                header.putShort((short) 42).putInt(0);
+            }
+            header.flip();
+            writeFully(channel, header, 0);
+
+            //copy each tile from the image, padding the edges with 0, and pass it
+            //down to the overviews before it is compressed and written
+            final TileStream stream = new TileStream(channel, header.capacity(), offsets, counts,
+                    this.compression, this.predictor, this.threads, t, bands, dataType);
+            try {
+                ByteBuffer tile;
+                Rectangle rect;
+                for (int ty = 0; ty < tilesY; ty++) {
+                    for (int tx = 0; tx < tilesX; tx++) {
+                        rect = new Rectangle(image.getMinX() + tx * t, image.getMinY() + ty * t,
+                                Math.min(t, width - tx * t), Math.min(t, height - ty * t));
+                        tile = stream.take(rect.width < t || rect.height < t);
+                        encode(image.getData(rect), rect, t, bands, dataType, tile);
+                        if (first != null) {
+                            first.add(tile, tx, ty, rect.width, rect.height, stream);
+                        }
+                        stream.put(tile, 0, ty * tilesX + tx);
+                    }
+                    if (first != null) {
+                        first.endRow(ty, ty == tilesY - 1, stream);
+                    }
+                }
+                stream.finish();
+            } finally {
+                stream.close();
+            }
+            long position = stream.position;
+            if (!big && position > 0xFFFFFFFFL) {
+                throw new IOException(this.file + " is too large for a classic TIFF, use BigTIFF");
+            }
+
+            //the directories (full resolution first, each pointing to the next), then
+            //point the header at the first
+            position += position % 2;
+            final ByteBuffer[] directories = new ByteBuffer[levels.size()];
+            final long[] at = new long[levels.size()];
+            for (int l = 0; l < levels.size(); l++) {
+                at[l] = position;
+                directories[l] = this.getDirectory(image, envelope, geoKeys, big, position,
+                        levels.get(l)[0], levels.get(l)[1], offsets[l], counts[l], l > 0);
+                position += directories[l].capacity();
+            }
+            for (int l = 0; l < levels.size(); l++) {
+                if (l + 1 < levels.size()) {
+                    setNextDirectory(directories[l], big, at[l + 1]);
+                }
+                writeFully(channel, directories[l], at[l]);
+            }
+            header.clear();
+            if (big) {
+                header.putLong(8, at[0]);
+            } else {
+                header.putInt(4, (int) at[0]);
+            }
+            writeFully(channel, header, 0);
+        } finally {
+            output.close();
+        }
+        Metrics.getInstance().end(Metrics.Stage.WRITE, started, this.file, (long) width * height);
+    }
+
+    /**
+     * Copies the pixels of a raster into a tile buffer as interleaved samples,
+     * skipping the rows and columns past the edge of the raster (which are
+     * left as 0)
+     *
+     * @param raster
+     * @param rect
+     * @param t tile size
+     * @param bands
+     * @param dataType
+     * @param tile
+     */
+    private static void encode(Raster raster, Rectangle rect, int t, int bands, int dataType,
+            ByteBuffer tile) {
+        final int n = rect.width * bands;
+        switch (dataType) {
+            case DataBuffer.TYPE_FLOAT: {
+                final float[] row = new float[n];
+                for (int y = 0; y < t; y++) {
+                    if (y < rect.height) {
+                        raster.getPixels(rect.x, rect.y + y, rect.width, 1, row);
+                        for (int i = 0; i < n; i++) {
+                            tile.putFloat(row[i]);
+                        }
+                    }
+                    tile.position((y + 1) * t * bands * 4);
+                }
+                break;
+            }
+            case DataBuffer.TYPE_DOUBLE: {
+                final double[] row = new double[n];
+                for (int y = 0; y < t; y++) {
+                    if (y < rect.height) {
+                        raster.getPixels(rect.x, rect.y + y, rect.width, 1, row);
+                        for (int i = 0; i < n; i++) {
+                            tile.putDouble(row[i]);
+                        }
+                    }
+                    tile.position((y + 1) * t * bands * 8);
+                }
+                break;
+            }
+            default: {
+                final int bytes = DataBuffer.getDataTypeSize(dataType) / 8;
+                final int[] row = new int[n];
+                for (int y = 0; y < t; y++) {
+                    if (y < rect.height) {
+                        raster.getPixels(rect.x, rect.y + y, rect.width, 1, row);
+                        for (int i = 0; i < n; i++) {
+                            if (bytes == 1) {
+                                tile.put((byte) row[i]);
+                            } else if (bytes == 2) {
+                                tile.putShort((short) row[i]);
+                            } else {
+                                tile.putInt(row[i]);
+                            }
+                        }
+                    }
+                    tile.position((y + 1) * t * bands * bytes);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Builds the image directory, to be written at a given position
+     *
+     * @param image
+     * @param envelope
+     * @param geoKeys GeoTIFF keys (and their parameters) of the coordinate system
+     * @param big
+     * @param position
+     * @param width
+     * @param height
+     * @param offsets
+     * @param counts
+     * @param overview true for a reduced resolution copy of the image
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer getDirectory(RenderedImage image, Envelope2D envelope,
+            List<Entry> geoKeys, boolean big, long position, int width, int height,
+            long[] offsets, long[] counts, boolean overview) throws IOException {
+        final int bands = image.getSampleModel().getNumBands();
+        final int dataType = image.getSampleModel().getDataType();
+        final ColorModel colorModel = image.getColorModel();
+
+        //how the samples are interpreted
+        final int photometric;
+        int[] extraSamples = new int[Math.max(0, bands - 1)];
+        if (bands == 1 && colorModel instanceof IndexColorModel
+                && (dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_USHORT)) {
+            photometric = 3;
+        } else if (isRgb(bands, dataType, colorModel)) {
+            photometric = 2;
+            extraSamples = bands == 4 ? new int[]{2} : new int[0];
+        } else {
+            photometric = 1;
+        }
+        final int sampleFormat;
+        switch (dataType) {
+            case DataBuffer.TYPE_SHORT:
+            case DataBuffer.TYPE_INT:
+                sampleFormat = 2;
+                break;
+            case DataBuffer.TYPE_FLOAT:
+            case DataBuffer.TYPE_DOUBLE:
+                sampleFormat = 3;
+                break;
+            default:
+                sampleFormat = 1;
+        }
+        final int[] bitsPerSample = new int[bands];
+        final int[] sampleFormats = new int[bands];
+        for (int i = 0; i < bands; i++) {
+            bitsPerSample[i] = DataBuffer.getDataTypeSize(dataType);
+            sampleFormats[i] = sampleFormat;
+        }
+
+        //entries, in ascending order of tag
+        final List<Entry> entries = new ArrayList<Entry>();
+        if (overview) {
+            entries.add(Entry.longs(254, 1));
+        }
+        entries.add(Entry.longs(256, width));
+        entries.add(Entry.longs(257, height));
+        entries.add(Entry.shorts(258, bitsPerSample));
+        entries.add(Entry.shorts(259, this.compression.code));
+        entries.add(Entry.shorts(262, photometric));
+        entries.add(Entry.shorts(277, bands));
+        entries.add(Entry.shorts(284, 1));
+        if (this.predictor && this.compression != Compression.NONE) {
+            entries.add(Entry.shorts(317, sampleFormat == 3 ? 3 : 2));
+        }
+        if (photometric == 3) {
+            entries.add(Entry.shorts(320, getColorMap((IndexColorModel) colorModel,
+                    bitsPerSample[0])));
+        }
+        entries.add(Entry.longs(322, this.tileSize));
+        entries.add(Entry.longs(323, this.tileSize));
+        entries.add(big ? Entry.long8s(324, offsets) : Entry.longs(324, offsets));
+        entries.add(big ? Entry.long8s(325, counts) : Entry.longs(325, counts));
+        if (extraSamples.length > 0) {
+            entries.add(Entry.shorts(338, extraSamples));
+        }
+        entries.add(Entry.shorts(339, sampleFormats));
+        if (!overview) {
+            entries.add(Entry.doubles(33550, envelope.getWidth() / width,
+                    envelope.getHeight() / height, 0));
+            entries.add(Entry.doubles(33922, 0, 0, 0, envelope.getMinX(), envelope.getMaxY(), 0));
+            entries.addAll(geoKeys);
+        }
+
+        //work out where the values that do not fit in their entries go
+        final int entrySize = big ? 20 : 12;
+        final int inline = big ? 8 : 4;
+        final int tableSize = (big ? 8 : 2) + entries.size() * entrySize + (big ? 8 : 4);
+        long dataSize = 0;
+        for (Entry entry : entries) {
+            if (entry.data.length > inline) {
+                dataSize += entry.data.length + entry.data.length % 2;
+            }
+        }
+        if (tableSize + dataSize > Integer.MAX_VALUE) {
+            throw new IOException("Too many tiles for one image directory");
+        }
+
+        //write the table, then the values
+        final ByteBuffer directory = ByteBuffer.allocate((int) (tableSize + dataSize));
+        long valuePosition = position + tableSize;
+        if (big) {
+            directory.putLong(entries.size());
+        } else {
+            directory.putShort((short) entries.size());
+        }
+        for (Entry entry : entries) {
+            directory.putShort((short) entry.tag).putShort((short) entry.type);
+            if (big) {
+                directory.putLong(entry.count);
+            } else {
+                directory.putInt((int) entry.count);
+            }
+            if (entry.data.length > inline) {
+                if (big) {
+                    directory.putLong(valuePosition);
+                } else {
+                    directory.putInt((int) valuePosition);
+                }
+                final int at = (int) (valuePosition - position);
+                for (int i = 0; i < entry.data.length; i++) {
+                    directory.put(at + i, entry.data[i]);
+                }
+                valuePosition += entry.data.length + entry.data.length % 2;
+            } else {
+                directory.put(entry.data);
+                directory.position(directory.position() + inline - entry.data.length);
+            }
+        }
+        if (big) {
+            directory.putLong(0);
+        } else {
+            directory.putInt(0);
+        }
+        directory.clear();
+        return directory;
+    }
+
+    /**
+     * Returns the GeoTIFF keys describing a coordinate system: the model type
+     * (projected or geographic), that pixels are areas, and the EPSG code of
+     * the coordinate system. Only that pixels are areas is written if there is
+     * no coordinate system, and one without an EPSG code is encoded by
+     * GeoTools.
+     *
+     * @param crs
+     * @return the key directory entry, and any parameter entries that it uses
+     * @throws IOException if the coordinate system cannot be encoded
+     */
+    private static List<Entry> getGeoKeys(CoordinateReferenceSystem crs) throws IOException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        if (crs == null) {
+            entries.add(Entry.shorts(34735, 1, 1, 0, 1, 1025, 0, 1, 1));
+            return entries;
+        }
+        Integer code;
+        try {
+            code = CRS.lookupEpsgCode(crs, true);
+        } catch (FactoryException e) {
+            code = null;
+        }
+        if (code == null) {
+            return encodeGeoKeys(crs);
+        }
+        final boolean geographic = crs instanceof GeographicCRS;
+        entries.add(Entry.shorts(34735,
+                1, 1, 0, 3,
+                1024, 0, 1, geographic ? 2 : 1,
+                1025, 0, 1, 1,
+                geographic ? 2048 : 3072, 0, 1, code));
+        return entries;
+    }
+
+    /**
+     * Returns the GeoTIFF key directory, double and ASCII parameter entries
+     * that GeoTools writes for a coordinate system, by writing a GeoTIFF of
+     * one cell with GeoTools and reading them back from its image directory
+     * (the keys refer to the parameters by their position, so are copied as
+     * they are)
+     *
+     * @param crs
+     * @return
+     * @throws IOException if GeoTools does not write any keys
+     */
+    private static List<Entry> encodeGeoKeys(CoordinateReferenceSystem crs) throws IOException {
+        final File temp = File.createTempFile("fastercalculator", ".tif");
+        final ByteBuffer data;
+        try {
+            final GeoTiffWriter writer = new GeoTiffWriter(temp);
+            try {
+                writer.write(new GridCoverageFactory().create("crs",
+                        Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 1, 1, 1, null),
+                        new Envelope2D(crs, 0, 0, 1, 1)), null);
+            } finally {
+                writer.dispose();
+            }
+            data = ByteBuffer.wrap(Files.readAllBytes(temp.toPath()));
+        } finally {
+            temp.delete();
+        }
+
+        //the entries of the first directory of a classic TIFF, in either byte order
+        final List<Entry> entries = new ArrayList<Entry>();
+        try {
+            data.order(data.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            final int directory = data.getInt(4);
+            final int n = data.getShort(directory) & 0xFFFF;
+            int entry, tag, count, at;
+            for (int e = 0; e < n; e++) {
+                entry = directory + 2 + e * 12;
+                tag = data.getShort(entry) & 0xFFFF;
+                count = data.getInt(entry + 4);
+                if (tag == 34735) {
+                    at = count * 2 <= 4 ? entry + 8 : data.getInt(entry + 8);
+                    final int[] keys = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        keys[i] = data.getShort(at + 2 * i) & 0xFFFF;
+                    }
+                    entries.add(Entry.shorts(tag, keys));
+                } else if (tag == 34736) {
+                    at = data.getInt(entry + 8);
+                    final double[] values = new double[count];
+                    for (int i = 0; i < count; i++) {
+                        values[i] = data.getDouble(at + 8 * i);
+                    }
+                    entries.add(Entry.doubles(tag, values));
+                } else if (tag == 34737) {
+                    at = count <= 4 ? entry + 8 : data.getInt(entry + 8);
+                    final byte[] text = new byte[count];
+                    for (int i = 0; i < count; i++) {
+                        text[i] = data.get(at + i);
+                    }
+                    entries.add(new Entry(tag, ASCII, count, text));
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Unable to read the GeoTIFF keys that GeoTools wrote for "
+                    + crs, e);
+        }
+        if (entries.isEmpty() || entries.get(0).tag != 34735) {
+            throw new IOException("Unable to write the coordinate system as GeoTIFF keys, it has no"
+                    + " EPSG code and GeoTools did not encode it: " + crs);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns a TIFF colour map (all of the reds, then greens, then blues as 16
+     * bit values) for an IndexColorModel
+     *
+     * @param colorModel
+     * @param bits
+     * @return
+     */
+    private static int[] getColorMap(IndexColorModel colorModel, int bits) {
+        final int n = 1 << bits;
+        final int[] map = new int[3 * n];
+        for (int i = 0; i < Math.min(n, colorModel.getMapSize()); i++) {
+            map[i] = colorModel.getRed(i) * 257;
+            map[n + i] = colorModel.getGreen(i) * 257;
+            map[2 * n + i] = colorModel.getBlue(i) * 257;
+        }
+        return map;
+    }
+
+    /**
+     * Points the end of an image directory at the directory that follows it
+     *
+     * @param directory
+     * @param big
+     * @param next position of the next directory
+     */
+    private static void setNextDirectory(ByteBuffer directory, boolean big, long next) {
+        if (big) {
+            directory.putLong(8 + (int) directory.getLong(0) * 20, next);
+        } else {
+            directory.putInt(2 + (directory.getShort(0) & 0xFFFF) * 12, (int) next);
+        }
+    }
+
+    /**
+     * Waits for a tile to be compressed
+     *
+     * @param future
+     * @return
+     * @throws IOException
+     */
+    private static ByteBuffer await(Future<ByteBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst compressing a tile", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress a tile", e.getCause());
+        }
+    }
+
+    /**
+     * Writes all of a buffer to a channel at a given position
+     *
+     * @param channel
+     * @param buffer
+     * @param position
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /*
+     * mutator methods
+     */
+    /**
+     * Set the compression of the tiles
+     *
+     * @param compression
+     * @return
+     */
+    public TiledGeoTiffWriter setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Set whether to apply a predictor to compressed tiles (the horizontal
+     * predictor for integer values, the floating point predictor otherwise)
+     *
+     * @param predictor
+     * @return
+     */
+    public TiledGeoTiffWriter setPredictor(boolean predictor) {
+        this.predictor = predictor;
+        return this;
+    }
+
+    /**
+     * Set how overviews are resampled, or null (the default) to not write any
+     *
+     * @param overviews
+     * @return
+     */
+    public TiledGeoTiffWriter setOverviews(Resampling overviews) {
+        this.overviews = overviews;
+        return this;
+    }
+
+    /**
+     * Set the number of threads that compress tiles
+     *
+     * @param threads
+     * @return
+     */
+    public TiledGeoTiffWriter setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+    /**
+     * Set the width and height of the tiles (rounded up to a multiple of 16)
+     *
+     * @param tileSize
+     * @return
+     */
+    public TiledGeoTiffWriter setTileSize(int tileSize) {
+        this.tileSize = Math.max(16, (tileSize + 15) / 16 * 16);
+        return this;
+    }
+
+    /**
+     * Set whether to write a BigTIFF, by default one is only written if the
+     * file could be larger than 4 GB
+     *
+     * @param bigTiff
+     * @return
+     */
+    public TiledGeoTiffWriter setBigTiff(boolean bigTiff) {
+        this.bigTiff = bigTiff;
+        return this;
+    }
+
+    /**
+     * Applies the predictor to a tile and compresses it
+     */
+    private static final class CompressTile implements Callable<ByteBuffer> {
+
+        private final ByteBuffer tile;             //uncompressed tile
+        private final Compression compression;
+        private final boolean predictor;
+        private final boolean floatingPoint;       //true if the samples are floating point
+        private final int rowLength, bands, bytes; //bytes in each row, bands, bytes in each sample
+
+        CompressTile(ByteBuffer tile, Compression compression, boolean predictor,
+                boolean floatingPoint, int rowLength, int bands, int bytes) {
+            this.tile = tile;
+            this.compression = compression;
+            this.predictor = predictor;
+            this.floatingPoint = floatingPoint;
+            this.rowLength = rowLength;
+            this.bands = bands;
+            this.bytes = bytes;
+        }
+
+        public ByteBuffer call() {
+            final int length = this.tile.capacity();
+            if (this.compression == Compression.NONE) {
+                return ByteBuffer.wrap(this.tile.array());
+            }
+            if (this.predictor && this.floatingPoint) {
+                TileCompressor.floatingPointPredict(this.tile, length, this.rowLength, this.bands,
+                        this.bytes);
+            } else if (this.predictor) {
+                TileCompressor.horizontalPredict(this.tile, length, this.rowLength, this.bands,
+                        this.bytes);
+            }
+            return this.compression == Compression.LZW ? TileCompressor.lzw(this.tile, length)
+                    : TileCompressor.deflate(this.tile, length, DEFLATE_LEVEL);
+        }
+    }
+
+    /**
+     * Compresses tiles (on a pool of threads if there are several) and writes
+     * them in the order they were given, keeping at most a window of tiles in
+     * flight, and recording where each one was written
+     */
+    private static final class TileStream {
+
+        private final FileChannel channel;
+        private final long[][] offsets, counts;   //position and length of each tile of each level
+        private final Compression compression;
+        private final boolean predictor;
+        private final ExecutorService pool;       //null to compress on this thread
+        private final int window;                 //most tiles being compressed at once
+        private final int length;                 //bytes in each tile
+        private final int rowLength, bands, bytes;
+        private final boolean floatingPoint;
+        private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();   //free tiles
+        private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<ByteBuffer>();
+        private final ArrayDeque<int[]> targets = new ArrayDeque<int[]>();    //level and index
+        private final ArrayDeque<Future<ByteBuffer>> compressed
+                = new ArrayDeque<Future<ByteBuffer>>();
+        private long position;                    //end of the file
+
+        TileStream(FileChannel channel, long position, long[][] offsets, long[][] counts,
+                Compression compression, boolean predictor, int threads, int t, int bands,
+                int dataType) {
+            this.channel = channel;
+            this.position = position;
+            this.offsets = offsets;
+            this.counts = counts;
+            this.compression = compression;
+            this.predictor = predictor;
+            this.pool = threads > 1 && compression != Compression.NONE
+                    ? Executors.newFixedThreadPool(threads) : null;
+            this.window = 2 * threads;
+            this.bands = bands;
+            this.bytes = DataBuffer.getDataTypeSize(dataType) / 8;
+            this.rowLength = t * bands * this.bytes;
+            this.length = t * this.rowLength;
+            this.floatingPoint = dataType == DataBuffer.TYPE_FLOAT
+                    || dataType == DataBuffer.TYPE_DOUBLE;
+        }
+
+        /**
+         * Return an empty tile
+         *
+         * @param zero true to fill it with 0
+         * @return
+         */
+        ByteBuffer take(boolean zero) {
+            final ByteBuffer tile = this.buffers.isEmpty() ? ByteBuffer.allocate(this.length)
+                    : this.buffers.poll();
+            tile.clear();
+            if (zero) {
+                Arrays.fill(tile.array(), (byte) 0);
+            }
+            return tile;
+        }
+
+        /**
+         * Compresses and writes a tile, now or once the tiles before it have
+         * been written (it must not be changed after this)
+         *
+         * @param tile
+         * @param level
+         * @param index
+         * @throws IOException
+         */
+        void put(ByteBuffer tile, int level, int index) throws IOException {
+            final CompressTile task = new CompressTile(tile, this.compression, this.predictor,
+                    this.floatingPoint, this.rowLength, this.bands, this.bytes);
+            if (this.pool == null) {
+                this.write(task.call(), level, index);
+                this.buffers.add(tile);
+            } else {
+                this.compressed.add(this.pool.submit(task));
+                this.inFlight.add(tile);
+                this.targets.add(new int[]{level, index});
+                if (this.compressed.size() >= this.window) {
+                    this.writeNext();
+                }
+            }
+        }
+
+        /**
+         * Writes all of the tiles that are still being compressed
+         *
+         * @throws IOException
+         */
+        void finish() throws IOException {
+            while (!this.compressed.isEmpty()) {
+                this.writeNext();
+            }
+        }
+
+        /**
+         * Stops the threads
+         */
+        void close() {
+            if (this.pool != null) {
+                this.pool.shutdownNow();
+            }
+        }
+
+        /**
+         * Waits for the oldest tile in flight to be compressed and writes it
+         *
+         * @throws IOException
+         */
+        private void writeNext() throws IOException {
+            final int[] target = this.targets.poll();
+            this.write(await(this.compressed.poll()), target[0], target[1]);
+            this.buffers.add(this.inFlight.poll());
+        }
+
+        /**
+         * Writes an encoded tile at the end of the file, recording where it is
+         *
+         * @param tile
+         * @param level
+         * @param index
+         * @throws IOException
+         */
+        private void write(ByteBuffer tile, int level, int index) throws IOException {
+            this.offsets[level][index] = this.position;
+            this.counts[level][index] = tile.remaining();
+            this.position += writeFully(this.channel, tile, this.position);
+        }
+    }
+
+    /**
+     * Returns true if an image is written as RGB(A): three or four bands of
+     * bytes with a colour model of three colour components
+     *
+     * @param bands
+     * @param dataType
+     * @param colorModel
+     * @return
+     */
+    private static boolean isRgb(int bands, int dataType, ColorModel colorModel) {
+        return (bands == 3 || bands == 4) && dataType == DataBuffer.TYPE_BYTE
+                && colorModel != null && colorModel.getNumColorComponents() == 3;
+    }
+
+    /**
+     * One overview, built a row of tiles at a time from the tiles of the level
+     * above it (each of which fills a quarter of one of its tiles)
+     */
+    private static final class Overview {
+
+        private final int level;                  //1 for the first overview
+        private final int width, height;          //size in cells
+        private final int tilesX, tilesY;
+        private final int t, bands, dataType, bytes;
+        private final Resampling resampling;
+        private final Overview next;              //the overview below this one, or null
+        private final ByteBuffer[] row;           //tiles of the row being built
+
+        Overview(int level, int width, int height, int t, int bands, int dataType,
+                Resampling resampling, Overview next) {
+            this.level = level;
+            this.width = width;
+            this.height = height;
+            this.tilesX = (width + t - 1) / t;
+            this.tilesY = (height + t - 1) / t;
+            this.t = t;
+            this.bands = bands;
+            this.dataType = dataType;
+            this.bytes = DataBuffer.getDataTypeSize(dataType) / 8;
+            this.resampling = resampling;
+            this.next = next;
+            this.row = new ByteBuffer[this.tilesX];
+        }
+
+        /**
+         * Resamples a tile of the level above into a quarter of a tile of
+         * this one
+         *
+         * @param source
+         * @param sx column of the tile in the level above
+         * @param sy row of the tile in the level above
+         * @param sw width of the tile that is within the image
+         * @param sh height of the tile that is within the image
+         * @param stream
+         */
+        void add(ByteBuffer source, int sx, int sy, int sw, int sh, TileStream stream) {
+            if (this.row[sx / 2] == null) {
+                this.row[sx / 2] = stream.take(true);
+            }
+            final ByteBuffer tile = this.row[sx / 2];
+            final int ox = sx % 2 * this.t / 2;
+            final int oy = sy % 2 * this.t / 2;
+            double value, v;
+            int n;
+            for (int y = 0; y < (sh + 1) / 2; y++) {
+                for (int x = 0; x < (sw + 1) / 2; x++) {
+                    for (int b = 0; b < this.bands; b++) {
+
+                        if (this.resampling == Resampling.NEAREST) {
+                            this.put(tile, (oy + y) * this.t + ox + x, b,
+                                    this.get(source, 2 * y * this.t + 2 * x, b));
+                            continue;
+                        }
+
+                        //combine the cells of the 2x2 block that are within the image
+                        value = 0;
+                        n = 0;
+                        for (int dy = 0; dy < 2 && 2 * y + dy < sh; dy++) {
+                            for (int dx = 0; dx < 2 && 2 * x + dx < sw; dx++) {
+                                v = this.get(source, (2 * y + dy) * this.t + 2 * x + dx, b);
+                                if (v != 0 && !Double.isNaN(v)) {
+                                    value = this.resampling == Resampling.MAX && n > 0
+                                            ? Math.max(value, v) : value + v;
+                                    n++;
+                                }
+                            }
+                        }
+                        if (this.resampling == Resampling.AVERAGE && n > 0) {
+                            value /= n;
+                        }
+                        this.put(tile, (oy + y) * this.t + ox + x, b, value);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Called after each row of tiles of the level above, writes the row of
+         * tiles of this level once both of the rows that it is built from are
+         * done (or the last row is)
+         *
+         * @param sy row of tiles of the level above
+         * @param last true if it is the last row of the level above
+         * @param stream
+         * @throws IOException
+         */
+        void endRow(int sy, boolean last, TileStream stream) throws IOException {
+            if (sy % 2 == 0 && !last) {
+                return;
+            }
+            final int ty = sy / 2;
+            ByteBuffer tile;
+            for (int tx = 0; tx < this.tilesX; tx++) {
+                tile = this.row[tx] != null ? this.row[tx] : stream.take(true);
+                this.row[tx] = null;
+                if (this.next != null) {
+                    this.next.add(tile, tx, ty, Math.min(this.t, this.width - tx * this.t),
+                            Math.min(this.t, this.height - ty * this.t), stream);
+                }
+                stream.put(tile, this.level, ty * this.tilesX + tx);
+            }
+            if (this.next != null) {
+                this.next.endRow(ty, ty == this.tilesY - 1, stream);
+            }
+        }
+
+        /**
+         * Return a sample of a cell of a tile
+         *
+         * @param tile
+         * @param cell index of the cell in the tile
+         * @param band
+         * @return
+         */
+        private double get(ByteBuffer tile, int cell, int band) {
+            final int at = (cell * this.bands + band) * this.bytes;
+            switch (this.dataType) {
+                case DataBuffer.TYPE_BYTE:
+                    return tile.get(at) & 0xFF;
+                case DataBuffer.TYPE_USHORT:
+                    return tile.getShort(at) & 0xFFFF;
+                case DataBuffer.TYPE_SHORT:
+                    return tile.getShort(at);
+                case DataBuffer.TYPE_INT:
+                    return tile.getInt(at);
+                case DataBuffer.TYPE_FLOAT:
+                    return tile.getFloat(at);
+                default:
+                    return tile.getDouble(at);
+            }
+        }
+
+        /**
+         * Sets a sample of a cell of a tile (rounding it for integer types)
+         *
+         * @param tile
+         * @param cell index of the cell in the tile
+         * @param band
+         * @param value
+         */
+        private void put(ByteBuffer tile, int cell, int band, double value) {
+            final int at = (cell * this.bands + band) * this.bytes;
+            switch (this.dataType) {
+                case DataBuffer.TYPE_BYTE:
+                    tile.put(at, (byte) Math.round(value));
+                    break;
+                case DataBuffer.TYPE_USHORT:
+                case DataBuffer.TYPE_SHORT:
+                    tile.putShort(at, (short) Math.round(value));
+                    break;
+                case DataBuffer.TYPE_INT:
+                    tile.putInt(at, (int) Math.round(value));
+                    break;
+                case DataBuffer.TYPE_FLOAT:
+                    tile.putFloat(at, (float) value);
+                    break;
+                default:
+                    tile.putDouble(at, value);
+            }
+        }
+    }
+
+    /**
+     * An entry in the image directory, with its values as big endian bytes
+     */
+    private static final class Entry {
+
+        final int tag;         //TIFF tag
+        final int type;        //field type
+        final long count;      //number of values
+        final byte[] data;     //values
+
+        Entry(int tag, int type, long count, byte[] data) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.data = data;
+        }
+
+        static Entry shorts(int tag, int... values) {
+            final ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+            for (int value : values) {
+                buffer.putShort((short) value);
+            }
+            return new Entry(tag, SHORT, values.length, buffer.array());
+        }
+
+        static Entry longs(int tag, long... values) {
+            final ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+            for (long value : values) {
+                buffer.putInt((int) value);
+            }
+            return new Entry(tag, LONG, values.length, buffer.array());
+        }
+
+        static Entry long8s(int tag, long... values) {
+            final ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+            for (long value : values) {
+                buffer.putLong(value);
+            }
+            return new Entry(tag, LONG8, values.length, buffer.array());
+        }
+
+        static Entry doubles(int tag, double... values) {
+            final ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+            for (double value : values) {
+                buffer.putDouble(value);
+            }
+            return new Entry(tag, DOUBLE, values.length, buffer.array());
+        }
+
+    }
+}
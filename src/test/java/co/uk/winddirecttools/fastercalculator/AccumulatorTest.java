@@ -0,0 +1,452 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Differential tests of the accumulators (and the kernels under them) against
+ * the original implementation of RasterCalculator, which replaced the values
+ * of each input outside of the radius with 0 (enforceRadius) then combined the
+ * whole block of the input with the output (opAdd, opSubtract, opMultiply or
+ * opDivide, input first)
+ *
+ * @author jonathan.huck
+ */
+public class AccumulatorTest extends TestCase {
+
+    /*
+     * output dimensions
+     */
+    private static final int WIDTH = 90;
+    private static final int HEIGHT = 70;
+
+    /*
+     * the operations of the original implementation
+     */
+    private static final int[] OPERATIONS = {RasterCalculator.ADD, RasterCalculator.SUBTRACT,
+        RasterCalculator.MULTIPLY, RasterCalculator.DIVIDE};
+
+    /*
+     * radii from none of the block to all of it (for blocks of up to 40 x 40)
+     */
+    private static final double[] RADII = {0, 1, 2.5, 6, 10.5, 19.9, 100};
+
+    /*
+     * ways of applying an input
+     */
+    private static final int DENSE = 0;     //every cell of the block, masked
+    private static final int SPARSE = 1;    //the non-zero runs of the block (SparseRows) if sparse enough
+    private static final int WINDOW = 2;    //the bounding box of the mask, then 0 around it
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public AccumulatorTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(AccumulatorTest.class);
+    }
+
+    /**
+     * Each operation on an in-memory grid of each type
+     *
+     * @throws IOException
+     */
+    public void testRasterAccumulator() throws IOException {
+        final Random random = new Random(1);
+        for (AccumulatorType type : AccumulatorType.values()) {
+            for (int operation : OPERATIONS) {
+                compare(new RasterAccumulator(type, WIDTH, HEIGHT), operation, DENSE, random);
+            }
+        }
+    }
+
+    /**
+     * Each operation on a grid of each type tiled on disk, with room for
+     * only a few tiles so that the inputs are split across tiles that are
+     * paged in and out
+     *
+     * @throws IOException
+     */
+    public void testTiledAccumulator() throws IOException {
+        final Random random = new Random(2);
+        for (AccumulatorType type : AccumulatorType.values()) {
+            for (int operation : OPERATIONS) {
+                final Accumulator accumulator = new TiledAccumulator(type, WIDTH, HEIGHT, 16,
+                        8L * 16 * 16 * type.getBytes());
+                try {
+                    compare(accumulator, operation, DENSE, random);
+                } finally {
+                    accumulator.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The corners of a block outside of the radius are skipped for ADD, but
+     * combined with 0 for the other operations
+     *
+     * @throws IOException
+     */
+    public void testMaskedCorners() throws IOException {
+        final int[] values = new int[21 * 21];
+        Arrays.fill(values, 5);
+        final double[] row = new double[WIDTH];
+        for (int operation : OPERATIONS) {
+            final Accumulator accumulator = new RasterAccumulator(AccumulatorType.INT, WIDTH,
+                    HEIGHT);
+            fill(accumulator, 2);
+            accumulator.apply(operation, values, RadiusMask.get(21, 21, 10), 30, 20, 0, 21);
+
+            //top left corner, then the centre
+            accumulator.readRow(20, row);
+            assertEquals("corner " + operation, operate(AccumulatorType.INT, operation, 0, 2),
+                    row[30], 0);
+            accumulator.readRow(30, row);
+            assertEquals("centre " + operation, operate(AccumulatorType.INT, operation, 5, 2),
+                    row[40], 0);
+        }
+    }
+
+    /**
+     * The non-zero runs of sparse inputs, for the operations that allow it
+     *
+     * @throws IOException
+     */
+    public void testSparse() throws IOException {
+        final Random random = new Random(3);
+        for (AccumulatorType type : AccumulatorType.values()) {
+            compare(new RasterAccumulator(type, WIDTH, HEIGHT), RasterCalculator.ADD, SPARSE,
+                    random);
+            compare(new RasterAccumulator(type, WIDTH, HEIGHT), RasterCalculator.COUNT, SPARSE,
+                    random);
+            final Accumulator accumulator = new TiledAccumulator(type, WIDTH, HEIGHT, 16,
+                    8L * 16 * 16 * type.getBytes());
+            try {
+                compare(accumulator, RasterCalculator.ADD, SPARSE, random);
+            } finally {
+                accumulator.close();
+            }
+        }
+    }
+
+    /**
+     * Only the bounding box of the mask of each input is read, and the rest of
+     * the input is applied as 0 (RasterCalculator.applyZero)
+     *
+     * @throws IOException
+     */
+    public void testBoundingBoxWindow() throws IOException {
+        final Random random = new Random(4);
+        for (AccumulatorType type : AccumulatorType.values()) {
+            for (int operation : OPERATIONS) {
+                compare(new RasterAccumulator(type, WIDTH, HEIGHT), operation, WINDOW, random);
+            }
+        }
+    }
+
+    /**
+     * Applies random inputs to an accumulator, and to a copy of its values with
+     * the original implementation, failing if the results differ
+     *
+     * @param accumulator
+     * @param operation
+     * @param mode DENSE, SPARSE or WINDOW
+     * @param random
+     * @throws IOException
+     */
+    private static void compare(Accumulator accumulator, int operation, int mode, Random random)
+            throws IOException {
+        final AccumulatorType type = accumulator.getType();
+        final String name = type + " " + operation + " " + mode;
+
+        //a run of overlapping inputs, with each radius in turn (integer outputs can
+        //be divided down to 0, so DIVIDE starts again before each input)
+        final boolean divide = operation == RasterCalculator.DIVIDE;
+        final double[][] expected = new double[HEIGHT][WIDTH];
+        reset(accumulator, expected, random);
+        int runs = 0;
+        for (int n = 0; n < (divide ? 2 : 12) * RADII.length; n++) {
+            final int w = 1 + random.nextInt(40);
+            final int h = 1 + random.nextInt(40);
+            final int x = random.nextInt(WIDTH - w + 1);
+            final int y = random.nextInt(HEIGHT - h + 1);
+            final double radius = RADII[n % RADII.length];
+            final double[] values = new double[w * h];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = mode == SPARSE ? (random.nextInt(50) == 0 ? 1 + random.nextInt(9) : 0)
+                        : random.nextInt(10);
+            }
+            if (divide) {
+                reset(accumulator, expected, random);
+            }
+
+            //apply the input
+            if (apply(accumulator, operation, mode, values, w, h, x, y, radius)) {
+                runs++;
+            }
+
+            //and the original
+            final double[] masked = enforceRadius(values, w, radius);
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++) {
+                    expected[y + j][x + i] = operate(type, operation, masked[j * w + i],
+                            expected[y + j][x + i]);
+                }
+            }
+
+            //check the output before DIVIDE starts again
+            if (divide) {
+                check(accumulator, expected, name + " radius " + radius);
+            }
+        }
+        check(accumulator, expected, name);
+        assertTrue(name + " never applied as runs", mode != SPARSE || runs > 0);
+    }
+
+    /**
+     * Fails if any cell of an accumulator is not the expected value
+     *
+     * @param accumulator
+     * @param expected
+     * @param name
+     * @throws IOException
+     */
+    private static void check(Accumulator accumulator, double[][] expected, String name)
+            throws IOException {
+        final double[] row = new double[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            accumulator.readRow(y, row);
+            for (int x = 0; x < WIDTH; x++) {
+                if (row[x] != expected[y][x]) {
+                    assertEquals(name + " at " + x + ", " + y, expected[y][x], row[x], 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies an input to an accumulator, returning true if it was applied as
+     * runs of non-zero values (SPARSE inputs that are not sparse enough are
+     * applied as DENSE ones, as RasterCalculator does)
+     *
+     * @param accumulator
+     * @param operation
+     * @param mode
+     * @param values
+     * @param w
+     * @param h
+     * @param x
+     * @param y
+     * @param radius
+     * @return
+     * @throws IOException
+     */
+    private static boolean apply(Accumulator accumulator, int operation, int mode, double[] values,
+            int w, int h, int x, int y, double radius) throws IOException {
+        final boolean floatingPoint = accumulator.getType().isFloatingPoint();
+        final RadiusMask mask = RadiusMask.get(w, h, radius);
+        if (mode == SPARSE) {
+            final SparseRows rows = new SparseRows();
+            if (floatingPoint) {
+                final float[] floats = toFloats(values, w, new Rectangle(w, h));
+                if (rows.build(floats, mask)) {
+                    accumulator.apply(operation, floats, rows, x, y, 0, h);
+                    return true;
+                }
+            } else {
+                final int[] ints = toInts(values, w, new Rectangle(w, h));
+                if (rows.build(ints, mask)) {
+                    accumulator.apply(operation, ints, rows, x, y, 0, h);
+                    return true;
+                }
+            }
+        }
+        if (mode != WINDOW) {
+            if (floatingPoint) {
+                accumulator.apply(operation, toFloats(values, w, new Rectangle(w, h)), mask, x, y,
+                        0, h);
+            } else {
+                accumulator.apply(operation, toInts(values, w, new Rectangle(w, h)), mask, x, y,
+                        0, h);
+            }
+        } else {
+            final Rectangle window = mask.getBounds().intersection(new Rectangle(w, h));
+            if (!window.isEmpty()) {
+                final RadiusMask part = RadiusMask.get(w, h, radius, window);
+                if (floatingPoint) {
+                    accumulator.apply(operation, toFloats(values, w, window), part,
+                            x + window.x, y + window.y, 0, window.height);
+                } else {
+                    accumulator.apply(operation, toInts(values, w, window), part,
+                            x + window.x, y + window.y, 0, window.height);
+                }
+            }
+            window.translate(x, y);
+            RasterCalculator.applyZero(new Accumulator[]{accumulator}, new int[]{operation},
+                    new Rectangle(x, y, w, h), window.isEmpty() ? new Rectangle() : window, 0,
+                    accumulator.getHeight());
+        }
+        return false;
+    }
+
+    /**
+     * The original enforceRadius: the values further than the radius from the
+     * centre of the block are replaced with 0
+     *
+     * @param data
+     * @param width
+     * @param radius
+     * @return
+     */
+    private static double[] enforceRadius(double[] data, int width, double radius) {
+        final double[] out = new double[data.length];
+        final int centreX = (data.length / 2) % width;
+        final int centreY = (data.length / 2) / width;
+        int x, y;
+        for (int i = 0; i < data.length; i++) {
+            x = (i % width) - centreX;
+            y = (i / width) - centreY;
+            out[i] = (Math.sqrt(Math.pow(x, 2d) + Math.pow(y, 2d)) < radius) ? data[i] : 0;
+        }
+        return out;
+    }
+
+    /**
+     * The original operations on an input value (one) and an output value
+     * (two), in the arithmetic of the output type (byte and unsigned short
+     * outputs wrap around), along with COUNT
+     *
+     * @param type
+     * @param operation
+     * @param one
+     * @param two
+     * @return
+     */
+    private static double operate(AccumulatorType type, int operation, double one, double two) {
+        if (type == AccumulatorType.FLOAT) {
+            final float a = (float) one, b = (float) two;
+            switch (operation) {
+                case RasterCalculator.ADD:
+                    return a + b;
+                case RasterCalculator.SUBTRACT:
+                    return a - b;
+                case RasterCalculator.MULTIPLY:
+                    return a * b;
+                case RasterCalculator.DIVIDE:
+                    return a / b;
+                default:
+                    return b + (a != 0 ? 1 : 0);
+            }
+        }
+        final long a = (long) one, b = (long) two;
+        long out;
+        switch (operation) {
+            case RasterCalculator.ADD:
+                out = a + b;
+                break;
+            case RasterCalculator.SUBTRACT:
+                out = a - b;
+                break;
+            case RasterCalculator.MULTIPLY:
+                out = a * b;
+                break;
+            case RasterCalculator.DIVIDE:
+                out = a / b;
+                break;
+            default:
+                out = b + (a != 0 ? 1 : 0);
+        }
+        if (type == AccumulatorType.BYTE) {
+            return out & 0xFF;
+        } else if (type == AccumulatorType.USHORT) {
+            return out & 0xFFFF;
+        } else if (type == AccumulatorType.INT) {
+            return (int) out;
+        }
+        return out;
+    }
+
+    /**
+     * Sets every cell of an accumulator, and the expected values, to random
+     * values (not 0, as they may be divided by)
+     *
+     * @param accumulator
+     * @param expected
+     * @param random
+     * @throws IOException
+     */
+    private static void reset(Accumulator accumulator, double[][] expected, Random random)
+            throws IOException {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                expected[y][x] = 1 + random.nextInt(9);
+            }
+            accumulator.writeRow(y, expected[y]);
+        }
+    }
+
+    /**
+     * Sets every cell of an accumulator to a value
+     *
+     * @param accumulator
+     * @param value
+     * @throws IOException
+     */
+    private static void fill(Accumulator accumulator, double value) throws IOException {
+        final double[] row = new double[accumulator.getWidth()];
+        Arrays.fill(row, value);
+        for (int y = 0; y < accumulator.getHeight(); y++) {
+            accumulator.writeRow(y, row);
+        }
+    }
+
+    /**
+     * Returns a window of a block of values as ints
+     *
+     * @param values
+     * @param width
+     * @param window
+     * @return
+     */
+    private static int[] toInts(double[] values, int width, Rectangle window) {
+        final int[] ints = new int[window.width * window.height];
+        for (int j = 0; j < window.height; j++) {
+            for (int i = 0; i < window.width; i++) {
+                ints[j * window.width + i] = (int) values[(window.y + j) * width + window.x + i];
+            }
+        }
+        return ints;
+    }
+
+    /**
+     * Returns a window of a block of values as floats
+     *
+     * @param values
+     * @param width
+     * @param window
+     * @return
+     */
+    private static float[] toFloats(double[] values, int width, Rectangle window) {
+        final float[] floats = new float[window.width * window.height];
+        for (int j = 0; j < window.height; j++) {
+            for (int i = 0; i < window.width; i++) {
+                floats[j * window.width + i] = (float) values[(window.y + j) * width + window.x + i];
+            }
+        }
+        return floats;
+    }
+}
@@ -0,0 +1,294 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * Tests of the header and number scanning of AsciiGrid, against the values
+ * that were written to each grid
+ *
+ * @author jonathan.huck
+ */
+public class AsciiGridTest extends TestCase {
+
+    /*
+     * grids written by the tests (deleted afterwards)
+     */
+    private File directory;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public AsciiGridTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(AsciiGridTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = File.createTempFile("asciigrid", "");
+        assertTrue(this.directory.delete() && this.directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    /**
+     * The header, with the lower left corner given as a corner
+     *
+     * @throws IOException
+     */
+    public void testCorner() throws IOException {
+        final AsciiGrid grid = new AsciiGrid(this.write("corner",
+                "ncols 3\nnrows 2\nxllcorner 100.5\nyllcorner -20\ncellsize 2.5\n"
+                + "1 2 3\n4 5 6\n"));
+        assertEquals(3, grid.getWidth());
+        assertEquals(2, grid.getHeight());
+        final Envelope2D envelope = grid.getEnvelope(null);
+        assertEquals(100.5, envelope.getMinX(), 0);
+        assertEquals(-20.0, envelope.getMinY(), 0);
+        assertEquals(7.5, envelope.getWidth(), 0);
+        assertEquals(5.0, envelope.getHeight(), 0);
+        assertEquals(DataBuffer.TYPE_INT, grid.getDataType());
+        assertInts(new int[]{1, 2, 3, 4, 5, 6}, grid.read((int[]) null, new Rectangle(3, 2)));
+    }
+
+    /**
+     * The header with upper case keywords, tabs and CRLF line endings, and
+     * the lower left corner given as the centre of the corner cell
+     *
+     * @throws IOException
+     */
+    public void testCentre() throws IOException {
+        final AsciiGrid grid = new AsciiGrid(this.write("centre",
+                "NCOLS\t2\r\nNROWS\t2\r\nXLLCENTER\t101\r\nYLLCENTER\t-19\r\nCELLSIZE\t2\r\n"
+                + "7\t8\r\n9\t10\r\n"));
+        final Envelope2D envelope = grid.getEnvelope(null);
+        assertEquals(100.0, envelope.getMinX(), 0);
+        assertEquals(-20.0, envelope.getMinY(), 0);
+        assertInts(new int[]{7, 8, 9, 10}, grid.read((int[]) null, new Rectangle(2, 2)));
+    }
+
+    /**
+     * Cells of NODATA_value are read as 0, whether the value is written as a
+     * whole number or a decimal
+     *
+     * @throws IOException
+     */
+    public void testNoData() throws IOException {
+        final AsciiGrid grid = new AsciiGrid(this.write("nodata",
+                "ncols 4\nnrows 2\nxllcorner 0\nyllcorner 0\ncellsize 1\nNODATA_value -9999\n"
+                + "-9999 1 -9999.0 2\n3 -9999 4 -9998\n"));
+        assertEquals(DataBuffer.TYPE_FLOAT, grid.getDataType());
+        assertInts(new int[]{0, 1, 0, 2, 3, 0, 4, -9998},
+                grid.read((int[]) null, new Rectangle(4, 2)));
+        assertFloats(new float[]{0, 1, 0, 2, 3, 0, 4, -9998},
+                grid.read((float[]) null, new Rectangle(4, 2)));
+    }
+
+    /**
+     * Decimals with and without whole digits and signs, which are exact to
+     * a float and truncated when read as integers
+     *
+     * @throws IOException
+     */
+    public void testDecimals() throws IOException {
+        final String[] values = {"0.5", "-0.5", "+1.25", ".75", "-.125", "3.", "12.3456789",
+            "-7.0", "0.000001", "123456.7"};
+        final AsciiGrid grid = new AsciiGrid(this.write("decimals", header(values.length, 1)
+                + join(values)));
+        assertEquals(DataBuffer.TYPE_FLOAT, grid.getDataType());
+        final Rectangle all = new Rectangle(values.length, 1);
+        final float[] floats = grid.read((float[]) null, all);
+        final int[] ints = grid.read((int[]) null, all);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], (float) Double.parseDouble(values[i]), floats[i], 0);
+            assertEquals(values[i], (int) Double.parseDouble(values[i]), ints[i]);
+        }
+    }
+
+    /**
+     * Values that the scanner does not handle itself (exponents, more than
+     * 18 digits and words) are parsed in full by Double.parseDouble(), and
+     * anything it cannot parse is an IOException
+     *
+     * @throws IOException
+     */
+    public void testFallback() throws IOException {
+        final String[] values = {"1e3", "-2.5E-1", "1.5e+2", "12345678901234567890",
+            "0.1234567890123456789", "NaN", "Infinity", "-Infinity", "4"};
+        final AsciiGrid grid = new AsciiGrid(this.write("fallback", header(values.length, 1)
+                + join(values)));
+        assertEquals(DataBuffer.TYPE_FLOAT, grid.getDataType());
+        final float[] floats = grid.read((float[]) null, new Rectangle(values.length, 1));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], Float.floatToIntBits((float) Double.parseDouble(values[i])),
+                    Float.floatToIntBits(floats[i]));
+        }
+
+        //a value that is not a number
+        final AsciiGrid invalid = new AsciiGrid(this.write("invalid", header(3, 1) + "1 2x 3\n"));
+        try {
+            invalid.read((float[]) null, new Rectangle(3, 1));
+            fail("2x was read as a number");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("2x"));
+        }
+    }
+
+    /**
+     * Every window of a grid is the same as that part of the whole grid,
+     * including windows at each edge and single cells, with the values
+     * around them skipped over rather than parsed (so that a value outside
+     * of the window that is not a number is never read)
+     *
+     * @throws IOException
+     */
+    public void testWindows() throws IOException {
+        final int width = 13, height = 9;
+        final Random random = new Random(1);
+        final int[] values = new int[width * height];
+        final StringBuilder text = new StringBuilder(header(width, height));
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                values[y * width + x] = random.nextInt(2000) - 1000;
+                text.append(x == 0 ? "" : random.nextBoolean() ? " " : "  ")
+                        .append(values[y * width + x]);
+            }
+            text.append('\n');
+        }
+        final AsciiGrid grid = new AsciiGrid(this.write("windows", text.toString()));
+        int[] buffer = null;
+        for (int n = 0; n < 200; n++) {
+            final int w = 1 + random.nextInt(width);
+            final int h = 1 + random.nextInt(height);
+            final Rectangle window = new Rectangle(random.nextInt(width - w + 1),
+                    random.nextInt(height - h + 1), w, h);
+            buffer = grid.read(buffer, window);
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++) {
+                    assertEquals(window + " at " + i + ", " + j,
+                            values[(window.y + j) * width + window.x + i], buffer[j * w + i]);
+                }
+            }
+        }
+
+        //the last row is never parsed when the window is above it
+        final AsciiGrid partial = new AsciiGrid(this.write("partial", header(2, 2)
+                + "1 2\nnot numbers\n"));
+        assertInts(new int[]{2}, partial.read((int[]) null, new Rectangle(1, 0, 1, 1)));
+    }
+
+    /**
+     * A grid with fewer values than its header says, or no header at all, is
+     * an IOException
+     *
+     * @throws IOException
+     */
+    public void testInvalid() throws IOException {
+        final AsciiGrid grid = new AsciiGrid(this.write("short", header(3, 2) + "1 2 3\n4 5\n"));
+        try {
+            grid.read((int[]) null, new Rectangle(3, 2));
+            fail("read 6 values from a grid of 5");
+        } catch (IOException e) {
+            //expected
+        }
+        try {
+            new AsciiGrid(this.write("headless", "1 2 3\n"));
+            fail("read a grid without a header");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    /**
+     * Writes a grid to a file in the test directory
+     *
+     * @param name
+     * @param text
+     * @return
+     * @throws IOException
+     */
+    private File write(String name, String text) throws IOException {
+        final File file = new File(this.directory, name + ".asc");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Returns the header of a grid of the given dimensions
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    private static String header(int width, int height) {
+        return "ncols " + width + "\nnrows " + height
+                + "\nxllcorner 0\nyllcorner 0\ncellsize 1\n";
+    }
+
+    /**
+     * Returns values separated by spaces, as one row
+     *
+     * @param values
+     * @return
+     */
+    private static String join(String[] values) {
+        final StringBuilder row = new StringBuilder();
+        for (String value : values) {
+            row.append(value).append(' ');
+        }
+        return row.append('\n').toString();
+    }
+
+    /**
+     * Fails if the start of a buffer is not the expected values
+     *
+     * @param expected
+     * @param actual
+     */
+    private static void assertInts(int[] expected, int[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("value " + i, expected[i], actual[i]);
+        }
+    }
+
+    /**
+     * Fails if the start of a buffer is not the expected values
+     *
+     * @param expected
+     * @param actual
+     */
+    private static void assertFloats(float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("value " + i, expected[i], actual[i], 0);
+        }
+    }
+}
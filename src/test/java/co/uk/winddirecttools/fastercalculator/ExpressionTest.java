@@ -0,0 +1,198 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests of the map algebra expression parser and evaluator
+ *
+ * @author jonathan.huck
+ */
+public class ExpressionTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ExpressionTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(ExpressionTest.class);
+    }
+
+    /**
+     * * and / bind tighter than + and -, which bind tighter than the
+     * comparisons, then && and ||, and each is left associative
+     */
+    public void testPrecedence() {
+        assertEquals(7.0, constant("1 + 2 * 3"), 0);
+        assertEquals(9.0, constant("(1 + 2) * 3"), 0);
+        assertEquals(2.0, constant("8 - 4 - 2"), 0);
+        assertEquals(1.0, constant("8 / 4 / 2"), 0);
+        assertEquals(-1.0, constant("-2 + 1"), 0);
+        assertEquals(1.0, constant("1 + 2 > 2"), 0);
+        assertEquals(1.0, constant("1 < 2 * 3"), 0);
+        assertEquals(1.0, constant("0 && 1 || 1"), 0);
+        assertEquals(0.0, constant("0 && (1 || 1)"), 0);
+        assertEquals(0.0, constant("!1 + 1 > 1"), 0);
+    }
+
+    /**
+     * ?: is right associative, and either branch may itself be a conditional
+     */
+    public void testConditional() {
+        assertEquals(2.0, constant("0 ? 1 : 1 ? 2 : 3"), 0);
+        assertEquals(3.0, constant("0 ? 1 : 0 ? 2 : 3"), 0);
+        assertEquals(2.0, constant("1 ? 0 ? 1 : 2 : 3"), 0);
+        assertEquals(1.0, constant("(1 ? 0 : 1) ? 2 : 1"), 0);
+        assertEquals(5.0, constant("1 + 1 > 1 ? 2 + 3 : 4"), 0);
+        assertEquals(4.0, constant("if(0, 1, if(1, 4, 5))"), 0);
+
+        //nested conditionals over a row, each cell taking a different branch
+        final Expression expression = Expression.parse("a < 0 ? -1 : a > 0 ? 1 : 0");
+        final double[] out = evaluate(expression, new double[][]{{-3, 0, 2, -0.5, 7}});
+        assertEquals(-1.0, out[0], 0);
+        assertEquals(0.0, out[1], 0);
+        assertEquals(1.0, out[2], 0);
+        assertEquals(-1.0, out[3], 0);
+        assertEquals(1.0, out[4], 0);
+    }
+
+    /**
+     * Constant parts of an expression are replaced with their value when it
+     * is parsed, so need only the buffer that the constant is written to
+     */
+    public void testConstantFolding() {
+        assertEquals(1, Expression.parse("1 + 2 * 3").createBuffers(4).length);
+        assertEquals(1, Expression.parse("max(abs(-2), 1 ? 3 : 4) - !0").createBuffers(4).length);
+
+        //a constant operand of a reduction is folded (one buffer for the
+        //constant, one for the product)
+        final Expression expression = Expression.parse("sum(a) * (2 + 3)");
+        assertEquals(2, expression.createBuffers(4).length);
+        final double[] out = evaluate(expression, new double[][]{{1, 2, 3}});
+        assertEquals(5.0, out[0], 0);
+        assertEquals(10.0, out[1], 0);
+        assertEquals(15.0, out[2], 0);
+    }
+
+    /**
+     * Each reduction is listed once however many times it appears, in the
+     * order it first appears, and a bare name is the sum of the source
+     */
+    public void testReductions() {
+        final List<Expression.Reduction> reductions = Expression.parse(
+                "sum(a) + a * count(b) - max(a) + max(a, b) + count(b)").getReductions();
+        assertEquals(4, reductions.size());
+        assertEquals(new Expression.Reduction("a", RasterCalculator.ADD), reductions.get(0));
+        assertEquals(new Expression.Reduction("b", RasterCalculator.COUNT), reductions.get(1));
+        assertEquals(new Expression.Reduction("a", RasterCalculator.MAX), reductions.get(2));
+        assertEquals(new Expression.Reduction("b", RasterCalculator.ADD), reductions.get(3));
+    }
+
+    /**
+     * The mean of a source where it has at least 3 non-zero inputs
+     */
+    public void testMean() {
+        final Expression expression = Expression.parse("count(a) >= 3 ? sum(a) / count(a) : 0");
+        final List<Expression.Reduction> reductions = expression.getReductions();
+        assertEquals(2, reductions.size());
+        assertEquals(RasterCalculator.COUNT, reductions.get(0).getOperation());
+        assertEquals(RasterCalculator.ADD, reductions.get(1).getOperation());
+
+        //count then sum, as listed by getReductions() (0 / 0 is not selected)
+        final double[] out = evaluate(expression, new double[][]{
+            {0, 2, 3, 4, 10},
+            {0, 8, 9, 10, 25}});
+        assertEquals(0.0, out[0], 0);
+        assertEquals(0.0, out[1], 0);
+        assertEquals(3.0, out[2], 0);
+        assertEquals(2.5, out[3], 0);
+        assertEquals(2.5, out[4], 0);
+    }
+
+    /**
+     * Expressions that are not valid are reported with their position
+     */
+    public void testSyntaxErrors() {
+        assertInvalid("1 +");
+        assertInvalid("(1 + 2");
+        assertInvalid("1 2");
+        assertInvalid("sum(1)");
+        assertInvalid("median(a)");
+        assertInvalid("1 ? 2");
+        assertInvalid("if(1, 2)");
+    }
+
+    /**
+     * An expression that refers to a source that was not given is rejected
+     * before any inputs are read
+     *
+     * @throws Exception
+     */
+    public void testUnknownSource() throws Exception {
+        final Map<String, CoverageSource> sources = new HashMap<String, CoverageSource>();
+        sources.put("a", null);
+        try {
+            new MapAlgebra().evaluate("count(a) >= 3 ? sum(a) / count(b) : 0", sources, 0);
+            fail("Expected an unknown source");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'b'"));
+        }
+        try {
+            new MapAlgebra().evaluate("1 + 2", sources, 0);
+            fail("Expected no sources");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("does not refer to any sources"));
+        }
+    }
+
+    /**
+     * Returns the value of an expression with no reductions
+     *
+     * @param text
+     * @return
+     */
+    private static double constant(String text) {
+        final Expression expression = Expression.parse(text);
+        assertTrue(text, expression.getReductions().isEmpty());
+        return evaluate(expression, new double[0][])[0];
+    }
+
+    /**
+     * Evaluates an expression over a row, passing the values of each
+     * reduction in the order of getReductions()
+     *
+     * @param expression
+     * @param inputs
+     * @return
+     */
+    private static double[] evaluate(Expression expression, double[][] inputs) {
+        final int n = inputs.length > 0 ? inputs[0].length : 1;
+        return expression.evaluate(inputs, expression.createBuffers(n), n);
+    }
+
+    /**
+     * Checks that an expression is rejected
+     *
+     * @param text
+     */
+    private static void assertInvalid(String text) {
+        try {
+            Expression.parse(text);
+            fail("Expected \"" + text + "\" to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" at position "));
+        }
+    }
+}
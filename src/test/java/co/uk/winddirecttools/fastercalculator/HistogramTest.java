@@ -0,0 +1,350 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests of adding and taking away histograms (as TiledAccumulator and
+ * RasterAccumulator do), and of the class breaks computed from them
+ *
+ * @author jonathan.huck
+ */
+public class HistogramTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public HistogramTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(HistogramTest.class);
+    }
+
+    /**
+     * A running total of the histograms of several tiles, updated by taking
+     * away the old histogram of a tile and adding its new one, is exactly
+     * the sum of the histograms of the tiles as they end up. Every tile holds
+     * the same smallest and largest value, so that the histograms have the
+     * same bins and every quantile can be compared exactly.
+     */
+    public void testAddSubtract() {
+        final Random random = new Random(1);
+        final int tiles = 8;
+        final Histogram[] stored = new Histogram[tiles];
+        final Histogram total = new Histogram();
+        for (int i = 0; i < tiles; i++) {
+            stored[i] = tile(random);
+            total.add(stored[i]);
+        }
+        for (int n = 0; n < 200; n++) {
+            final int i = random.nextInt(tiles);
+            final Histogram current = tile(random);
+            total.subtract(stored[i]);
+            total.add(current);
+            stored[i] = current;
+        }
+        final Histogram expected = new Histogram();
+        for (Histogram tile : stored) {
+            expected.add(tile);
+        }
+        assertHistogramsEqual(expected, total);
+
+        //taking away everything that was added leaves nothing
+        for (Histogram tile : stored) {
+            total.subtract(tile);
+        }
+        assertEquals(0, total.getCount());
+        assertEquals(0.0, total.getQuantile(0.5), 0);
+    }
+
+    /**
+     * Histograms of very different ranges (so of different bin widths) are
+     * added into the coarser bins without losing any values
+     */
+    public void testAddRanges() {
+        final Histogram fine = new Histogram();
+        final Histogram coarse = new Histogram();
+        final List<Double> values = new ArrayList<Double>();
+        for (int i = 1; i <= 100; i++) {
+            fine.add(i / 1000.0);
+            values.add(i / 1000.0);
+        }
+        for (int i = 1; i <= 300; i++) {
+            coarse.add(i * 50.0);
+            values.add(i * 50.0);
+        }
+        final Histogram sum = new Histogram();
+        sum.add(fine);
+        sum.add(coarse);
+        assertEquals(400, sum.getCount());
+        assertEquals(0.001, sum.getMin(), 0);
+        assertEquals(15000, sum.getMax(), 0);
+
+        //a quarter of the values are the fine ones, all of which fall in the first bin
+        final double bin = 2 * 15000.0 / Histogram.BINS;
+        assertEquals(0.001, sum.getQuantile(0.25), bin);
+        assertQuantiles(values, sum, bin);
+
+        //and taking the fine values away leaves the coarse ones
+        sum.subtract(fine);
+        assertEquals(300, sum.getCount());
+        assertEquals(50, sum.getQuantile(0), bin);
+    }
+
+    /**
+     * 0 and NaN are not counted
+     */
+    public void testZero() {
+        final Histogram histogram = new Histogram();
+        histogram.add(0);
+        histogram.add(Double.NaN);
+        assertEquals(0, histogram.getCount());
+        histogram.add(-2);
+        histogram.add(3);
+        assertEquals(2, histogram.getCount());
+        assertEquals(-2.0, histogram.getMin(), 0);
+        assertEquals(3.0, histogram.getMax(), 0);
+    }
+
+    /**
+     * Quantiles of 1 to 1000 are within one bin (at most 1/2048 of the range
+     * of the values) of the exact value, and the quantile breaks of them
+     * split them into classes of equal size
+     */
+    public void testQuantiles() {
+        final Histogram histogram = new Histogram();
+        final List<Double> values = new ArrayList<Double>();
+        for (int i = 1000; i >= 1; i--) {
+            histogram.add(i);
+            values.add((double) i);
+        }
+        final double bin = 2 * 1000.0 / Histogram.BINS;
+        assertQuantiles(values, histogram, bin);
+        final double[] breaks = histogram.getBreaks(Histogram.Breaks.QUANTILE, 4);
+        assertEquals(5, breaks.length);
+        assertEquals(1.0, breaks[0], 0);
+        assertEquals(250, breaks[1], 1 + bin);
+        assertEquals(500, breaks[2], 1 + bin);
+        assertEquals(750, breaks[3], 1 + bin);
+        assertEquals(1000.0, breaks[4], 0);
+
+        //equal breaks only depend on the smallest and largest values
+        assertTrue(Arrays.equals(new double[]{1, 334, 667, 1000},
+                histogram.getBreaks(Histogram.Breaks.EQUAL, 3)));
+    }
+
+    /**
+     * Jenks breaks of integer values (which each have a bin of their own)
+     * are the same as the breaks that minimise the sum of squared deviations
+     * within each class, found by trying every pair of breaks
+     */
+    public void testJenks() {
+        final Random random = new Random(2);
+        for (int n = 0; n < 20; n++) {
+
+            //distinct values, each repeated a random number of times
+            final int distinct = 5 + random.nextInt(20);
+            final double[] values = new double[distinct];
+            final int[] counts = new int[distinct];
+            final Histogram histogram = new Histogram();
+            int value = random.nextInt(10) - 20;
+            for (int i = 0; i < distinct; i++) {
+                value += 1 + random.nextInt(random.nextBoolean() ? 3 : 60);
+                values[i] = value == 0 ? ++value : value;
+                counts[i] = 1 + random.nextInt(10);
+                for (int c = 0; c < counts[i]; c++) {
+                    histogram.add(values[i]);
+                }
+            }
+
+            //every split of the sorted values into three classes
+            double best = Double.POSITIVE_INFINITY;
+            int[] split = null;
+            for (int i = 1; i < distinct - 1; i++) {
+                for (int j = i + 1; j < distinct; j++) {
+                    final double cost = ssd(values, counts, 0, i) + ssd(values, counts, i, j)
+                            + ssd(values, counts, j, distinct);
+                    if (cost < best - 1e-9) {
+                        best = cost;
+                        split = new int[]{i, j};
+                    }
+                }
+            }
+            final double[] breaks = histogram.getBreaks(Histogram.Breaks.JENKS, 3);
+            assertTrue(Arrays.toString(breaks), Arrays.equals(new double[]{values[0],
+                values[split[0]], values[split[1]], values[distinct - 1]}, breaks));
+        }
+    }
+
+    /**
+     * Clusters of values are each put in a class of their own, and asking
+     * for more classes than there are values gives one class for each value
+     */
+    public void testJenksClasses() {
+        final Histogram histogram = new Histogram();
+        for (int i = 0; i < 5; i++) {
+            histogram.add(10.5 + i * 0.25);
+            histogram.add(100 + i);
+            histogram.add(1000 + i * 2);
+        }
+        final double[] breaks = histogram.getBreaks(Histogram.Breaks.JENKS, 3);
+        assertEquals(4, breaks.length);
+        assertEquals(10.5, breaks[0], 0);
+        assertTrue(breaks[1] > 11.5 && breaks[1] <= 100);
+        assertTrue(breaks[2] > 104 && breaks[2] <= 1000);
+        assertEquals(1008, breaks[3], 0);
+
+        final Histogram two = new Histogram();
+        two.add(5);
+        two.add(7);
+        two.add(7);
+        assertTrue(Arrays.equals(new double[]{5, 7, 7},
+                two.getBreaks(Histogram.Breaks.JENKS, 4)));
+        try {
+            two.getBreaks(Histogram.Breaks.JENKS, 0);
+            fail("broke the values into 0 classes");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    /**
+     * The histogram that RasterAccumulator keeps for each band of rows is
+     * the same as a histogram of every cell, after inputs, rows written over
+     * and more inputs
+     *
+     * @throws Exception
+     */
+    public void testRasterAccumulator() throws Exception {
+        final int width = 120, height = RasterAccumulator.HISTOGRAM_ROWS * 2 + 40;
+        final Random random = new Random(3);
+        final RasterAccumulator accumulator = new RasterAccumulator(AccumulatorType.INT, width,
+                height);
+        assertEquals(0, accumulator.getHistogram().getCount());
+        for (int pass = 0; pass < 3; pass++) {
+            for (int n = 0; n < 30; n++) {
+                final int w = 1 + random.nextInt(60);
+                final int h = 1 + random.nextInt(200);
+                final int[] values = new int[w * h];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = random.nextInt(4);
+                }
+                accumulator.apply(RasterCalculator.ADD, values, RadiusMask.get(w, h, 1000),
+                        random.nextInt(width - w + 1), random.nextInt(height - h + 1), 0, h);
+            }
+            final double[] row = new double[width];
+            Arrays.fill(row, pass + 1);
+            accumulator.writeRow(random.nextInt(height), row);
+            accumulator.writeRow(random.nextInt(height), 10, 20, new double[20]);
+
+            //every cell
+            final Histogram expected = new Histogram();
+            final List<Double> values = new ArrayList<Double>();
+            for (int y = 0; y < height; y++) {
+                accumulator.readRow(y, row);
+                for (double value : row) {
+                    expected.add(value);
+                    if (value != 0) {
+                        values.add(value);
+                    }
+                }
+            }
+            final Histogram actual = accumulator.getHistogram();
+            assertEquals(expected.getCount(), actual.getCount());
+            assertEquals(expected.getMin(), actual.getMin(), 0);
+            assertEquals(expected.getMax(), actual.getMax(), 0);
+            assertQuantiles(values, actual, 1);
+        }
+    }
+
+    /**
+     * Returns the histogram of a tile of random integers, which always
+     * includes -1000 and 1000
+     *
+     * @param random
+     * @return
+     */
+    private static Histogram tile(Random random) {
+        final Histogram histogram = new Histogram();
+        histogram.add(-1000);
+        histogram.add(1000);
+        for (int i = random.nextInt(500); i > 0; i--) {
+            histogram.add(random.nextInt(2001) - 1000);
+        }
+        return histogram;
+    }
+
+    /**
+     * Fails if two histograms differ in their count or any percentile
+     *
+     * @param expected
+     * @param actual
+     */
+    private static void assertHistogramsEqual(Histogram expected, Histogram actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getMin(), actual.getMin(), 0);
+        assertEquals(expected.getMax(), actual.getMax(), 0);
+        for (int i = 0; i <= 1000; i++) {
+            assertEquals("quantile " + i / 1000.0, expected.getQuantile(i / 1000.0),
+                    actual.getQuantile(i / 1000.0), 0);
+        }
+    }
+
+    /**
+     * Return the sum of squared deviations from their mean of the values i
+     * (inclusive) to j (exclusive), each repeated its count of times
+     *
+     * @param values
+     * @param counts
+     * @param i
+     * @param j
+     * @return
+     */
+    private static double ssd(double[] values, int[] counts, int i, int j) {
+        double weight = 0, sum = 0;
+        for (int k = i; k < j; k++) {
+            weight += counts[k];
+            sum += counts[k] * values[k];
+        }
+        final double mean = sum / weight;
+        double ssd = 0;
+        for (int k = i; k < j; k++) {
+            ssd += counts[k] * (values[k] - mean) * (values[k] - mean);
+        }
+        return ssd;
+    }
+
+    /**
+     * Fails if any percentile of a histogram is further than a tolerance from
+     * the value of that rank in the values
+     *
+     * @param values
+     * @param histogram
+     * @param tolerance
+     */
+    private static void assertQuantiles(List<Double> values, Histogram histogram,
+            double tolerance) {
+        final double[] sorted = new double[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        for (int p = 1; p < 100; p++) {
+            final double expected = sorted[(int) Math.ceil(p / 100.0 * sorted.length) - 1];
+            assertEquals("percentile " + p, expected, histogram.getQuantile(p / 100.0),
+                    tolerance);
+        }
+    }
+}
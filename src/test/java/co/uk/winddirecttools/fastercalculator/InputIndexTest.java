@@ -0,0 +1,273 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests of when InputIndex reads the headers of its inputs again, on a
+ * directory of small ASCII grids (with a .prj each, as inputs without a
+ * coordinate system are never kept in the index)
+ *
+ * @author jonathan.huck
+ */
+public class InputIndexTest extends TestCase {
+
+    /*
+     * coordinate system of every grid
+     */
+    private static final String WKT = "GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\","
+            + "SPHEROID[\"WGS 84\",6378137,298.257223563]],PRIMEM[\"Greenwich\",0],"
+            + "UNIT[\"degree\",0.0174532925199433]]";
+
+    /*
+     * number of grids in the directory
+     */
+    private static final int COUNT = 5;
+
+    /*
+     * object variables
+     */
+    private File directory;                  //directory of grids (deleted afterwards)
+    private List<File> files;                //the grids
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public InputIndexTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(InputIndexTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = File.createTempFile("inputindex", "");
+        assertTrue(this.directory.delete() && this.directory.mkdir());
+        this.files = new ArrayList<File>();
+        for (int i = 0; i < COUNT; i++) {
+            this.files.add(this.write("grid" + i, i * 10, 1));
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        delete(this.directory);
+    }
+
+    /**
+     * The first run reads every header, and later runs read none of them and
+     * leave the index as it is
+     *
+     * @throws IOException
+     */
+    public void testReuse() throws IOException {
+        InputIndex index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(COUNT, index.size());
+        assertEquals(COUNT, index.getChanged());
+        final File file = new File(this.directory, InputIndex.FILE_NAME);
+        assertTrue(file.isFile());
+        final long modified = file.lastModified() - 10000;
+        assertTrue(file.setLastModified(modified));
+
+        index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(COUNT, index.size());
+        assertEquals(0, index.getChanged());
+        assertEquals(modified, file.lastModified());
+        assertHeaders(index, new double[]{0, 10, 20, 30, 40}, 1);
+    }
+
+    /**
+     * A file that has changed length, or only modification time, is read
+     * again and its new header replaces the old one
+     *
+     * @throws IOException
+     */
+    public void testStale() throws IOException {
+        InputIndex.open(this.directory, this.files, null);
+
+        //a different length (a larger cell size, and more digits)
+        this.write("grid1", 10, 2.25);
+        InputIndex index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(1, index.getChanged());
+        assertHeaders(index, new double[]{0, 10, 20, 30, 40}, 1, 2.25, 1, 1, 1);
+
+        //the same length, but modified since (a different corner)
+        final File grid = this.files.get(3);
+        final long length = grid.length();
+        final long modified = grid.lastModified();
+        this.write("grid3", 35, 1);
+        assertEquals(length, grid.length());
+        assertTrue(grid.setLastModified(modified + 5000));
+        index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(1, index.getChanged());
+        assertHeaders(index, new double[]{0, 10, 20, 35, 40}, 1, 2.25, 1, 1, 1);
+
+        //and nothing once the index has been written again
+        assertEquals(0, InputIndex.open(this.directory, this.files, null).getChanged());
+    }
+
+    /**
+     * A file that has been removed is dropped from the index without reading
+     * the others, and the index is written without it
+     *
+     * @throws IOException
+     */
+    public void testRemoved() throws IOException {
+        InputIndex.open(this.directory, this.files, null);
+        final File file = new File(this.directory, InputIndex.FILE_NAME);
+        final long length = file.length();
+
+        assertTrue(this.files.remove(2).delete());
+        InputIndex index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(COUNT - 1, index.size());
+        assertEquals(0, index.getChanged());
+        assertTrue(file.length() < length);
+        assertHeaders(index, new double[]{0, 10, 30, 40}, 1);
+
+        //and a file that is added back is read
+        this.files.add(this.write("grid2", 20, 1));
+        index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(COUNT, index.size());
+        assertEquals(1, index.getChanged());
+        assertEquals(length, file.length());
+    }
+
+    /**
+     * An index that has been cut short, or overwritten, is built again from
+     * every input
+     *
+     * @throws IOException
+     */
+    public void testCorrupt() throws IOException {
+        InputIndex.open(this.directory, this.files, null);
+        final File file = new File(this.directory, InputIndex.FILE_NAME);
+        final long length = file.length();
+
+        //cut short part of the way through the entries
+        final RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+            truncate.setLength(length - 30);
+        } finally {
+            truncate.close();
+        }
+        InputIndex index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(COUNT, index.getChanged());
+        assertEquals(length, file.length());
+        assertHeaders(index, new double[]{0, 10, 20, 30, 40}, 1);
+
+        //not an index at all
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write("not an index".getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(COUNT, index.getChanged());
+        assertEquals(length, file.length());
+        assertEquals(0, InputIndex.open(this.directory, this.files, null).getChanged());
+    }
+
+    /**
+     * An index that cannot be written is still used for this run, and no
+     * temporary file is left behind
+     *
+     * @throws IOException
+     */
+    public void testUnwritable() throws IOException {
+
+        //a directory in the way of the index
+        final File blocked = new File(this.directory, InputIndex.FILE_NAME);
+        assertTrue(blocked.mkdir());
+        assertTrue(new File(blocked, "file").createNewFile());
+
+        final InputIndex index = InputIndex.open(this.directory, this.files, null);
+        assertEquals(COUNT, index.size());
+        assertEquals(COUNT, index.getChanged());
+        assertHeaders(index, new double[]{0, 10, 20, 30, 40}, 1);
+        assertEquals(COUNT * 2 + 1, this.directory.list().length);
+    }
+
+    /**
+     * Fails if the headers of the index are not those of the grids written
+     * with the given lower left corners and cell sizes
+     *
+     * @param index
+     * @param x lower left corner of each grid (the y of each is 2 * x)
+     * @param cellSizes of each grid, or one for every grid
+     * @throws IOException
+     */
+    private static void assertHeaders(InputIndex index, double[] x, double... cellSizes)
+            throws IOException {
+        final List<CoverageHeader> headers = index.getSource().getHeaders();
+        assertEquals(x.length, headers.size());
+        for (int i = 0; i < x.length; i++) {
+            final double cellSize = cellSizes[cellSizes.length == 1 ? 0 : i];
+            assertEquals(3, headers.get(i).getWidth());
+            assertEquals(2, headers.get(i).getHeight());
+            assertEquals(x[i], headers.get(i).getEnvelope().getMinX(), 0);
+            assertEquals(2 * x[i], headers.get(i).getEnvelope().getMinY(), 0);
+            assertEquals(3 * cellSize, headers.get(i).getEnvelope().getWidth(), 1e-9);
+            assertEquals(2 * cellSize, headers.get(i).getEnvelope().getHeight(), 1e-9);
+            assertNotNull(headers.get(i).getCoordinateReferenceSystem());
+        }
+    }
+
+    /**
+     * Writes a 3 x 2 grid and its .prj to the test directory
+     *
+     * @param name
+     * @param x lower left corner (the y is 2 * x)
+     * @param cellSize
+     * @return the grid
+     * @throws IOException
+     */
+    private File write(String name, double x, double cellSize) throws IOException {
+        final File prj = new File(this.directory, name + ".prj");
+        OutputStream out = new FileOutputStream(prj);
+        try {
+            out.write(WKT.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        final File file = new File(this.directory, name + ".asc");
+        out = new FileOutputStream(file);
+        try {
+            out.write(("ncols 3\nnrows 2\nxllcorner " + x + "\nyllcorner " + 2 * x
+                    + "\ncellsize " + cellSize + "\n1 2 3\n4 5 6\n").getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Deletes a file, or a directory and everything in it
+     *
+     * @param file
+     */
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
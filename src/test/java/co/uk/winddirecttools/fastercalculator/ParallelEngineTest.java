@@ -0,0 +1,226 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridGeometry2D;
+
+/**
+ * Differential tests of the reader and worker threads of ParallelEngine
+ * against applying the same inputs one at a time in their original order
+ * (applyInOrder). The inputs are generated rather than read from files, so
+ * only the way that they are passed between the threads and applied to the
+ * output is tested here.
+ *
+ * @author jonathan.huck
+ */
+public class ParallelEngineTest extends TestCase {
+
+    /*
+     * output dimensions (several stripes high)
+     */
+    private static final int WIDTH = 150;
+    private static final int HEIGHT = 200;
+
+    /*
+     * number of inputs in each run
+     */
+    private static final int INPUTS = 80;
+
+    /*
+     * radii from none of the inputs to all of them (for inputs of up to 60 x 60)
+     */
+    private static final double[] RADII = {0, 7.5, 100};
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ParallelEngineTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(ParallelEngineTest.class);
+    }
+
+    /**
+     * Commutative operations on sparse inputs, which the workers apply as
+     * their non-zero runs in any order, one stripe at a time
+     *
+     * @throws Exception
+     */
+    public void testUnorderedSparse() throws Exception {
+        final Random random = new Random(1);
+        for (AccumulatorType type : new AccumulatorType[]{AccumulatorType.INT,
+            AccumulatorType.FLOAT}) {
+            compare(type, new int[]{RasterCalculator.ADD, RasterCalculator.COUNT}, true, random);
+        }
+    }
+
+    /**
+     * Commutative operations on dense inputs, including MULTIPLY which also
+     * applies 0 around the radius (integers only, as the products of floats
+     * depend on their order)
+     *
+     * @throws Exception
+     */
+    public void testUnorderedDense() throws Exception {
+        final Random random = new Random(2);
+        for (AccumulatorType type : new AccumulatorType[]{AccumulatorType.INT,
+            AccumulatorType.FLOAT}) {
+            compare(type, new int[]{RasterCalculator.ADD, RasterCalculator.MAX}, false, random);
+        }
+        compare(AccumulatorType.INT, new int[]{RasterCalculator.MULTIPLY, RasterCalculator.ADD},
+                false, random);
+    }
+
+    /**
+     * SUBTRACT and DIVIDE, which are decoded in parallel but must be applied
+     * in order (alone, and alongside a commutative operation). DIVIDE is only
+     * tested on floats, as integer outputs are soon divided down to 0 and the
+     * next input divided by them.
+     *
+     * @throws Exception
+     */
+    public void testOrdered() throws Exception {
+        final Random random = new Random(3);
+        compare(AccumulatorType.INT, new int[]{RasterCalculator.SUBTRACT}, false, random);
+        compare(AccumulatorType.INT, new int[]{RasterCalculator.ADD, RasterCalculator.SUBTRACT},
+                false, random);
+        compare(AccumulatorType.FLOAT, new int[]{RasterCalculator.SUBTRACT}, false, random);
+        compare(AccumulatorType.FLOAT, new int[]{RasterCalculator.DIVIDE}, false, random);
+        compare(AccumulatorType.FLOAT, new int[]{RasterCalculator.ADD, RasterCalculator.SUBTRACT,
+            RasterCalculator.DIVIDE}, false, random);
+    }
+
+    /**
+     * Applies a run of random inputs with each radius using several worker
+     * and reader threads, and in order on one thread, failing if any cell of
+     * any accumulator differs
+     *
+     * @param type
+     * @param operations
+     * @param sparse true for inputs that are mostly 0
+     * @param random
+     * @throws Exception
+     */
+    private static void compare(AccumulatorType type, int[] operations, boolean sparse,
+            Random random) throws Exception {
+        final String name = type + " " + Arrays.toString(operations);
+
+        //inputs of up to 60 x 60, some partly or wholly off the output
+        final Rectangle[] bounds = new Rectangle[INPUTS];
+        final double[][] values = new double[INPUTS][];
+        for (int n = 0; n < INPUTS; n++) {
+            final int w = 1 + random.nextInt(60);
+            final int h = 1 + random.nextInt(60);
+            bounds[n] = new Rectangle(random.nextInt(WIDTH + 40) - 20 - w / 2,
+                    random.nextInt(HEIGHT + 40) - 20 - h / 2, w, h);
+            values[n] = new double[w * h];
+            for (int i = 0; i < values[n].length; i++) {
+                values[n][i] = sparse ? (random.nextInt(40) == 0 ? 1 + random.nextInt(9) : 0)
+                        : 1 + random.nextInt(9);
+            }
+        }
+        final CoverageSource source = new CoverageSource(Arrays.asList(new File[INPUTS]), null);
+
+        for (double radius : RADII) {
+
+            //the same starting values for both
+            final Accumulator[] parallel = new Accumulator[operations.length];
+            final Accumulator[] ordered = new Accumulator[operations.length];
+            final double[] row = new double[WIDTH];
+            for (int i = 0; i < operations.length; i++) {
+                parallel[i] = new RasterAccumulator(type, WIDTH, HEIGHT);
+                ordered[i] = new RasterAccumulator(type, WIDTH, HEIGHT);
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        row[x] = 1 + random.nextInt(9);
+                    }
+                    parallel[i].writeRow(y, row);
+                    ordered[i].writeRow(y, row);
+                }
+            }
+
+            new GeneratedEngine(4, 3, bounds, values).applyRasterValues(source, parallel, null,
+                    radius, operations);
+            new GeneratedEngine(1, 1, bounds, values).applyInOrder(source, ordered, null,
+                    radius, operations);
+
+            //compare every cell (including NaN and infinite quotients)
+            final double[] expected = new double[WIDTH];
+            for (int i = 0; i < operations.length; i++) {
+                for (int y = 0; y < HEIGHT; y++) {
+                    ordered[i].readRow(y, expected);
+                    parallel[i].readRow(y, row);
+                    for (int x = 0; x < WIDTH; x++) {
+                        if (Double.doubleToLongBits(row[x])
+                                != Double.doubleToLongBits(expected[x])) {
+                            fail(name + " radius " + radius + " operation " + operations[i]
+                                    + " at " + x + ", " + y + ": expected " + expected[x]
+                                    + " but was " + row[x]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An engine that decodes generated inputs rather than reading files,
+     * reading only the bounding box of the radius mask on the output as the
+     * calculator does
+     */
+    private static class GeneratedEngine extends ParallelEngine {
+
+        private final Rectangle[] bounds;    //position and dimensions of each input on the output
+        private final double[][] values;     //values of each input
+
+        GeneratedEngine(int threads, int readers, Rectangle[] bounds, double[][] values) {
+            super(null, threads, readers);
+            this.bounds = bounds;
+            this.values = values;
+        }
+
+        @Override
+        DecodedInput decode(CoverageSource source, int index, GridGeometry2D rasterGrid,
+                boolean floatingPoint, double cellRadius, boolean sparse, boolean outside) {
+            final Rectangle input = this.bounds[index];
+            final Rectangle onOutput = input.intersection(new Rectangle(WIDTH, HEIGHT));
+            final Rectangle area = outside && !onOutput.isEmpty() ? onOutput : null;
+
+            //the part of the mask on the output, in the grid of the input
+            final Rectangle window = RadiusMask.get(input.width, input.height, cellRadius)
+                    .getBounds().intersection(new Rectangle(onOutput.x - input.x,
+                            onOutput.y - input.y, onOutput.width, onOutput.height));
+            if (onOutput.isEmpty() || window.isEmpty()) {
+                return area != null ? toZero(null, area) : null;
+            }
+            final int[] ints = floatingPoint ? null : new int[window.width * window.height];
+            final float[] floats = floatingPoint ? new float[window.width * window.height] : null;
+            for (int j = 0; j < window.height; j++) {
+                for (int i = 0; i < window.width; i++) {
+                    final double value = this.values[index][(window.y + j) * input.width
+                            + window.x + i];
+                    if (floatingPoint) {
+                        floats[j * window.width + i] = (float) value;
+                    } else {
+                        ints[j * window.width + i] = (int) value;
+                    }
+                }
+            }
+            return this.toInput(null, input.x + window.x, input.y + window.y,
+                    RadiusMask.get(input.width, input.height, cellRadius, window), ints, floats,
+                    sparse, area);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * Tests of parsing regions, of which inputs they intersect and of clipping
+ * an output to them, against point in polygon tests of the cells and a
+ * segment by segment reference for the intersections
+ *
+ * @author jonathan.huck
+ */
+public class RegionTest extends TestCase {
+
+    /*
+     * a square with a square hole, and a triangle apart from it
+     */
+    private static final String DONUT = "MULTIPOLYGON (((0 0, 10 0, 10 10, 0 10, 0 0),"
+            + " (3 3, 7 3, 7 7, 3 7, 3 3)), ((12 0, 20 0, 12 8, 12 0)))";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RegionTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(RegionTest.class);
+    }
+
+    /**
+     * Bounding boxes, with or without spaces, and the ways they can be wrong
+     */
+    public void testParseBox() {
+        final Region region = Region.parse(" 1, -2.5,3e2 ,4 ");
+        assertFalse(region.isPolygon());
+        assertEquals(1.0, region.getMinX(), 0);
+        assertEquals(-2.5, region.getMinY(), 0);
+        assertEquals(300.0, region.getMaxX(), 0);
+        assertEquals(4.0, region.getMaxY(), 0);
+        assertTrue(region.contains(1, -2.5));
+        assertFalse(region.contains(300, 0));
+        assertEquals(region.toString(), Region.parse(region.toString()).toString());
+        for (String text : new String[]{"1,2,3", "1,2,3,4,5", "3,2,1,4", "1,2,3,2", "1,2,x,4",
+            ""}) {
+            assertInvalid(text);
+        }
+    }
+
+    /**
+     * POLYGON and MULTIPOLYGON WKT, in either case and with any spacing, and
+     * the ways they can be wrong
+     */
+    public void testParseWkt() {
+        final Region polygon = Region.parse("polygon((0 0,10 0 , 10   10,0 10,0 0),"
+                + "( 3 3, 7 3, 7 7, 3 7, 3 3 ))");
+        assertTrue(polygon.isPolygon());
+        assertEquals(0.0, polygon.getMinX(), 0);
+        assertEquals(10.0, polygon.getMaxY(), 0);
+        assertTrue(polygon.contains(1, 1));
+        assertFalse(polygon.contains(5, 5));
+
+        final Region multi = Region.parse(DONUT);
+        assertEquals(0.0, multi.getMinX(), 0);
+        assertEquals(0.0, multi.getMinY(), 0);
+        assertEquals(20.0, multi.getMaxX(), 0);
+        assertEquals(10.0, multi.getMaxY(), 0);
+        assertTrue(multi.contains(13, 1));
+        assertFalse(multi.contains(11, 1));
+
+        //toString() is read back as the same region
+        final Region copy = Region.parse(multi.toString());
+        assertEquals(multi.toString(), copy.toString());
+        final Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            final double x = random.nextDouble() * 22 - 1;
+            final double y = random.nextDouble() * 12 - 1;
+            assertEquals(x + ", " + y, multi.contains(x, y), copy.contains(x, y));
+        }
+
+        for (String text : new String[]{"LINESTRING (0 0, 1 1)", "POLYGON EMPTY",
+            "POLYGON ((0 0, 1 1))", "POLYGON ((0 0, 1 x, 1 0, 0 0))", "POLYGON ((0 0, 1, 1 0))",
+            "POLYGON ((0 0, 1 0, 2 0, 0 0))"}) {
+            assertInvalid(text);
+        }
+    }
+
+    /**
+     * Boxes against polygons: inside, outside but within the bounding box,
+     * crossed by an edge with no vertex or centre inside, around the whole
+     * polygon, inside a hole and across a hole
+     */
+    public void testIntersects() {
+        final Region triangle = Region.parse("POLYGON ((0 0, 10 0, 0 10, 0 0))");
+        assertTrue(triangle.intersects(1, 1, 2, 2));
+        assertFalse(triangle.intersects(8, 8, 9, 9));
+        assertTrue(triangle.intersects(4, 4, 6, 6));
+        assertTrue(triangle.intersects(4.9, -1, 5.1, 20));
+        assertTrue(triangle.intersects(-5, -5, 20, 20));
+        assertFalse(triangle.intersects(11, 0, 12, 1));
+        assertTrue(triangle.intersects(new Envelope2D(null, 1, 1, 1, 1)));
+        assertFalse(triangle.intersects(new Envelope2D(null, 8, 8, 1, 1)));
+
+        //horizontal and vertical edges, parallel to the box
+        final Region notch = Region.parse("POLYGON ((0 0, 10 0, 10 4, 4 4, 4 10, 0 10, 0 0))");
+        assertFalse(notch.intersects(6, 6, 9, 9));
+        assertTrue(notch.intersects(6, 3, 9, 9));
+        assertTrue(notch.intersects(3, 6, 9, 9));
+        assertFalse(notch.intersects(4.5, 4.5, 20, 20));
+
+        final Region donut = Region.parse(DONUT);
+        assertFalse(donut.intersects(4, 4, 6, 6));
+        assertTrue(donut.intersects(2, 4, 6, 6));
+        assertFalse(donut.intersects(10.5, 1, 11.5, 2));
+        assertTrue(donut.intersects(10.5, 1, 12.5, 2));
+        assertFalse(donut.intersects(17, 5, 19, 7));
+
+        //a bounding box intersects anything that overlaps it
+        final Region box = new Region(0, 0, 10, 10);
+        assertTrue(box.intersects(9, 9, 11, 11));
+        assertFalse(box.intersects(10, 0, 11, 10));
+    }
+
+    /**
+     * Random boxes against a self-intersecting star and a polygon with holes,
+     * compared with a reference that tests every edge of the box against
+     * every edge of the polygon
+     */
+    public void testIntersectsRandom() {
+        final Random random = new Random(2);
+        for (String wkt : new String[]{star(random, 9, 50, 50, 40), DONUT}) {
+            final Region region = Region.parse(wkt);
+            final double[][] rings = rings(region);
+            int found = 0;
+            for (int n = 0; n < 5000; n++) {
+                final double x0 = region.getMinX() - 5 + random.nextDouble()
+                        * (region.getMaxX() - region.getMinX() + 10);
+                final double y0 = region.getMinY() - 5 + random.nextDouble()
+                        * (region.getMaxY() - region.getMinY() + 10);
+                final double size = random.nextDouble() * (random.nextBoolean() ? 2 : 20);
+                final double x1 = x0 + size * random.nextDouble();
+                final double y1 = y0 + size * random.nextDouble();
+                final boolean expected = intersects(region, rings, x0, y0, x1, y1);
+                assertEquals(x0 + "," + y0 + "," + x1 + "," + y1, expected,
+                        region.intersects(x0, y0, x1, y1));
+                found += expected ? 1 : 0;
+            }
+            assertTrue(found > 500 && found < 4500);
+        }
+    }
+
+    /**
+     * Clipping an output to a polygon keeps exactly the cells whose centres
+     * it contains, for a polygon with a hole and a separate part, a
+     * self-intersecting star (whose overlaps are holes) and overlapping
+     * parts, including where the polygon runs off the output
+     *
+     * @throws IOException
+     */
+    public void testClip() throws IOException {
+        final Random random = new Random(3);
+        compareClip(Region.parse(DONUT), 0.5, random);
+        compareClip(Region.parse(star(random, 7, 30, 30, 25)), 0.75, random);
+        compareClip(Region.parse("MULTIPOLYGON (((1.1 1.3, 15.2 1.7, 14.9 9.4, 0.8 8.1,"
+                + " 1.1 1.3)), ((6.3 4.2, 25.1 3.9, 24.7 12.2, 6.6 12.6, 6.3 4.2)))"), 0.3, random);
+        compareClip(Region.parse(star(random, 11, 20, 20, 30)), 0.9, random);
+
+        //a bounding box clears nothing
+        final RasterAccumulator accumulator = filled(10, 10);
+        new Region(2, 2, 4, 4).clip(accumulator, new Envelope2D(null, 0, 0, 10, 10), 1);
+        final double[] row = new double[10];
+        for (int y = 0; y < 10; y++) {
+            accumulator.readRow(y, row);
+            for (double value : row) {
+                assertEquals(1.0, value, 0);
+            }
+        }
+    }
+
+    /**
+     * Clips an output covering the region (and a little more on some sides,
+     * and less on others) and checks every cell against contains()
+     *
+     * @param region
+     * @param resolution
+     * @param random
+     * @throws IOException
+     */
+    private static void compareClip(Region region, double resolution, Random random)
+            throws IOException {
+        final double minX = region.getMinX() + random.nextDouble() * 6 - 3;
+        final double minY = region.getMinY() + random.nextDouble() * 6 - 3;
+        final int width = (int) ((region.getMaxX() - minX) / resolution) + random.nextInt(8) - 4;
+        final int height = (int) ((region.getMaxY() - minY) / resolution) + random.nextInt(8) - 4;
+        final RasterAccumulator accumulator = filled(width, height);
+        final Envelope2D envelope = new Envelope2D(null, minX, minY, width * resolution,
+                height * resolution);
+        region.clip(accumulator, envelope, resolution);
+        final double[] row = new double[width];
+        int inside = 0;
+        for (int y = 0; y < height; y++) {
+            accumulator.readRow(y, row);
+            for (int x = 0; x < width; x++) {
+                final double cx = minX + (x + 0.5) * resolution;
+                final double cy = envelope.getMaxY() - (y + 0.5) * resolution;
+                final boolean expected = region.contains(cx, cy);
+                assertEquals(region + " at " + x + ", " + y, expected ? 1.0 : 0.0, row[x], 0);
+                inside += expected ? 1 : 0;
+            }
+        }
+        assertTrue(inside > 0 && inside < width * height);
+    }
+
+    /**
+     * Returns an in-memory output with every cell set to 1
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    private static RasterAccumulator filled(int width, int height) {
+        final RasterAccumulator accumulator = new RasterAccumulator(AccumulatorType.FLOAT, width,
+                height);
+        final double[] ones = new double[width];
+        Arrays.fill(ones, 1);
+        for (int y = 0; y < height; y++) {
+            accumulator.writeRow(y, ones);
+        }
+        return accumulator;
+    }
+
+    /**
+     * Returns the WKT of a star polygon that joins every other point of a
+     * circle, so that it crosses itself
+     *
+     * @param random
+     * @param points an odd number of points
+     * @param x centre
+     * @param y centre
+     * @param radius
+     * @return
+     */
+    private static String star(Random random, int points, double x, double y, double radius) {
+        final StringBuilder wkt = new StringBuilder("POLYGON ((");
+        final double start = random.nextDouble();
+        for (int i = 0; i <= points; i++) {
+            final double angle = start + 2 * Math.PI * (2 * i % points) / points;
+            final double r = radius * (0.8 + 0.2 * random.nextDouble());
+            wkt.append(i > 0 ? ", " : "").append(x + r * Math.cos(angle)).append(' ')
+                    .append(y + r * Math.sin(angle));
+            if (i == points - 1) {
+
+                //close the ring on its first point
+                final String first = wkt.substring(10, wkt.indexOf(","));
+                return wkt.append(", ").append(first).append("))").toString();
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * Returns the vertices of each ring of a region, from its WKT
+     *
+     * @param region
+     * @return
+     */
+    private static double[][] rings(Region region) {
+        final String[] texts = region.toString().replace("MULTIPOLYGON(", "").split("\\)\\)");
+        final double[][] rings = new double[texts.length - 1][];
+        for (int r = 0; r < rings.length; r++) {
+            final String[] points = texts[r].replace(",((", "").replace("((", "").split(",");
+            rings[r] = new double[points.length * 2];
+            for (int i = 0; i < points.length; i++) {
+                final String[] xy = points[i].split(" ");
+                rings[r][2 * i] = Double.parseDouble(xy[0]);
+                rings[r][2 * i + 1] = Double.parseDouble(xy[1]);
+            }
+        }
+        return rings;
+    }
+
+    /**
+     * The reference for intersects(): a box intersects a polygon if an edge
+     * of one crosses an edge of the other, or one has a point inside the
+     * other
+     *
+     * @param region
+     * @param rings
+     * @param x0
+     * @param y0
+     * @param x1
+     * @param y1
+     * @return
+     */
+    private static boolean intersects(Region region, double[][] rings, double x0, double y0,
+            double x1, double y1) {
+        final double[] box = {x0, y0, x1, y0, x1, y1, x0, y1};
+        for (int k = 0; k < 8; k += 2) {
+            if (region.contains(box[k], box[k + 1])) {
+                return true;
+            }
+        }
+        for (double[] ring : rings) {
+            for (int i = 0; i < ring.length - 2; i += 2) {
+                if (ring[i] > x0 && ring[i] < x1 && ring[i + 1] > y0 && ring[i + 1] < y1) {
+                    return true;
+                }
+                for (int k = 0; k < 8; k += 2) {
+                    if (segmentsCross(ring[i], ring[i + 1], ring[i + 2], ring[i + 3], box[k],
+                            box[k + 1], box[(k + 2) % 8], box[(k + 3) % 8])) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if two line segments cross
+     *
+     * @param ax
+     * @param ay
+     * @param bx
+     * @param by
+     * @param cx
+     * @param cy
+     * @param dx
+     * @param dy
+     * @return
+     */
+    private static boolean segmentsCross(double ax, double ay, double bx, double by, double cx,
+            double cy, double dx, double dy) {
+        final double d1 = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        final double d2 = (bx - ax) * (dy - ay) - (by - ay) * (dx - ax);
+        final double d3 = (dx - cx) * (ay - cy) - (dy - cy) * (ax - cx);
+        final double d4 = (dx - cx) * (by - cy) - (dy - cy) * (bx - cx);
+        return (d1 > 0) != (d2 > 0) && (d3 > 0) != (d4 > 0);
+    }
+
+    /**
+     * Fails unless a region cannot be parsed
+     *
+     * @param text
+     */
+    private static void assertInvalid(String text) {
+        try {
+            Region.parse(text);
+            fail("parsed " + text);
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
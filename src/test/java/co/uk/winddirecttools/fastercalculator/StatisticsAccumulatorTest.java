@@ -0,0 +1,326 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests of the statistics of each cell against a reference that keeps every
+ * value inside the radius (enforceRadius) and computes the statistics from
+ * them once all of the inputs have been applied (the standard deviation in
+ * two passes, rather than with Welford's method)
+ *
+ * @author jonathan.huck
+ */
+public class StatisticsAccumulatorTest extends TestCase {
+
+    /*
+     * output dimensions (two tiles of the image in each direction)
+     */
+    private static final int WIDTH = 530;
+    private static final int HEIGHT = 520;
+
+    /*
+     * number of inputs, and their largest width and height
+     */
+    private static final int INPUTS = 40;
+    private static final int SIZE = 200;
+
+    /*
+     * every statistic, in the order of the bands
+     */
+    private static final Statistic[] ALL = Statistic.values();
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public StatisticsAccumulatorTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(StatisticsAccumulatorTest.class);
+    }
+
+    /**
+     * Floating point inputs, including negative values and 0
+     *
+     * @throws IOException
+     */
+    public void testFloat() throws IOException {
+        compare(false, false, new Random(1));
+    }
+
+    /**
+     * Integer inputs
+     *
+     * @throws IOException
+     */
+    public void testInt() throws IOException {
+        compare(true, false, new Random(2));
+    }
+
+    /**
+     * Sparse inputs, where the 0 values inside the radius must still count
+     * towards every statistic but COUNT and SUM
+     *
+     * @throws IOException
+     */
+    public void testSparse() throws IOException {
+        compare(false, true, new Random(3));
+    }
+
+    /**
+     * Each statistic on its own, so that only the state it needs is kept
+     *
+     * @throws IOException
+     */
+    public void testSingleStatistics() throws IOException {
+        final StatisticsAccumulator all = new StatisticsAccumulator(ALL, 60, 50);
+        final StatisticsAccumulator[] singles = new StatisticsAccumulator[ALL.length];
+        for (int i = 0; i < ALL.length; i++) {
+            singles[i] = new StatisticsAccumulator(new Statistic[]{ALL[i]}, 60, 50);
+        }
+        final Random random = new Random(4);
+        for (int n = 0; n < 20; n++) {
+            final int w = 1 + random.nextInt(40);
+            final int h = 1 + random.nextInt(40);
+            final int x = random.nextInt(60 - w + 1);
+            final int y = random.nextInt(50 - h + 1);
+            final RadiusMask mask = RadiusMask.get(w, h, 4 + random.nextInt(20));
+            final float[] values = new float[w * h];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = random.nextInt(5) - 1;
+            }
+            all.apply(RasterCalculator.STATISTICS, values, mask, x, y, 0, h);
+            for (StatisticsAccumulator single : singles) {
+                single.apply(RasterCalculator.STATISTICS, values, mask, x, y, 0, h);
+            }
+        }
+        final Raster expected = all.toImage().getData();
+        for (int i = 0; i < ALL.length; i++) {
+            final Raster actual = singles[i].toImage().getData();
+            for (int y = 0; y < 50; y++) {
+                for (int x = 0; x < 60; x++) {
+                    assertEquals(ALL[i] + " at " + x + ", " + y,
+                            expected.getSampleDouble(x, y, i), actual.getSampleDouble(x, y, 0), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writing a value gives the statistics of a single input of that value,
+     * so writing 0 (as Region.clip() does) gives those of no inputs
+     *
+     * @throws IOException
+     */
+    public void testWriteRow() throws IOException {
+        final StatisticsAccumulator accumulator = new StatisticsAccumulator(ALL, 8, 3);
+        final float[] values = new float[8 * 3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1 + i % 5;
+        }
+        for (int n = 0; n < 3; n++) {
+            accumulator.apply(RasterCalculator.STATISTICS, values, RadiusMask.get(8, 3, 100), 0,
+                    0, 0, 3);
+        }
+        accumulator.writeRow(1, 2, 4, new double[]{0, 0, 0, 0});
+        accumulator.writeRow(2, new double[]{-3, -3, -3, -3, -3, -3, -3, -3});
+        final Raster raster = accumulator.toImage().getData();
+        for (int x = 0; x < 8; x++) {
+            final double value = 1 + (8 + x) % 5;
+            final boolean cleared = x >= 2 && x < 6;
+            assertEquals(cleared ? 0 : 3.0, raster.getSampleDouble(x, 1, 0), 0);
+            assertEquals(cleared ? 0 : 3 * value, raster.getSampleDouble(x, 1, 1), 0);
+            for (int band = 2; band < 5; band++) {
+                assertEquals(cleared ? 0 : value, raster.getSampleDouble(x, 1, band), 0);
+            }
+            assertEquals(0.0, raster.getSampleDouble(x, 1, 5), 0);
+            assertEquals(1.0, raster.getSampleDouble(x, 2, 0), 0);
+            for (int band = 1; band < 5; band++) {
+                assertEquals(-3.0, raster.getSampleDouble(x, 2, band), 0);
+            }
+            assertEquals(0.0, raster.getSampleDouble(x, 2, 5), 0);
+        }
+
+        //the histogram is of the first statistic
+        final Histogram histogram = accumulator.getHistogram();
+        assertEquals(8 + 4 + 8, histogram.getCount());
+        assertEquals(1.0, histogram.getMin(), 0);
+        assertEquals(3.0, histogram.getMax(), 0);
+    }
+
+    /**
+     * Applies random inputs to every statistic, then compares each band of
+     * the image with the reference
+     *
+     * @param ints true to apply the values as integers
+     * @param sparse true for inputs that are mostly 0, applied as SparseRows
+     * @param random
+     * @throws IOException
+     */
+    private static void compare(boolean ints, boolean sparse, Random random)
+            throws IOException {
+        final StatisticsAccumulator accumulator = new StatisticsAccumulator(ALL, WIDTH, HEIGHT);
+        final double[][] inputs = new double[INPUTS][];
+        final int[][] bounds = new int[INPUTS][];
+        final double[] radii = new double[INPUTS];
+        int runs = 0;
+        for (int n = 0; n < INPUTS; n++) {
+            final int w = 1 + random.nextInt(SIZE);
+            final int h = 1 + random.nextInt(SIZE);
+            final int x = random.nextInt(WIDTH - w + 1);
+            final int y = random.nextInt(HEIGHT - h + 1);
+            final double radius = random.nextInt(3) == 0 ? 1000 : random.nextDouble() * SIZE / 2;
+            final double[] values = new double[w * h];
+            for (int i = 0; i < values.length; i++) {
+                if (sparse) {
+                    values[i] = random.nextInt(50) == 0 ? 1 + random.nextInt(9) : 0;
+                } else if (ints) {
+                    values[i] = random.nextInt(20) - 5;
+                } else {
+                    values[i] = random.nextInt(10) == 0 ? 0 : random.nextGaussian() * 10 + 5;
+                }
+            }
+            inputs[n] = values;
+            bounds[n] = new int[]{x, y, w, h};
+            radii[n] = radius;
+
+            //apply the input
+            final RadiusMask mask = RadiusMask.get(w, h, radius);
+            if (ints) {
+                final int[] block = new int[w * h];
+                for (int i = 0; i < block.length; i++) {
+                    block[i] = (int) values[i];
+                }
+                accumulator.apply(RasterCalculator.STATISTICS, block, mask, x, y, 0, h);
+            } else {
+                final float[] block = new float[w * h];
+                for (int i = 0; i < block.length; i++) {
+                    block[i] = (float) values[i];
+                    values[i] = block[i];
+                }
+                final SparseRows rows = new SparseRows();
+                if (sparse && rows.build(block, mask)) {
+                    accumulator.apply(RasterCalculator.STATISTICS, block, rows, x, y, 0, h);
+                    runs++;
+                } else {
+                    accumulator.apply(RasterCalculator.STATISTICS, block, mask, x, y, 0, h);
+                }
+            }
+        }
+        assertTrue("never applied as runs", !sparse || runs > 0);
+
+        //the reference: every value inside the radius of each cell
+        final int[] counts = new int[WIDTH * HEIGHT];
+        final double[][] values = new double[WIDTH * HEIGHT][];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int n = 0; n < INPUTS; n++) {
+                final int x = bounds[n][0], y = bounds[n][1], w = bounds[n][2], h = bounds[n][3];
+                final double[] masked = enforceRadius(inputs[n], w, radii[n]);
+                for (int j = 0; j < h; j++) {
+                    for (int i = 0; i < w; i++) {
+                        if (Double.isNaN(masked[j * w + i])) {
+                            continue;
+                        }
+                        final int cell = (y + j) * WIDTH + x + i;
+                        if (pass == 0) {
+                            counts[cell]++;
+                        } else {
+                            values[cell][--counts[cell]] = masked[j * w + i];
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int cell = 0; cell < counts.length; cell++) {
+                    values[cell] = new double[counts[cell]];
+                }
+            }
+        }
+
+        //compare every band of every cell, across both tiles of the image
+        final RenderedImage image = accumulator.toImage();
+        assertEquals(2, image.getNumXTiles());
+        assertEquals(2, image.getNumYTiles());
+        final Raster raster = image.getData();
+        final double[] expected = new double[ALL.length];
+        double actual;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                statistics(values[y * WIDTH + x], expected);
+                for (int band = 0; band < ALL.length; band++) {
+                    actual = raster.getSampleDouble(x, y, band);
+                    assertEquals(ALL[band] + " at " + x + ", " + y, expected[band], actual,
+                            1e-4 * Math.max(1, Math.abs(expected[band])));
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes each statistic of a list of values (0 for an empty list)
+     *
+     * @param values
+     * @param statistics in the order of Statistic.values()
+     */
+    private static void statistics(double[] values, double[] statistics) {
+        Arrays.fill(statistics, 0);
+        if (values.length == 0) {
+            return;
+        }
+        double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        for (double value : values) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            count += value != 0 ? 1 : 0;
+        }
+        final double mean = sum / values.length;
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        statistics[Statistic.COUNT.ordinal()] = count;
+        statistics[Statistic.SUM.ordinal()] = sum;
+        statistics[Statistic.MIN.ordinal()] = min;
+        statistics[Statistic.MAX.ordinal()] = max;
+        statistics[Statistic.MEAN.ordinal()] = mean;
+        statistics[Statistic.STDDEV.ordinal()] = Math.sqrt(squares / values.length);
+    }
+
+    /**
+     * The original enforceRadius, but marking the cells outside of the radius
+     * as NaN (they are not values of the input) rather than 0
+     *
+     * @param block
+     * @param width
+     * @param radius
+     * @return
+     */
+    private static double[] enforceRadius(double[] block, int width, double radius) {
+        final double[] masked = block.clone();
+        final int centreX = (block.length / 2) % width;
+        final int centreY = (block.length / 2) / width;
+        for (int i = 0; i < block.length; i++) {
+            final int dx = i % width - centreX;
+            final int dy = i / width - centreY;
+            if (Math.sqrt(dx * dx + dy * dy) >= radius) {
+                masked[i] = Double.NaN;
+            }
+        }
+        return masked;
+    }
+}
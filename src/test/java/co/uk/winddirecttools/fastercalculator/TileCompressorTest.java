@@ -0,0 +1,362 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Round trip tests of the tile compression, decoding each tile as a TIFF
+ * reader would (TIFF 6.0 section 13 and 14, Adobe Technical Note 3)
+ *
+ * @author jonathan.huck
+ */
+public class TileCompressorTest extends TestCase {
+
+    /*
+     * TIFF LZW codes
+     */
+    private static final int CLEAR = 256;
+    private static final int EOI = 257;
+    private static final int FIRST = 258;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TileCompressorTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TileCompressorTest.class);
+    }
+
+    /**
+     * Empty and very short tiles
+     */
+    public void testLzwShort() {
+        roundTrip(new byte[0]);
+        roundTrip(new byte[]{7});
+        roundTrip(new byte[]{7, 7});
+        roundTrip(new byte[]{7, 7, 7});
+        roundTrip(new byte[]{(byte) 255, 0, (byte) 255});
+    }
+
+    /**
+     * Tiles ending at every number of codes up to past the first CLEAR, so
+     * that the last code and the end of information code fall either side of
+     * each change of code width (511, 1023 and 2047) and of the CLEAR at 4094
+     */
+    public void testLzwCodeWidths() {
+        final byte[] data = new byte[5000];
+        new Random(1).nextBytes(data);
+        int clears = 0;
+        for (int length = 0; length <= data.length; length++) {
+            clears += roundTrip(Arrays.copyOf(data, length));
+        }
+        assertTrue(clears > 0);
+    }
+
+    /**
+     * Long tiles, which fill the string table several times: random bytes
+     * (short strings), a small alphabet (long strings) and a single value
+     * (where each code is the one about to be added to the table)
+     */
+    public void testLzwClear() {
+        final Random random = new Random(2);
+        final byte[] data = new byte[100000];
+        random.nextBytes(data);
+        assertTrue(roundTrip(data) >= 20);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) random.nextInt(4);
+        }
+        assertTrue(roundTrip(data) >= 2);
+        Arrays.fill(data, (byte) 9);
+        roundTrip(data);
+    }
+
+    /**
+     * Only the given length of the tile is compressed
+     */
+    public void testLzwLength() {
+        final byte[] data = new byte[1000];
+        new Random(3).nextBytes(data);
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 600),
+                decodeLzw(TileCompressor.lzw(ByteBuffer.wrap(data), 600), 600, new int[1])));
+    }
+
+    /**
+     * DEFLATE after the horizontal predictor, for each size of integer sample
+     * with one and several bands
+     *
+     * @throws DataFormatException
+     */
+    public void testDeflateHorizontalPredictor() throws DataFormatException {
+        final Random random = new Random(4);
+        final int width = 16, height = 16;
+        for (int bytes : new int[]{1, 2, 4}) {
+            for (int bands : new int[]{1, 3}) {
+                final ByteBuffer tile = ByteBuffer.allocate(width * height * bands * bytes);
+                for (int i = 0; i < width * height * bands; i++) {
+
+                    //a slope with noise, wrapping around the range of the sample
+                    final int value = i * 37 + random.nextInt(5) - 2;
+                    if (bytes == 1) {
+                        tile.put((byte) value);
+                    } else if (bytes == 2) {
+                        tile.putShort((short) (value * 131));
+                    } else {
+                        tile.putInt(value * 1000003);
+                    }
+                }
+                final byte[] original = tile.array().clone();
+                final int rowLength = width * bands * bytes;
+                TileCompressor.horizontalPredict(tile, original.length, rowLength, bands, bytes);
+                final byte[] decoded = inflate(TileCompressor.deflate(tile, original.length, 6),
+                        original.length);
+                undoHorizontalPredictor(decoded, rowLength, bands, bytes);
+                assertTrue(bytes + " bytes, " + bands + " bands", Arrays.equals(original, decoded));
+            }
+        }
+    }
+
+    /**
+     * DEFLATE after the floating point predictor, for floats and doubles
+     * (including negative, infinite and NaN values) with one and several bands
+     *
+     * @throws DataFormatException
+     */
+    public void testDeflateFloatingPointPredictor() throws DataFormatException {
+        final Random random = new Random(5);
+        final int width = 32, height = 8;
+        for (int bytes : new int[]{4, 8}) {
+            for (int bands : new int[]{1, 2}) {
+                final ByteBuffer tile = ByteBuffer.allocate(width * height * bands * bytes);
+                for (int i = 0; i < width * height * bands; i++) {
+                    final double value = i % 17 == 0 ? Double.NaN
+                            : i % 23 == 0 ? Double.NEGATIVE_INFINITY
+                            : Math.sin(i / 10.0) * 1000 + random.nextGaussian();
+                    if (bytes == 4) {
+                        tile.putFloat((float) value);
+                    } else {
+                        tile.putDouble(value);
+                    }
+                }
+                final byte[] original = tile.array().clone();
+                final int rowLength = width * bands * bytes;
+                TileCompressor.floatingPointPredict(tile, original.length, rowLength, bands,
+                        bytes);
+                final byte[] decoded = inflate(TileCompressor.deflate(tile, original.length, 6),
+                        original.length);
+                undoFloatingPointPredictor(decoded, rowLength, bands, bytes);
+                assertTrue(bytes + " bytes, " + bands + " bands", Arrays.equals(original, decoded));
+            }
+        }
+    }
+
+    /**
+     * LZW after the floating point predictor
+     */
+    public void testLzwFloatingPointPredictor() {
+        final int width = 64, height = 64;
+        final ByteBuffer tile = ByteBuffer.allocate(width * height * 4);
+        for (int i = 0; i < width * height; i++) {
+            tile.putFloat((float) Math.hypot(i % width - 20, i / width - 30));
+        }
+        final byte[] original = tile.array().clone();
+        TileCompressor.floatingPointPredict(tile, original.length, width * 4, 1, 4);
+        final byte[] decoded = decodeLzw(TileCompressor.lzw(tile, original.length),
+                original.length, new int[1]);
+        undoFloatingPointPredictor(decoded, width * 4, 1, 4);
+        assertTrue(Arrays.equals(original, decoded));
+    }
+
+    /**
+     * Compresses a tile with LZW then decodes it, checking that it is
+     * unchanged
+     *
+     * @param data
+     * @return the number of CLEAR codes after the first
+     */
+    private static int roundTrip(byte[] data) {
+        final int[] clears = new int[1];
+        final byte[] decoded = decodeLzw(TileCompressor.lzw(ByteBuffer.wrap(data.clone()),
+                data.length), data.length, clears);
+        if (!Arrays.equals(data, decoded)) {
+            fail("LZW of " + data.length + " bytes decoded to " + decoded.length
+                    + " bytes that differ");
+        }
+        return clears[0] - 1;
+    }
+
+    /**
+     * Decodes a TIFF LZW strip or tile (most significant bit first, with the
+     * code width increasing one code early), failing on anything a TIFF
+     * reader would reject
+     *
+     * @param buffer
+     * @param expected number of decoded bytes
+     * @param clears incremented for each CLEAR code
+     * @return
+     */
+    static byte[] decodeLzw(ByteBuffer buffer, int expected, int[] clears) {
+        final byte[] in = buffer.array();
+        final int start = buffer.arrayOffset() + buffer.position();
+        final long end = 8L * (buffer.arrayOffset() + buffer.limit());
+        final byte[][] table = new byte[4096][];
+        for (int i = 0; i < 256; i++) {
+            table[i] = new byte[]{(byte) i};
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(expected);
+        long position = 8L * start;
+        int bits = 9;
+        int next = FIRST;
+        byte[] previous = null;
+        byte[] entry;
+        int code;
+        while (true) {
+
+            //read the next code
+            assertTrue("LZW data ends without an end of information code",
+                    position + bits <= end);
+            code = 0;
+            for (int i = 0; i < bits; i++, position++) {
+                code = code << 1 | (in[(int) (position >> 3)] >> (7 - (int) (position & 7))) & 1;
+            }
+            if (position == 8L * start + bits) {
+                assertEquals("LZW data must start with a CLEAR code", CLEAR, code);
+            }
+            if (code == EOI) {
+                break;
+            }
+            if (code == CLEAR) {
+
+                //the encoder clears the table once it has 4094 entries, when
+                //the decoder (a code behind) has one less
+                if (previous != null) {
+                    assertEquals("LZW CLEAR code before the table is full", 4093, next);
+                }
+                clears[0]++;
+                bits = 9;
+                next = FIRST;
+                previous = null;
+                continue;
+            }
+
+            //a code in the table, or the one about to be added to it
+            if (code < next && table[code] != null) {
+                entry = table[code];
+            } else if (code == next && previous != null) {
+                entry = Arrays.copyOf(previous, previous.length + 1);
+                entry[previous.length] = previous[0];
+            } else {
+                throw new AssertionError("LZW code " + code + " is not in the table (next "
+                        + next + ")");
+            }
+            if (previous != null) {
+                table[next] = Arrays.copyOf(previous, previous.length + 1);
+                table[next][previous.length] = entry[0];
+                next++;
+                assertTrue("LZW string table is full without a CLEAR code", next < 4094);
+                if (next >= (1 << bits) - 1 && bits < 12) {
+                    bits++;
+                }
+            }
+            out.write(entry, 0, entry.length);
+            previous = entry;
+        }
+        assertTrue("LZW data continues past the end of information code", end - position < 8);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses a zlib stream, checking that it is complete
+     *
+     * @param buffer
+     * @param expected number of decoded bytes
+     * @return
+     * @throws DataFormatException
+     */
+    static byte[] inflate(ByteBuffer buffer, int expected) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            final byte[] out = new byte[expected];
+            int n = 0;
+            while (n < expected && !inflater.finished()) {
+                final int read = inflater.inflate(out, n, expected - n);
+                assertTrue("DEFLATE data ends early", read > 0 || !inflater.needsInput());
+                n += read;
+            }
+            assertEquals(expected, n);
+            assertTrue("DEFLATE data is not complete", inflater.finished());
+            return out;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reverses the horizontal predictor (2) of big endian integer samples
+     *
+     * @param data
+     * @param rowLength
+     * @param bands
+     * @param bytes
+     */
+    static void undoHorizontalPredictor(byte[] data, int rowLength, int bands, int bytes) {
+        final ByteBuffer tile = ByteBuffer.wrap(data);
+        final int stride = bands * bytes;
+        for (int row = 0; row < data.length; row += rowLength) {
+            for (int i = row + stride; i < row + rowLength; i += bytes) {
+                switch (bytes) {
+                    case 1:
+                        tile.put(i, (byte) (tile.get(i) + tile.get(i - stride)));
+                        break;
+                    case 2:
+                        tile.putShort(i, (short) (tile.getShort(i) + tile.getShort(i - stride)));
+                        break;
+                    default:
+                        tile.putInt(i, tile.getInt(i) + tile.getInt(i - stride));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reverses the floating point predictor (3) of big endian floating point
+     * samples: sums the bytes of each row, then puts the byte planes back
+     * together
+     *
+     * @param data
+     * @param rowLength
+     * @param bands
+     * @param bytes
+     */
+    static void undoFloatingPointPredictor(byte[] data, int rowLength, int bands, int bytes) {
+        final byte[] row = new byte[rowLength];
+        final int samples = rowLength / bytes;
+        for (int start = 0; start < data.length; start += rowLength) {
+            for (int i = start + bands; i < start + rowLength; i++) {
+                data[i] += data[i - bands];
+            }
+            for (int s = 0; s < samples; s++) {
+                for (int b = 0; b < bytes; b++) {
+                    row[s * bytes + b] = data[start + b * samples + s];
+                }
+            }
+            System.arraycopy(row, 0, data, start, rowLength);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package co.uk.winddirecttools.fastercalculator;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * Round trip tests of TiledGeoTiffWriter: each file is read back as a TIFF
+ * reader would, from the header and image directory down to the samples of
+ * each decompressed tile
+ *
+ * @author jonathan.huck
+ */
+public class TiledGeoTiffWriterTest extends TestCase {
+
+    /*
+     * image dimensions (not a multiple of the tile size, so the edge tiles are
+     * padded)
+     */
+    private static final int WIDTH = 50;
+    private static final int HEIGHT = 37;
+    private static final int TILE_SIZE = 16;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TiledGeoTiffWriterTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TiledGeoTiffWriterTest.class);
+    }
+
+    /**
+     * A small file is a classic TIFF unless BigTIFF is asked for, and either
+     * can be written with each compression
+     *
+     * @throws Exception
+     */
+    public void testBigTiffSwitch() throws Exception {
+        final BufferedImage image = createImage(DataBuffer.TYPE_USHORT, 1);
+        for (TiledGeoTiffWriter.Compression compression : TiledGeoTiffWriter.Compression.values()) {
+            assertFalse(compression.toString(), roundTrip(image, compression, true, null));
+            assertFalse(compression.toString(), roundTrip(image, compression, true, false));
+            assertTrue(compression.toString(), roundTrip(image, compression, true, true));
+        }
+    }
+
+    /**
+     * LZW and DEFLATE with the horizontal predictor (2) on byte and unsigned
+     * short images of one and three bands
+     *
+     * @throws Exception
+     */
+    public void testHorizontalPredictor() throws Exception {
+        final BufferedImage[] images = {createImage(DataBuffer.TYPE_BYTE, 1),
+            createImage(DataBuffer.TYPE_BYTE, 3), createImage(DataBuffer.TYPE_USHORT, 1)};
+        for (BufferedImage image : images) {
+            for (boolean big : new boolean[]{false, true}) {
+                roundTrip(image, TiledGeoTiffWriter.Compression.LZW, true, big);
+                roundTrip(image, TiledGeoTiffWriter.Compression.DEFLATE, true, big);
+                roundTrip(image, TiledGeoTiffWriter.Compression.DEFLATE, false, big);
+            }
+        }
+    }
+
+    /**
+     * LZW and DEFLATE with the floating point predictor (3)
+     *
+     * @throws Exception
+     */
+    public void testFloatingPointPredictor() throws Exception {
+        final BufferedImage image = createImage(DataBuffer.TYPE_FLOAT, 1);
+        for (boolean big : new boolean[]{false, true}) {
+            roundTrip(image, TiledGeoTiffWriter.Compression.LZW, true, big);
+            roundTrip(image, TiledGeoTiffWriter.Compression.DEFLATE, true, big);
+            roundTrip(image, TiledGeoTiffWriter.Compression.LZW, false, big);
+        }
+    }
+
+    /**
+     * The overviews of RGB and RGBA images take the top left cell of each 2x2
+     * block even when averaging is asked for, as a colour cannot be averaged
+     * one band at a time (nor with its black or transparent cells left out)
+     *
+     * @throws Exception
+     */
+    public void testColourOverviews() throws Exception {
+        final ColorModel colorModel = new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+                Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+        final WritableRaster raster = colorModel.createCompatibleWritableRaster(WIDTH, HEIGHT);
+        final Random random = new Random(6);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+
+                //some cells black, some transparent
+                final int kind = random.nextInt(4);
+                for (int b = 0; b < 3; b++) {
+                    raster.setSample(x, y, b, kind == 0 ? 0 : random.nextInt(256));
+                }
+                raster.setSample(x, y, 3, kind == 1 ? 0 : 255);
+            }
+        }
+        final BufferedImage[] images = {createImage(DataBuffer.TYPE_BYTE, 3),
+            new BufferedImage(colorModel, raster, false, null)};
+        for (BufferedImage image : images) {
+            final int bands = image.getRaster().getNumBands();
+            final String name = bands + " band overview";
+            final File file = File.createTempFile("TiledGeoTiffWriterTest", ".tif");
+            final ByteBuffer data;
+            try {
+                new TiledGeoTiffWriter(file).setCompression(TiledGeoTiffWriter.Compression.NONE)
+                        .setTileSize(TILE_SIZE).setOverviews(TiledGeoTiffWriter.Resampling.AVERAGE)
+                        .setBigTiff(false).write(image, new Envelope2D(null, 0, 0, WIDTH, HEIGHT),
+                        null);
+                data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            } finally {
+                file.delete();
+            }
+
+            //the directory of the first overview follows that of the image
+            final int first = data.getInt(4);
+            final int directory = data.getInt(first + 2 + (data.getShort(first) & 0xFFFF) * 12);
+            final Map<Integer, long[]> tags = readDirectory(data, directory, false, name);
+            final int width = (WIDTH + 1) / 2, height = (HEIGHT + 1) / 2;
+            assertEquals(name, width, tags.get(256)[0]);
+            assertEquals(name, height, tags.get(257)[0]);
+            assertEquals(name, 2, tags.get(262)[0]);
+            final long[] offsets = tags.get(324);
+            final int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    final int at = (int) offsets[y / TILE_SIZE * tilesX + x / TILE_SIZE]
+                            + ((y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE) * bands;
+                    for (int b = 0; b < bands; b++) {
+                        assertEquals(name + ": sample " + b + " of (" + x + ", " + y + ")",
+                                image.getRaster().getSample(2 * x, 2 * y, b),
+                                data.get(at + b) & 0xFF);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes an image then reads it back, checking that every sample of every
+     * tile is as it was (or 0 past the edge of the image)
+     *
+     * @param image
+     * @param compression
+     * @param predictor
+     * @param bigTiff true or false to force BigTIFF on or off, null to choose
+     * @return true if the file was written as BigTIFF
+     * @throws IOException
+     * @throws DataFormatException
+     */
+    private static boolean roundTrip(BufferedImage image,
+            TiledGeoTiffWriter.Compression compression, boolean predictor, Boolean bigTiff)
+            throws IOException, DataFormatException {
+        final String name = image.getRaster().getNumBands() + " band "
+                + image.getRaster().getDataBuffer().getDataType() + " " + compression
+                + (predictor ? " with predictor" : "") + (bigTiff != null && bigTiff ? " BigTIFF" : "");
+        final File file = File.createTempFile("TiledGeoTiffWriterTest", ".tif");
+        final ByteBuffer data;
+        try {
+            final TiledGeoTiffWriter writer = new TiledGeoTiffWriter(file)
+                    .setCompression(compression).setPredictor(predictor).setTileSize(TILE_SIZE)
+                    .setThreads(3);
+            if (bigTiff != null) {
+                writer.setBigTiff(bigTiff);
+            }
+            writer.write(image, new Envelope2D(null, 0, 0, WIDTH, HEIGHT), null);
+            data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+
+        //header
+        assertEquals(name, 'M', data.get(0));
+        assertEquals(name, 'M', data.get(1));
+        final boolean big;
+        final long directory;
+        switch (data.getShort(2)) {
+            case 42:
+                big = false;
+                directory = data.getInt(4) & 0xFFFFFFFFL;
+                break;
+            case 43:
+                big = true;
+                assertEquals(name, 8, data.getShort(4));
+                assertEquals(name, 0, data.getShort(6));
+                directory = data.getLong(8);
+                break;
+            default:
+                throw new AssertionError(name + ": not a TIFF or BigTIFF");
+        }
+        if (bigTiff != null) {
+            assertEquals(name, bigTiff.booleanValue(), big);
+        }
+
+        //image directory
+        final Map<Integer, long[]> tags = readDirectory(data, (int) directory, big, name);
+        final int bands = image.getRaster().getNumBands();
+        final int bytes = DataBuffer.getDataTypeSize(image.getRaster().getDataBuffer().getDataType()) / 8;
+        assertEquals(name, WIDTH, tags.get(256)[0]);
+        assertEquals(name, HEIGHT, tags.get(257)[0]);
+        assertEquals(name, bands, tags.get(277)[0]);
+        assertEquals(name, bytes * 8, tags.get(258)[0]);
+        assertEquals(name, TILE_SIZE, tags.get(322)[0]);
+        assertEquals(name, TILE_SIZE, tags.get(323)[0]);
+        final long scheme = tags.get(259)[0];
+        final long prediction = tags.containsKey(317) ? tags.get(317)[0] : 1;
+        final boolean floatingPoint = tags.get(339)[0] == 3;
+        assertEquals(name, compression == TiledGeoTiffWriter.Compression.NONE ? 1
+                : compression == TiledGeoTiffWriter.Compression.LZW ? 5 : 8, scheme);
+        assertEquals(name, !predictor || scheme == 1 ? 1 : floatingPoint ? 3 : 2, prediction);
+
+        //without a coordinate system, only that pixels are areas
+        assertTrue(name, Arrays.equals(new long[]{1, 1, 0, 1, 1025, 0, 1, 1}, tags.get(34735)));
+
+        //tiles
+        final long[] offsets = tags.get(324);
+        final long[] counts = tags.get(325);
+        final int tilesX = (WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+        final int tilesY = (HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+        assertEquals(name, tilesX * tilesY, offsets.length);
+        assertEquals(name, offsets.length, counts.length);
+        final int rowLength = TILE_SIZE * bands * bytes;
+        final int length = TILE_SIZE * rowLength;
+        final WritableRaster raster = image.getRaster();
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                final int i = ty * tilesX + tx;
+                final ByteBuffer compressed = ByteBuffer.wrap(Arrays.copyOfRange(data.array(),
+                        (int) offsets[i], (int) (offsets[i] + counts[i])));
+                final byte[] decoded;
+                if (scheme == 5) {
+                    decoded = TileCompressorTest.decodeLzw(compressed, length, new int[1]);
+                } else if (scheme == 8) {
+                    decoded = TileCompressorTest.inflate(compressed, length);
+                } else {
+                    decoded = compressed.array();
+                }
+                assertEquals(name, length, decoded.length);
+                if (prediction == 2) {
+                    TileCompressorTest.undoHorizontalPredictor(decoded, rowLength, bands, bytes);
+                } else if (prediction == 3) {
+                    TileCompressorTest.undoFloatingPointPredictor(decoded, rowLength, bands, bytes);
+                }
+
+                //compare each sample
+                final ByteBuffer tile = ByteBuffer.wrap(decoded);
+                for (int y = 0; y < TILE_SIZE; y++) {
+                    for (int x = 0; x < TILE_SIZE; x++) {
+                        for (int b = 0; b < bands; b++) {
+                            final int at = (y * TILE_SIZE + x) * bands * bytes + b * bytes;
+                            final double value = floatingPoint ? tile.getFloat(at)
+                                    : bytes == 1 ? tile.get(at) & 0xFF : tile.getShort(at) & 0xFFFF;
+                            final int column = tx * TILE_SIZE + x, row = ty * TILE_SIZE + y;
+                            final double expected = column < WIDTH && row < HEIGHT
+                                    ? raster.getSampleDouble(column, row, b) : 0;
+                            if (value != expected) {
+                                fail(name + ": sample " + b + " of (" + column + ", " + row
+                                        + ") is " + value + ", expected " + expected);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return big;
+    }
+
+    /**
+     * Reads the SHORT, LONG and LONG8 values of the entries of an image
+     * directory, checking that the tags are in ascending order and that a
+     * classic TIFF has no 64 bit values
+     *
+     * @param data
+     * @param directory position of the directory
+     * @param big
+     * @param name
+     * @return
+     */
+    private static Map<Integer, long[]> readDirectory(ByteBuffer data, int directory, boolean big,
+            String name) {
+        final Map<Integer, long[]> tags = new HashMap<Integer, long[]>();
+        final int count = big ? (int) data.getLong(directory) : data.getShort(directory) & 0xFFFF;
+        final int entrySize = big ? 20 : 12;
+        final int inline = big ? 8 : 4;
+        int previous = -1;
+        for (int e = 0; e < count; e++) {
+            final int entry = directory + (big ? 8 : 2) + e * entrySize;
+            final int tag = data.getShort(entry) & 0xFFFF;
+            final int type = data.getShort(entry + 2);
+            final int n = big ? (int) data.getLong(entry + 4) : data.getInt(entry + 4);
+            assertTrue(name + ": tag " + tag + " out of order", tag > previous);
+            previous = tag;
+            if (!big) {
+                assertTrue(name + ": 64 bit value in a classic TIFF", type != 16);
+            }
+            final int size = type == 3 ? 2 : type == 4 ? 4 : type == 16 || type == 12 ? 8 : 1;
+            final int value = entry + (big ? 12 : 8);
+            final int at = n * size <= inline ? value
+                    : big ? (int) data.getLong(value) : data.getInt(value);
+            if (type == 3 || type == 4 || type == 16) {
+                final long[] values = new long[n];
+                for (int i = 0; i < n; i++) {
+                    values[i] = type == 3 ? data.getShort(at + 2 * i) & 0xFFFF
+                            : type == 4 ? data.getInt(at + 4 * i) & 0xFFFFFFFFL
+                            : data.getLong(at + 8 * i);
+                }
+                tags.put(tag, values);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Returns an image of smooth values with some noise
+     *
+     * @param dataType
+     * @param bands
+     * @return
+     */
+    private static BufferedImage createImage(int dataType, int bands) {
+        final ColorSpace space = ColorSpace.getInstance(bands == 3 ? ColorSpace.CS_sRGB
+                : ColorSpace.CS_GRAY);
+        final ColorModel colorModel = new ComponentColorModel(space, false, false,
+                Transparency.OPAQUE, dataType);
+        final WritableRaster raster = colorModel.createCompatibleWritableRaster(WIDTH, HEIGHT);
+        final Random random = new Random(dataType * 10 + bands);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                for (int b = 0; b < bands; b++) {
+                    final double value = 100 + 80 * Math.sin((x + b * 7) / 9.0) * Math.cos(y / 7.0);
+                    if (dataType == DataBuffer.TYPE_FLOAT) {
+                        raster.setSample(x, y, b, (float) (value * 3.7 + random.nextGaussian()));
+                    } else if (dataType == DataBuffer.TYPE_USHORT) {
+                        raster.setSample(x, y, b, (int) (value * 300) + random.nextInt(20));
+                    } else {
+                        raster.setSample(x, y, b, (int) value + random.nextInt(3));
+                    }
+                }
+            }
+        }
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+}